@@ -0,0 +1,182 @@
+package com.syncapp.cliente;
+
+import com.syncapp.interfaces.ArchivoNoAbiertoException;
+import com.syncapp.model.BloqueBytes;
+import com.syncapp.model.TicketTransferencia;
+import com.syncapp.utility.LectorArchivos;
+import com.syncapp.utility.PoolBloques;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Conexion con el canal de datos del servidor, por la que se transmiten los bloques de un archivo abierto con
+ * {@link com.syncapp.interfaces.SyncApp#abrirTransferencia(com.syncapp.model.TokenUsuario, com.syncapp.model.Archivo, String)}.
+ * <br>
+ * Cada peticion se envia y se responde por completo antes de la siguiente, por lo que una conexion no se debe usar desde
+ * varios hilos a la vez: cada hilo de la {@link Transmision} usa su propia conexion. El protocolo se describe en
+ * {@link TicketTransferencia}.
+ */
+public class ConexionDatos implements AutoCloseable {
+
+    /**
+     * Socket conectado al canal de datos.
+     */
+    private final SocketChannel canal;
+
+    /**
+     * Buffer de la cabecera de las peticiones.
+     */
+    private final ByteBuffer cabecera = ByteBuffer.allocate(TicketTransferencia.BYTES_CABECERA);
+
+    /**
+     * Buffer de las respuestas del servidor.
+     */
+    private final ByteBuffer respuesta = ByteBuffer.allocate(8);
+
+
+    /**
+     * Abre una conexion con el canal de datos del servidor.
+     * @param host direccion del servidor.
+     * @param puerto puerto del canal de datos.
+     * @throws IOException si no se puede conectar.
+     */
+    public ConexionDatos(String host, int puerto) throws IOException {
+        canal = SocketChannel.open(new InetSocketAddress(host, puerto));
+    }
+
+
+
+
+    // Transmision de datos
+
+    /**
+     * Pide al servidor un bloque del archivo, analogo a
+     * {@link com.syncapp.interfaces.SyncApp#leerBloqueBytes(int, long)}. El buffer del bloque se obtiene de
+     * {@link PoolBloques#obtener(int)}, por lo que se debe invocar {@link BloqueBytes#liberar()} al terminar de usarlo.
+     * @param ticket {@link TicketTransferencia} del archivo, abierto para lectura.
+     * @param posicion posicion del primer byte del bloque.
+     * @return {@link BloqueBytes} leido, o null si no quedan bytes por leer.
+     * @throws IOException si hay un problema con la conexion. Si el servidor rechaza la peticion, porque el
+     * archivo ya no esta abierto, se lanza {@link ArchivoNoAbiertoException}.
+     */
+    public BloqueBytes leerBloque(TicketTransferencia ticket, long posicion) throws IOException {
+        enviarCabecera(TicketTransferencia.LEER, ticket, posicion, VariablesGlobales.MAX_BYTES_IN_BLOCK);
+        escribirCompleto(cabecera);
+
+        int n = leerEntero();
+        if(n == TicketTransferencia.RECHAZADO) throw new ArchivoNoAbiertoException("el servidor ha rechazado la lectura");
+        if(n == 0) return null;
+        if(n < 0 || n > VariablesGlobales.MAX_BYTES_IN_BLOCK) throw new IOException("tamaño de bloque no valido: " + n);
+
+        BloqueBytes bb = new BloqueBytes();
+        bb.data = PoolBloques.obtener(n);
+        try {
+            leerCompleto(ByteBuffer.wrap(bb.data, 0, n));
+        } catch (IOException e) {
+            bb.liberar();
+            throw e;
+        }
+
+        bb.position = posicion;
+        bb.size = n;
+        bb.fileID = ticket.fileId;
+        return bb;
+    }
+
+
+    /**
+     * Envia al servidor un bloque del archivo, analogo a
+     * {@link com.syncapp.interfaces.SyncApp#escribirBloqueBytes(int, BloqueBytes)}. El bloque no se libera.
+     * @param ticket {@link TicketTransferencia} del archivo, abierto para escritura.
+     * @param bb {@link BloqueBytes} que se quiere escribir.
+     * @throws IOException si hay un problema con la conexion. Si el servidor rechaza la peticion, porque el
+     * archivo ya no esta abierto, se lanza {@link ArchivoNoAbiertoException}.
+     */
+    public void escribirBloque(TicketTransferencia ticket, BloqueBytes bb) throws IOException {
+        enviarCabecera(TicketTransferencia.ESCRIBIR, ticket, bb.position, bb.size);
+
+        // La cabecera y los bytes del bloque se envian con una unica escritura
+        ByteBuffer[] peticion = { cabecera, ByteBuffer.wrap(bb.data, 0, bb.size) };
+        while (peticion[1].hasRemaining()) {
+            canal.write(peticion);
+        }
+
+        int escritos = leerEntero();
+        if(escritos == TicketTransferencia.RECHAZADO) throw new ArchivoNoAbiertoException("el servidor ha rechazado la escritura");
+        if(escritos != bb.size) throw new IOException("el servidor ha escrito "+escritos+" de "+bb.size+" bytes");
+    }
+
+
+    /**
+     * Pide al servidor el archivo completo desde una posicion, y lo escribe en el archivo local con
+     * {@link LectorArchivos#recibirDe(java.nio.channels.ReadableByteChannel, long, long)}. El servidor envia el archivo
+     * con sendfile, y aqui se pasa del socket al archivo local, por lo que los bytes no pasan por la memoria de Java en
+     * ninguno de los dos extremos.
+     * @param ticket {@link TicketTransferencia} del archivo, abierto para lectura.
+     * @param posicion posicion a partir de la cual se descarga.
+     * @param destino {@link LectorArchivos} de escritura del archivo local.
+     * @return numero de bytes descargados.
+     * @throws IOException si hay un problema con la conexion o el archivo local. Si el servidor rechaza la peticion,
+     * porque el archivo ya no esta abierto, se lanza {@link ArchivoNoAbiertoException}.
+     */
+    public long descargarArchivo(TicketTransferencia ticket, long posicion, LectorArchivos destino) throws IOException {
+        enviarCabecera(TicketTransferencia.DESCARGAR, ticket, posicion, 0);
+        escribirCompleto(cabecera);
+
+        respuesta.clear();
+        leerCompleto(respuesta);
+        long n = respuesta.flip().getLong();
+        if(n == TicketTransferencia.RECHAZADO) throw new ArchivoNoAbiertoException("el servidor ha rechazado la descarga");
+
+        destino.recibirDe(canal, posicion, n);
+        return n;
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private void enviarCabecera(byte operacion, TicketTransferencia ticket, long posicion, int longitud) {
+        cabecera.clear();
+        cabecera.put(operacion).putLong(ticket.ticket).putLong(posicion).putInt(longitud);
+        cabecera.flip();
+    }
+
+    private void escribirCompleto(ByteBuffer origen) throws IOException {
+        while (origen.hasRemaining()) {
+            canal.write(origen);
+        }
+    }
+
+    private void leerCompleto(ByteBuffer destino) throws IOException {
+        while (destino.hasRemaining()) {
+            if(canal.read(destino) < 0) throw new EOFException("el servidor ha cerrado la conexion");
+        }
+    }
+
+    private int leerEntero() throws IOException {
+        respuesta.clear().limit(4);
+        leerCompleto(respuesta);
+        return respuesta.flip().getInt();
+    }
+
+
+    /**
+     * Cierra la conexion.
+     */
+    @Override
+    public void close() {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.syncapp.cliente;
+
+import com.syncapp.utility.VariablesGlobales;
+
+import java.util.BitSet;
+
+
+/**
+ * Esta clase lleva el control de que {@link com.syncapp.model.BloqueBytes bloques} de un archivo se han transmitido ya.
+ * <br>
+ * Un archivo se divide en bloques de {@link VariablesGlobales#MAX_BYTES_IN_BLOCK} bytes, y el bloque numero {@code n}
+ * empieza en la posicion {@code n * MAX_BYTES_IN_BLOCK}. Como cada bloque conoce su posicion, los bloques se pueden
+ * transmitir en cualquier orden y desde varios hilos, y esta clase permite saber cuales faltan por transmitir.
+ * {@link Transmision} marca cada bloque confirmado, y unicamente da el archivo por transmitido si se han completado
+ * todos.
+ */
+class ControlBloques {
+
+    /**
+     * Numero total de bloques del archivo.
+     */
+    private final long numBloques;
+
+    /**
+     * Bloques que ya se han transmitido con exito.
+     */
+    private final BitSet completados;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea el control de bloques para un archivo del tamaño indicado.
+     * @param sizeInBytes tamaño del archivo en bytes.
+     */
+    ControlBloques(long sizeInBytes) {
+        this.numBloques = numeroDeBloques(sizeInBytes);
+        this.completados = new BitSet((int) Math.min(numBloques, Integer.MAX_VALUE));
+    }
+
+
+
+
+    // Metodos de utilidad
+
+    /**
+     * Calcula el numero de bloques en los que se divide un archivo.
+     * @param sizeInBytes tamaño del archivo en bytes.
+     * @return numero de bloques necesarios para transmitir el archivo.
+     */
+    static long numeroDeBloques(long sizeInBytes) {
+        if(sizeInBytes <= 0) return 0;
+        return (sizeInBytes + VariablesGlobales.MAX_BYTES_IN_BLOCK - 1) / VariablesGlobales.MAX_BYTES_IN_BLOCK;
+    }
+
+    /**
+     * Calcula la posicion (en bytes) en la que empieza un bloque.
+     * @param numBloque numero del bloque.
+     * @return posicion del primer byte del bloque.
+     */
+    static long posicionDeBloque(long numBloque) {
+        return numBloque * VariablesGlobales.MAX_BYTES_IN_BLOCK;
+    }
+
+
+
+
+    // Control de bloques
+
+    /**
+     * Marca un bloque como transmitido.
+     * @param numBloque numero del bloque.
+     */
+    synchronized void marcarCompletado(long numBloque) {
+        completados.set((int) numBloque);
+    }
+
+    /**
+     * Comprueba si se han transmitido todos los bloques del archivo.
+     * @return true si no queda ningun bloque por transmitir.
+     */
+    synchronized boolean todosCompletados() {
+        return completados.cardinality() >= numBloques;
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.syncapp.cliente;
+
+import com.syncapp.interfaces.SyncApp;
+import com.syncapp.model.Archivo;
+import com.syncapp.model.FirmaBloque;
+import com.syncapp.model.InstruccionDelta;
+import com.syncapp.model.TokenUsuario;
+import com.syncapp.utility.Delta;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+
+/**
+ * Tarea de carga de un archivo que ya existe en el servidor, enviando unicamente las diferencias.
+ * <br>
+ * Se le piden al servidor las {@link FirmaBloque firmas} de los bloques de su version del archivo, se buscan esos
+ * bloques en la version local con {@link Delta#calcularDelta(Path, ArrayList, long)} y se envian las
+ * {@link InstruccionDelta instrucciones} resultantes, de forma que los bloques que no han cambiado no viajan por la red.
+ * <br>
+ * Si el servidor no puede aplicar las diferencias (el archivo no existe, esta abierto por otra sesion...) o las
+ * diferencias son demasiado grandes, se carga el archivo completo con una {@link Transmision}.
+ */
+public class SubidaDelta implements Runnable {
+
+    /**
+     * Servidor al que se va a cargar el archivo.
+     */
+    private final SyncApp server;
+
+    /**
+     * Archivo que se va a cargar.
+     */
+    private final Archivo ruta;
+
+    /**
+     * Directorio de trabajo del cliente.
+     */
+    private final String pathlocal;
+
+    /**
+     * Usuario que quiere cargar el archivo.
+     */
+    private final TokenUsuario usuario;
+
+    /**
+     * Ventana y numero de hilos de la {@link Transmision} que se usa si hay que cargar el archivo completo.
+     */
+    private final int ventana, hilosPorArchivo;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea la tarea de carga por diferencias.
+     * @param server {@link SyncApp servidor} al que queremos cargar el archivo.
+     * @param ruta {@link Archivo} que queremos cargar.
+     * @param pathlocal {@link String directorio} de trabajo del cliente.
+     * @param usuario {@link TokenUsuario usuario} que carga el archivo. Previamente necesitara haber iniciado sesion.
+     * @param ventana numero maximo de bloques en vuelo si hay que cargar el archivo completo.
+     * @param hilosPorArchivo hilos que se comunican con el servidor si hay que cargar el archivo completo.
+     */
+    public SubidaDelta(SyncApp server, Archivo ruta, String pathlocal, TokenUsuario usuario, int ventana, int hilosPorArchivo) {
+        this.server = server;
+        this.ruta = ruta;
+        this.pathlocal = pathlocal;
+        this.usuario = usuario;
+        this.ventana = ventana;
+        this.hilosPorArchivo = hilosPorArchivo;
+    }
+
+
+
+
+
+
+    /**
+     * Tarea de carga. Se intenta cargar el archivo por diferencias y, si no es posible, se carga completo.
+     * @throws RuntimeException si no se ha podido cargar el archivo de ninguna forma.
+     */
+    @Override
+    public void run() {
+        if(cargarDiferencias()) return;
+
+        System.out.println("no se ha podido cargar por diferencias, cargando completo "+ruta);
+        try {
+            new Transmision(server, ruta, pathlocal, usuario, Transmision.TipoDeTransmisiones.UPLOAD,
+                    ventana, hilosPorArchivo).run();
+        } catch (IOException e) {
+            throw new RuntimeException("no se ha podido cargar "+ruta, e);
+        }
+    }
+
+
+    /**
+     * Intenta cargar el archivo enviando unicamente las diferencias con la version del servidor.
+     * @return true si el servidor ha reconstruido el archivo, false si hay que cargarlo completo.
+     */
+    private boolean cargarDiferencias() {
+        try {
+            ruta.parentFolder = pathlocal;
+            Path local = ruta.toPath();
+
+            // Pedimos las firmas de la version del servidor
+            ArrayList<FirmaBloque> firmas = server.obtenerFirmas(usuario, ruta);
+            if(firmas == null) return false;
+
+            // Las diferencias no deben ocupar mas que un bloque, en otro caso compensa la transmision por bloques
+            ArrayList<InstruccionDelta> delta = Delta.calcularDelta(local, firmas, VariablesGlobales.MAX_BYTES_IN_BLOCK);
+            if(delta == null) return false;
+
+            // El servidor comprueba que la version reconstruida tiene el tamaño del archivo local
+            ruta.sizeInBytes = Files.size(local);
+
+            boolean aplicado = server.aplicarDelta(usuario, ruta, delta);
+            if(aplicado) {
+                System.out.println("cargado por diferencias ("+delta.size()+" instrucciones) "+ruta);
+            }
+            return aplicado;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.syncapp.cliente;
+
+import com.syncapp.interfaces.SyncApp;
+import com.syncapp.model.Archivo;
+import com.syncapp.model.TokenUsuario;
+import com.syncapp.utility.Utilidades;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Tarea de carga de un archivo que reutiliza el contenido que ya tiene el servidor.
+ * <br>
+ * Se calcula el manifiesto del archivo local ({@link Utilidades#calcularManifiesto(Path)}), se le pregunta al servidor
+ * que fragmentos tiene ya (de otras versiones del archivo, o de otros archivos), se envian unicamente los fragmentos
+ * que faltan y se le pide al servidor que componga el archivo. Si el servidor no tiene ningun fragmento, o no puede
+ * componer el archivo, se carga el archivo completo con una {@link Transmision}.
+ */
+public class SubidaFragmentos implements Runnable {
+
+    /**
+     * Servidor al que se va a cargar el archivo.
+     */
+    private final SyncApp server;
+
+    /**
+     * Archivo que se va a cargar.
+     */
+    private final Archivo ruta;
+
+    /**
+     * Directorio de trabajo del cliente.
+     */
+    private final String pathlocal;
+
+    /**
+     * Usuario que quiere cargar el archivo.
+     */
+    private final TokenUsuario usuario;
+
+    /**
+     * Ventana de la {@link Transmision} que se usa si hay que cargar el archivo completo.
+     */
+    private final int ventana;
+
+    /**
+     * Numero de hilos que envian fragmentos, y de la {@link Transmision} que se usa si hay que cargar el archivo completo.
+     */
+    private final int hilosPorArchivo;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea la tarea de carga por fragmentos.
+     * @param server {@link SyncApp servidor} al que queremos cargar el archivo.
+     * @param ruta {@link Archivo} que queremos cargar.
+     * @param pathlocal {@link String directorio} de trabajo del cliente.
+     * @param usuario {@link TokenUsuario usuario} que carga el archivo. Previamente necesitara haber iniciado sesion.
+     * @param ventana numero maximo de bloques en vuelo si hay que cargar el archivo completo.
+     * @param hilosPorArchivo numero de fragmentos que se envian a la vez.
+     */
+    public SubidaFragmentos(SyncApp server, Archivo ruta, String pathlocal, TokenUsuario usuario, int ventana, int hilosPorArchivo) {
+        this.server = server;
+        this.ruta = ruta;
+        this.pathlocal = pathlocal;
+        this.usuario = usuario;
+        this.ventana = ventana;
+        this.hilosPorArchivo = Math.max(1, hilosPorArchivo);
+    }
+
+
+
+
+
+
+    /**
+     * Tarea de carga. Se intenta cargar el archivo por fragmentos y, si no es posible, se carga completo.
+     * @throws RuntimeException si no se ha podido cargar el archivo de ninguna forma.
+     */
+    @Override
+    public void run() {
+        if(cargarFragmentos()) return;
+
+        try {
+            new Transmision(server, ruta, pathlocal, usuario, Transmision.TipoDeTransmisiones.UPLOAD,
+                    ventana, hilosPorArchivo).run();
+        } catch (IOException e) {
+            throw new RuntimeException("no se ha podido cargar "+ruta, e);
+        }
+    }
+
+
+    /**
+     * Intenta cargar el archivo enviando unicamente los fragmentos que no tiene el servidor.
+     * @return true si el servidor ha compuesto el archivo, false si hay que cargarlo completo.
+     */
+    private boolean cargarFragmentos() {
+        try {
+            ruta.parentFolder = pathlocal;
+            Path local = ruta.toPath();
+
+            ArrayList<String> manifiesto = Utilidades.calcularManifiesto(local);
+            boolean[] presentes = server.tieneFragmentos(usuario, manifiesto);
+
+            // Si el servidor no tiene ningun fragmento, no hay nada que reutilizar
+            if(presentes == null || manifiesto.isEmpty() || !contieneAlguno(presentes)) return false;
+
+            // Enviamos los fragmentos que faltan. Un mismo fragmento puede aparecer varias veces en el manifiesto,
+            // pero solo se envia una vez
+            HashSet<String> enviados = new HashSet<>();
+            ArrayList<Integer> pendientes = new ArrayList<>();
+            for (int i = 0; i < presentes.length; i++) {
+                if(!presentes[i] && enviados.add(manifiesto.get(i))) pendientes.add(i);
+            }
+
+            if(!enviarFragmentos(local, manifiesto, pendientes)) return false;
+
+            // El servidor comprueba que el archivo compuesto tiene el tamaño del archivo local
+            ruta.sizeInBytes = Files.size(local);
+
+            boolean compuesto = server.componerArchivo(usuario, ruta, manifiesto);
+            if(compuesto) {
+                System.out.println("cargado reutilizando "+(manifiesto.size() - pendientes.size())+" de "
+                        +manifiesto.size()+" fragmentos "+ruta);
+            }
+            return compuesto;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+
+    /**
+     * Envia al servidor los fragmentos indicados del archivo local, desde {@link #hilosPorArchivo} hilos.
+     * @param local {@link Path ruta} del archivo local.
+     * @param manifiesto manifiesto del archivo local.
+     * @param pendientes indices de los fragmentos que se quieren enviar.
+     * @return true si el servidor ha aceptado todos los fragmentos.
+     * @throws IOException si ocurre un problema al leer el archivo local.
+     */
+    private boolean enviarFragmentos(Path local, ArrayList<String> manifiesto, ArrayList<Integer> pendientes) throws IOException {
+        if(pendientes.isEmpty()) return true;
+
+        ExecutorService hilos = Executors.newFixedThreadPool(Math.min(hilosPorArchivo, pendientes.size()));
+        ArrayList<Future<Boolean>> envios = new ArrayList<>();
+
+        try (FileChannel fc = FileChannel.open(local, StandardOpenOption.READ)) {
+            for (int indice : pendientes) {
+                envios.add(hilos.submit(() -> {
+                    byte[] fragmento = new byte[VariablesGlobales.BYTES_FRAGMENTO];
+                    long posicion = (long) indice * VariablesGlobales.BYTES_FRAGMENTO;
+                    int leidos = Utilidades.leerFragmento(fc, posicion, fragmento);
+
+                    byte[] datos = (leidos == fragmento.length) ? fragmento : Arrays.copyOf(fragmento, leidos);
+                    return server.subirFragmento(usuario, manifiesto.get(indice), datos);
+                }));
+            }
+
+            // Esperamos a que terminen todos los envios
+            boolean todos = true;
+            for (Future<Boolean> f : envios) {
+                todos &= f.get();
+            }
+            return todos;
+
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            hilos.shutdown();
+        }
+    }
+
+
+    /**
+     * Comprueba si alguna posicion del array esta a true.
+     * @param presentes array a comprobar.
+     * @return true si alguna posicion esta a true.
+     */
+    private static boolean contieneAlguno(boolean[] presentes) {
+        for (boolean p : presentes) {
+            if(p) return true;
+        }
+        return false;
+    }
+
+}
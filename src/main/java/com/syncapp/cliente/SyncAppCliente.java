@@ -1,7 +1,10 @@
 package com.syncapp.cliente;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.rmi.Naming;
@@ -9,14 +12,26 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.syncapp.interfaces.SyncApp;
 import com.syncapp.model.Archivo;
+import com.syncapp.model.CambiosArchivos;
+import com.syncapp.model.ListaArchivos;
 import com.syncapp.model.LocalRemote;
+import com.syncapp.model.PaginaArchivos;
 import com.syncapp.model.TokenUsuario;
+import com.syncapp.utility.AlgoritmoHash;
+import com.syncapp.utility.CacheHashes;
+import com.syncapp.utility.ServicioHashes;
 import com.syncapp.utility.Utilidades;
 import com.syncapp.utility.VariablesGlobales;
 
@@ -75,9 +90,10 @@ public class SyncAppCliente {
     private int puerto;
 
     /**
-     * Token de usuario con el que iniciaremos sesion.
+     * Token de usuario con el que iniciaremos sesion. Al iniciar una sesion nueva se sustituye por otro token, en lugar
+     * de modificarlo, para que las tareas en curso sigan usando la sesion con la que abrieron sus archivos.
      */
-    private TokenUsuario user;
+    private volatile TokenUsuario user;
 
     /**
      * Desfase del cliente respecto del servidor, para compensar a la hora de comparar las horas de modificacion de los archivos.
@@ -90,16 +106,66 @@ public class SyncAppCliente {
      */
     private long timeError;
 
+    /**
+     * Margen, en milisegundos, con el que se buscan los archivos locales modificados desde la ultima sincronizacion.
+     */
+    private static final long MARGEN_CAMBIOS_LOCALES = 2000;
+
     /**
      * Carpeta de la maquina cliente que se quiere sincronizar.
      */
     private Path workingPath;
 
+    /**
+     * Cache de los hashes de los archivos de la carpeta de sincronizacion, para no volver a leer los archivos que no
+     * han cambiado en cada sincronizacion.
+     */
+    private CacheHashes cacheHashes;
+
+    /**
+     * Algoritmo de hash acordado con el servidor para detectar cambios. Se negocia en la primera sincronizacion.
+     */
+    private AlgoritmoHash algoritmoHash;
+
+    /**
+     * Cursor del diario de cambios del servidor en la ultima sincronizacion, o null si no hay ninguna sincronizacion
+     * previa con este servidor, usuario y carpeta.
+     */
+    private String cursorCambios;
+
+    /**
+     * Momento, en milisegundos, en que empezo la ultima sincronizacion. Los archivos locales modificados despues se
+     * consideran cambiados en la siguiente sincronizacion incremental.
+     */
+    private long ultimaSincronizacion;
+
     /**
      * Numero de hilos concurrentes para transmitir archivos.
      */
     private int hilos;
 
+    /**
+     * Numero de tramos de un mismo archivo que se transmiten de forma simultanea. Permite que un unico archivo grande
+     * use varios hilos, en vez de transmitir un bloque por cada peticion al servidor.
+     */
+    private int hilosPorArchivo = VariablesGlobales.HILOS_POR_ARCHIVO;
+
+    /**
+     * Numero maximo de bloques en vuelo (leidos pero no confirmados) por cada {@link Transmision}. Limita la memoria
+     * que usa cada transmision a bloquesEnVuelo x {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}.
+     */
+    private int bloquesEnVuelo = VariablesGlobales.BLOQUES_EN_VUELO;
+
+    /**
+     * Indica si se quiere comprimir los bloques que se transmiten. Se negocia con el servidor al iniciar sesion.
+     */
+    private boolean compresion = VariablesGlobales.COMPRESION;
+
+    /**
+     * Indica si el servidor ha aceptado la compresion para la sesion actual.
+     */
+    private boolean compresionNegociada;
+
 
 
 
@@ -122,6 +188,18 @@ public class SyncAppCliente {
      */
     private ExecutorService exec;
 
+    /**
+     * Numero de operaciones que no se han podido completar desde que empezo la ultima sincronizacion. Si alguna ha
+     * fallado, la sincronizacion no guarda su cursor de cambios.
+     */
+    private final AtomicInteger operacionesFallidas = new AtomicInteger();
+
+    /**
+     * Renueva periodicamente la sesion en el servidor ({@link SyncApp#ping(TokenUsuario)}), para que no caduque
+     * mientras los archivos se transmiten por el canal de datos. Es null mientras no hay sesion iniciada.
+     */
+    private ScheduledExecutorService latido;
+
 
 
 
@@ -295,6 +373,10 @@ public class SyncAppCliente {
             this.workingPath = Paths.get( System.getProperty("user.home") ).resolve(workingPath);
         }
 
+        // La cache se guarda fuera de la carpeta de sincronizacion, para que no se sincronice
+        this.cacheHashes = new CacheHashes(this.workingPath,
+                Paths.get( System.getProperty("user.home") ).resolve("sync_app").resolve("cliente_hashes.idx"));
+
     }
 
     /**
@@ -321,6 +403,32 @@ public class SyncAppCliente {
     public void setHilos(String source) {
         hilos = Integer.parseInt(source);
     }
+
+    /**
+     * Establece el numero de tramos de un mismo archivo que se transmiten de forma simultanea.
+     * @param hilosPorArchivo numero de tramos simultaneos por archivo. Si es 1, los bloques se transmiten en serie.
+     */
+    public void setHilosPorArchivo(int hilosPorArchivo) {
+        if(hilosPorArchivo < 1) return;
+        this.hilosPorArchivo = hilosPorArchivo;
+    }
+
+    /**
+     * Establece el numero maximo de bloques en vuelo de cada transmision.
+     * @param bloquesEnVuelo tamaño de la ventana de bloques. Si es 1, cada bloque se confirma antes de leer el siguiente.
+     */
+    public void setBloquesEnVuelo(int bloquesEnVuelo) {
+        if(bloquesEnVuelo < 1) return;
+        this.bloquesEnVuelo = bloquesEnVuelo;
+    }
+
+    /**
+     * Establece si se quiere comprimir los bloques que se transmiten. Se aplica al iniciar la siguiente sesion.
+     * @param compresion true para pedir al servidor la compresion de los bloques.
+     */
+    public void setCompresion(boolean compresion) {
+        this.compresion = compresion;
+    }
 
 
 
@@ -363,8 +471,61 @@ public class SyncAppCliente {
     public void iniciarSesion() throws RemoteException {
         if(user != null) {
             System.out.println("Iniciando sesion como <"+user.name +"> ...");
-            user.session_id = remoteServer.iniciarSesion(user);
-            System.out.println("Sesion iniciada con exito, sesion_id="+user.session_id);
+            TokenUsuario nuevo = new TokenUsuario(user.name);
+            nuevo.session_id = remoteServer.iniciarSesion(nuevo);
+            System.out.println("Sesion iniciada con exito, sesion_id="+nuevo.session_id);
+
+            // Negociamos la compresion de los bloques para esta sesion
+            compresionNegociada = remoteServer.negociarCompresion(nuevo, compresion);
+            user = nuevo;
+
+            // Renovamos la sesion periodicamente
+            if(latido == null) iniciarLatido();
+        }
+    }
+
+
+    /**
+     * Inicia la renovacion periodica de la sesion cada {@link VariablesGlobales#LATIDO_SESION} ms. Si el servidor indica
+     * que la sesion ha caducado (por ejemplo, porque el cliente ha estado desconectado), se inicia una sesion nueva
+     * ({@link #renovarSesion(String)}).
+     */
+    private void iniciarLatido() {
+        latido = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "latido-sesion");
+            t.setDaemon(true);
+            return t;
+        });
+
+        latido.scheduleWithFixedDelay(() -> renovarSesion(user.session_id),
+                VariablesGlobales.LATIDO_SESION, VariablesGlobales.LATIDO_SESION, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Comprueba si la sesion con la que se hizo una peticion sigue activa en el servidor y, si ha caducado, inicia una
+     * sesion nueva. Lo invocan el latido y las tareas de transmision que fallan, por lo que si varias detectan a la vez
+     * que la sesion ha caducado, unicamente se inicia una sesion nueva. Si el usuario ya ha cerrado sesion
+     * ({@link #cerrar_usuario()}), no se renueva.
+     * @param sesion {@link String identificador} de la sesion con la que se hizo la peticion.
+     * @return true si la sesion se ha renovado desde que se hizo la peticion, false si sigue activa o no se ha podido
+     * renovar.
+     */
+    private synchronized boolean renovarSesion(String sesion) {
+        if(latido == null) return false;
+
+        // Otra tarea, o el latido, ya ha iniciado una sesion nueva
+        if(!Objects.equals(sesion, user.session_id)) return true;
+
+        try {
+            if(remoteServer.ping(user)) return false;
+
+            System.out.println("La sesion "+user.session_id+" ha caducado en el servidor");
+            iniciarSesion();
+            return true;
+        } catch (RemoteException e) {
+            System.out.println("No se ha podido renovar la sesion: "+e.getMessage());
+            return false;
         }
     }
 
@@ -413,6 +574,13 @@ public class SyncAppCliente {
      */
     public void cerrar_usuario() {
         System.out.println("Cerrando usuario ...");
+        synchronized (this) {
+            if(latido != null) {
+                latido.shutdownNow();
+                latido = null;
+            }
+        }
+
         try {
             remoteServer.cerrarSesion(user);
             System.out.println("Sesion cerrada con exito");
@@ -459,181 +627,486 @@ public class SyncAppCliente {
      * Le pide al gestor de tareas que lance una nueva tarea, del tipo indicado en los parametros, para el archivo tambien
      * indicado en los parametros.
      * @param archivo sobre el que ejecutar la tarea.
-     * @param operacion {@link VariablesGlobales#UPLOAD}/{@link VariablesGlobales#DOWNLOAD}, operacion que se quiere ejecutar.
+     * @param operacion {@link VariablesGlobales#UPLOAD}/{@link VariablesGlobales#DOWNLOAD}/
+     *                  {@link VariablesGlobales#DELTA_UPLOAD}/{@link VariablesGlobales#FRAGMENTOS_UPLOAD}, operacion que
+     *                  se quiere ejecutar.
      * @throws IOException si ocurre un problema al ejecutar la operacion.
      */
     public void ejecutarOperacion(Archivo archivo, int operacion) throws IOException {
 
         System.out.println( VariablesGlobales.toString(operacion)+": "+archivo );
+        Runnable tarea = crearTarea(archivo, operacion);
+        if(tarea != null) {
+            exec.execute(() -> ejecutarTarea(archivo, operacion, tarea));
+        }
+
+    }
+
+
+    /**
+     * Crea la tarea que ejecuta una operacion sobre un archivo, con la sesion actual del usuario.
+     * @param archivo sobre el que ejecutar la tarea.
+     * @param operacion operacion que se quiere ejecutar, como en {@link #ejecutarOperacion(Archivo, int)}.
+     * @return {@link Runnable tarea} de la operacion, o null si la operacion no existe.
+     * @throws IOException si ocurre un problema al preparar la tarea.
+     */
+    private Runnable crearTarea(Archivo archivo, int operacion) throws IOException {
         switch (operacion) {
             case VariablesGlobales.UPLOAD -> {
-                exec.execute(new Upload(remoteServer, archivo, workingPath.toString(), user));
+                Transmision carga = new Transmision(remoteServer, archivo, workingPath.toString(), user,
+                        Transmision.TipoDeTransmisiones.UPLOAD, bloquesEnVuelo, hilosPorArchivo);
+                carga.usarCanalDatos(serverIP);
+                carga.usarCompresion(compresionNegociada);
+                return carga;
             }
             case VariablesGlobales.DOWNLOAD -> {
-                exec.execute(new Download(remoteServer, archivo, workingPath.toString(), user));
+                Transmision descarga = new Transmision(remoteServer, archivo, workingPath.toString(), user,
+                        Transmision.TipoDeTransmisiones.DOWNLOAD, bloquesEnVuelo, hilosPorArchivo);
+                descarga.usarCanalDatos(serverIP);
+                descarga.usarCompresion(compresionNegociada);
+                return descarga;
+            }
+            case VariablesGlobales.DELTA_UPLOAD -> {
+                return new SubidaDelta(remoteServer, archivo, workingPath.toString(), user,
+                        bloquesEnVuelo, hilosPorArchivo);
+            }
+            case VariablesGlobales.FRAGMENTOS_UPLOAD -> {
+                return new SubidaFragmentos(remoteServer, archivo, workingPath.toString(), user,
+                        bloquesEnVuelo, hilosPorArchivo);
+            }
+            default -> {
+                return null;
             }
         }
+    }
+
 
+    /**
+     * Ejecuta la tarea de una operacion en el gestor de tareas. Si la tarea falla porque la sesion ha caducado en el
+     * servidor, el servidor ya ha cerrado (y descartado) el archivo, por lo que reintentar sus bloques no sirve de nada:
+     * se inicia una sesion nueva ({@link #renovarSesion(String)}) y la operacion se repite desde el principio, una
+     * unica vez.
+     * @param archivo sobre el que se ejecuta la tarea.
+     * @param operacion operacion de la tarea.
+     * @param tarea {@link Runnable tarea} creada con {@link #crearTarea(Archivo, int)}.
+     */
+    private void ejecutarTarea(Archivo archivo, int operacion, Runnable tarea) {
+        String sesion = user.session_id;
+        try {
+            tarea.run();
+            return;
+        } catch (RuntimeException e) {
+            if(!renovarSesion(sesion)) {
+                System.out.println("no se ha podido completar "+VariablesGlobales.toString(operacion)+" de "+archivo
+                        +": "+e.getMessage());
+                operacionesFallidas.incrementAndGet();
+                return;
+            }
+        }
+
+        System.out.println("repitiendo "+VariablesGlobales.toString(operacion)+" de "+archivo+" con la sesion "
+                +user.session_id);
+        try {
+            crearTarea(archivo, operacion).run();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("no se ha podido completar "+VariablesGlobales.toString(operacion)+" de "+archivo
+                    +": "+e.getMessage());
+            operacionesFallidas.incrementAndGet();
+        }
     }
 
 
     /**
      * Metodo principal, que ejecuta las instrucciones descritas {@link SyncApp} para obtener la lista de archivos, y determinar
      * que hacer con cada uno de ellos.
+     * <br>
+     * La lista remota se pide por paginas ({@link SyncApp#listaArchivos(TokenUsuario, String, int)}), y cada pagina se
+     * procesa mientras se pide la siguiente: los archivos que unicamente estan en el servidor se descargan en cuanto
+     * llegan, y los que estan en ambas maquinas se comparan por hash en grupos de
+     * {@link VariablesGlobales#HASHES_POR_PAGINA}. Los archivos que unicamente estan en local se conocen al terminar la
+     * lista remota, y se cargan al final.
+     * <br>
+     * Antes de guardar el cursor de cambios, se espera a que terminen todas las transmisiones
+     * ({@link #esperarHastaTerminarTransmisiones()}), y el cursor unicamente se guarda si todas han tenido exito.
      * @throws RemoteException si ocurre un problema remoto que impida ejecutar el metood.
      */
     public void sincronizarConServidor() throws RemoteException {
+        long inicio = System.currentTimeMillis();
+        operacionesFallidas.set(0);
+
+        // Si ya nos hemos sincronizado con este servidor, pedimos unicamente los cambios desde entonces
+        cargarEstadoCambios();
+        if (cursorCambios != null) {
+            String cursor = sincronizarCambios();
+            if (cursor != null) {
+                cacheHashes.guardar();
+                guardarEstadoSiCompleto(cursor, inicio);
+                return;
+            }
+            System.out.println("el servidor no reconoce el cursor de cambios, sincronizacion completa");
+        }
 
-        //Obtenemos listas iniciales, sin parametros
+        // Obtenemos el cursor de cambios antes de la lista, asi los cambios que ocurran mientras se sincroniza se
+        // recibiran en la siguiente sincronizacion
+        String cursor = remoteServer.cursorCambios(user);
 
         // Obtenemos la lista local y la mostramos por pantall
         ArrayList<Archivo> local = Utilidades.listFiles(workingPath);
         if (local != null) {
             System.out.println("tamaño lista local=" + local.size()); //TESTS
-            local.forEach(System.out::println); //TESTS
         }
 
-        // Obtenemos la lsita remota y la mostramos por pantalla
-        ArrayList<Archivo> remota = remoteServer.listaArchivos(user);
-        if (remota != null) {
-            System.out.println("\ntamaño lista remota=" + remota.size()); //TESTS
-            remota.forEach(System.out::println); //TESTS
-        }
+        // Establecemos un mapa auxiliar, con la ruta relativa de cada archivo local, en forma de String para que sea
+        // unica. Cada archivo remoto que se encuentra en el mapa se retira de el, de forma que al terminar la lista
+        // remota, el mapa contiene unicamente los archivos que estan exclusivamente en local
+        HashMap<String, Archivo> soloLocal = new HashMap<>();
+        if (local != null) local.forEach(c -> soloLocal.put(c.childFolder, c));
+
+        // Archivos que estan en ambas maquinas, a la espera de completar un grupo para comparar sus hashes
+        ArrayList<LocalRemote> enAmbas = new ArrayList<>();
+        int totalRemota = 0;
+
+        // Recorremos la lista remota por paginas
+        PaginaArchivos pagina = remoteServer.listaArchivos(user, null, VariablesGlobales.ARCHIVOS_POR_PAGINA);
+        while (pagina != null) {
 
-        // Establecemos dos condiciones que permiten determinar si la lista
-        // local o remota contiene elementos que sincronizar
-        boolean hayElementosEnLocal = (local != null && local.size() > 1);
-        boolean hayElementosEnRemoto = (remota != null && remota.size() > 1);
+            // Pedimos la pagina siguiente mientras procesamos la actual
+            CompletableFuture<PaginaArchivos> siguiente = (pagina.cursor == null) ? null : pedirPagina(pagina.cursor);
 
+            ArrayList<Archivo> remota = pagina.archivos();
+            totalRemota += remota.size();
 
-        // Si no hay archivos en local, pero si en remoto, descargamos todos los archivos de la lista
-        if (!hayElementosEnLocal && hayElementosEnRemoto) {
-            for (Archivo archivo : remota) {
+            for (Archivo remoto : remota) {
                 try {
-                    ejecutarOperacion(archivo, VariablesGlobales.DOWNLOAD);
+                    Archivo archivoLocal = soloLocal.remove(remoto.childFolder);
+
+                    // Si el archivo esta exclusivamente en remoto, lo descargamos del servidor
+                    if (archivoLocal == null) {
+                        ejecutarOperacion(remoto, VariablesGlobales.DOWNLOAD);
+                        continue;
+                    }
+
+                    // Si el archivo esta en ambas maquinas, hay que comparar los hashes
+                    LocalRemote lr = new LocalRemote();
+                    lr.setLocal(archivoLocal);
+                    lr.setRemote(remoto);
+                    enAmbas.add(lr);
+
+                    if (enAmbas.size() >= VariablesGlobales.HASHES_POR_PAGINA) {
+                        compararPagina(enAmbas);
+                        enAmbas.clear();
+                    }
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
-            return;
+
+            pagina = (siguiente == null) ? null : esperarPagina(siguiente);
         }
+        System.out.println("\ntamaño lista remota=" + totalRemota); //TESTS
 
+        // Comparamos el ultimo grupo de archivos que estan en ambas maquinas
+        if (!enAmbas.isEmpty()) compararPagina(enAmbas);
 
-        // Si no hay en remota, pero si en local, cargamos todos los archivos de la lista.
-        if (!hayElementosEnRemoto && hayElementosEnLocal) {
-            for (Archivo archivo : local) {
-                try {
-                    ejecutarOperacion(archivo, VariablesGlobales.UPLOAD);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+
+        // Los archivos que quedan en el mapa estan exclusivamente en local, asi que los cargamos al servidor. Si son
+        // grandes, intentamos reutilizar el contenido que ya tenga el servidor (por ejemplo, si se han copiado o movido)
+        for (Archivo archivoLocal : soloLocal.values()) {
+            try {
+                if (archivoLocal.sizeInBytes >= VariablesGlobales.MIN_BYTES_DELTA) {
+                    ejecutarOperacion(archivoLocal, VariablesGlobales.FRAGMENTOS_UPLOAD);
+                } else {
+                    ejecutarOperacion(archivoLocal, VariablesGlobales.UPLOAD);
                 }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-            return;
         }
 
+        // Guardamos los hashes calculados y el cursor de cambios, para la siguiente sincronizacion
+        cacheHashes.guardar();
+        if (cursor != null) guardarEstadoSiCompleto(cursor, inicio);
+
+    }
 
-        // Si local y remota estan vacias, volvemos, para asi no ejecutar ninguna operacion y esperar que se cree algun
-        // archivo para subirlo (monitor de archivos)
-        if (!hayElementosEnLocal && !hayElementosEnRemoto) {
-            return;
-        }
 
+    /**
+     * Sincronizacion incremental: pide al servidor unicamente los cambios posteriores a {@link #cursorCambios}
+     * ({@link SyncApp#cambiosDesde(TokenUsuario, String, int)}), y compara con el servidor unicamente esos archivos y
+     * los archivos locales modificados desde {@link #ultimaSincronizacion}. La sincronizacion no elimina archivos, asi
+     * que los archivos eliminados en el servidor se ignoran.
+     * @return el nuevo cursor de cambios, o null si el servidor ya no reconoce el cursor, en cuyo caso hay que hacer una
+     * sincronizacion completa.
+     * @throws RemoteException si ocurre un problema al pedir los cambios.
+     */
+    private String sincronizarCambios() throws RemoteException {
+
+        // Obtenemos la lista local, y separamos los archivos modificados desde la ultima sincronizacion. Se deja un
+        // margen, ya que muchos sistemas de archivos guardan la fecha de modificacion con poca precision
+        ArrayList<Archivo> local = Utilidades.listFiles(workingPath);
+        HashMap<String, Archivo> porRuta = new HashMap<>();
+        HashMap<String, Archivo> cambiadosLocal = new HashMap<>();
+        if (local != null) local.forEach(c -> {
+            porRuta.put(c.childFolder, c);
+            if (c.timeMilisLastModified >= ultimaSincronizacion - MARGEN_CAMBIOS_LOCALES) cambiadosLocal.put(c.childFolder, c);
+        });
+
+        ArrayList<LocalRemote> enAmbas = new ArrayList<>();
+        String cursor = cursorCambios;
+
+        // Recorremos los cambios remotos
+        CambiosArchivos cambios;
+        do {
+            cambios = remoteServer.cambiosDesde(user, cursor, VariablesGlobales.ARCHIVOS_POR_PAGINA);
+            if (cambios == null || cambios.reiniciar) return null;
 
-        // LLegamos aqui si hay archivos tanto en remota como en local, por tanto tenemos que comparar ambas listas
-        // para determinar que archivos deben cargarse/descargarse
+            for (int i = 0; i < cambios.size(); i++) {
+                if (cambios.borrado(i)) continue;
 
-        // Establecemos un mapa auxiliar, que nos permitira almacenar una ruta relativa, en forma de String para que sea
-        // unica, y un objeto tipo LocalRemote, que nos permitira establecer si el archivo dado esta en la lista local,
-        // en la lista remota, o en ambas. Ademas, como LocalRemote contien tanto el archivo remoto como local, podemos
-        // comparar sus metadatos para determinar cual es el mas reciente
+                Archivo remoto = cambios.archivo(i);
+                cambiadosLocal.remove(remoto.childFolder);
+                Archivo archivoLocal = porRuta.get(remoto.childFolder);
+
+                try {
+                    // Si el archivo no esta en local, lo descargamos del servidor
+                    if (archivoLocal == null) {
+                        ejecutarOperacion(remoto, VariablesGlobales.DOWNLOAD);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
 
-        // Creamos el hashmap auxiliar
-        HashMap<String, LocalRemote> presencia = new HashMap<>();
+                // Si esta en ambas maquinas, hay que comparar los hashes
+                LocalRemote lr = new LocalRemote();
+                lr.setLocal(archivoLocal);
+                lr.setRemote(remoto);
+                enAmbas.add(lr);
 
+                if (enAmbas.size() >= VariablesGlobales.HASHES_POR_PAGINA) {
+                    compararPagina(enAmbas);
+                    enAmbas.clear();
+                }
+            }
 
+            cursor = cambios.cursor;
+        } while (!cambios.completo);
 
-        // Para cada elemento de la lista local, almacenamos la pareja ruta (en forma String) y su Localremote, añadiendo
-        // el archivo iterado como archivo local.
-        local.forEach(c -> {
+        // Los archivos locales modificados, que no han cambiado en el servidor, tambien se comparan por hash. Como no
+        // conocemos su version remota, se compara con una version sin fecha, de forma que si el hash es distinto (o el
+        // archivo no esta en el servidor), se carga la version local
+        for (Archivo archivoLocal : cambiadosLocal.values()) {
+            Archivo remoto = new Archivo(archivoLocal.childFolder);
+            remoto.sizeInBytes = archivoLocal.sizeInBytes;
 
-            // Creamos un LocalRemote, y añadimos el archivo iterado como archivo local
             LocalRemote lr = new LocalRemote();
-            lr.setLocal(c);
+            lr.setLocal(archivoLocal);
+            lr.setRemote(remoto);
+            enAmbas.add(lr);
 
-            // Añadimos la pareja de valores al mapa
-            presencia.put(c.childFolder, lr);
-        });
+            if (enAmbas.size() >= VariablesGlobales.HASHES_POR_PAGINA) {
+                compararPagina(enAmbas);
+                enAmbas.clear();
+            }
+        }
+        if (!enAmbas.isEmpty()) compararPagina(enAmbas);
 
+        return cursor;
+    }
+
+
+    /**
+     * Carga de disco el cursor de cambios y la fecha de la ultima sincronizacion, si pertenecen a la combinacion actual
+     * de servidor, usuario y carpeta. En otro caso, {@link #cursorCambios} queda a null.
+     */
+    private void cargarEstadoCambios() {
+        cursorCambios = null;
+
+        Properties estado = new Properties();
+        try (InputStream in = Files.newInputStream(archivoEstadoCambios())) {
+            estado.load(in);
+        } catch (IOException e) {
+            return;
+        }
 
+        if (!claveEstadoCambios().equals(estado.getProperty("clave"))) return;
+        try {
+            ultimaSincronizacion = Long.parseLong(estado.getProperty("sincronizado"));
+            cursorCambios = estado.getProperty("cursor");
+        } catch (NumberFormatException e) {
+            cursorCambios = null;
+        }
+    }
 
-        // Para cada archivo remoto, repetimos el mismo proceso anterior, pero en este caso comprobamos si el objeto
-        // LocalRemote ya existia para este archivo. Esto es muy importante, porqe si creamos un nuevo LocalRemote
-        // estamos borrando la informacion que podria existir de la lista local
-        remota.forEach(c -> {
 
-            // Obtenemos la ruta relativa
-            String rutaRelativa = c.childFolder;
+    /**
+     * Guarda en disco el cursor de cambios y la fecha de la sincronizacion, junto a la combinacion actual de servidor,
+     * usuario y carpeta.
+     * @param cursor {@link String cursor} de cambios del servidor.
+     * @param inicio momento en que empezo la sincronizacion.
+     */
+    private void guardarEstadoCambios(String cursor, long inicio) {
+        cursorCambios = cursor;
+        ultimaSincronizacion = inicio;
 
+        Properties estado = new Properties();
+        estado.setProperty("clave", claveEstadoCambios());
+        estado.setProperty("cursor", cursor);
+        estado.setProperty("sincronizado", "" + inicio);
 
-            // Si el LocalRemote para este archivo ya existia, lo obtenemos y añadimos el archivo remoto
-            if (presencia.containsKey(rutaRelativa)) {
-                LocalRemote lr = presencia.get(rutaRelativa);
-                lr.setRemote(c);
-            }
-            // Si el LocalRemote para este archivo no existia, creamos uno nuevo, añadimos archivo remoto, y lo
-            // introducimos en el mapa
-            else {
-                LocalRemote lr = new LocalRemote();
-                lr.setRemote(c);
-                presencia.put(rutaRelativa, lr);
+        try {
+            Files.createDirectories(archivoEstadoCambios().getParent());
+            try (OutputStream out = Files.newOutputStream(archivoEstadoCambios())) {
+                estado.store(out, "estado de la ultima sincronizacion");
             }
-        });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Espera a que terminen las transmisiones de la sincronizacion y, unicamente si todas han tenido exito, guarda el
+     * cursor de cambios ({@link #guardarEstadoCambios(String, long)}). Si alguna ha fallado, se conserva el cursor
+     * anterior, de forma que la siguiente sincronizacion vuelve a comparar esos archivos.
+     * @param cursor {@link String cursor} de cambios del servidor.
+     * @param inicio momento en que empezo la sincronizacion.
+     */
+    private void guardarEstadoSiCompleto(String cursor, long inicio) {
+        esperarHastaTerminarTransmisiones();
+
+        int fallidas = operacionesFallidas.get();
+        if (fallidas > 0) {
+            System.out.println(fallidas+" operaciones no se han completado, no se guarda el cursor de cambios");
+            return;
+        }
+
+        guardarEstadoCambios(cursor, inicio);
+    }
+
+    private String claveEstadoCambios() {
+        return user.name + "@" + serverIP + ":" + puerto + ":" + workingPath.toAbsolutePath().normalize();
+    }
+
+    private Path archivoEstadoCambios() {
+        return Paths.get( System.getProperty("user.home") ).resolve("sync_app").resolve("cliente_cambios.properties");
+    }
 
 
-        // Iteramos el mapa para determinar las operaciones. Para ello usamos como ayuda los propios metodos que contiene
-        // el objeto LocalRemote, que permiten comparar los metadatos de los archivos
-        presencia.forEach((rutaRelativa, localRemote) -> { // a= rutaRelativa (string)  b= LocalRemote
+    /**
+     * Pide al servidor, en segundo plano, la pagina de la lista remota siguiente al cursor indicado.
+     * @param cursor {@link PaginaArchivos#cursor cursor} de la pagina anterior.
+     * @return {@link CompletableFuture} con la pagina.
+     */
+    private CompletableFuture<PaginaArchivos> pedirPagina(String cursor) {
+        return CompletableFuture.supplyAsync(() -> {
             try {
+                return remoteServer.listaArchivos(user, cursor, VariablesGlobales.ARCHIVOS_POR_PAGINA);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
 
-                // Si el archivo esta exclusivamente en local, lo cargamos al servidor
-                if (localRemote.exclusivoLocal()) {
-                    ejecutarOperacion(localRemote.getLocal(), VariablesGlobales.UPLOAD);
-                }
 
-                // Si el archivo esta exclusivamente en remoto, lo descargamos del servidor
-                else if (localRemote.exclusivoRemoto()) {
-                    ejecutarOperacion(localRemote.getRemoto(), VariablesGlobales.DOWNLOAD);
-                }
+    /**
+     * Espera a una pagina pedida con {@link #pedirPagina(String)}.
+     * @param futuro {@link CompletableFuture} de la pagina.
+     * @return {@link PaginaArchivos} recibida.
+     * @throws RemoteException si ocurre un problema al pedir la pagina.
+     */
+    private PaginaArchivos esperarPagina(CompletableFuture<PaginaArchivos> futuro) throws RemoteException {
+        try {
+            return futuro.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RemoteException) throw (RemoteException) e.getCause();
+            throw e;
+        }
+    }
 
 
-                // Si el archivo esta en ambas maquinas, pedimos el hash para poder comparar
-                else {
-                    String hashLocal = Utilidades.checkSumhash(localRemote.getLocal().toFile());
-                    String hashRemoto = remoteServer.calcularHash(localRemote.getRemoto(), user);
+    /**
+     * Compara los hashes de un grupo de archivos que estan en ambas maquinas, pidiendo los hashes remotos al servidor en
+     * una unica llamada, mientras se calculan los locales, y ejecuta la operacion que corresponda a cada archivo.
+     * <br>
+     * Si el servidor no devuelve los hashes, el grupo cuenta como una operacion fallida, de forma que no se guarde el
+     * cursor de cambios y la siguiente sincronizacion vuelva a comparar estos archivos. El resto de grupos se siguen
+     * comparando.
+     * @param pagina {@link ArrayList} de {@link LocalRemote} con ambas versiones de cada archivo.
+     * @throws RemoteException si ocurre un problema al pedir los hashes remotos.
+     */
+    private void compararPagina(ArrayList<LocalRemote> pagina) throws RemoteException {
 
-                    // Si los hashes son diferentes es porque el alguno de los archivos (o los dos) ha cambiado
-                    // Comparamos la ultima fecha de modificacion en ese caso
-                    if (!hashLocal.equals(hashRemoto)) {
+        // Acordamos con el servidor el algoritmo de hash, para que ambas partes calculen el mismo
+        if (algoritmoHash == null) {
+            algoritmoHash = AlgoritmoHash.negociar(remoteServer.algoritmosHash());
+        }
 
-                        // Comparamos la ultima fecha de modificacion. Si la fecha local es menor que la remota, es porque
-                        // la fecha remota es mas reciente (la fecha en milis incrementa al pasar el tiempo)º
-                        if (localRemote.getLocal().timeMilisLastModified < localRemote.getRemoto().timeMilisLastModified) {
-                            ejecutarOperacion(localRemote.getRemoto(), VariablesGlobales.DOWNLOAD);
-                        } else {
-                            ejecutarOperacion(localRemote.getLocal(), VariablesGlobales.UPLOAD);
-                        }
+        ArrayList<Archivo> locales = new ArrayList<>(pagina.size());
+        ListaArchivos remotos = new ListaArchivos();
+        pagina.forEach(lr -> {
+            locales.add(lr.getLocal());
+            remotos.add(lr.getRemoto());
+        });
 
+        // Los hashes locales se calculan en paralelo mientras el servidor calcula los remotos
+        CompletableFuture<ArrayList<String>> calculoLocal = CompletableFuture.supplyAsync(
+                () -> ServicioHashes.compartido().calcularHashes(locales, cacheHashes, algoritmoHash));
 
-                    }
-                }
+        ArrayList<String> hashesRemotos = remoteServer.calcularHashes(user, remotos, algoritmoHash.id);
+        ArrayList<String> hashesLocales = calculoLocal.join();
+        if (hashesRemotos == null) {
+            System.out.println("el servidor no ha devuelto los hashes de "+pagina.size()+" archivos, no se han comparado");
+            operacionesFallidas.incrementAndGet();
+            return;
+        }
+
+        for (int i = 0; i < pagina.size(); i++) {
+            try {
+                compararVersiones(pagina.get(i), hashesLocales.get(i), hashesRemotos.get(i));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+        }
+    }
 
-        });
 
+    /**
+     * Compara la version local y remota de un archivo que esta en ambas maquinas. Si los hashes son distintos, se carga
+     * o descarga el archivo, segun cual sea la version mas reciente.
+     * @param localRemote {@link LocalRemote} con ambas versiones del archivo.
+     * @param hashLocal {@link String hash} de la version local.
+     * @param hashRemoto {@link String hash} de la version remota.
+     * @throws IOException si ocurre un problema al ejecutar la operacion.
+     */
+    private void compararVersiones(LocalRemote localRemote, String hashLocal, String hashRemoto) throws IOException {
+
+        // Si los hashes son iguales, el archivo no ha cambiado
+        if (hashLocal != null && hashLocal.equals(hashRemoto)) return;
+
+        // Si el servidor no tiene el archivo, se carga como un archivo nuevo
+        if (hashRemoto == null && hashLocal != null) {
+            if (localRemote.getLocal().sizeInBytes >= VariablesGlobales.MIN_BYTES_DELTA) {
+                ejecutarOperacion(localRemote.getLocal(), VariablesGlobales.FRAGMENTOS_UPLOAD);
+            } else {
+                ejecutarOperacion(localRemote.getLocal(), VariablesGlobales.UPLOAD);
+            }
+            return;
+        }
+
+        // Si los hashes son diferentes es porque el alguno de los archivos (o los dos) ha cambiado. Comparamos la ultima
+        // fecha de modificacion. Si la fecha local es menor que la remota, es porque la fecha remota es mas reciente
+        // (la fecha en milis incrementa al pasar el tiempo)
+        if (localRemote.getLocal().timeMilisLastModified < localRemote.getRemoto().timeMilisLastModified) {
+            ejecutarOperacion(localRemote.getRemoto(), VariablesGlobales.DOWNLOAD);
+        }
 
+        // Si el archivo remoto es grande, es probable que la mayor parte no haya cambiado, asi que intentamos cargar
+        // unicamente las diferencias
+        else if (localRemote.getRemoto().sizeInBytes >= VariablesGlobales.MIN_BYTES_DELTA) {
+            ejecutarOperacion(localRemote.getLocal(), VariablesGlobales.DELTA_UPLOAD);
+        } else {
+            ejecutarOperacion(localRemote.getLocal(), VariablesGlobales.UPLOAD);
+        }
     }
 
 
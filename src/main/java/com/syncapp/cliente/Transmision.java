@@ -1,13 +1,76 @@
 package com.syncapp.cliente;
 
+import com.syncapp.interfaces.ArchivoNoAbiertoException;
 import com.syncapp.interfaces.SyncApp;
 import com.syncapp.model.Archivo;
+import com.syncapp.model.BloqueBytes;
+import com.syncapp.model.TicketTransferencia;
 import com.syncapp.model.TokenUsuario;
+import com.syncapp.utility.CompresionBloques;
 import com.syncapp.utility.LectorArchivos;
+import com.syncapp.utility.VariablesGlobales;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+
+/**
+ * Tarea de transmision (carga o descarga) de un archivo, organizada como una tuberia de bloques.
+ * <br>
+ * En vez de esperar a que termine cada bloque antes de leer el siguiente, la transmision se divide en tres etapas que
+ * se ejecutan en hilos distintos y de forma solapada:
+ * <ol>
+ *     <li>
+ *         <b>Origen</b>: lee los bloques del archivo. En una carga se leen del disco local, y en una descarga se piden
+ *         al servidor.
+ *     </li>
+ *     <li>
+ *         <b>Destino</b>: escribe los bloques leidos. En una carga se envian al servidor, y en una descarga se escriben
+ *         en el disco local.
+ *     </li>
+ *     <li>
+ *         <b>Confirmacion</b>: marca cada bloque escrito como completado en un {@link ControlBloques}, devuelve su
+ *         buffer al almacen y deja hueco para un nuevo bloque.
+ *     </li>
+ * </ol>
+ * El numero de bloques en vuelo (leidos pero no confirmados) esta limitado por una ventana, de forma que si el destino
+ * es mas lento que el origen, el origen se bloquea hasta que se confirme algun bloque. Asi, la memoria usada por una
+ * transmision es, como mucho, ventana x {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}.
+ * <br>
+ * La etapa que habla con el servidor usa varios hilos, por lo que varios bloques del mismo archivo pueden estar en
+ * transito a la vez sobre el mismo identificador de archivo.
+ * <br>
+ * Si se indica la direccion del servidor con {@link #usarCanalDatos(String)}, los bloques se transmiten por el canal de
+ * datos del servidor ({@link ConexionDatos}), con una conexion por cada hilo, en vez de por RMI. Las descargas por el
+ * canal de datos no usan la tuberia: el archivo completo se pide en una unica peticion, y pasa del socket al archivo
+ * local sin dividirse en bloques (ver {@link #descargarCompleto()}).
+ * <br>
+ * Si la sesion ha negociado la compresion ({@link #usarCompresion(boolean)}) y el archivo se comprime lo suficiente
+ * ({@link CompresionBloques}), los bloques se transmiten comprimidos por RMI en vez de por el canal de datos, ya que el
+ * canal de datos envia los bytes tal cual estan en el archivo.
+ * <br>
+ * Cada bloque se reintenta como mucho {@link VariablesGlobales#REINTENTOS_BLOQUE} veces, esperando entre intentos un
+ * tiempo que se duplica en cada intento, salvo que el servidor indique que el archivo ya no esta abierto
+ * ({@link ArchivoNoAbiertoException}), en cuyo caso no se reintenta. Si un bloque no se puede transmitir, la
+ * transmision se aborta: el resto de bloques en vuelo se descartan, el archivo se cancela en el servidor
+ * ({@link SyncApp#cancelarArchivo(int, TokenUsuario)}) y en la maquina local ({@link LectorArchivos#descartar()}), de
+ * forma que ninguno de los dos queda a medias, y {@link #run()} termina con una excepcion. Unicamente se confirma el
+ * archivo si todos los bloques del {@link ControlBloques} se han completado.
+ */
 public class Transmision implements Runnable {
 
     /**
@@ -42,10 +105,40 @@ public class Transmision implements Runnable {
     LectorArchivos lectorArchivos;
 
     /**
-     * Posicion del bloque que se esta enviando. Es especialmente util cuando se interrumpe una transmision, y queremos
-     * asegurarnos de obtener el bloque completo.
+     * Direccion del servidor para conectar con su canal de datos, o null si los bloques se transmiten por RMI.
+     */
+    private String hostDatos;
+
+    /**
+     * Ticket del archivo en el canal de datos. Es null si los bloques se transmiten por RMI, ya sea porque no se ha
+     * indicado {@link #hostDatos}, porque el servidor no tiene canal de datos, o porque no se ha podido conectar.
+     */
+    private volatile TicketTransferencia ticket;
+
+    /**
+     * Conexiones con el canal de datos que no esta usando ningun hilo.
+     */
+    private final LinkedBlockingQueue<ConexionDatos> conexiones = new LinkedBlockingQueue<>();
+
+    /**
+     * Indica si la sesion ha negociado la compresion de los bloques con el servidor.
      */
-    long posicionActual;
+    private boolean compresion;
+
+    /**
+     * Indica si los bloques de este archivo se transmiten comprimidos. Se decide al iniciar la transmision.
+     */
+    private boolean comprimir;
+
+    /**
+     * Numero maximo de bloques en vuelo, esto es, bloques leidos que todavia no se han confirmado.
+     */
+    private final int ventana;
+
+    /**
+     * Numero de hilos de la etapa que se comunica con el servidor (destino en una carga, origen en una descarga).
+     */
+    private final int hilosRemotos;
 
     /**
      * Indica el tipo de operacion a realizar. El tipo de operacion viene recogido en la enumeracion {@link TipoDeTransmisiones}.
@@ -60,22 +153,56 @@ public class Transmision implements Runnable {
         DOWNLOAD
     }
 
+    /**
+     * Bloque especial que indica a una etapa que no le van a llegar mas bloques.
+     */
+    private static final BloqueBytes FIN = new BloqueBytes();
+
+    /**
+     * Primer error que ha abortado la transmision, o null si no ha habido ninguno.
+     */
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+
+    /**
+     * Indica si la transmision ha terminado y el archivo se ha confirmado tanto en el servidor como en local.
+     */
+    private volatile boolean completada;
+
 
 
 
     // Constructor
 
     /**
-     * En el constructor necesitamos indicar los parametros necesarios para realizar la transmision del archivo.
+     * En el constructor necesitamos indicar los parametros necesarios para realizar la transmision del archivo. Se
+     * usan {@link VariablesGlobales#BLOQUES_EN_VUELO} bloques en vuelo y {@link VariablesGlobales#HILOS_POR_ARCHIVO}
+     * hilos para comunicarse con el servidor.
      * @param server {@link SyncApp servidor} con el que queremos transmitir.
      * @param ruta {@link Archivo} que queremos transmitir.
      * @param pathlocal {@link String directorio} de trabajo del cliente.
      * @param usuario {@link TokenUsuario usuario} con que el que iniciaremos la transmision. Previamente necesitara
      *                                            haber iniciado sesion.
+     * @param tipo {@link TipoDeTransmisiones tipo} de transmision.
      * @throws IOException si ocurre un problema al crear el {@link LectorArchivos}.
      */
-
     public Transmision(SyncApp server, Archivo ruta, String pathlocal, TokenUsuario usuario, TipoDeTransmisiones tipo) throws IOException {
+        this(server, ruta, pathlocal, usuario, tipo, VariablesGlobales.BLOQUES_EN_VUELO, VariablesGlobales.HILOS_POR_ARCHIVO);
+    }
+
+    /**
+     * Analogo a {@link #Transmision(SyncApp, Archivo, String, TokenUsuario, TipoDeTransmisiones)}, pero indicando el
+     * tamaño de la ventana y los hilos que se comunican con el servidor.
+     * @param server {@link SyncApp servidor} con el que queremos transmitir.
+     * @param ruta {@link Archivo} que queremos transmitir.
+     * @param pathlocal {@link String directorio} de trabajo del cliente.
+     * @param usuario {@link TokenUsuario usuario} con que el que iniciaremos la transmision.
+     * @param tipo {@link TipoDeTransmisiones tipo} de transmision.
+     * @param ventana numero maximo de bloques en vuelo. Como minimo 1.
+     * @param hilosPorArchivo numero de bloques que se transmiten a la vez con el servidor. No puede superar la ventana.
+     * @throws IOException si ocurre un problema al crear el {@link LectorArchivos}.
+     */
+    public Transmision(SyncApp server, Archivo ruta, String pathlocal, TokenUsuario usuario, TipoDeTransmisiones tipo,
+                       int ventana, int hilosPorArchivo) throws IOException {
 
         // Guardamos los valores
         this.server = server;
@@ -84,25 +211,483 @@ public class Transmision implements Runnable {
         this.ruta.parentFolder = pathlocal;
         this.abs = this.ruta.toPath();
         this.tipoOperacion = tipo;
+        this.ventana = Math.max(1, ventana);
+        this.hilosRemotos = Math.max(1, Math.min(hilosPorArchivo, this.ventana));
 
         if(tipo == TipoDeTransmisiones.UPLOAD) {
             this.lectorArchivos = new LectorArchivos(abs, "r", 999);
         } else {
             this.lectorArchivos = new LectorArchivos(abs, "rw", 999);
         }
+    }
+
+
 
 
 
-        // Ponemos la posicion en 0, para comenzar desde el principio.
-        posicionActual = 0;
+
+    /**
+     * Indica que los bloques se deben transmitir por el canal de datos del servidor, si el servidor lo tiene, en vez de
+     * por RMI. Se debe invocar antes de ejecutar la transmision.
+     * @param host direccion del servidor, la misma que la del registro RMI.
+     */
+    public void usarCanalDatos(String host) {
+        this.hostDatos = host;
     }
 
+    /**
+     * Indica si la sesion ha negociado la compresion de los bloques con el servidor
+     * ({@link SyncApp#negociarCompresion(TokenUsuario, boolean)}). Se debe invocar antes de ejecutar la transmision.
+     * @param compresion true si la compresion esta activada para la sesion.
+     */
+    public void usarCompresion(boolean compresion) {
+        this.compresion = compresion;
+    }
+
+
 
 
 
 
+    /**
+     * Indica si la transmision ha terminado con exito.
+     * @return true si se han transmitido todos los bloques y se ha cerrado el archivo.
+     */
+    public boolean isCompletada() {
+        return completada;
+    }
+
+
+    /**
+     * Tarea de transmision del archivo. Se abre el archivo en el servidor, se transmiten todos sus bloques por la
+     * tuberia y, finalmente, se cierra el archivo tanto en el servidor como en la maquina local.
+     * <br>
+     * Se siguen las instrucciones indicadadas en la {@link SyncApp interfaz del servicio}, en el apartado de
+     * carga/descarga de archivos.
+     * @throws RuntimeException si no se ha podido transmitir el archivo. En ese caso, el archivo no se modifica ni en el
+     * servidor ni en la maquina local.
+     */
     @Override
     public void run() {
+        boolean esCarga = (tipoOperacion == TipoDeTransmisiones.UPLOAD);
+
+        // Decidimos si comprimir: en una carga, con una muestra del archivo local; en una descarga lo decide el servidor,
+        // con una muestra del archivo remoto
+        if(compresion) {
+            comprimir = esCarga ? CompresionBloques.merecePena(abs) : (hostDatos == null);
+        }
+
+        // Obtenemos el identificador del archivo, y si se usa el canal de datos, su ticket. En una descarga, el ticket
+        // indica si el servidor comprime los bloques, y en ese caso no tiene canal de datos
+        try {
+            if(hostDatos != null && !comprimir) {
+                TicketTransferencia t = server.abrirTransferencia(usuario, ruta, esCarga ? "rw" : "r");
+                fileId = (t == null) ? -1 : t.fileId;
+                ticket = (t != null && t.tieneCanalDatos()) ? t : null;
+                comprimir = (t != null && t.comprimir);
+            } else {
+                fileId = server.abrirArchivo(usuario, ruta, esCarga ? "rw" : "r");
+            }
+        } catch (RemoteException e) {
+            descartarLector();
+            throw new RuntimeException("no se ha podido abrir "+ruta+" en el servidor", e);
+        }
+
+        if(fileId < 0) {
+            descartarLector();
+            throw new RuntimeException("no se ha podido abrir "+ruta+" en el servidor");
+        }
+
+        System.out.println((esCarga ? "subiendo" : "bajando")+" file="+ fileId +" "+ruta);
+
+        // Le inticamos al lector de archivo y al propio archivo el identificador remoto
+        lectorArchivos.setFileId(fileId);
+        ruta.remoteID = ""+fileId;
+
+        // Transmitimos todos los bloques. Si la descarga completa por el canal de datos falla, se usa la tuberia
+        long bloques = (!esCarga && ticket != null) ? descargarCompleto() : -1;
+        if(bloques < 0) bloques = transmitirBloques(esCarga);
+        cerrarConexiones();
+
+        // Si no se han transmitido todos los bloques, cancelamos el archivo en ambas maquinas
+        if(error.get() != null) {
+            cancelar();
+            throw new RuntimeException("no se ha podido "+(esCarga ? "cargar " : "descargar ")+ruta, error.get());
+        }
+
+        // Llegamos a este punto cuando se han transmitido todos los bloques. Confirmamos el archivo en el servidor (en
+        // una carga, es entonces cuando sustituye a la version anterior) y despues en local. Si el servidor no lo ha
+        // podido guardar, o la sesion ya no lo tiene abierto, la transmision falla y se descarta tambien en local
+        try {
+            server.cerrarArchivo(fileId, usuario);
+        } catch (RemoteException e) {
+            descartarLector();
+            throw new RuntimeException("no se ha podido cerrar "+ruta+" en el servidor", e);
+        }
+
+        try {
+            lectorArchivos.cerrarArchivo();
+        } catch (IOException e) {
+            throw new RuntimeException("no se ha podido cerrar "+ruta+" en local", e);
+        }
+
+        completada = true;
+        System.out.println("Archivo file="+ fileId +" "+(esCarga ? "cargado" : "descargado")+" ("+bloques+" bloques)");
+    }
+
+
+
+
+    // Tuberia de bloques
+
+    /**
+     * Ejecuta las tres etapas de la tuberia hasta transmitir todos los bloques del archivo.
+     * @param esCarga true si se trata de una carga, false si es una descarga.
+     * @return numero de bloques transmitidos.
+     */
+    private long transmitirBloques(boolean esCarga) {
+
+        // Numero de hilos de cada etapa: la etapa que habla con el servidor usa varios hilos, la que usa el disco uno
+        int hilosOrigen = esCarga ? 1 : hilosRemotos;
+        int hilosDestino = esCarga ? hilosRemotos : 1;
+
+        // Permisos de la ventana: se obtiene uno antes de leer un bloque, y se devuelve al confirmarlo
+        Semaphore enVuelo = new Semaphore(ventana);
+
+        // Colas entre etapas. La cola de bloques leidos nunca tendra mas bloques que la ventana.
+        ArrayBlockingQueue<BloqueBytes> leidos = new ArrayBlockingQueue<>(ventana + hilosDestino);
+        LinkedBlockingQueue<BloqueBytes> escritos = new LinkedBlockingQueue<>();
+
+        // Siguiente bloque a leer, y si se ha alcanzado el final del archivo
+        AtomicLong siguienteBloque = new AtomicLong(0);
+        AtomicBoolean finAlcanzado = new AtomicBoolean(false);
+
+        ControlBloques control = new ControlBloques(tamanoEsperado(esCarga));
+        AtomicLong confirmados = new AtomicLong(0);
 
+        ExecutorService etapas = Executors.newFixedThreadPool(hilosOrigen + hilosDestino + 1);
+        ArrayList<Future<?>> origen = new ArrayList<>();
+        ArrayList<Future<?>> destino = new ArrayList<>();
+
+        // Etapa de origen: lee bloques mientras haya hueco en la ventana, y la transmision no se haya abortado
+        for (int i = 0; i < hilosOrigen; i++) {
+            origen.add(etapas.submit(() -> {
+                try {
+                    while (!finAlcanzado.get() && error.get() == null) {
+                        enVuelo.acquire();
+
+                        long n = siguienteBloque.getAndIncrement();
+                        BloqueBytes bb = null;
+                        if(!finAlcanzado.get() && error.get() == null) {
+                            try {
+                                bb = leerBloque(esCarga, ControlBloques.posicionDeBloque(n));
+                            } catch (IOException e) {
+                                abortar(e);
+                            }
+                        }
+
+                        if(bb == null) {
+                            finAlcanzado.set(true);
+                            enVuelo.release();
+                            break;
+                        }
+
+                        leidos.put(bb);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        // Etapa de destino: escribe cada bloque leido y lo pasa a la etapa de confirmacion. Si la transmision se ha
+        // abortado, los bloques que quedan se descartan sin escribirlos, para vaciar la tuberia
+        for (int i = 0; i < hilosDestino; i++) {
+            destino.add(etapas.submit(() -> {
+                try {
+                    BloqueBytes bb;
+                    while ((bb = leidos.take()) != FIN) {
+                        if(error.get() == null) {
+                            try {
+                                escribirBloque(esCarga, bb);
+                                escritos.put(bb);
+                                continue;
+                            } catch (IOException e) {
+                                abortar(e);
+                            }
+                        }
+
+                        bb.liberar();
+                        enVuelo.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        // Etapa de confirmacion: marca los bloques como completados y libera su hueco en la ventana
+        Future<?> confirmacion = etapas.submit(() -> {
+            try {
+                BloqueBytes bb;
+                while ((bb = escritos.take()) != FIN) {
+                    control.marcarCompletado(bb.position / VariablesGlobales.MAX_BYTES_IN_BLOCK);
+                    confirmados.incrementAndGet();
+                    bb.liberar();
+                    enVuelo.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // Cerramos la tuberia en orden: cuando termina una etapa, avisamos a la siguiente de que no hay mas bloques
+        try {
+            esperar(origen);
+            for (int i = 0; i < hilosDestino; i++) leidos.put(FIN);
+
+            esperar(destino);
+            escritos.put(FIN);
+
+            confirmacion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortar(e);
+        } catch (ExecutionException e) {
+            abortar(e);
+        } finally {
+            etapas.shutdownNow();
+        }
+
+        // Aunque ninguna etapa haya fallado, el archivo no se confirma si falta algun bloque (por ejemplo, si el
+        // archivo es mas corto de lo esperado)
+        if(!control.todosCompletados()) {
+            abortar(new IOException("faltan bloques por transmitir: "+confirmados.get()+" de "
+                    +ControlBloques.numeroDeBloques(tamanoEsperado(esCarga))));
+        }
+
+        return confirmados.get();
+    }
+
+
+    /**
+     * Lee un bloque en la etapa de origen, reintentando hasta {@link VariablesGlobales#REINTENTOS_BLOQUE} veces.
+     * @param esCarga true si se lee del disco local, false si se pide al servidor.
+     * @param posicion posicion del primer byte del bloque.
+     * @return {@link BloqueBytes} leido, o null si no quedan bytes por leer.
+     * @throws IOException si no se ha podido leer el bloque en ningun intento.
+     */
+    private BloqueBytes leerBloque(boolean esCarga, long posicion) throws IOException {
+        for (int intento = 1; ; intento++) {
+            ConexionDatos conexion = null;
+            try {
+                if(esCarga) return lectorArchivos.leerBloqueBytes(posicion);
+
+                conexion = tomarConexion();
+                if(conexion == null) {
+                    return comprimir ? server.leerBloqueBytes(fileId, posicion, usuario) : server.leerBloqueBytes(fileId, posicion);
+                }
+
+                BloqueBytes bb = conexion.leerBloque(ticket, posicion);
+                conexiones.add(conexion);
+                return bb;
+            } catch (IOException e) {
+                if(conexion != null) conexion.close();
+
+                // Si el archivo ya no esta abierto en el servidor (por ejemplo, porque la sesion ha caducado), reintentar
+                // no sirve de nada
+                if(ArchivoNoAbiertoException.es(e) || intento >= VariablesGlobales.REINTENTOS_BLOQUE) throw e;
+
+                System.out.println("reintentando leer file="+ fileId +" pos="+posicion+" ("+intento+"/"
+                        +VariablesGlobales.REINTENTOS_BLOQUE+"): "+e);
+                esperarReintento(intento);
+            }
+        }
+    }
+
+
+    /**
+     * Escribe un bloque en la etapa de destino, reintentando hasta {@link VariablesGlobales#REINTENTOS_BLOQUE} veces.
+     * @param esCarga true si se envia al servidor, false si se escribe en el disco local.
+     * @param bb {@link BloqueBytes} que se quiere escribir.
+     * @throws IOException si no se ha podido escribir el bloque en ningun intento.
+     */
+    private void escribirBloque(boolean esCarga, BloqueBytes bb) throws IOException {
+        for (int intento = 1; ; intento++) {
+            ConexionDatos conexion = null;
+            try {
+                if(esCarga) {
+                    conexion = tomarConexion();
+                    if(conexion == null) {
+                        bb.comprimir = comprimir;
+                        server.escribirBloqueBytes(fileId, bb);
+                    } else {
+                        conexion.escribirBloque(ticket, bb);
+                        conexiones.add(conexion);
+                    }
+                    System.out.println("enviando bloque "+bb);
+                } else {
+                    lectorArchivos.escribirBloqueBytes(bb);
+                }
+                return;
+            } catch (IOException e) {
+                if(conexion != null) conexion.close();
+
+                // Si el archivo ya no esta abierto en el servidor (por ejemplo, porque la sesion ha caducado), reintentar
+                // no sirve de nada
+                if(ArchivoNoAbiertoException.es(e) || intento >= VariablesGlobales.REINTENTOS_BLOQUE) throw e;
+
+                System.out.println("reintentando escribir file="+ fileId +" pos="+bb.position+" ("+intento+"/"
+                        +VariablesGlobales.REINTENTOS_BLOQUE+"): "+e);
+                esperarReintento(intento);
+            }
+        }
+    }
+
+
+    /**
+     * Espera antes de reintentar un bloque. La espera se duplica en cada intento, empezando por
+     * {@link VariablesGlobales#ESPERA_REINTENTO}.
+     * @param intento numero del intento que ha fallado, empezando por 1.
+     * @throws InterruptedIOException si se interrumpe el hilo mientras espera.
+     */
+    private static void esperarReintento(int intento) throws InterruptedIOException {
+        try {
+            Thread.sleep(VariablesGlobales.ESPERA_REINTENTO << (intento - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("reintento interrumpido");
+        }
+    }
+
+
+    /**
+     * Aborta la transmision. Unicamente se guarda el primer error, que es el que ha provocado el fallo; las etapas dejan
+     * de leer bloques y descartan los que quedan en vuelo.
+     * @param e {@link Exception} que ha provocado el fallo.
+     */
+    private void abortar(Exception e) {
+        if(error.compareAndSet(null, e)) {
+            System.out.println("abortando la transmision de file="+ fileId +" "+ruta);
+            e.printStackTrace();
+        }
+    }
+
+
+
+
+    // Canal de datos
+
+    /**
+     * Obtiene una conexion con el canal de datos para el hilo actual, reutilizando una que no este en uso, o abriendo
+     * una nueva. Tras usarla, se debe devolver a {@link #conexiones}; si falla, no se devuelve, de forma que el siguiente
+     * intento abre una conexion nueva.
+     * <br>
+     * Si no se puede conectar con el canal de datos, el resto de la transmision se hace por RMI.
+     * @return {@link ConexionDatos}, o null si los bloques se deben transmitir por RMI.
+     */
+    private ConexionDatos tomarConexion() {
+        TicketTransferencia t = ticket;
+        if(t == null) return null;
+
+        ConexionDatos conexion = conexiones.poll();
+        if(conexion != null) return conexion;
+
+        try {
+            return new ConexionDatos(hostDatos, t.puerto);
+        } catch (IOException e) {
+            System.out.println("no se ha podido conectar con el canal de datos de "+hostDatos+", usando RMI");
+            ticket = null;
+            return null;
+        }
+    }
+
+    /**
+     * Descarga el archivo completo con una unica peticion al canal de datos
+     * ({@link ConexionDatos#descargarArchivo(TicketTransferencia, long, LectorArchivos)}). El servidor envia el archivo
+     * con sendfile y se escribe directamente en el archivo local, sin pasar por {@link BloqueBytes} ni por la tuberia.
+     * @return numero de bloques equivalentes descargados, o -1 si no se ha podido descargar por el canal de datos.
+     */
+    private long descargarCompleto() {
+        ConexionDatos conexion = tomarConexion();
+        if(conexion == null) return -1;
+
+        try {
+            long bytes = conexion.descargarArchivo(ticket, 0, lectorArchivos);
+            conexiones.add(conexion);
+            return (bytes + VariablesGlobales.MAX_BYTES_IN_BLOCK - 1) / VariablesGlobales.MAX_BYTES_IN_BLOCK;
+        } catch (IOException e) {
+            System.out.println("no se ha podido descargar file="+ fileId +" por el canal de datos, usando bloques");
+            e.printStackTrace();
+            conexion.close();
+            return -1;
+        }
+    }
+
+    /**
+     * Cierra las conexiones con el canal de datos.
+     */
+    private void cerrarConexiones() {
+        ConexionDatos conexion;
+        while ((conexion = conexiones.poll()) != null) {
+            conexion.close();
+        }
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    /**
+     * Obtiene el tamaño esperado del archivo, para llevar el control de bloques. En una carga se consulta el archivo
+     * local, y en una descarga se usa el tamaño que indico el servidor al listar los archivos.
+     * @param esCarga true si se trata de una carga.
+     * @return tamaño esperado en bytes.
+     */
+    private long tamanoEsperado(boolean esCarga) {
+        if(!esCarga) return ruta.sizeInBytes;
+
+        try {
+            return Files.size(abs);
+        } catch (IOException e) {
+            return ruta.sizeInBytes;
+        }
+    }
+
+    /**
+     * Bloquea el hilo actual hasta que terminen todas las tareas indicadas.
+     * @param tareas {@link ArrayList} de {@link Future} de las tareas.
+     * @throws InterruptedException si se interrumpe el hilo actual.
+     * @throws ExecutionException si alguna tarea ha terminado con una excepcion.
+     */
+    private static void esperar(ArrayList<Future<?>> tareas) throws InterruptedException, ExecutionException {
+        for (Future<?> f : tareas) {
+            f.get();
+        }
+    }
+
+    /**
+     * Cancela el archivo en el servidor y descarta el {@link LectorArchivos} local, de forma que el archivo no se
+     * modifica en ninguna de las dos maquinas.
+     */
+    private void cancelar() {
+        try {
+            server.cancelarArchivo(fileId, usuario);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        descartarLector();
+    }
+
+    /**
+     * Cierra el {@link LectorArchivos} local de la transmision sin confirmar lo escrito.
+     */
+    private void descartarLector() {
+        try {
+            lectorArchivos.descartar();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,37 @@
+package com.syncapp.interfaces;
+
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+
+
+/**
+ * Excepcion que indica que una peticion se ha hecho sobre un archivo que no esta abierto en el servidor, ya sea porque
+ * se ha cerrado o porque la sesion que lo abrio ha caducado y el servidor lo ha cerrado
+ * ({@link SyncApp#ping(com.syncapp.model.TokenUsuario)}).
+ * <br>
+ * A diferencia de otros errores de transmision, reintentar la peticion no sirve de nada: el archivo se debe volver a
+ * abrir.
+ */
+public class ArchivoNoAbiertoException extends RemoteException {
+
+    /**
+     * Crea la excepcion con el mensaje indicado.
+     * @param mensaje {@link String mensaje} de la excepcion.
+     */
+    public ArchivoNoAbiertoException(String mensaje) {
+        super(mensaje);
+    }
+
+
+    /**
+     * Comprueba si una excepcion indica que el archivo no esta abierto. Las excepciones remotas que lanza el servidor
+     * llegan al cliente dentro de una {@link ServerException}, por lo que tambien se comprueba su causa.
+     * @param e {@link Throwable excepcion} que se quiere comprobar.
+     * @return true si la excepcion es, o contiene, una {@link ArchivoNoAbiertoException}.
+     */
+    public static boolean es(Throwable e) {
+        if(e instanceof ServerException) e = e.getCause();
+        return e instanceof ArchivoNoAbiertoException;
+    }
+
+}
@@ -8,7 +8,12 @@ import java.util.ArrayList;
 
 import com.syncapp.cliente.SyncAppCliente;
 import com.syncapp.model.BloqueBytes;
+import com.syncapp.model.CambiosArchivos;
 import com.syncapp.model.Archivo;
+import com.syncapp.model.FirmaBloque;
+import com.syncapp.model.InstruccionDelta;
+import com.syncapp.model.PaginaArchivos;
+import com.syncapp.model.TicketTransferencia;
 import com.syncapp.model.TokenUsuario;
 import com.syncapp.server.SyncAppServer;
 
@@ -142,6 +147,26 @@ public interface SyncApp extends Remote {
      */
     int abrirArchivo(TokenUsuario usuario, Archivo archivo, String op_mode) throws RemoteException;
 
+
+    /**
+     * Analogo a {@link #abrirArchivo(TokenUsuario, Archivo, String)}, pero ademas de abrir el archivo, entrega un
+     * {@link TicketTransferencia ticket} con el que transmitir sus bytes por el canal de datos del servidor (un socket
+     * TCP junto al registro RMI), en vez de con {@link #leerBloqueBytes(int, long)} y
+     * {@link #escribirBloqueBytes(int, BloqueBytes)}. Por el canal de datos los bytes no se serializan, y el servidor
+     * los pasa directamente entre el archivo y el socket.
+     * <br>
+     * El archivo se cierra igualmente con {@link #cerrarArchivo(int, TokenUsuario)}, que invalida el ticket.
+     *
+     * @param usuario {@link TokenUsuario Usuario} que quiere abrir el archivo.
+     * @param archivo {@link Archivo} que se quiere abrir.
+     * @param op_mode {@link String} que indica en que modo se quiere abrir el archivo -> "r" para leer, "rw" para escribir.
+     * @return {@link TicketTransferencia} con el identificador del archivo, o null si no se ha podido abrir. Si el
+     * servidor no tiene canal de datos ({@link TicketTransferencia#tieneCanalDatos()}), o en una lectura ha decidido
+     * comprimir los bloques ({@link TicketTransferencia#comprimir}), los bloques se deben transmitir por RMI.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    TicketTransferencia abrirTransferencia(TokenUsuario usuario, Archivo archivo, String op_mode) throws RemoteException;
+
 
 
 
@@ -175,13 +200,29 @@ public interface SyncApp extends Remote {
 
 
     /**
-     * Este metodo permite cerrar la lectura/escritura de un archivo, liberando asi el recurso para otros usuarios.
+     * Este metodo permite cerrar la lectura/escritura de un archivo, liberando asi el recurso para otros usuarios. Si
+     * el archivo estaba abierto para escritura, la nueva version sustituye a la anterior; si el metodo lanza una
+     * excepcion, la carga no se ha guardado.
      * @param id_file identificador unico del archivo.
-     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     * @throws ArchivoNoAbiertoException si la sesion no tiene el archivo abierto, por ejemplo, porque ha caducado y el
+     * servidor lo ha descartado.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo, o no se ha podido guardar el
+     * archivo.
      */
     void cerrarArchivo(int id_file, TokenUsuario usuario) throws RemoteException;
 
 
+    /**
+     * Este metodo permite cerrar un archivo abierto para escritura sin guardar lo que se ha escrito, por ejemplo, cuando
+     * la transferencia no se ha podido completar. El archivo se queda como estaba antes de abrirlo. Si el archivo estaba
+     * abierto para lectura, equivale a {@link #cerrarArchivo(int, TokenUsuario)}.
+     * @param id_file identificador unico del archivo.
+     * @param usuario {@link TokenUsuario} de la sesion que abrio el archivo.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    void cancelarArchivo(int id_file, TokenUsuario usuario) throws RemoteException;
+
+
 
 
 
@@ -220,6 +261,49 @@ public interface SyncApp extends Remote {
      */
     ArrayList<Archivo> listaArchivos(TokenUsuario usuario) throws RemoteException;
 
+
+    /**
+     * Analogo a {@link #listaArchivos(TokenUsuario)}, pero devuelve la lista por paginas, ordenada por ruta. Cada
+     * {@link PaginaArchivos pagina} contiene un cursor con el que se pide la siguiente, de forma que el cliente puede
+     * empezar a procesar los archivos sin esperar a tener la lista completa, y ninguna respuesta contiene la lista entera.
+     *
+     * @param usuario {@link TokenUsuario Usuario} cuya lista se quiere obtener. Previamente debe haber iniciado sesion.
+     * @param cursor {@link PaginaArchivos#cursor cursor} de la pagina anterior, o null para pedir la primera pagina.
+     * @param tamanoPagina numero maximo de archivos de la pagina. El servidor lo limita a
+     *                     {@link com.syncapp.utility.VariablesGlobales#ARCHIVOS_POR_PAGINA}.
+     * @return {@link PaginaArchivos} con los archivos siguientes al cursor, o null si la sesion no es valida o el usuario
+     * no tiene carpeta en el servidor.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    PaginaArchivos listaArchivos(TokenUsuario usuario, String cursor, int tamanoPagina) throws RemoteException;
+
+
+    /**
+     * Devuelve el cursor del diario de cambios de la carpeta de un usuario en el servidor, que identifica su estado
+     * actual. Se debe pedir antes de listar la carpeta completa, para despues pedir unicamente los cambios posteriores
+     * con {@link #cambiosDesde(TokenUsuario, String, int)}.
+     *
+     * @param usuario {@link TokenUsuario Usuario} cuyo cursor se quiere obtener. Previamente debe haber iniciado sesion.
+     * @return {@link String cursor} de cambios, o null si la sesion no es valida.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    String cursorCambios(TokenUsuario usuario) throws RemoteException;
+
+
+    /**
+     * Devuelve los archivos de la carpeta de un usuario que se han creado, modificado o eliminado despues del cursor
+     * indicado. Asi, una sincronizacion en la que han cambiado pocos archivos no necesita la lista completa.
+     *
+     * @param usuario {@link TokenUsuario Usuario} cuyos cambios se quieren obtener. Previamente debe haber iniciado sesion.
+     * @param cursor {@link String cursor} obtenido con {@link #cursorCambios(TokenUsuario)} o en unos cambios anteriores.
+     * @param max numero maximo de cambios. El servidor lo limita a
+     *            {@link com.syncapp.utility.VariablesGlobales#ARCHIVOS_POR_PAGINA}.
+     * @return {@link CambiosArchivos} posteriores al cursor, o null si la sesion no es valida. Si el cursor ya no es
+     * valido, se indica con {@link CambiosArchivos#reiniciar}.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    CambiosArchivos cambiosDesde(TokenUsuario usuario, String cursor, int max) throws RemoteException;
+
     /**
      * Devuelve la lista de archivos indicada, pero cada archivo contiene los metadatos.
      * @param usuario {@link TokenUsuario Usuario} que pide la informacion.
@@ -232,13 +316,43 @@ public interface SyncApp extends Remote {
 
     /**
      * Devuelve el hash de un archivo disponible en el servidor.
-     * @param acalcular {@link Archivo} al cual calcular el hash md5.
-     * @return {@link String hasmd5} del archivo especificado.
+     * Se usa el algoritmo de deteccion de cambios por defecto del servidor.
+     * @param acalcular {@link Archivo} al cual calcular el hash.
+     * @return {@link String hash} del archivo especificado, con el formato {@code "<id>:<hex>"}.
      * @throws RemoteException si ocurre un problema durante la ejecucion el metodo.
      */
     String calcularHash(Archivo acalcular, TokenUsuario usuario) throws RemoteException;
 
 
+    /**
+     * Analogo a {@link #calcularHash(Archivo, TokenUsuario)}, pero para una lista de archivos, de forma que se obtienen
+     * los hashes de muchos archivos con una unica llamada. El servidor calcula los hashes en paralelo.
+     * <br>
+     * Para no enviar listas demasiado grandes en una sola llamada, el cliente debe pedir los hashes por paginas de, como
+     * mucho, {@link com.syncapp.utility.VariablesGlobales#HASHES_POR_PAGINA} archivos.
+     * @param usuario {@link TokenUsuario Usuario} que pide los hashes. Previamente debe haber iniciado sesion.
+     * @param archivos {@link ArrayList} de {@link Archivo} de los que se quiere obtener el hash.
+     * @param algoritmo identificador del {@link com.syncapp.utility.AlgoritmoHash algoritmo} que se quiere usar, uno de
+     *                  los devueltos por {@link #algoritmosHash()}.
+     * @return {@link ArrayList} con el hash de cada archivo, en el mismo orden. Si no se puede calcular el hash de un
+     * archivo (por ejemplo, porque no existe), su posicion es null. Null si la sesion no es valida o el algoritmo no
+     * se soporta.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    ArrayList<String> calcularHashes(TokenUsuario usuario, ArrayList<Archivo> archivos, String algoritmo) throws RemoteException;
+
+
+    /**
+     * Devuelve los identificadores de los {@link com.syncapp.utility.AlgoritmoHash algoritmos de hash} que soporta el
+     * servidor para detectar cambios, por orden de preferencia. El cliente elige el primero que tambien soporte (ver
+     * {@link com.syncapp.utility.AlgoritmoHash#negociar(java.util.List)}), y lo usa para calcular tanto sus hashes
+     * como los del servidor.
+     * @return {@link ArrayList} de identificadores de algoritmos.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    ArrayList<String> algoritmosHash() throws RemoteException;
+
+
 
 
 
@@ -279,6 +393,20 @@ public interface SyncApp extends Remote {
      */
     BloqueBytes leerBloqueBytes(int id_file, long position) throws RemoteException;
 
+    /**
+     * Analogo a {@link #leerBloqueBytes(int, long)}, pero indicando la sesion que lee el bloque. Si la sesion ha
+     * activado la compresion ({@link #negociarCompresion(TokenUsuario, boolean)}), el bloque viaja comprimido, salvo
+     * que el servidor decida, a partir del primer bloque que envia del archivo, que el archivo no se comprime lo
+     * suficiente.
+     *
+     * @param id_file identificador unico del archivo.
+     * @param position posicion a partir de la cual se lee el archivo.
+     * @param usuario {@link TokenUsuario} de la sesion que lee el bloque.
+     * @return {@link BloqueBytes} a transimitir.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    BloqueBytes leerBloqueBytes(int id_file, long position, TokenUsuario usuario) throws RemoteException;
+
     /**
      * Permite escribir un {@link BloqueBytes} para un archivo especificado con su identificador unico.
      * Dado que pueden ocurrir errores en la transimision de un bloque, se debe indicar la posicion
@@ -296,6 +424,71 @@ public interface SyncApp extends Remote {
     void escribirBloqueBytes(int id_file, BloqueBytes bloq_bytes) throws RemoteException;
 
 
+    /**
+     * Devuelve las {@link FirmaBloque firmas} de los bloques de un archivo del servidor. Con ellas, el cliente puede
+     * calcular que partes de su version del archivo ya tiene el servidor, y enviar unicamente las diferencias mediante
+     * {@link #aplicarDelta(TokenUsuario, Archivo, ArrayList)}.
+     * @param usuario {@link TokenUsuario Usuario} que pide las firmas. Previamente debe haber iniciado sesion.
+     * @param archivo {@link Archivo} del que se quieren obtener las firmas.
+     * @return {@link ArrayList} de {@link FirmaBloque}, o null si el archivo no existe en el servidor.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    ArrayList<FirmaBloque> obtenerFirmas(TokenUsuario usuario, Archivo archivo) throws RemoteException;
+
+    /**
+     * Reconstruye un archivo del servidor a partir de su version actual y las {@link InstruccionDelta instrucciones}
+     * indicadas, que referencian bloques de la version actual o contienen bytes nuevos. El archivo se reemplaza de
+     * forma atomica una vez reconstruido.
+     * <br>
+     * Si el archivo esta abierto por otra sesion, o las instrucciones no generan un archivo de
+     * {@link Archivo#sizeInBytes} bytes, no se modifica el archivo y se devuelve false. En ese caso, el cliente debe
+     * cargar el archivo completo.
+     * @param usuario {@link TokenUsuario Usuario} que quiere modificar el archivo.
+     * @param archivo {@link Archivo} que se quiere modificar, con el tamaño de su nueva version.
+     * @param delta {@link ArrayList} de {@link InstruccionDelta} que describen la nueva version.
+     * @return true si se ha reconstruido el archivo, false en caso contrario.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    boolean aplicarDelta(TokenUsuario usuario, Archivo archivo, ArrayList<InstruccionDelta> delta) throws RemoteException;
+
+
+    /**
+     * Permite saber que fragmentos de contenido tiene ya el servidor. Un archivo se divide en fragmentos de
+     * {@link com.syncapp.utility.VariablesGlobales#BYTES_FRAGMENTO} bytes, identificados por su hash (ver
+     * {@link com.syncapp.utility.Utilidades#calcularManifiesto(java.nio.file.Path)}). Antes de cargar un archivo, el
+     * cliente puede preguntar por los fragmentos de su manifiesto, enviar los que falten con
+     * {@link #subirFragmento(TokenUsuario, String, byte[])}, y pedir al servidor que lo componga con
+     * {@link #componerArchivo(TokenUsuario, Archivo, ArrayList)}.
+     * @param usuario {@link TokenUsuario Usuario} que pregunta. Previamente debe haber iniciado sesion.
+     * @param hashes {@link ArrayList} de hashes de fragmentos.
+     * @return array con una posicion por hash, a true si el servidor tiene el fragmento. Null si la sesion no es valida.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    boolean[] tieneFragmentos(TokenUsuario usuario, ArrayList<String> hashes) throws RemoteException;
+
+    /**
+     * Envia al servidor un fragmento de contenido que no tenia. El servidor comprueba que el contenido corresponde al hash.
+     * @param usuario {@link TokenUsuario Usuario} que envia el fragmento.
+     * @param hash {@link String hash} del fragmento.
+     * @param datos contenido del fragmento.
+     * @return true si el servidor tiene ya el fragmento, false si no se ha aceptado.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    boolean subirFragmento(TokenUsuario usuario, String hash, byte[] datos) throws RemoteException;
+
+    /**
+     * Crea o reemplaza un archivo del servidor a partir de su manifiesto, esto es, la lista ordenada de los hashes de
+     * sus fragmentos. Todos los fragmentos deben estar ya en el servidor. Si falta alguno, o el archivo esta abierto por
+     * otra sesion, no se modifica el archivo y se devuelve false; en ese caso, el cliente debe cargar el archivo completo.
+     * @param usuario {@link TokenUsuario Usuario} que quiere crear el archivo.
+     * @param archivo {@link Archivo} que se quiere crear, con su tamaño en {@link Archivo#sizeInBytes}.
+     * @param manifiesto {@link ArrayList} con el hash de cada fragmento, en orden.
+     * @return true si se ha compuesto el archivo, false en caso contrario.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    boolean componerArchivo(TokenUsuario usuario, Archivo archivo, ArrayList<String> manifiesto) throws RemoteException;
+
+
 
 
 
@@ -333,5 +526,30 @@ public interface SyncApp extends Remote {
      */
     void ping() throws RemoteException;
 
+    /**
+     * Permite a una sesion renovar su concesion. Las sesiones caducan si pasan
+     * {@link com.syncapp.utility.VariablesGlobales#DURACION_SESION} ms sin ninguna peticion, y el servidor cierra los
+     * archivos que hubieran dejado abiertos. Cualquier peticion de la sesion renueva la concesion, pero mientras los
+     * bytes se transmiten por el canal de datos no se hacen peticiones por RMI, por lo que el cliente debe invocar este
+     * metodo cada {@link com.syncapp.utility.VariablesGlobales#LATIDO_SESION} ms.
+     *
+     * @param usuario {@link TokenUsuario} de la sesion.
+     * @return true si la sesion sigue activa, false si ya habia caducado o no existe.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    boolean ping(TokenUsuario usuario) throws RemoteException;
+
+    /**
+     * Permite a una sesion activar o desactivar la compresion de los {@link BloqueBytes} que descarga con
+     * {@link #leerBloqueBytes(int, long, TokenUsuario)}. Los bloques que carga el cliente se pueden enviar comprimidos
+     * en cualquier caso, pero el cliente unicamente deberia comprimirlos si la compresion se ha activado.
+     *
+     * @param usuario {@link TokenUsuario} de la sesion.
+     * @param comprimir true para activar la compresion, false para desactivarla.
+     * @return true si la compresion queda activada para la sesion.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    boolean negociarCompresion(TokenUsuario usuario, boolean comprimir) throws RemoteException;
+
 
 }
@@ -1,11 +1,19 @@
 package com.syncapp.model;
 
+import com.syncapp.utility.CodecBinario;
 import com.syncapp.utility.VariablesGlobales;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -15,47 +23,74 @@ import java.util.Date;
  * Esta clase abstrae el concepto de archivo dentro del sistema distribuido. Nos permite trabajar de forma mas sencilla,
  * pues contiene toda la informacion necesaria de un archivo para el sistema distribuido, evitando hacer uso extra de
  * invocaciones al servidor.
+ * <br>
+ * Los archivos viajan por RMI en listas muy grandes, asi que sus campos se serializan a mano con {@link CodecBinario}
+ * ({@link #writeObject(ObjectOutputStream)}): los numeros como varint, las rutas comprimidas respecto al archivo
+ * anterior de la lista ({@link ListaArchivos}), y el hash en binario.
  */
 public class Archivo implements Serializable, Comparable {
 
     /**
-     * Contiene la ruta de un archivo, respecto a la carpeta de sincronizacion.
+     * Contiene la ruta de un archivo, respecto a la carpeta de sincronizacion. No se debe modificar; no es final
+     * unicamente para poder asignarla en {@link #readObject(ObjectInputStream)}.
      */
-    public final String childFolder; //Ruta a un archivo de forma realitva a la carpeta que queremos sincronizar
+    public transient String childFolder; //Ruta a un archivo de forma realitva a la carpeta que queremos sincronizar
 
     /**
      * Contiene la ruta de la carpeta de sincronizacion.
      */
-    public String parentFolder;
+    public transient String parentFolder;
 
     /**
-     * Contiene un hash md5 en formato texto.
+     * Contiene el hash del archivo en formato texto, precedido por el identificador del algoritmo con el que se ha
+     * calculado ({@code "<id>:<hex>"}, ver {@link com.syncapp.utility.AlgoritmoHash}).
      */
-    public String hash;
+    public transient String hash;
 
     /**
      * Contiene la ultima fecha de modificacion en milisegundos. Esta cuenta de milisegundos viene dada respecto a una
      * fecha de 1970, viene calculada por Java. Nos permite saber la ultima fecha de modificacion de un archivo de forma
      * simple.
      */
-    public long timeMilisLastModified;
+    public transient long timeMilisLastModified;
 
     /**
      * Contiene el tamaño en bytes de un archivo. Esta informacion es unicamente ilustrativa para el usuario, nunca
      * comparar si un archivo ha cambiado por su tamaño, para ello se dispone de hash y hora de modificacion.
      */
-    public long sizeInBytes;
+    public transient long sizeInBytes;
 
     /**
      * Contiene el identificador unico del archivo dentro del servidor.
      */
-    public String remoteID;
+    public transient String remoteID;
 
 
     /**
      * Identificador global dentro de nuestro contexto de transmisiones.
      */
-    public int globalID;
+    public transient int globalID;
+
+    /**
+     * Ruta absoluta del archivo, calculada la primera vez que se pide con {@link #toPath()}. Se guarda junto a la
+     * carpeta de sincronizacion con la que se calculo, ya que {@link #parentFolder} puede cambiar. No se serializa.
+     */
+    private transient Ruta ruta;
+
+    /**
+     * Ruta absoluta del archivo, junto a la carpeta de sincronizacion con la que se ha calculado. Se guardan en un unico
+     * objeto, para que un hilo nunca vea la ruta calculada con una carpeta junto a otra carpeta.
+     */
+    private static class Ruta {
+        final String parentFolder;
+        final Path path;
+        File file;
+
+        Ruta(String parentFolder, Path path) {
+            this.parentFolder = parentFolder;
+            this.path = path;
+        }
+    }
 
 
 
@@ -78,17 +113,44 @@ public class Archivo implements Serializable, Comparable {
         // Guardamos los valores
         parentFolder = parent.toString();
 
-        File archivoReal = Paths.get( parent.toString() , childFolder).toFile();
-
-        // Introducimos los metadatos
-        sizeInBytes = archivoReal.length();
-        timeMilisLastModified = archivoReal.lastModified();
+        // Introducimos los metadatos, consultando el disco una unica vez. Si el archivo no existe, quedan a 0
+        try {
+            BasicFileAttributes atributos = Files.readAttributes(toPath(), BasicFileAttributes.class);
+            sizeInBytes = atributos.size();
+            timeMilisLastModified = atributos.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            sizeInBytes = 0;
+            timeMilisLastModified = 0;
+        }
 //        hash = Utilidades.checkSumhash(archivoReal); // hash no lo obtenemos de primeras, ya que es una funcion pesada
 
 
     }
 
 
+    /**
+     * Nos permite crear un archivo a partir de su ruta y unos atributos ya leidos (por ejemplo, durante el recorrido de
+     * una carpeta), sin volver a consultar el disco.
+     * @param child {@link Path ruta} del archivo, absoluta o respecto a la carpeta de sincronizacion.
+     * @param parent {@link Path ruta} de la carpeta de sincronizacion.
+     * @param atributos {@link BasicFileAttributes atributos} del archivo.
+     */
+    public Archivo(Path child, Path parent, BasicFileAttributes atributos) {
+        parentFolder = parent.toString();
+
+        // Si la ruta es absoluta, la relativizamos, y ya conocemos la ruta absoluta del archivo
+        if(  child.isAbsolute()  ) {
+            childFolder = (parent.relativize(child)).toString();
+            ruta = new Ruta(parentFolder, child);
+        } else {
+            childFolder = child.toString();
+        }
+
+        sizeInBytes = atributos.size();
+        timeMilisLastModified = atributos.lastModifiedTime().toMillis();
+    }
+
+
     /**
      * Permite crear un archivo a partir de su ruta relativa. Es util cuando no necesitamos la ruta completa del archivo.
      * @param childFolder {@link String ruta} relativa del archivo.
@@ -158,11 +220,12 @@ public class Archivo implements Serializable, Comparable {
 
     /**
      * Con este metodo podemos convertir el archivo en un {@link Path} absoluto, uniendo la ruta de trabajo del archivo
-     * mas su propia ruta relativa.
+     * mas su propia ruta relativa. La ruta se calcula la primera vez, y unicamente se vuelve a calcular si cambia
+     * {@link #parentFolder}.
      * @return {@link Path} absoluto del archivo (workingFloder + ruta).
      */
     public Path toPath() {
-        return Paths.get(parentFolder, childFolder);
+        return ruta().path;
     }
 
     /**
@@ -176,11 +239,91 @@ public class Archivo implements Serializable, Comparable {
 
     /**
      * Con este metodo podemos convertir el archivo en un {@link File}, para ello se usa la ruta completa del archivo (
-     * ruta de trabajo + ruta del archivo).
-     * @return
+     * ruta de trabajo + ruta del archivo). Al igual que {@link #toPath()}, se calcula una unica vez.
+     * @return {@link File} del archivo.
      */
     public File toFile() {
-        return Paths.get(parentFolder, childFolder).toFile();
+        Ruta r = ruta();
+        if(r.file == null) r.file = r.path.toFile();
+        return r.file;
+    }
+
+
+    private Ruta ruta() {
+        // Se compara la referencia: si se asigna otra carpeta, aunque sea igual, se vuelve a calcular la ruta
+        Ruta r = ruta;
+        if(r == null || r.parentFolder != parentFolder) {
+            r = new Ruta(parentFolder, Paths.get(parentFolder, childFolder));
+            ruta = r;
+        }
+        return r;
+    }
+
+
+
+
+
+
+
+
+
+
+    // Serializacion
+
+    /**
+     * Serializa el archivo de forma compacta con {@link CodecBinario}. Un archivo suelto no tiene un archivo anterior
+     * respecto al que comprimir sus rutas; en las listas de archivos, {@link ListaArchivos} las comprime.
+     * @param out flujo en el que se escribe el archivo.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        escribir(out, new CodecBinario.Prefijos());
+    }
+
+    /**
+     * Deserializa un archivo escrito con {@link #writeObject(ObjectOutputStream)}.
+     * @param in flujo del que se lee el archivo.
+     * @throws IOException si ocurre un problema al leer.
+     * @throws ClassNotFoundException si no se reconoce la clase serializada.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        leer(in, new CodecBinario.Prefijos());
+    }
+
+    /**
+     * Escribe los campos del archivo con {@link CodecBinario}. La ruta y la carpeta de sincronizacion se escriben
+     * respecto a las del archivo anterior de la misma lista, de forma que en una lista de archivos de una misma carpeta,
+     * cada archivo ocupa poco mas que su nombre.
+     * @param out flujo en el que se escribe el archivo.
+     * @param prefijos {@link CodecBinario.Prefijos} de la lista.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    void escribir(DataOutput out, CodecBinario.Prefijos prefijos) throws IOException {
+        CodecBinario.escribirConPrefijo(out, prefijos, CodecBinario.Campo.RUTA_ARCHIVO, childFolder);
+        CodecBinario.escribirConPrefijo(out, prefijos, CodecBinario.Campo.CARPETA_ARCHIVO, parentFolder);
+        CodecBinario.escribirHash(out, hash);
+        CodecBinario.escribirZigzag(out, timeMilisLastModified);
+        CodecBinario.escribirZigzag(out, sizeInBytes);
+        CodecBinario.escribirTexto(out, remoteID);
+        CodecBinario.escribirZigzag(out, globalID);
+    }
+
+    /**
+     * Lee los campos del archivo escritos con {@link #escribir(DataOutput, CodecBinario.Prefijos)}.
+     * @param in flujo del que se lee el archivo.
+     * @param prefijos {@link CodecBinario.Prefijos} de la lista.
+     * @throws IOException si ocurre un problema al leer.
+     */
+    void leer(DataInput in, CodecBinario.Prefijos prefijos) throws IOException {
+        childFolder = CodecBinario.leerConPrefijo(in, prefijos, CodecBinario.Campo.RUTA_ARCHIVO);
+        parentFolder = CodecBinario.leerConPrefijo(in, prefijos, CodecBinario.Campo.CARPETA_ARCHIVO);
+        hash = CodecBinario.leerHash(in);
+        timeMilisLastModified = CodecBinario.leerZigzag(in);
+        sizeInBytes = CodecBinario.leerZigzag(in);
+        remoteID = CodecBinario.leerTexto(in);
+        globalID = (int) CodecBinario.leerZigzag(in);
     }
 
 
@@ -1,6 +1,13 @@
 package com.syncapp.model;
 
+import com.syncapp.utility.CodecBinario;
+import com.syncapp.utility.CompresionBloques;
+import com.syncapp.utility.PoolBloques;
 import com.syncapp.utility.VariablesGlobales;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -8,28 +15,50 @@ import java.io.Serializable;
  * permite transferir el archivo en una secuencia de bloques, de forma sencilla. Ademas contine un identificador de
  * archivo, lo que permite que no se pierda el bloque. Se trata, en esencia, una encapsulacion para facilitar el
  * trabajo de bloques.
+ * <br>
+ * El array {@link #data} puede ser mayor que el propio bloque (normalmente es un buffer de {@link PoolBloques}), por lo
+ * que unicamente los primeros {@link #size} bytes son validos. Al serializar el bloque solo se envian esos bytes, de
+ * forma que un bloque final corto no necesita copiarse a un array de su tamaño.
  */
 public class BloqueBytes implements Serializable{
 
     /**
-     * Array de bytes que constituyen el bloque de bytes. Representan una porcion del archivo.
+     * Array de bytes que constituyen el bloque de bytes. Representan una porcion del archivo. Unicamente son validos
+     * los primeros {@link #size} bytes. Se serializa a mano en {@link #writeObject(ObjectOutputStream)}.
      */
-    public byte[] data;
+    public transient byte[] data;
 
     /**
      * Indica el tamaño del bloque, medido en numero de bytes que contiene.
      */
-    public int size;
+    public transient int size;
 
     /**
      * Representa la posicion del primer byte del bloque. Esto es, la posicion desde la cual se debe escribir el bloque.
      */
-    public long position;
+    public transient long position;
 
     /**
      * Identificador del archivo al que pertenece el bloque.
      */
-    public int fileID;
+    public transient int fileID;
+
+    /**
+     * Indica si {@link #data} se debe devolver a {@link PoolBloques} en cuanto el bloque se haya serializado. Lo usa el
+     * servidor para los bloques que devuelve por RMI, ya que una vez enviados nadie mas los va a usar.
+     */
+    public transient boolean liberarAlEnviar;
+
+    /**
+     * Indica si {@link #data} se debe comprimir al serializar el bloque (ver {@link CompresionBloques}). Si comprimido
+     * no ocupa menos, el bloque se envia sin comprimir. Al deserializar, el bloque siempre queda descomprimido.
+     */
+    public transient boolean comprimir;
+
+    /**
+     * Formato de los bytes del bloque serializado: sin comprimir, o comprimidos con {@link CompresionBloques}.
+     */
+    private static final int SIN_COMPRIMIR = 0, COMPRIMIDO = 1;
 
 
     /**
@@ -52,6 +81,99 @@ public class BloqueBytes implements Serializable{
 
 
 
+    /**
+     * Este metodo nos permite devolver el buffer del bloque a {@link PoolBloques}, para que otro bloque lo reutilice.
+     * Tras invocarlo, el bloque ya no contiene datos.
+     */
+    public void liberar() {
+        PoolBloques.devolver(data);
+        data = null;
+    }
+
+
+    /**
+     * Serializa el bloque, escribiendo unicamente los {@link #size} bytes validos de {@link #data}, en vez del buffer
+     * completo. La cabecera del bloque (tamaño, posicion y archivo) se escribe como varint con {@link CodecBinario}.
+     * <br>
+     * Si se ha indicado {@link #comprimir}, los bytes se escriben comprimidos, siempre que ocupen menos que sin comprimir.
+     * @param out flujo en el que se escribe el bloque.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        CodecBinario.escribirVarint(out, size);
+        CodecBinario.escribirVarint(out, position);
+        CodecBinario.escribirZigzag(out, fileID);
+
+        // Comprimimos sobre un buffer del almacen, y si no se reduce, escribimos los bytes tal cual. Un bloque vacio no
+        // se puede reducir, asi que ni siquiera se pide el buffer
+        boolean intentar = comprimir && size > 0;
+        byte[] comprimidos = intentar ? PoolBloques.obtener(size) : null;
+        int n = intentar ? CompresionBloques.comprimir(data, size, comprimidos, Math.min(size - 1, comprimidos.length)) : -1;
+
+        if(n < 0) {
+            out.writeByte(SIN_COMPRIMIR);
+            out.write(data, 0, size);
+        } else {
+            out.writeByte(COMPRIMIDO);
+            CodecBinario.escribirVarint(out, n);
+            out.write(comprimidos, 0, n);
+        }
+        PoolBloques.devolver(comprimidos);
+
+        if(liberarAlEnviar) {
+            liberar();
+        }
+    }
+
+
+    /**
+     * Deserializa el bloque. Los bytes de un bloque completo se leen sobre un buffer de {@link PoolBloques}, por lo que
+     * quien reciba el bloque debe invocar {@link #liberar()} cuando haya terminado de escribirlo. Los bloques pequeños se
+     * leen sobre un array de su tamaño ({@link PoolBloques#obtener(int)}).
+     * @param in flujo del que se lee el bloque.
+     * @throws IOException si ocurre un problema al leer.
+     * @throws ClassNotFoundException si no se reconoce la clase serializada.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        size = CodecBinario.leerLongitud(in);
+        position = CodecBinario.leerVarint(in);
+        fileID = (int) CodecBinario.leerZigzag(in);
+
+        // Comprobamos la cabecera antes de reservar memoria, para que un bloque mal formado no pueda pedir un buffer
+        // arbitrariamente grande
+        if(size > VariablesGlobales.MAX_BYTES_IN_BLOCK) throw new IOException("tamaño de bloque no valido: " + size);
+        if(position < 0) throw new IOException("posicion de bloque no valida: " + position);
+
+        data = PoolBloques.obtener(size);
+
+        int formato = in.readUnsignedByte();
+        if(formato == SIN_COMPRIMIR) {
+            in.readFully(data, 0, size);
+            return;
+        }
+        if(formato != COMPRIMIDO) throw new IOException("formato de bloque no valido: " + formato);
+
+        int n = CodecBinario.leerLongitud(in);
+        if(n > size) throw new IOException("bloque comprimido mayor que el original: " + n);
+
+        byte[] comprimidos = PoolBloques.obtener(n);
+        try {
+            in.readFully(comprimidos, 0, n);
+            CompresionBloques.descomprimir(comprimidos, n, data, size);
+        } finally {
+            PoolBloques.devolver(comprimidos);
+        }
+    }
+
+
+    /**
+     * Recorta {@link #data} a sus primeros bytes, copiandolos a un nuevo array.
+     * @deprecated {@link #size} ya delimita los bytes validos del bloque, no es necesario copiar el array.
+     * @param numberOfBytesToKeep numero de bytes que se quieren mantener.
+     */
+    @Deprecated
     public void keepOnlyNBytes(int numberOfBytesToKeep){
         if(numberOfBytesToKeep >= 0 && numberOfBytesToKeep < VariablesGlobales.MAX_BYTES_IN_BLOCK) {
             byte[] temp = new byte[numberOfBytesToKeep];
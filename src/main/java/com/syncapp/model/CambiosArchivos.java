@@ -0,0 +1,169 @@
+package com.syncapp.model;
+
+import com.syncapp.utility.CodecBinario;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+
+/**
+ * Esta clase representa los cambios de la carpeta de un usuario en el servidor posteriores a un cursor (ver
+ * {@link com.syncapp.interfaces.SyncApp#cambiosDesde(TokenUsuario, String, int)}).
+ * <br>
+ * Al igual que {@link PaginaArchivos}, guarda la carpeta de sincronizacion una unica vez, y los datos de los archivos
+ * en arrays paralelos. Cada posicion es el estado actual de un archivo que ha cambiado: si se ha eliminado, su tamaño es
+ * {@link #BORRADO}.
+ */
+public class CambiosArchivos implements Serializable {
+
+    /**
+     * Tamaño con el que se indica que un archivo se ha eliminado.
+     */
+    public static final long BORRADO = -1;
+
+    /**
+     * Ruta de la carpeta de sincronizacion, comun a todos los archivos.
+     */
+    public transient String parentFolder;
+
+    /**
+     * Ruta de cada archivo que ha cambiado, respecto a la carpeta de sincronizacion.
+     */
+    public transient String[] rutas;
+
+    /**
+     * Tamaño en bytes de cada archivo, o {@link #BORRADO} si se ha eliminado.
+     */
+    public transient long[] tamanos;
+
+    /**
+     * Fecha de ultima modificacion de cada archivo, en milisegundos.
+     */
+    public transient long[] modificados;
+
+    /**
+     * Cursor con el que pedir los cambios siguientes a estos.
+     */
+    public transient String cursor;
+
+    /**
+     * Indica si estos son los ultimos cambios. Si es false, hay mas cambios que se deben pedir con {@link #cursor}.
+     */
+    public transient boolean completo;
+
+    /**
+     * Indica que el cursor pedido ya no es valido (por ejemplo, porque el servidor ha reconstruido su indice), y el
+     * cliente debe hacer una sincronizacion completa.
+     */
+    public transient boolean reiniciar;
+
+
+    /**
+     * Crea un conjunto de cambios.
+     * @param parentFolder ruta de la carpeta de sincronizacion.
+     * @param rutas ruta relativa de cada archivo.
+     * @param tamanos tamaño de cada archivo, o {@link #BORRADO}.
+     * @param modificados fecha de modificacion de cada archivo.
+     * @param cursor cursor de los cambios siguientes.
+     * @param completo true si no hay mas cambios.
+     * @param reiniciar true si el cliente debe hacer una sincronizacion completa.
+     */
+    public CambiosArchivos(String parentFolder, String[] rutas, long[] tamanos, long[] modificados, String cursor,
+                           boolean completo, boolean reiniciar) {
+        this.parentFolder = parentFolder;
+        this.rutas = rutas;
+        this.tamanos = tamanos;
+        this.modificados = modificados;
+        this.cursor = cursor;
+        this.completo = completo;
+        this.reiniciar = reiniciar;
+    }
+
+
+    /**
+     * Numero de cambios.
+     * @return numero de archivos que han cambiado.
+     */
+    public int size() {
+        return rutas.length;
+    }
+
+
+    /**
+     * Indica si el archivo de una posicion se ha eliminado.
+     * @param i posicion del archivo.
+     * @return true si el archivo se ha eliminado.
+     */
+    public boolean borrado(int i) {
+        return tamanos[i] == BORRADO;
+    }
+
+
+    /**
+     * Devuelve el archivo de una posicion como un {@link Archivo}, sin hash.
+     * @param i posicion del archivo.
+     * @return {@link Archivo} con tamaño y fecha de modificacion.
+     */
+    public Archivo archivo(int i) {
+        Archivo a = new Archivo(rutas[i]);
+        a.parentFolder = parentFolder;
+        a.sizeInBytes = tamanos[i];
+        a.timeMilisLastModified = modificados[i];
+        return a;
+    }
+
+
+
+    // Serializacion
+
+    /**
+     * Serializa los cambios con {@link CodecBinario}: las rutas comprimidas respecto a la ruta anterior, y los tamaños
+     * (con signo, por {@link #BORRADO}) y fechas como varint.
+     * @param out flujo en el que se escriben los cambios.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        CodecBinario.escribirTexto(out, parentFolder);
+        CodecBinario.escribirTexto(out, cursor);
+        out.writeBoolean(completo);
+        out.writeBoolean(reiniciar);
+        CodecBinario.escribirVarint(out, rutas.length);
+        CodecBinario.Prefijos prefijos = new CodecBinario.Prefijos();
+        for (int i = 0; i < rutas.length; i++) {
+            CodecBinario.escribirConPrefijo(out, prefijos, CodecBinario.Campo.RUTA_PAGINA, rutas[i]);
+            CodecBinario.escribirZigzag(out, tamanos[i]);
+            CodecBinario.escribirZigzag(out, modificados[i]);
+        }
+    }
+
+    /**
+     * Deserializa los cambios escritos con {@link #writeObject(ObjectOutputStream)}.
+     * @param in flujo del que se leen los cambios.
+     * @throws IOException si ocurre un problema al leer.
+     * @throws ClassNotFoundException si no se reconoce la clase serializada.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        parentFolder = CodecBinario.leerTexto(in);
+        cursor = CodecBinario.leerTexto(in);
+        completo = in.readBoolean();
+        reiniciar = in.readBoolean();
+
+        // El servidor nunca envia mas de ARCHIVOS_POR_PAGINA archivos; comprobamos el numero antes de reservar los arrays
+        int n = CodecBinario.leerLongitud(in);
+        if (n > VariablesGlobales.ARCHIVOS_POR_PAGINA) throw new IOException("demasiados archivos: " + n);
+        rutas = new String[n];
+        tamanos = new long[n];
+        modificados = new long[n];
+        CodecBinario.Prefijos prefijos = new CodecBinario.Prefijos();
+        for (int i = 0; i < n; i++) {
+            rutas[i] = CodecBinario.leerConPrefijo(in, prefijos, CodecBinario.Campo.RUTA_PAGINA);
+            tamanos[i] = CodecBinario.leerZigzag(in);
+            modificados[i] = CodecBinario.leerZigzag(in);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.syncapp.model;
+
+import java.io.Serializable;
+
+
+/**
+ * Esta clase representa la firma de un bloque de un archivo, que se usa para sincronizar unicamente las diferencias
+ * entre dos versiones de un archivo (ver {@link com.syncapp.utility.Delta}).
+ * <br>
+ * La firma se compone de dos sumas: una suma debil, que se puede recalcular al desplazar el bloque un byte (suma
+ * rodante), y permite descartar rapidamente los bloques que no coinciden; y una suma fuerte (md5), que confirma que dos
+ * bloques son realmente iguales.
+ */
+public class FirmaBloque implements Serializable {
+
+    /**
+     * Numero del bloque dentro del archivo. El bloque empieza en la posicion {@code indice * tamaño de bloque}.
+     */
+    public int indice;
+
+    /**
+     * Numero de bytes del bloque. Todos los bloques tienen el mismo tamaño, salvo el ultimo, que puede ser mas corto.
+     */
+    public int longitud;
+
+    /**
+     * Suma debil (rodante) del bloque.
+     */
+    public int debil;
+
+    /**
+     * Suma fuerte (md5) del bloque.
+     */
+    public byte[] fuerte;
+
+
+    /**
+     * Crea la firma de un bloque.
+     * @param indice numero del bloque.
+     * @param longitud numero de bytes del bloque.
+     * @param debil suma debil del bloque.
+     * @param fuerte suma fuerte del bloque.
+     */
+    public FirmaBloque(int indice, int longitud, int debil, byte[] fuerte) {
+        this.indice = indice;
+        this.longitud = longitud;
+        this.debil = debil;
+        this.fuerte = fuerte;
+    }
+}
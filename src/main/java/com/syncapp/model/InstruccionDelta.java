@@ -0,0 +1,67 @@
+package com.syncapp.model;
+
+import java.io.Serializable;
+
+
+/**
+ * Esta clase representa una instruccion para reconstruir la nueva version de un archivo a partir de la version que ya
+ * tiene el servidor (ver {@link com.syncapp.utility.Delta}). Una instruccion puede ser:
+ * <ul>
+ *     <li>
+ *         Una referencia a bloques consecutivos de la version anterior, que se copian tal cual.
+ *     </li>
+ *     <li>
+ *         Un conjunto de bytes literales, que no estaban en la version anterior.
+ *     </li>
+ * </ul>
+ */
+public class InstruccionDelta implements Serializable {
+
+    /**
+     * Primer bloque de la version anterior que se copia. Si la instruccion es literal vale -1.
+     */
+    public int bloqueInicial = -1;
+
+    /**
+     * Numero de bloques consecutivos de la version anterior que se copian.
+     */
+    public int numBloques;
+
+    /**
+     * Bytes literales que se escriben. Si la instruccion es una referencia a bloques vale null.
+     */
+    public byte[] literal;
+
+
+    /**
+     * Crea una instruccion que copia bloques consecutivos de la version anterior.
+     * @param bloqueInicial primer bloque que se copia.
+     * @param numBloques numero de bloques que se copian.
+     * @return {@link InstruccionDelta} de referencia.
+     */
+    public static InstruccionDelta referencia(int bloqueInicial, int numBloques) {
+        InstruccionDelta id = new InstruccionDelta();
+        id.bloqueInicial = bloqueInicial;
+        id.numBloques = numBloques;
+        return id;
+    }
+
+    /**
+     * Crea una instruccion que escribe bytes literales.
+     * @param literal bytes que se escriben.
+     * @return {@link InstruccionDelta} literal.
+     */
+    public static InstruccionDelta literal(byte[] literal) {
+        InstruccionDelta id = new InstruccionDelta();
+        id.literal = literal;
+        return id;
+    }
+
+    /**
+     * Indica si la instruccion es de bytes literales.
+     * @return true si es literal, false si es una referencia a bloques.
+     */
+    public boolean esLiteral() {
+        return literal != null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.syncapp.model;
+
+import com.syncapp.utility.CodecBinario;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+
+
+/**
+ * Lista de {@link Archivo Archivos} que se serializa de forma compacta. Es la lista que se envia por RMI en
+ * {@link com.syncapp.interfaces.SyncApp#listaArchivos(TokenUsuario)},
+ * {@link com.syncapp.interfaces.SyncApp#obtenerMetadatos(TokenUsuario, ArrayList)} y
+ * {@link com.syncapp.interfaces.SyncApp#calcularHashes(TokenUsuario, ArrayList, String)}.
+ * <br>
+ * Se serializa como un todo ({@link Externalizable}): en vez de un objeto por archivo, con la cabecera de cada uno,
+ * se escribe cada archivo con sus campos, y las rutas se comprimen
+ * respecto a las del archivo anterior de la lista con unos {@link CodecBinario.Prefijos} propios de cada escritura o
+ * lectura. Como es un {@link ArrayList}, se puede enviar y recibir donde se espera un {@link ArrayList} de archivos.
+ */
+public class ListaArchivos extends ArrayList<Archivo> implements Externalizable {
+
+    /**
+     * Crea una lista vacia. Tambien se usa al deserializar la lista.
+     */
+    public ListaArchivos() {
+        super();
+    }
+
+    /**
+     * Crea una lista con los archivos indicados, en el mismo orden.
+     * @param archivos {@link Collection} de archivos.
+     */
+    public ListaArchivos(Collection<? extends Archivo> archivos) {
+        super(archivos);
+    }
+
+
+    /**
+     * Escribe el numero de archivos y cada archivo. Los elementos null se marcan con un byte.
+     * @param out flujo en el que se escribe la lista.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        CodecBinario.Prefijos prefijos = new CodecBinario.Prefijos();
+
+        CodecBinario.escribirVarint(out, size());
+        for (Archivo archivo : this) {
+            out.writeBoolean(archivo != null);
+            if (archivo != null) archivo.escribir(out, prefijos);
+        }
+    }
+
+    /**
+     * Lee una lista escrita con {@link #writeExternal(ObjectOutput)}.
+     * @param in flujo del que se lee la lista.
+     * @throws IOException si ocurre un problema al leer.
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        CodecBinario.Prefijos prefijos = new CodecBinario.Prefijos();
+
+        // No reservamos espacio con el numero de archivos leido, que no esta comprobado
+        int n = CodecBinario.leerLongitud(in);
+        for (int i = 0; i < n; i++) {
+            Archivo archivo = null;
+            if (in.readBoolean()) {
+                archivo = new Archivo((String) null);
+                archivo.leer(in, prefijos);
+            }
+            add(archivo);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.syncapp.model;
+
+import com.syncapp.utility.CodecBinario;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+
+/**
+ * Esta clase representa una pagina de la lista de archivos de un usuario en el servidor (ver
+ * {@link com.syncapp.interfaces.SyncApp#listaArchivos(TokenUsuario, String, int)}).
+ * <br>
+ * En vez de enviar un {@link Archivo} por cada archivo, con su carpeta de sincronizacion repetida en cada uno, la pagina
+ * guarda la carpeta una unica vez, y los datos de los archivos en arrays paralelos. Asi, la pagina ocupa poco mas que
+ * las rutas de sus archivos, y se serializa sin un objeto por archivo.
+ * <br>
+ * Cada pagina incluye un {@link #cursor}, que se debe pasar al pedir la pagina siguiente. Si es null, la pagina es la
+ * ultima.
+ */
+public class PaginaArchivos implements Serializable {
+
+    /**
+     * Ruta de la carpeta de sincronizacion, comun a todos los archivos de la pagina.
+     */
+    public transient String parentFolder;
+
+    /**
+     * Ruta de cada archivo, respecto a la carpeta de sincronizacion.
+     */
+    public transient String[] rutas;
+
+    /**
+     * Tamaño en bytes de cada archivo.
+     */
+    public transient long[] tamanos;
+
+    /**
+     * Fecha de ultima modificacion de cada archivo, en milisegundos.
+     */
+    public transient long[] modificados;
+
+    /**
+     * Cursor para pedir la pagina siguiente, o null si esta es la ultima pagina.
+     */
+    public transient String cursor;
+
+
+    /**
+     * Crea una pagina de archivos.
+     * @param parentFolder ruta de la carpeta de sincronizacion.
+     * @param rutas ruta relativa de cada archivo.
+     * @param tamanos tamaño de cada archivo.
+     * @param modificados fecha de modificacion de cada archivo.
+     * @param cursor cursor de la pagina siguiente, o null si es la ultima.
+     */
+    public PaginaArchivos(String parentFolder, String[] rutas, long[] tamanos, long[] modificados, String cursor) {
+        this.parentFolder = parentFolder;
+        this.rutas = rutas;
+        this.tamanos = tamanos;
+        this.modificados = modificados;
+        this.cursor = cursor;
+    }
+
+
+    /**
+     * Numero de archivos de la pagina.
+     * @return numero de archivos.
+     */
+    public int size() {
+        return rutas.length;
+    }
+
+
+    /**
+     * Convierte la pagina en una lista de {@link Archivo}, sin hash, igual que la que devuelve
+     * {@link com.syncapp.interfaces.SyncApp#listaArchivos(TokenUsuario)}.
+     * @return {@link ArrayList} de {@link Archivo}.
+     */
+    public ArrayList<Archivo> archivos() {
+        ArrayList<Archivo> lista = new ArrayList<>(rutas.length);
+        for (int i = 0; i < rutas.length; i++) {
+            Archivo a = new Archivo(rutas[i]);
+            a.parentFolder = parentFolder;
+            a.sizeInBytes = tamanos[i];
+            a.timeMilisLastModified = modificados[i];
+            lista.add(a);
+        }
+        return lista;
+    }
+
+
+
+    // Serializacion
+
+    /**
+     * Serializa la pagina con {@link CodecBinario}: las rutas comprimidas respecto a la ruta anterior, y los tamaños y
+     * fechas como varint.
+     * @param out flujo en el que se escribe la pagina.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        CodecBinario.escribirTexto(out, parentFolder);
+        CodecBinario.escribirTexto(out, cursor);
+        CodecBinario.escribirVarint(out, rutas.length);
+        CodecBinario.Prefijos prefijos = new CodecBinario.Prefijos();
+        for (int i = 0; i < rutas.length; i++) {
+            CodecBinario.escribirConPrefijo(out, prefijos, CodecBinario.Campo.RUTA_PAGINA, rutas[i]);
+            CodecBinario.escribirVarint(out, tamanos[i]);
+            CodecBinario.escribirZigzag(out, modificados[i]);
+        }
+    }
+
+    /**
+     * Deserializa la pagina escrita con {@link #writeObject(ObjectOutputStream)}.
+     * @param in flujo del que se lee la pagina.
+     * @throws IOException si ocurre un problema al leer.
+     * @throws ClassNotFoundException si no se reconoce la clase serializada.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        parentFolder = CodecBinario.leerTexto(in);
+        cursor = CodecBinario.leerTexto(in);
+
+        // El servidor nunca envia mas de ARCHIVOS_POR_PAGINA archivos; comprobamos el numero antes de reservar los arrays
+        int n = CodecBinario.leerLongitud(in);
+        if (n > VariablesGlobales.ARCHIVOS_POR_PAGINA) throw new IOException("demasiados archivos: " + n);
+        rutas = new String[n];
+        tamanos = new long[n];
+        modificados = new long[n];
+        CodecBinario.Prefijos prefijos = new CodecBinario.Prefijos();
+        for (int i = 0; i < n; i++) {
+            rutas[i] = CodecBinario.leerConPrefijo(in, prefijos, CodecBinario.Campo.RUTA_PAGINA);
+            tamanos[i] = CodecBinario.leerVarint(in);
+            modificados[i] = CodecBinario.leerZigzag(in);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.syncapp.model;
+
+import java.io.Serializable;
+
+
+/**
+ * Esta clase representa el permiso para transmitir los bytes de un archivo abierto por el canal de datos del servidor
+ * (ver {@link com.syncapp.interfaces.SyncApp#abrirTransferencia(TokenUsuario, Archivo, String)}).
+ * <br>
+ * El canal de datos es un socket TCP junto al registro RMI, por el que los bytes de los bloques viajan sin serializar.
+ * RMI sigue siendo el canal de control: el archivo se abre y se cierra por RMI, y al abrirlo el servidor entrega este
+ * ticket, que el cliente presenta en cada peticion al canal de datos. El ticket deja de ser valido al cerrar el archivo.
+ * <br>
+ * Cada peticion al canal de datos empieza con una cabecera de {@link #BYTES_CABECERA} bytes: la operacion (un byte,
+ * {@link #LEER}, {@link #ESCRIBIR} o {@link #DESCARGAR}), el ticket (long), la posicion del primer byte (long) y el
+ * numero de bytes (int).
+ * <ul>
+ *     <li>
+ *         {@link #LEER}: el servidor responde con el numero de bytes que envia (int, 0 si no quedan bytes por leer), y
+ *         a continuacion los bytes.
+ *     </li>
+ *     <li>
+ *         {@link #ESCRIBIR}: tras la cabecera, el cliente envia los bytes, y el servidor responde con el numero de
+ *         bytes escritos (int).
+ *     </li>
+ *     <li>
+ *         {@link #DESCARGAR}: el servidor responde con el numero de bytes desde la posicion hasta el final del archivo
+ *         (long), y a continuacion todos esos bytes. El numero de bytes de la cabecera no se usa.
+ *     </li>
+ * </ul>
+ * Si el servidor rechaza una peticion, responde {@link #RECHAZADO} (como long en {@link #DESCARGAR}) y cierra la
+ * conexion. Una misma conexion puede atender varias peticiones seguidas.
+ */
+public class TicketTransferencia implements Serializable {
+
+    /**
+     * Operacion de lectura de bytes del archivo.
+     */
+    public static final byte LEER = 1;
+
+    /**
+     * Operacion de escritura de bytes en el archivo.
+     */
+    public static final byte ESCRIBIR = 2;
+
+    /**
+     * Operacion de lectura del archivo completo, desde una posicion hasta el final, en una unica respuesta.
+     */
+    public static final byte DESCARGAR = 3;
+
+    /**
+     * Tamaño en bytes de la cabecera de cada peticion.
+     */
+    public static final int BYTES_CABECERA = 1 + 8 + 8 + 4;
+
+    /**
+     * Respuesta del servidor cuando rechaza una peticion.
+     */
+    public static final int RECHAZADO = -1;
+
+    /**
+     * Identificador del archivo abierto, el mismo que devuelve
+     * {@link com.syncapp.interfaces.SyncApp#abrirArchivo(TokenUsuario, Archivo, String)}.
+     */
+    public final int fileId;
+
+    /**
+     * Valor secreto que identifica el ticket en el canal de datos.
+     */
+    public final long ticket;
+
+    /**
+     * Puerto del canal de datos del servidor, o 0 si el servidor no tiene canal de datos, y los bloques se deben
+     * transmitir por RMI.
+     */
+    public final int puerto;
+
+    /**
+     * Indica si el archivo se ha abierto para escribir.
+     */
+    public final boolean escritura;
+
+    /**
+     * En una lectura, indica si el servidor ha decidido comprimir los bloques del archivo para la sesion, con una
+     * muestra del archivo. En ese caso el ticket no tiene canal de datos, ya que los bytes del canal no se comprimen, y
+     * los bloques se deben leer con
+     * {@link com.syncapp.interfaces.SyncApp#leerBloqueBytes(int, long, TokenUsuario)}.
+     */
+    public final boolean comprimir;
+
+
+    /**
+     * Crea un ticket.
+     * @param fileId identificador del archivo abierto.
+     * @param ticket valor secreto del ticket.
+     * @param puerto puerto del canal de datos, o 0 si no hay canal de datos.
+     * @param escritura true si el archivo se ha abierto para escribir.
+     * @param comprimir true si el servidor comprime los bloques que se leen del archivo.
+     */
+    public TicketTransferencia(int fileId, long ticket, int puerto, boolean escritura, boolean comprimir) {
+        this.fileId = fileId;
+        this.ticket = ticket;
+        this.puerto = puerto;
+        this.escritura = escritura;
+        this.comprimir = comprimir;
+    }
+
+
+    /**
+     * Indica si los bytes del archivo se pueden transmitir por el canal de datos.
+     * @return true si el servidor tiene canal de datos.
+     */
+    public boolean tieneCanalDatos() {
+        return puerto > 0;
+    }
+}
@@ -1,6 +1,10 @@
 package com.syncapp.model;
 
+import com.syncapp.utility.CodecBinario;
 import com.syncapp.utility.VariablesGlobales;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 
@@ -16,13 +20,13 @@ public class TokenUsuario implements Serializable{
     /**
      * Almacena el nombre de usuario con el que se quiere trabajar.
      */
-    public final String name;
+    public transient String name; // No se debe modificar; no es final para poder asignarlo en readObject
 
     /**
      * Contiene el identificador de sesion que el servidor le proporcione. Al principio esta vacio, hasta que se inicie
      * sesion.
      */
-    public String session_id;
+    public transient String session_id;
 
 
     /**
@@ -33,6 +37,30 @@ public class TokenUsuario implements Serializable{
         this.name = new String(name);
     }
 
+    /**
+     * Serializa el token con {@link CodecBinario}. El token viaja en cada invocacion al servidor, asi que se escribe
+     * unicamente el nombre y la sesion, sin la cabecera de cada cadena.
+     * @param out flujo en el que se escribe el token.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        CodecBinario.escribirTexto(out, name);
+        CodecBinario.escribirTexto(out, session_id);
+    }
+
+    /**
+     * Deserializa un token escrito con {@link #writeObject(ObjectOutputStream)}.
+     * @param in flujo del que se lee el token.
+     * @throws IOException si ocurre un problema al leer.
+     * @throws ClassNotFoundException si no se reconoce la clase serializada.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        name = CodecBinario.leerTexto(in);
+        session_id = CodecBinario.leerTexto(in);
+    }
+
     /**
      * Nos permite tener una representacion visual del token de usuario.
      * @return {@link String} cadena de texto representativa del token.
@@ -0,0 +1,455 @@
+package com.syncapp.server;
+
+import com.syncapp.utility.Utilidades;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Almacen de contenido direccionado por hash del servidor.
+ * <br>
+ * Cada archivo se divide en fragmentos de {@link VariablesGlobales#BYTES_FRAGMENTO} bytes, identificados por su hash
+ * (ver {@link Utilidades#calcularManifiesto(Path)}), calculado con el algoritmo
+ * {@link com.syncapp.utility.AlgoritmoHash#CONTENIDO}. El almacen guarda, para cada hash, una {@link Ubicacion} donde se
+ * encuentra ese contenido: un fragmento de alguno de los archivos de los usuarios, o un archivo de fragmento dentro de
+ * la carpeta del almacen. Asi, un cliente puede preguntar que fragmentos tiene ya el servidor, enviar unicamente los que
+ * faltan, y el servidor compone el archivo a partir de su manifiesto, copiando los fragmentos que ya tenia.
+ * <br>
+ * El contenido de los archivos de los usuarios no se duplica dentro del almacen: unicamente se guardan como archivos de
+ * fragmento los fragmentos subidos que todavia no forman parte de ningun archivo, y se borran cuando se compone el
+ * archivo al que pertenecen.
+ * <br>
+ * Las ubicaciones se guardan en un registro de texto, al que se añade una linea por cada ubicacion nueva, de forma que
+ * el almacen se mantiene entre reinicios del servidor. Como los archivos de los usuarios se pueden modificar, una
+ * ubicacion puede quedar obsoleta; por ello, antes de usar un fragmento se comprueba su hash.
+ * <br>
+ * Los fragmentos son propios de cada usuario: un usuario unicamente puede consultar y reutilizar los fragmentos de sus
+ * propios archivos, y los que ha subido el mismo. Si el almacen fuera comun, conocer el hash de un fragmento bastaria
+ * para componerlo en la carpeta propia y descargarlo, sin haber tenido nunca su contenido, y
+ * {@link #contiene(String, ArrayList)} desvelaria que otros usuarios guardan un contenido concreto.
+ */
+public class AlmacenFragmentos {
+
+    /**
+     * Ubicacion de un fragmento de contenido.
+     */
+    private static class Ubicacion {
+
+        /**
+         * {@link String Ruta} absoluta del archivo que contiene el fragmento.
+         */
+        final String ruta;
+
+        /**
+         * Posicion del primer byte del fragmento dentro del archivo.
+         */
+        final long posicion;
+
+        /**
+         * Numero de bytes del fragmento.
+         */
+        final int longitud;
+
+        Ubicacion(String ruta, long posicion, int longitud) {
+            this.ruta = ruta;
+            this.posicion = posicion;
+            this.longitud = longitud;
+        }
+    }
+
+
+
+
+    /**
+     * Carpeta del almacen, donde se guardan el registro y, en una carpeta por usuario, los fragmentos subidos.
+     */
+    private final Path directorio;
+
+    /**
+     * Carpeta que contiene las carpetas de los usuarios.
+     */
+    private final Path base;
+
+    /**
+     * Registro de ubicaciones. Cada linea tiene el formato {@code hash \t posicion \t longitud \t ruta}, y si un hash
+     * aparece varias veces, la ultima linea es la valida.
+     */
+    private final Path registro;
+
+    /**
+     * Se almacena la pareja {@link String usuario/hash}/{@link Ubicacion} (ver {@link #clave(String, String)}).
+     */
+    private final HashMap<String, Ubicacion> ubicaciones;
+
+    /**
+     * Hilo que indexa en segundo plano los archivos escritos, para no retrasar a la sesion que los cierra.
+     */
+    private final ExecutorService indexador;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea el almacen sobre la carpeta indicada, cargando el registro de ubicaciones si existe. El registro se reescribe
+     * sin las lineas repetidas, para que no crezca indefinidamente.
+     * <br>
+     * Si el registro no existia, se indexan en segundo plano los archivos indicados, que ya estaban en el servidor.
+     * @param directorio {@link Path carpeta} del almacen. No debe estar dentro de la carpeta base.
+     * @param base {@link Path carpeta} que contiene las carpetas de los usuarios.
+     * @param existentes {@link ArrayList} con las rutas absolutas de los archivos que ya existen en el servidor.
+     */
+    public AlmacenFragmentos(Path directorio, Path base, ArrayList<Path> existentes) {
+        this.directorio = directorio.toAbsolutePath().normalize();
+        this.base = base.toAbsolutePath().normalize();
+        this.registro = this.directorio.resolve("ubicaciones.log");
+        this.ubicaciones = new HashMap<>();
+        this.indexador = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "indexador-fragmentos");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            Files.createDirectories(directorio);
+
+            if (Files.exists(registro)) {
+                cargarRegistro();
+                compactarRegistro();
+            } else {
+                existentes.forEach(this::indexarArchivo);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+
+
+    // Consultas
+
+    /**
+     * Comprueba si el almacen tiene el fragmento indicado entre los del usuario.
+     * @param usuario {@link String nombre} del usuario.
+     * @param hash {@link String hash} del fragmento.
+     * @return true si se conoce una ubicacion para el fragmento.
+     */
+    public synchronized boolean contiene(String usuario, String hash) {
+        return ubicaciones.containsKey(clave(usuario, hash));
+    }
+
+    /**
+     * Analogo a {@link #contiene(String, String)}, pero para varios fragmentos.
+     * @param usuario {@link String nombre} del usuario.
+     * @param hashes {@link ArrayList} de hashes.
+     * @return array con una posicion por hash, a true si el almacen tiene el fragmento.
+     */
+    public synchronized boolean[] contiene(String usuario, ArrayList<String> hashes) {
+        boolean[] res = new boolean[hashes.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = ubicaciones.containsKey(clave(usuario, hashes.get(i)));
+        }
+        return res;
+    }
+
+
+
+
+    // Escritura de fragmentos
+
+    /**
+     * Guarda un fragmento subido por un cliente como archivo de fragmento dentro de la carpeta del usuario en el
+     * almacen. Unicamente se guarda si su contenido corresponde al hash indicado y tiene como mucho
+     * {@link VariablesGlobales#BYTES_FRAGMENTO} bytes.
+     * @param usuario {@link String nombre} del usuario que sube el fragmento.
+     * @param hash {@link String hash} del fragmento.
+     * @param datos contenido del fragmento.
+     * @return true si el fragmento esta en el almacen (ya estaba, o se ha guardado).
+     * @throws IOException si ocurre un problema al escribir el fragmento.
+     */
+    public boolean guardarFragmento(String usuario, String hash, byte[] datos) throws IOException {
+        if (hash == null || datos == null || datos.length > VariablesGlobales.BYTES_FRAGMENTO) return false;
+        if (!hash.equals(Utilidades.hashFragmento(datos, 0, datos.length))) return false;
+        if (contiene(usuario, hash)) return true;
+
+        // Escribimos en un temporal y lo movemos, para que nunca haya un fragmento a medio escribir con su nombre final
+        Path destino = rutaFragmento(usuario, hash);
+        Files.createDirectories(destino.getParent());
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp" + Thread.currentThread().getId());
+        Files.write(temporal, datos);
+        Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        registrar(clave(usuario, hash), new Ubicacion(destino.toString(), 0, datos.length));
+        return true;
+    }
+
+
+    /**
+     * Devuelve el numero maximo de fragmentos del manifiesto de un archivo del tamaño indicado.
+     * @param size tamaño del archivo, en bytes.
+     * @return numero de fragmentos de {@link VariablesGlobales#BYTES_FRAGMENTO} bytes que ocupa el archivo.
+     */
+    public static long maxFragmentos(long size) {
+        return (size + VariablesGlobales.BYTES_FRAGMENTO - 1) / VariablesGlobales.BYTES_FRAGMENTO;
+    }
+
+
+    /**
+     * Escribe en el destino indicado el contenido descrito por un manifiesto, copiando cada fragmento desde su
+     * ubicacion. Se comprueba el hash de cada fragmento copiado; si alguno no esta entre los fragmentos del usuario o su
+     * ubicacion ha quedado obsoleta, se descarta su ubicacion y no se compone el archivo.
+     * <br>
+     * El manifiesto lo envia el cliente, y puede repetir fragmentos, asi que se limita a lo que ocupa un archivo del
+     * tamaño esperado ({@link #maxFragmentos(long)}), y se deja de escribir en cuanto se supera ese tamaño.
+     * <br>
+     * Una vez compuesto, el archivo debe moverse a su ruta final e indexarse con
+     * {@link #registrarComposicion(String, ArrayList, Path)}.
+     * @param usuario {@link String nombre} del usuario que compone el archivo.
+     * @param manifiesto {@link ArrayList} con el hash de cada fragmento, en orden.
+     * @param destino {@link Path ruta} del archivo que se quiere escribir. Se sobreescribe si existe.
+     * @param size tamaño esperado del archivo.
+     * @return numero de bytes escritos, o -1 si falta algun fragmento o el contenido no tiene el tamaño esperado.
+     * @throws IOException si ocurre un problema al escribir el destino.
+     */
+    public long componer(String usuario, ArrayList<String> manifiesto, Path destino, long size) throws IOException {
+        if (size < 0 || manifiesto.size() > maxFragmentos(size)) return -1;
+
+        byte[] fragmento = new byte[VariablesGlobales.BYTES_FRAGMENTO];
+        long escritos = 0;
+
+        try (FileChannel salida = FileChannel.open(destino, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (String hash : manifiesto) {
+                int leidos = leerFragmento(usuario, hash, fragmento);
+                if (leidos < 0 || escritos + leidos > size) return -1;
+
+                ByteBuffer origen = ByteBuffer.wrap(fragmento, 0, leidos);
+                while (origen.hasRemaining()) {
+                    escritos += salida.write(origen);
+                }
+            }
+        }
+
+        return escritos;
+    }
+
+
+    /**
+     * Registra las ubicaciones de los fragmentos de un archivo compuesto con
+     * {@link #componer(String, ArrayList, Path, long)}, ya en su ruta final, y borra los archivos de fragmento del
+     * usuario que ya no son necesarios porque su contenido forma parte del archivo.
+     * @param usuario {@link String nombre} del usuario que ha compuesto el archivo.
+     * @param manifiesto {@link ArrayList} con el hash de cada fragmento, en orden.
+     * @param archivo {@link Path ruta} final del archivo compuesto.
+     * @return numero de bytes de los archivos de fragmento borrados.
+     */
+    public long registrarComposicion(String usuario, ArrayList<String> manifiesto, Path archivo) {
+        long posicion = 0;
+        long borrados = 0;
+
+        try {
+            long size = Files.size(archivo);
+
+            for (String hash : manifiesto) {
+                int longitud = (int) Math.min(VariablesGlobales.BYTES_FRAGMENTO, size - posicion);
+                registrar(clave(usuario, hash), new Ubicacion(archivo.toString(), posicion, longitud));
+                if (Files.deleteIfExists(rutaFragmento(usuario, hash))) borrados += longitud;
+                posicion += longitud;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return borrados;
+    }
+
+
+    /**
+     * Indexa en segundo plano los fragmentos de un archivo del servidor, por ejemplo al terminar de escribirlo, para que
+     * su contenido se pueda reutilizar en futuras cargas. Unicamente se debe invocar con la version confirmada del
+     * archivo; si cuando se indexa ya no existe (se ha borrado o sustituido), no se hace nada.
+     * @param archivo {@link Path ruta} absoluta del archivo.
+     */
+    public void indexarArchivo(Path archivo) {
+        String usuario = propietario(archivo);
+        if (usuario == null) return;
+
+        indexador.execute(() -> {
+            try {
+                ArrayList<String> manifiesto = Utilidades.calcularManifiesto(archivo);
+                long size = Files.size(archivo);
+                long posicion = 0;
+
+                for (String hash : manifiesto) {
+                    int longitud = (int) Math.min(VariablesGlobales.BYTES_FRAGMENTO, size - posicion);
+                    registrar(clave(usuario, hash), new Ubicacion(archivo.toString(), posicion, longitud));
+                    posicion += longitud;
+                }
+            } catch (NoSuchFileException e) {
+                // El archivo se ha borrado antes de indexarlo, si se vuelve a escribir se indexara entonces
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+
+
+
+    // Metodos privados
+
+    /**
+     * Lee un fragmento del usuario desde su ubicacion y comprueba su hash. Si no coincide, o no se puede leer, se
+     * descarta la ubicacion.
+     * @param usuario {@link String nombre} del usuario.
+     * @param hash {@link String hash} del fragmento.
+     * @param fragmento buffer de {@link VariablesGlobales#BYTES_FRAGMENTO} bytes donde se lee el fragmento.
+     * @return numero de bytes del fragmento, o -1 si no esta disponible.
+     */
+    private int leerFragmento(String usuario, String hash, byte[] fragmento) {
+        String clave = clave(usuario, hash);
+        Ubicacion u;
+        synchronized (this) {
+            u = ubicaciones.get(clave);
+        }
+        if (u == null) return -1;
+
+        try (FileChannel fc = FileChannel.open(Paths.get(u.ruta), StandardOpenOption.READ)) {
+            ByteBuffer destino = ByteBuffer.wrap(fragmento, 0, u.longitud);
+            while (destino.hasRemaining()) {
+                if (fc.read(destino, u.posicion + destino.position()) < 0) break;
+            }
+
+            if (destino.position() == u.longitud && hash.equals(Utilidades.hashFragmento(fragmento, 0, u.longitud))) {
+                return u.longitud;
+            }
+        } catch (IOException ignored) {
+            // Se descarta la ubicacion a continuacion
+        }
+
+        synchronized (this) {
+            ubicaciones.remove(clave, u);
+        }
+        return -1;
+    }
+
+    /**
+     * Guarda la ubicacion de un fragmento, en memoria y en el registro. En el registro unicamente se escribe el hash,
+     * ya que el usuario se obtiene de la ruta al cargarlo.
+     * @param clave {@link #clave(String, String) clave} del fragmento.
+     * @param u {@link Ubicacion} del fragmento.
+     */
+    private synchronized void registrar(String clave, Ubicacion u) {
+        ubicaciones.put(clave, u);
+
+        try (BufferedWriter bw = Files.newBufferedWriter(registro, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            bw.write(hash(clave) + "\t" + u.posicion + "\t" + u.longitud + "\t" + u.ruta);
+            bw.newLine();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Carga el registro de ubicaciones. Las lineas mal formadas, y las de ubicaciones que no pertenecen a ningun usuario
+     * (fragmentos subidos antes de que el almacen separase los usuarios), se ignoran.
+     * @throws IOException si ocurre un problema al leer el registro.
+     */
+    private synchronized void cargarRegistro() throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(registro, StandardCharsets.UTF_8)) {
+            String linea;
+            while ((linea = br.readLine()) != null) {
+                String[] campos = linea.split("\t", 4);
+                if (campos.length < 4) continue;
+
+                try {
+                    String usuario = propietario(Paths.get(campos[3]));
+                    if (usuario == null) continue;
+
+                    ubicaciones.put(clave(usuario, campos[0]),
+                            new Ubicacion(campos[3], Long.parseLong(campos[1]), Integer.parseInt(campos[2])));
+                } catch (NumberFormatException | InvalidPathException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Reescribe el registro con una unica linea por fragmento.
+     * @throws IOException si ocurre un problema al escribir el registro.
+     */
+    private synchronized void compactarRegistro() throws IOException {
+        Path temporal = directorio.resolve("ubicaciones.log.tmp");
+
+        try (BufferedWriter bw = Files.newBufferedWriter(temporal, StandardCharsets.UTF_8)) {
+            for (HashMap.Entry<String, Ubicacion> e : ubicaciones.entrySet()) {
+                Ubicacion u = e.getValue();
+                bw.write(hash(e.getKey()) + "\t" + u.posicion + "\t" + u.longitud + "\t" + u.ruta);
+                bw.newLine();
+            }
+        }
+
+        Files.move(temporal, registro, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Devuelve la ruta del archivo de fragmento de un hash subido por un usuario.
+     * @param usuario {@link String nombre} del usuario.
+     * @param hash {@link String hash} del fragmento.
+     * @return {@link Path ruta} del archivo de fragmento dentro de la carpeta del usuario en el almacen.
+     */
+    private Path rutaFragmento(String usuario, String hash) {
+        // El separador del identificador del algoritmo no es valido en los nombres de archivo de algunos sistemas
+        return directorio.resolve(usuario).resolve(hash.replace(':', '_'));
+    }
+
+    /**
+     * Devuelve el usuario al que pertenece una ubicacion: el de la carpeta de usuario que contiene el archivo, o el de
+     * la carpeta del almacen en la que se guardo el fragmento subido.
+     * @param ruta {@link Path ruta} del archivo.
+     * @return {@link String nombre} del usuario, o null si la ruta no pertenece a ningun usuario.
+     */
+    private String propietario(Path ruta) {
+        Path absoluta = ruta.toAbsolutePath().normalize();
+        Path raiz = absoluta.startsWith(base) ? base : absoluta.startsWith(directorio) ? directorio : null;
+        if (raiz == null) return null;
+
+        Path relativa = raiz.relativize(absoluta);
+        return (relativa.getNameCount() >= 2) ? relativa.getName(0).toString() : null;
+    }
+
+    /**
+     * Devuelve la clave con la que se guarda un fragmento de un usuario. Ni los nombres de usuario ni los hashes pueden
+     * contener '/'.
+     */
+    private static String clave(String usuario, String hash) {
+        return usuario + "/" + hash;
+    }
+
+    /**
+     * Devuelve el hash de una {@link #clave(String, String) clave}.
+     */
+    private static String hash(String clave) {
+        return clave.substring(clave.indexOf('/') + 1);
+    }
+
+}
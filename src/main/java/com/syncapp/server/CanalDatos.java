@@ -0,0 +1,280 @@
+package com.syncapp.server;
+
+import com.syncapp.model.TicketTransferencia;
+import com.syncapp.utility.LectorArchivos;
+import com.syncapp.utility.VariablesGlobales;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Canal de datos del servidor: un socket TCP junto al registro RMI, por el que se transmiten los bytes de los archivos
+ * abiertos sin pasar por la serializacion de RMI.
+ * <br>
+ * Por RMI, cada bloque se copia del archivo a un array, se serializa, y se copia de nuevo al socket. En el canal de
+ * datos, el servidor envia los bytes directamente del {@link java.nio.channels.FileChannel} del archivo al socket con
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo}, y los
+ * recibe del socket al archivo con
+ * {@link java.nio.channels.FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long) transferFrom}, de
+ * forma que el sistema operativo puede copiarlos sin pasar por la memoria de Java.
+ * <br>
+ * Para las descargas, el canal ademas permite enviar el archivo completo en una unica respuesta
+ * ({@link TicketTransferencia#DESCARGAR}): el archivo se envia al socket con un unico bucle de
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo}
+ * (sendfile), sin bloques, sin buffers, y sin una peticion por bloque.
+ * <br>
+ * El canal no abre ni cierra archivos: usa los {@link LectorArchivos} que {@link FileHandler} abrio al abrir el archivo
+ * por RMI, y unicamente atiende peticiones con un {@link TicketTransferencia ticket} emitido con
+ * {@link #emitirTicket(int, boolean)}. El protocolo de las peticiones se describe en {@link TicketTransferencia}.
+ */
+public class CanalDatos {
+
+    /**
+     * Socket en el que se aceptan las conexiones.
+     */
+    private final ServerSocketChannel servidor;
+
+    /**
+     * Registro de archivos del servidor, del que se obtienen los lectores de los archivos abiertos.
+     */
+    private final FileHandler fileHandler;
+
+    /**
+     * Tickets emitidos, por su valor secreto.
+     */
+    private final ConcurrentHashMap<Long, TicketTransferencia> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * Generador de los valores secretos de los tickets.
+     */
+    private final SecureRandom aleatorio = new SecureRandom();
+
+    /**
+     * Hilos que atienden las conexiones, uno por conexion, como maximo {@link VariablesGlobales#MAX_CONEXIONES_DATOS}.
+     */
+    private final ThreadPoolExecutor conexiones;
+
+    private final Logger logger;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea el canal de datos, abriendo el socket en el puerto indicado. Las conexiones no se aceptan hasta invocar
+     * {@link #iniciar()}.
+     * @param puerto puerto en el que se escucha.
+     * @param fileHandler registro de archivos del servidor.
+     * @param logger {@link Logger} del servidor.
+     * @throws IOException si no se puede abrir el socket.
+     */
+    public CanalDatos(int puerto, FileHandler fileHandler, Logger logger) throws IOException {
+        this.fileHandler = fileHandler;
+        this.logger = logger;
+
+        servidor = ServerSocketChannel.open();
+        servidor.bind(new InetSocketAddress(puerto));
+
+        // Sin cola: si todos los hilos estan ocupados, la conexion se rechaza en lugar de esperar
+        conexiones = new ThreadPoolExecutor(0, VariablesGlobales.MAX_CONEXIONES_DATOS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "conexion-datos");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    /**
+     * Empieza a aceptar conexiones en un hilo aparte. Si ya se estan atendiendo
+     * {@link VariablesGlobales#MAX_CONEXIONES_DATOS} conexiones, las nuevas se cierran sin atenderlas, y el cliente
+     * reintenta el bloque o lo transmite por RMI.
+     */
+    public void iniciar() {
+        Thread aceptador = new Thread(() -> {
+            while (servidor.isOpen()) {
+                try {
+                    SocketChannel canal = servidor.accept();
+                    try {
+                        conexiones.execute(() -> atender(canal));
+                    } catch (RejectedExecutionException e) {
+                        logger.warning("conexion de datos rechazada desde " + canal.getRemoteAddress()
+                                + ": demasiadas conexiones");
+                        canal.close();
+                    }
+                } catch (IOException e) {
+                    if (servidor.isOpen()) logger.severe("error al aceptar una conexion de datos: " + e.getMessage());
+                }
+            }
+        }, "canal-datos");
+        aceptador.setDaemon(true);
+        aceptador.start();
+
+        logger.info("canal de datos escuchando en el puerto " + getPuerto());
+    }
+
+
+
+
+    // Tickets
+
+    /**
+     * Emite un ticket para transmitir los bytes de un archivo abierto.
+     * @param fileId identificador del archivo abierto.
+     * @param escritura true si el archivo se ha abierto para escribir.
+     * @return {@link TicketTransferencia} emitido.
+     */
+    public TicketTransferencia emitirTicket(int fileId, boolean escritura) {
+        TicketTransferencia ticket;
+        do {
+            ticket = new TicketTransferencia(fileId, aleatorio.nextLong(), getPuerto(), escritura, false);
+        } while (ticket.ticket == 0 || tickets.putIfAbsent(ticket.ticket, ticket) != null);
+
+        return ticket;
+    }
+
+    /**
+     * Invalida los tickets de un archivo que ya no esta abierto. Se debe invocar despues de cerrar el archivo. Si el
+     * archivo sigue abierto para lectura por otras sesiones, sus tickets se mantienen.
+     * @param fileId identificador del archivo.
+     */
+    public void revocar(int fileId) {
+        boolean leyendo = fileHandler.getReader(fileId) != null;
+        boolean escribiendo = fileHandler.getWriter(fileId) != null;
+
+        tickets.values().removeIf(t -> t.fileId == fileId && !(t.escritura ? escribiendo : leyendo));
+    }
+
+    /**
+     * Devuelve el puerto en el que escucha el canal.
+     * @return puerto del canal de datos.
+     */
+    public int getPuerto() {
+        return servidor.socket().getLocalPort();
+    }
+
+
+
+
+    // Conexiones
+
+    /**
+     * Atiende las peticiones de una conexion hasta que el cliente la cierra, envia una peticion no valida, o pasa
+     * {@link VariablesGlobales#ESPERA_CABECERA_DATOS} ms sin enviar la siguiente.
+     * <br>
+     * Las lecturas bloqueantes de un {@link SocketChannel} no tienen limite de tiempo, por lo que las cabeceras se leen
+     * a traves del {@link java.net.Socket#getInputStream() flujo} del socket, que respeta
+     * {@link java.net.Socket#setSoTimeout(int)}. El flujo no almacena bytes por adelantado, asi que los datos de la
+     * peticion se siguen leyendo directamente del canal.
+     * @param canal conexion con el cliente.
+     */
+    private void atender(SocketChannel canal) {
+        ByteBuffer cabecera = ByteBuffer.allocate(TicketTransferencia.BYTES_CABECERA);
+        ByteBuffer respuesta = ByteBuffer.allocate(8);
+
+        try (canal) {
+            canal.socket().setSoTimeout(VariablesGlobales.ESPERA_CABECERA_DATOS);
+            ReadableByteChannel entrada = Channels.newChannel(canal.socket().getInputStream());
+
+            while (leerCabecera(entrada, cabecera)) {
+                byte operacion = cabecera.get();
+                TicketTransferencia ticket = tickets.get(cabecera.getLong());
+                long posicion = cabecera.getLong();
+                int longitud = cabecera.getInt();
+
+                // Comprobamos que el ticket sea valido para la operacion, y que el archivo siga abierto
+                boolean escribir = operacion == TicketTransferencia.ESCRIBIR;
+                boolean descargar = operacion == TicketTransferencia.DESCARGAR;
+                LectorArchivos lector = null;
+                if (ticket != null && ticket.escritura == escribir) {
+                    lector = escribir ? fileHandler.getWriter(ticket.fileId) : fileHandler.getReader(ticket.fileId);
+                }
+
+                if (lector == null || posicion < 0 || longitud < 0 || longitud > VariablesGlobales.MAX_BYTES_IN_BLOCK
+                        || !(escribir || descargar || operacion == TicketTransferencia.LEER)) {
+                    logger.warning("peticion de datos rechazada desde " + canal.getRemoteAddress());
+                    if (descargar) escribirLargo(canal, respuesta, TicketTransferencia.RECHAZADO);
+                    else escribirEntero(canal, respuesta, TicketTransferencia.RECHAZADO);
+                    return;
+                }
+
+                if (descargar) {
+
+                    // Enviamos el resto del archivo de una vez, del archivo al socket
+                    long disponibles = Math.max(0, lector.tamano() - posicion);
+                    escribirLargo(canal, respuesta, disponibles);
+                    if (lector.transferirA(posicion, disponibles, canal) < disponibles) {
+                        throw new EOFException("el archivo " + ticket.fileId + " es mas corto de lo esperado");
+                    }
+                    logger.info("enviado el archivo " + ticket.fileId + " desde " + posicion + " (" + disponibles + " bytes)");
+
+                } else if (escribir) {
+
+                    // Los bytes se pasan del socket al archivo, y confirmamos cuantos se han escrito
+                    lector.recibirDe(canal, posicion, longitud);
+                    escribirEntero(canal, respuesta, longitud);
+
+                } else {
+
+                    // Indicamos cuantos bytes quedan a partir de la posicion, y los pasamos del archivo al socket
+                    int disponibles = (int) Math.max(0, Math.min(longitud, lector.tamano() - posicion));
+                    escribirEntero(canal, respuesta, disponibles);
+                    if (lector.transferirA(posicion, disponibles, canal) < disponibles) {
+                        throw new EOFException("el archivo " + ticket.fileId + " es mas corto de lo esperado");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("conexion de datos cerrada: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Lee la cabecera de una peticion, y la deja preparada para leer sus campos.
+     * @param canal conexion con el cliente.
+     * @param cabecera buffer de la cabecera.
+     * @return true si se ha leido la cabecera, false si el cliente ha cerrado la conexion entre dos peticiones.
+     * @throws IOException si la conexion se cierra a mitad de la cabecera, se agota la espera, o hay un problema al
+     * leer.
+     */
+    private static boolean leerCabecera(ReadableByteChannel canal, ByteBuffer cabecera) throws IOException {
+        cabecera.clear();
+        while (cabecera.hasRemaining()) {
+            if (canal.read(cabecera) < 0) {
+                if (cabecera.position() == 0) return false;
+                throw new EOFException("cabecera incompleta");
+            }
+        }
+        cabecera.flip();
+        return true;
+    }
+
+    private static void escribirEntero(SocketChannel canal, ByteBuffer respuesta, int valor) throws IOException {
+        respuesta.clear();
+        respuesta.putInt(valor).flip();
+        while (respuesta.hasRemaining()) canal.write(respuesta);
+    }
+
+    private static void escribirLargo(SocketChannel canal, ByteBuffer respuesta, long valor) throws IOException {
+        respuesta.clear();
+        respuesta.putLong(valor).flip();
+        while (respuesta.hasRemaining()) canal.write(respuesta);
+    }
+
+}
@@ -1,15 +1,16 @@
 package com.syncapp.server;
 
-import com.syncapp.model.Archivo;
 import com.syncapp.utility.LectorArchivos;
-import com.syncapp.utility.Utilidades;
+import com.syncapp.utility.MapaEnteros;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -18,6 +19,13 @@ import java.util.HashMap;
  * <br>
  * Ademas se encarga de comprobar sobre la existencia de archivos y archivos que estan siendo escritos (para que no
  * colapsen), lo cual ayuda a obtener un nivel extra de abstraccion a la hora de implementar la gestion de archivos en el servidor.
+ * <br>
+ * Todos los metodos se invocan de forma concurrente desde los hilos RMI y del canal de datos. Los registros por
+ * identificador de archivo son {@link MapaEnteros}, y el de rutas un {@link ConcurrentHashMap}, por lo que las consultas
+ * (que se hacen una vez por bloque) no se bloquean, y los identificadores se asignan con un {@link AtomicInteger}. Las operaciones que cambian el estado de un archivo
+ * (abrirlo, cerrarlo, reservarlo) deben comprobar y modificar varios registros a la vez, asi que se hacen bajo un
+ * cerrojo de la ruta del archivo: las rutas se reparten entre {@link #CERROJOS} cerrojos, de forma que las operaciones
+ * sobre archivos distintos casi nunca se esperan entre si.
  */
 public class FileHandler {
 
@@ -29,33 +37,68 @@ public class FileHandler {
     // Registros
 
     /**
-     * Se almacena la pareja {@link String fileId}/{@link String ruta}. Esto nos permite obtener la ruta de un archivo
+     * Se almacena la pareja {@link Integer fileId}/{@link String ruta}. Esto nos permite obtener la ruta de un archivo
      * a partir de su identificador unico.
      */
-    private final HashMap< String, String> pathFromFileID;
+    private final MapaEnteros<String> pathFromFileID;
 
     /**
-     * Se almacena la pareja {@link String ruta}/{@link String fileId}. Esto nos permite obtener un fileId a partir de
+     * Se almacena la pareja {@link String ruta}/{@link Integer fileId}. Esto nos permite obtener un fileId a partir de
      * una ruta.
      */
-    private final HashMap< String, String> fileIdFromPath;
+    private final ConcurrentHashMap< String, Integer> fileIdFromPath;
 
     /**
      * Almacena la {@link String ruta} de los archivo que estan siendo escritos. Esto es especialmente util cuando varias
      * sesiones intentan escribir un archivo de forma simultanea, lo cual esta prohibido dentro de nuestro servicio.
      */
-    private final ArrayList<String> openedFiles;
+    private final Set<String> openedFiles;
 
     /**
-     * Almacen de {@link LectorArchivos lectores de archivos}, almacena la pareja {@link String ruta}/{@link LectorArchivos},
+     * Almacen de {@link LectorArchivos lectores de archivos}, almacena la pareja {@link Integer fileId}/{@link LectorArchivos},
      * para cuando un cliente quiere escribir un bloque de datos, se pueda obtener facilmente el lector.
      */
-    private final HashMap< String, LectorArchivos> openedFilesWriter;
+    private final MapaEnteros<LectorArchivos> openedFilesWriter;
 
     /**
-     * Variable global, que se usa como contador de archivos, para asignar una id unica a cada archivo.
+     * Almacen de {@link LectorArchivos lectores de archivos} abiertos para lectura, almacena la pareja
+     * {@link Integer fileId}/{@link LectorArchivos}. Todas las sesiones que leen un mismo archivo comparten el mismo lector
+     * (y por tanto el mismo {@link java.nio.channels.FileChannel}), ya que las lecturas se hacen por posicion.
      */
-    private static int globalFileId;
+    private final MapaEnteros<LectorArchivos> openedFilesReader;
+
+    /**
+     * Almacena la pareja {@link Integer fileId}/{@link Integer numero de sesiones} que tienen abierto el archivo para
+     * lectura. Cuando llega a 0, se cierra el lector del archivo.
+     */
+    private final MapaEnteros<Integer> openedFilesReaderCount;
+
+    /**
+     * {@link AlmacenFragmentos Almacen de contenido} de los archivos del servidor, que permite reutilizar fragmentos de
+     * archivos ya existentes al cargar un archivo nuevo.
+     */
+    private final AlmacenFragmentos almacen;
+
+    /**
+     * {@link IndiceArchivos Indice} de los archivos de los usuarios, que se actualiza cada vez que se termina de escribir
+     * un archivo.
+     */
+    private final IndiceArchivos indice;
+
+    /**
+     * Contador de archivos, para asignar una id unica a cada archivo.
+     */
+    private final AtomicInteger globalFileId;
+
+    /**
+     * Numero de cerrojos entre los que se reparten las rutas de los archivos.
+     */
+    private static final int CERROJOS = 64;
+
+    /**
+     * Cerrojos de las rutas. Una ruta usa siempre el mismo cerrojo ({@link #cerrojo(String)}).
+     */
+    private final Object[] cerrojos;
 
 
 
@@ -85,30 +128,34 @@ public class FileHandler {
      * Constructor de FileHander. FileHandler se debe crear a partir de una ruta de trabajo, pues cuando abrimos un
      * archivo, estamos usando una ruta relativa a la ruta de trabajo.
      * <br>
-     * En el constructor iniciaremos los registros indicados anteriormente, y recorreremos la ruta de trabajo indicada
-     * para realizar un primer barrido de los archivos que existen, y asignarels un identificador unico.
+     * En el constructor iniciaremos los registros indicados anteriormente, y obtendremos del {@link IndiceArchivos} los
+     * archivos que existen en la ruta de trabajo, para asignarles un identificador unico.
      * @param workingPath ruta de trabajo del servidor.
      */
     public FileHandler(Path workingPath) {
-        pathFromFileID = new HashMap<>();
-        fileIdFromPath = new HashMap<>();
-        globalFileId = 0;
+        pathFromFileID = new MapaEnteros<>();
+        fileIdFromPath = new ConcurrentHashMap<>();
+        globalFileId = new AtomicInteger(0);
 
-        openedFiles = new ArrayList<>();
-        openedFilesWriter = new HashMap<>();
+        openedFiles = ConcurrentHashMap.newKeySet();
+        openedFilesWriter = new MapaEnteros<>();
+        openedFilesReader = new MapaEnteros<>();
+        openedFilesReaderCount = new MapaEnteros<>();
 
+        cerrojos = new Object[CERROJOS];
+        for (int i = 0; i < CERROJOS; i++) cerrojos[i] = new Object();
 
-        ArrayList<Archivo> fileList = Utilidades.listFiles(workingPath);
-        if(fileList == null) {return;}
 
-        // Recorremos la ruta de trabajo para saber que archivos ya existen.
-        fileList.forEach(c->{
-            Path fullPath = Paths.get(workingPath.toString() , c.childFolder);
-            int fileId = globalFileId++;
+        // El indice de archivos se guarda junto a la ruta de trabajo. Si no existia, se recorre la ruta de trabajo
+        indice = new IndiceArchivos(workingPath, workingPath.resolveSibling("indice_archivos.idx"));
+        indice.programarGuardado(60);
+        ArrayList<Path> existentes = indice.rutas();
 
-            pathFromFileID.put(""+fileId, fullPath.toString());
-            fileIdFromPath.put(fullPath.toString(), ""+fileId);
-        });
+        // Asignamos un identificador a los archivos que ya existen.
+        existentes.forEach(fullPath -> registrarArchivo(fullPath.toString()));
+
+        // El almacen de fragmentos se guarda junto a la ruta de trabajo, para que no aparezca en las listas de archivos
+        almacen = new AlmacenFragmentos(workingPath.resolveSibling("chunk_store"), workingPath, existentes);
     }
 
 
@@ -140,10 +187,11 @@ public class FileHandler {
     /**
      * Este metodo nos permite obtener el identificador de un archivo a partir de su ruta relativa (usuario+rutaArchivo).
      * @param path del archivo cuyo identificador queremos obtener.
-     * @return {@link Integer identificador} del archivo en cuestion.
+     * @return {@link Integer identificador} del archivo en cuestion, o -1 si el archivo no esta registrado.
      */
     public int getFileId(String path) {
-        return Integer.parseInt( fileIdFromPath.get(path) );
+        Integer fileId = fileIdFromPath.get(path);
+        return (fileId == null) ? -1 : fileId;
     }
 
     /**
@@ -152,7 +200,7 @@ public class FileHandler {
      * @return {@link String ruta} del archivo en cuestion.
      */
     public String getStringFilePath(int fileId) {
-        return pathFromFileID.get(""+fileId);
+        return pathFromFileID.get(fileId);
     }
 
     /**
@@ -161,7 +209,7 @@ public class FileHandler {
      * @return {@link Path ruta} del archivo en cuestion.
      */
     public Path getFilePath(int fileId) {
-        return Paths.get(pathFromFileID.get(""+fileId));
+        return Paths.get(pathFromFileID.get(fileId));
     }
 
 
@@ -171,7 +219,32 @@ public class FileHandler {
      * @return {@link LectorArchivos} asociado al archivo.
      */
     public LectorArchivos getWriter(int fileId) {
-        return openedFilesWriter.get(  pathFromFileID.get(""+fileId)  );
+        return openedFilesWriter.get(fileId);
+    }
+
+    /**
+     * Este metodo nos permite obtener el {@link LectorArchivos} de lectura compartido de un archivo.
+     * @param fileId {@link Integer identificador} unico del archivo.
+     * @return {@link LectorArchivos} asociado al archivo, o null si el archivo no esta abierto para lectura.
+     */
+    public LectorArchivos getReader(int fileId) {
+        return openedFilesReader.get(fileId);
+    }
+
+    /**
+     * Este metodo nos permite obtener el {@link AlmacenFragmentos almacen de contenido} de los archivos del servidor.
+     * @return {@link AlmacenFragmentos} del servidor.
+     */
+    public AlmacenFragmentos getAlmacen() {
+        return almacen;
+    }
+
+    /**
+     * Este metodo nos permite obtener el {@link IndiceArchivos indice} de los archivos de los usuarios.
+     * @return {@link IndiceArchivos} del servidor.
+     */
+    public IndiceArchivos getIndice() {
+        return indice;
     }
 
 
@@ -223,79 +296,103 @@ public class FileHandler {
     public int newFile(String path) {
         Path toWork = Paths.get(path);
 
-        if(Files.exists(toWork)) {
+        try {
 
             // Si el archivo ya existia, lo borramos y lo creamos desde cero
-            try {
-                Files.delete(toWork);
-                Files.createFile(toWork);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-
-            return Integer.parseInt(fileIdFromPath.get(path));
-        }
-
-        // En caso de que no existiera, lo añadimos a los registros
-        int fileId = globalFileId++;
-        pathFromFileID.put("" + fileId, path);
-        fileIdFromPath.put(path, "" + fileId);
-
-        try {
+            Files.deleteIfExists(toWork);
             Files.createFile(toWork);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return fileId;
+
+        return registrarArchivo(path);
+    }
+
+
+    /**
+     * Este metodo nos permite añadir a los registros un archivo que se ha creado sin abrirlo (por ejemplo, al componerlo
+     * a partir de fragmentos), para que al abrirlo no se trate como un archivo nuevo. Si ya estaba registrado, no se
+     * modifica.
+     * <br>
+     * Si varias sesiones registran la misma ruta a la vez, todas obtienen el mismo identificador.
+     * @param path {@link String ruta} del archivo.
+     * @return {@link Integer identificador} del archivo.
+     */
+    public int registrarArchivo(String path) {
+        return fileIdFromPath.computeIfAbsent(path, p -> {
+            int fileId = globalFileId.getAndIncrement();
+            pathFromFileID.put(fileId, p);
+            return fileId;
+        });
     }
 
 
     /**
-     * Este metodo nos permite abrir un archivo en modo escritura. Para ello comprueba que no este abierto, en cuyo caso
-     * crea un nuevo {@link LectorArchivos} asociado a ese archivo, y devuelve el identificador unico del archivo.
-     * En el caso que el archivo ya estuviera abierto, se devuelve -1.
+     * Este metodo nos permite abrir un archivo. Para ello comprueba que no este abierto en escritura, en cuyo caso
+     * obtiene un {@link LectorArchivos} asociado a ese archivo, y devuelve el identificador unico del archivo.
+     * <br>
+     * En modo escritura se crea un nuevo {@link LectorArchivos}, que escribe en un archivo parcial hasta que se cierra
+     * ({@link #closeFile(int)}), y el archivo no puede estar abierto por ninguna otra sesion. En modo lectura, todas las sesiones comparten el mismo {@link LectorArchivos}.
+     * En el caso que el archivo no se pudiera abrir, se devuelve -1.
+     * <br>
+     * La comprobacion y el registro del archivo se hacen bajo el cerrojo de su ruta, por lo que dos sesiones no pueden
+     * abrir a la vez el mismo archivo para escribir.
      * @param path {@link String ruta} del archivo que queremos abrir.
-     * @param opMode {@link String modo} de operacion: "rw" para escribir.
+     * @param opMode {@link String modo} de operacion: "r" para leer, "rw" para escribir.
      * @return {@link String identificador} del archivo.
      */
     public int openFile(String path, String opMode) {
+        synchronized (cerrojo(path)) {
 
-        // Si el archivo ya esta abierto, devolvemos -1
-        if(isFileOpened(path)) {
-            return -1;
-        }
+            // Si el archivo ya esta abierto en escritura, o se quiere escribir mientras otras sesiones lo leen, devolvemos -1
+            if(isFileOpened(path) || (opMode.equals("rw") && isFileBeingRead(path))) {
+                return -1;
+            }
+
+
+            // Obtenemos el identificador del archivo. Un archivo que se va a escribir no se crea hasta que se confirma
+            // la escritura al cerrarlo
+            int fileid = getFileId(path);
+            if(fileid < 0) {
+                fileid = opMode.equals("rw") ? registrarArchivo(path) : newFile(path);
+            }
 
 
-        // Obtenemos el identificador del archivo
-        int fileid;
-        if(!fileIdFromPath.containsKey(path)) {
-            fileid = newFile(path);
-        } else {
-            fileid = Integer.parseInt(fileIdFromPath.get(path));
-        }
 
+            if(opMode.equals("rw")) {
+                try{
 
+                    // Si se ha abierto en modo escritura, creamos el nuevo lector y lo almacenamos
+                    LectorArchivos la = new LectorArchivos(Paths.get(path), "rw", fileid);
 
-        if(opMode.equals("rw")) {
-            try{
+                    // Registramos el archivo como abierto, para que no lo intenten abrir posteriormente
+                    openedFiles.add(path);
+                    openedFilesWriter.put(fileid, la);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
 
-                // Si se ha abierto en modo escritura, creamos el nuevo lector y lo almacenamos
-                LectorArchivos la = new LectorArchivos(Paths.get(path), "rw", Integer.parseInt(fileIdFromPath.get(path))  );
+            } else {
+                try {
 
-                // Registramos el archivo como abierto, para que no lo intenten abrir posteriormente
-                openedFiles.add(path);
-                openedFilesWriter.put(path, la);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                    // Si se ha abierto en modo lectura, reutilizamos el lector del archivo si ya existia
+                    if(!openedFilesReader.containsKey(fileid)) {
+                        openedFilesReader.put(fileid, new LectorArchivos(Paths.get(path), "r", fileid));
+                    }
+                    Integer lectores = openedFilesReaderCount.get(fileid);
+                    openedFilesReaderCount.put(fileid, (lectores == null) ? 1 : lectores + 1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
             }
 
+            return fileid;
         }
+    }
 
-        return fileid;
 
 
 
-    }
 
 
 
@@ -322,6 +419,36 @@ public class FileHandler {
 
 
 
+
+
+
+
+
+    /**
+     * Este metodo nos permite reservar un archivo para modificarlo sin un {@link LectorArchivos}, por ejemplo al
+     * reconstruirlo por diferencias. Mientras esta reservado, se considera abierto en escritura y ninguna otra sesion
+     * lo puede abrir.
+     * @param path {@link String ruta} del archivo que se quiere reservar.
+     * @return true si se ha reservado, false si el archivo ya estaba abierto.
+     */
+    public boolean reservarArchivo(String path) {
+        synchronized (cerrojo(path)) {
+            if(isFileOpened(path) || isFileBeingRead(path)) return false;
+
+            openedFiles.add(path);
+            return true;
+        }
+    }
+
+    /**
+     * Este metodo libera un archivo reservado con {@link #reservarArchivo(String)}.
+     * @param path {@link String ruta} del archivo que se quiere liberar.
+     */
+    public void liberarArchivo(String path) {
+        synchronized (cerrojo(path)) {
+            openedFiles.remove(path);
+        }
+    }
 
 
 
@@ -342,6 +469,27 @@ public class FileHandler {
         return openedFiles.contains(path);
     }
 
+    /**
+     * Este metodo nos permite comprobar si un archivo esta siendo leido por alguna sesion.
+     * @param path {@link String ruta} del archivo que queremos comprobar.
+     * @return {@link Boolean} indicando si esta abierto para lectura.
+     */
+    public boolean isFileBeingRead(String path) {
+        Integer fileId = fileIdFromPath.get(path);
+        return fileId != null && openedFilesReaderCount.containsKey(fileId);
+    }
+
+
+    /**
+     * Devuelve el cerrojo con el que se protegen las operaciones sobre un archivo.
+     * @param path {@link String ruta} del archivo.
+     * @return cerrojo de la ruta.
+     */
+    private Object cerrojo(String path) {
+        int h = path.hashCode();
+        return cerrojos[(h ^ (h >>> 16)) & (CERROJOS - 1)];
+    }
+
 
 
 
@@ -370,19 +518,81 @@ public class FileHandler {
     /**
      * Este metodo nos permite cerrar un archivo, para ellos, cerramos su {@link LectorArchivos} y borramos el
      * archivo de los registros, para que quede libre para otras sesiones.
+     * <br>
+     * Si el archivo estaba abierto para lectura, el lector compartido unicamente se cierra cuando lo cierra la ultima
+     * sesion que lo estaba leyendo.
+     * <br>
+     * Si estaba abierto para escritura, se confirma la escritura: la nueva version sustituye al archivo, y se indexa.
      * @param fileId {@link String identificador} del archivo que queremos cerrar.
+     * @throws IOException si no se ha podido confirmar la escritura. El archivo se queda como estaba antes de abrirlo.
      */
-    public void closeFile(int fileId) {
-        // Cerramos el lector de archivos
+    public void closeFile(int fileId) throws IOException {
+        cerrar(fileId, true);
+    }
+
+
+    /**
+     * Este metodo nos permite cerrar un archivo sin confirmar su escritura, por ejemplo, cuando la sesion que lo estaba
+     * escribiendo ha caducado o ha cancelado la transferencia. El archivo se queda como estaba antes de abrirlo, y no se
+     * indexa. Si estaba abierto para lectura, equivale a {@link #closeFile(int)}.
+     * @param fileId {@link String identificador} del archivo que queremos descartar.
+     */
+    public void descartarArchivo(int fileId) {
         try {
-            openedFilesWriter.get( pathFromFileID.get(""+fileId) ).cerrarArchivo();
+            cerrar(fileId, false);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
+
+
+    /**
+     * Cierra un archivo, confirmando o descartando su escritura.
+     * @param fileId {@link Integer identificador} del archivo.
+     * @param confirmar true para que la nueva version sustituya al archivo, false para descartarla.
+     * @throws IOException si no se ha podido cerrar el archivo.
+     */
+    private void cerrar(int fileId, boolean confirmar) throws IOException {
+        String path = pathFromFileID.get(fileId);
+        if(path == null) return;
+
+        boolean escrito = false;
+        synchronized (cerrojo(path)) {
+            LectorArchivos writer = openedFilesWriter.remove(fileId);
+            if(writer != null) {
+
+                // Cerramos el lector de archivos de escritura, y removemos el archivo de los registros de archivos
+                // activos aunque no se haya podido cerrar, para que la ruta no quede bloqueada para siempre
+                try {
+                    if(confirmar) {
+                        writer.cerrarArchivo();
+                        escrito = true;
+                    } else {
+                        writer.descartar();
+                    }
+                } finally {
+                    openedFiles.remove(path);
+                }
+
+            } else if(openedFilesReaderCount.containsKey(fileId)) {
+
+                // Si era la ultima sesion leyendo el archivo, cerramos el lector compartido
+                int lectores = openedFilesReaderCount.get(fileId) - 1;
+                if(lectores < 1) {
+                    openedFilesReaderCount.remove(fileId);
+                    openedFilesReader.remove(fileId).cerrarArchivo();
+                } else {
+                    openedFilesReaderCount.put(fileId, lectores);
+                }
+            }
+        }
 
-        // Removemos el archivo de los registros de archivos activos
-        openedFiles.remove(""+fileId);
-        openedFilesWriter.remove(  pathFromFileID.get(""+fileId)  );
+        // Indexamos el contenido nuevo, para poder reutilizarlo en futuras cargas, y actualizamos el indice. Se hace
+        // fuera del cerrojo, ya que el almacen y el indice tienen su propia sincronizacion
+        if(escrito) {
+            almacen.indexarArchivo(Paths.get(path));
+            indice.actualizar(Paths.get(path));
+        }
     }
 
 }
@@ -0,0 +1,650 @@
+package com.syncapp.server;
+
+import com.syncapp.model.Archivo;
+import com.syncapp.model.CambiosArchivos;
+import com.syncapp.model.PaginaArchivos;
+import com.syncapp.utility.LectorArchivos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Indice en memoria de los archivos de las carpetas de los usuarios del servidor.
+ * <br>
+ * Listar la carpeta de un usuario recorriendola entera en cada peticion obliga a consultar el disco por cada archivo, lo
+ * cual con cientos de miles de archivos supone varios segundos por peticion. En su lugar, el servidor recorre las
+ * carpetas una unica vez, guarda el tamaño y la fecha de modificacion de cada archivo, y mantiene el indice actualizado
+ * cada vez que termina de escribir un archivo ({@link FileHandler#closeFile(int)}, cargas por diferencias y cargas por
+ * fragmentos). Asi, {@link SyncAppServer#listaArchivos(com.syncapp.model.TokenUsuario)} responde desde memoria.
+ * <br>
+ * Ademas, el indice lleva un diario de cambios por usuario: cada vez que se crea, modifica o elimina un archivo, se le
+ * asigna el siguiente numero de secuencia de la carpeta del usuario. Asi, un cliente que ya se ha sincronizado puede
+ * pedir unicamente los cambios posteriores a su ultimo {@link #cursorCambios(String) cursor}
+ * ({@link #cambios(String, String, int)}), en vez de la lista completa. El cursor incluye la epoca del indice (el
+ * momento en que se recorrieron las carpetas), de forma que si el indice se vuelve a construir, los cursores anteriores
+ * dejan de ser validos y el cliente debe hacer una sincronizacion completa.
+ * <br>
+ * Los archivos eliminados se mantienen en el indice para poder informar de su eliminacion, pero como mucho
+ * {@link #MAX_BORRADOS} por usuario. Al superarse, se purgan los mas antiguos y los cursores anteriores a ellos dejan de
+ * ser validos, igual que al cambiar de epoca.
+ * <br>
+ * El indice se guarda en disco, con el mismo esquema que {@link com.syncapp.utility.CacheHashes}, para no tener que
+ * recorrer las carpetas en cada arranque del servidor. Como el servidor es el unico que escribe en las carpetas de los
+ * usuarios, el indice guardado sigue siendo valido al volver a arrancar, siempre que el servidor se haya cerrado
+ * correctamente ({@link #cerrar()}). Si el servidor termina de forma inesperada, los cambios posteriores al ultimo
+ * guardado se pierden, y sus numeros de secuencia se volverian a asignar a otros cambios. Por ello, si al arrancar no se
+ * encuentra la marca de cierre correcto, el indice se vuelve a construir recorriendo las carpetas, con una epoca nueva.
+ */
+public class IndiceArchivos {
+
+    /**
+     * Entrada del indice. Los archivos eliminados se mantienen como entradas con tamaño {@link CambiosArchivos#BORRADO},
+     * para poder informar de su eliminacion en el diario de cambios.
+     */
+    private static class Entrada {
+        final long size;
+        final long modificado;
+        final long secuencia;
+
+        Entrada(long size, long modificado, long secuencia) {
+            this.size = size;
+            this.modificado = modificado;
+            this.secuencia = secuencia;
+        }
+    }
+
+    /**
+     * Archivos y diario de cambios de la carpeta de un usuario.
+     */
+    private static class Carpeta {
+
+        /**
+         * Se almacena la pareja {@link String ruta relativa}/{@link Entrada}, ordenada por ruta, para poder listar los
+         * archivos por paginas a partir de un cursor.
+         */
+        final TreeMap<String, Entrada> archivos = new TreeMap<>();
+
+        /**
+         * Diario de cambios: se almacena la pareja {@link Long secuencia}/{@link String ruta relativa} del ultimo cambio
+         * de cada archivo. Los cambios anteriores de un mismo archivo se eliminan, ya que el estado actual los incluye.
+         */
+        final TreeMap<Long, String> diario = new TreeMap<>();
+
+        /**
+         * Numero de secuencia del ultimo cambio de la carpeta.
+         */
+        long secuencia;
+
+        /**
+         * Menor secuencia a partir de la cual se aceptan cursores. Los cursores anteriores pueden no incluir archivos
+         * eliminados que ya se han purgado del indice.
+         */
+        long minimo;
+
+        /**
+         * Numero de archivos eliminados que se mantienen en el indice.
+         */
+        int borrados;
+    }
+
+    /**
+     * Identificador del formato del indice, que se escribe al principio del mismo.
+     */
+    private static final int FORMATO = 0x53414933; // "SAI3"
+
+    /**
+     * Numero maximo de archivos eliminados que se mantienen en el indice por usuario. Al superarse, se purgan hasta
+     * quedar la mitad.
+     */
+    static final int MAX_BORRADOS = 10000;
+
+
+
+
+    /**
+     * Carpeta que contiene las carpetas de los usuarios.
+     */
+    private final Path base;
+
+    /**
+     * Archivo en el que se guarda el indice.
+     */
+    private final Path indice;
+
+    /**
+     * Archivo que indica que el indice se guardo al cerrar el servidor correctamente. Se elimina al cargar el indice, y
+     * se vuelve a crear en {@link #cerrar()}.
+     */
+    private final Path marcaCierre;
+
+    /**
+     * Se almacena la pareja {@link String usuario}/{@link Carpeta}.
+     */
+    private final HashMap<String, Carpeta> usuarios;
+
+    /**
+     * Momento, en milisegundos, en que se construyo el indice recorriendo las carpetas. Forma parte de los cursores del
+     * diario de cambios.
+     */
+    private long epoca;
+
+    /**
+     * Indica si el indice ha cambiado desde que se guardo por ultima vez.
+     */
+    private boolean modificado;
+
+    /**
+     * Cerrojo que impide que se guarde el indice desde dos hilos a la vez, ya que ambos usarian el mismo archivo
+     * temporal. Es distinto del cerrojo del indice, para no bloquear las consultas mientras se escribe en disco.
+     */
+    private final Object guardado = new Object();
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea el indice de la carpeta indicada. Si hay un indice guardado para esa carpeta, y el servidor se cerro
+     * correctamente, se carga; en otro caso se recorre la carpeta con una epoca nueva.
+     * @param base {@link Path carpeta} que contiene las carpetas de los usuarios.
+     * @param indice {@link Path archivo} en el que se guarda el indice. No debe estar dentro de la carpeta base.
+     */
+    public IndiceArchivos(Path base, Path indice) {
+        this.base = base.toAbsolutePath().normalize();
+        this.indice = indice;
+        this.marcaCierre = indice.resolveSibling(indice.getFileName() + ".cerrado");
+        this.usuarios = new HashMap<>();
+
+        boolean cargado = false;
+        try {
+            cargado = cargar();
+        } catch (IOException e) {
+            // Un indice dañado unicamente implica volver a recorrer las carpetas
+            e.printStackTrace();
+        }
+
+        // La marca de cierre solo vale para este arranque: si el servidor no se cierra correctamente, no existira
+        boolean cerradoCorrectamente = Files.exists(marcaCierre);
+        try {
+            Files.deleteIfExists(marcaCierre);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if(!cargado || !cerradoCorrectamente) {
+            // La epoca nueva invalida los cursores de los clientes, que haran una sincronizacion completa
+            usuarios.clear();
+            epoca = Math.max(System.currentTimeMillis(), epoca + 1);
+            recorrer();
+            modificado = true;
+        }
+    }
+
+
+
+
+    // Consultas
+
+    /**
+     * Devuelve la lista de archivos de la carpeta de un usuario, sin hash. Los archivos vacios no se incluyen, igual que
+     * en {@link com.syncapp.utility.Utilidades#listFiles(Path)}.
+     * @param usuario {@link String nombre} del usuario.
+     * @return {@link ArrayList} de {@link Archivo}, con tamaño y fecha de modificacion.
+     */
+    public synchronized ArrayList<Archivo> listar(String usuario) {
+        Carpeta carpeta = usuarios.get(usuario);
+        if(carpeta == null) return new ArrayList<>();
+
+        String parentFolder = base.resolve(usuario).toString();
+        ArrayList<Archivo> lista = new ArrayList<>(carpeta.archivos.size());
+
+        carpeta.archivos.forEach((ruta, e) -> {
+            if(e.size <= 0) return;
+
+            Archivo a = new Archivo(ruta);
+            a.parentFolder = parentFolder;
+            a.sizeInBytes = e.size;
+            a.timeMilisLastModified = e.modificado;
+            lista.add(a);
+        });
+
+        return lista;
+    }
+
+
+    /**
+     * Devuelve una pagina de la lista de archivos de la carpeta de un usuario, empezando por el archivo siguiente al
+     * cursor indicado. Los archivos se devuelven ordenados por ruta, y el cursor es la ruta del ultimo archivo de la
+     * pagina, asi que los archivos que se añadan o eliminen entre dos paginas no desplazan al resto.
+     * @param usuario {@link String nombre} del usuario.
+     * @param cursor cursor devuelto en la pagina anterior, o null para empezar por el principio.
+     * @param max numero maximo de archivos de la pagina.
+     * @return {@link PaginaArchivos} con, como mucho, max archivos.
+     */
+    public synchronized PaginaArchivos pagina(String usuario, String cursor, int max) {
+        String parentFolder = base.resolve(usuario).toString();
+        Carpeta carpeta = usuarios.get(usuario);
+        if(carpeta == null) return new PaginaArchivos(parentFolder, new String[0], new long[0], new long[0], null);
+
+        TreeMap<String, Entrada> archivos = carpeta.archivos;
+        SortedMap<String, Entrada> resto = (cursor == null) ? archivos : archivos.tailMap(cursor, false);
+
+        // El tamaño de una vista parcial de un TreeMap se calcula recorriendola, asi que usamos el del mapa completo
+        int n = Math.min(max, archivos.size());
+        String[] rutas = new String[n];
+        long[] tamanos = new long[n];
+        long[] modificados = new long[n];
+
+        int i = 0;
+        String ultima = null;
+        boolean quedan = false;
+        for (Map.Entry<String, Entrada> e : resto.entrySet()) {
+            if(i == n) {
+                quedan = true;
+                break;
+            }
+            ultima = e.getKey();
+            if(e.getValue().size <= 0) continue;
+
+            rutas[i] = ultima;
+            tamanos[i] = e.getValue().size;
+            modificados[i] = e.getValue().modificado;
+            i++;
+        }
+
+        // Si se han saltado archivos vacios o eliminados, o quedaban menos archivos, recortamos los arrays
+        if(i < n) {
+            rutas = Arrays.copyOf(rutas, i);
+            tamanos = Arrays.copyOf(tamanos, i);
+            modificados = Arrays.copyOf(modificados, i);
+        }
+
+        return new PaginaArchivos(parentFolder, rutas, tamanos, modificados, quedan ? ultima : null);
+    }
+
+
+    /**
+     * Devuelve las rutas absolutas de todos los archivos del indice.
+     * @return {@link ArrayList} de {@link Path}.
+     */
+    public synchronized ArrayList<Path> rutas() {
+        ArrayList<Path> rutas = new ArrayList<>();
+        usuarios.forEach((usuario, carpeta) -> {
+            Path ruta = base.resolve(usuario);
+            carpeta.archivos.forEach((relativa, e) -> { if(e.size > 0) rutas.add(ruta.resolve(relativa)); });
+        });
+        return rutas;
+    }
+
+
+
+
+    // Diario de cambios
+
+    /**
+     * Devuelve el cursor que identifica el estado actual de la carpeta de un usuario. Un cliente que obtiene el cursor
+     * antes de listar la carpeta completa, puede pedir despues unicamente los cambios posteriores.
+     * @param usuario {@link String nombre} del usuario.
+     * @return {@link String cursor} con el formato {@code "<epoca>:<secuencia>"}.
+     */
+    public synchronized String cursorCambios(String usuario) {
+        Carpeta carpeta = usuarios.get(usuario);
+        return epoca + ":" + ((carpeta == null) ? 0 : carpeta.secuencia);
+    }
+
+
+    /**
+     * Devuelve los cambios de la carpeta de un usuario posteriores al cursor indicado, en orden de secuencia. Si un
+     * archivo ha cambiado varias veces, unicamente aparece su ultimo cambio, con su estado actual.
+     * @param usuario {@link String nombre} del usuario.
+     * @param cursor {@link String cursor} obtenido con {@link #cursorCambios(String)} o en unos cambios anteriores.
+     * @param max numero maximo de cambios a devolver.
+     * @return {@link CambiosArchivos} con, como mucho, max cambios. Si el cursor no pertenece a este indice, se indica
+     * que el cliente debe hacer una sincronizacion completa.
+     */
+    public synchronized CambiosArchivos cambios(String usuario, String cursor, int max) {
+        String parentFolder = base.resolve(usuario).toString();
+        Carpeta carpeta = usuarios.get(usuario);
+        long actual = (carpeta == null) ? 0 : carpeta.secuencia;
+
+        // Comprobamos que el cursor sea de este indice, no anterior a los archivos eliminados purgados, y no posterior
+        // al ultimo cambio
+        long desde = leerCursor(cursor);
+        if(desde < 0 || (carpeta != null && desde < carpeta.minimo) || desde > actual) {
+            return new CambiosArchivos(parentFolder, new String[0], new long[0], new long[0],
+                    cursorCambios(usuario), true, true);
+        }
+
+        // Recogemos los cambios posteriores al cursor
+        ArrayList<String> rutas = new ArrayList<>();
+        long ultima = desde;
+        if(carpeta != null) {
+            for (Map.Entry<Long, String> c : carpeta.diario.tailMap(desde, false).entrySet()) {
+                if(rutas.size() == max) break;
+                rutas.add(c.getValue());
+                ultima = c.getKey();
+            }
+        }
+
+        long[] tamanos = new long[rutas.size()];
+        long[] modificados = new long[rutas.size()];
+        for (int i = 0; i < rutas.size(); i++) {
+            Entrada e = carpeta.archivos.get(rutas.get(i));
+            tamanos[i] = e.size;
+            modificados[i] = e.modificado;
+        }
+
+        return new CambiosArchivos(parentFolder, rutas.toArray(new String[0]), tamanos, modificados,
+                epoca + ":" + ultima, ultima == actual, false);
+    }
+
+
+    /**
+     * Obtiene la secuencia de un cursor del diario de cambios.
+     * @param cursor {@link String cursor} con el formato {@code "<epoca>:<secuencia>"}.
+     * @return secuencia del cursor, o -1 si el cursor no es valido o pertenece a otra epoca.
+     */
+    private long leerCursor(String cursor) {
+        if(cursor == null) return -1;
+
+        int separador = cursor.indexOf(':');
+        try {
+            if(separador < 0 || Long.parseLong(cursor.substring(0, separador)) != epoca) return -1;
+            return Long.parseLong(cursor.substring(separador + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+
+
+    // Actualizaciones
+
+    /**
+     * Actualiza la entrada de un archivo con su tamaño y fecha de modificacion actuales, y registra el cambio en el
+     * diario. Si el archivo ya no existe, se registra su eliminacion. Se debe llamar cada vez que se termina de escribir
+     * o se elimina un archivo.
+     * @param archivo {@link Path ruta} absoluta del archivo.
+     */
+    public void actualizar(Path archivo) {
+        Path ruta = archivo.toAbsolutePath().normalize();
+        if(!ruta.startsWith(base) || base.relativize(ruta).getNameCount() < 2) return;
+
+        // Consultamos el disco fuera del bloque sincronizado
+        BasicFileAttributes atributos;
+        try {
+            atributos = Files.readAttributes(ruta, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            atributos = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (this) {
+            if(atributos != null && atributos.isRegularFile()) {
+                poner(ruta, atributos.size(), atributos.lastModifiedTime().toMillis(), true);
+            } else {
+                poner(ruta, CambiosArchivos.BORRADO, 0, true);
+            }
+            modificado = true;
+        }
+    }
+
+
+
+
+    // Persistencia
+
+    /**
+     * Guarda el indice en disco si ha cambiado. El indice se copia con el cerrojo tomado y se escribe en disco fuera de
+     * el, para no bloquear las consultas y actualizaciones durante la escritura. Se escribe en un archivo temporal que
+     * luego se mueve sobre el anterior, para que nunca quede un indice a medio escribir.
+     * <br>
+     * Formato: {@code FORMATO, base, epoca, numUsuarios} y, por cada usuario, {@code usuario, secuencia, minimo,
+     * numArchivos} seguido de {@code ruta, size, modificado, secuencia} por cada archivo. El diario no se guarda, ya que
+     * se puede reconstruir a partir de la secuencia de cada archivo.
+     * @return true si el indice guardado en disco esta al dia.
+     */
+    public boolean guardar() {
+        synchronized (guardado) {
+
+            // Copiamos el indice. Las entradas no se modifican nunca, asi que basta con copiar las referencias
+            long epocaCopia;
+            ArrayList<String> nombres = new ArrayList<>();
+            ArrayList<long[]> cabeceras = new ArrayList<>();
+            ArrayList<String[]> rutas = new ArrayList<>();
+            ArrayList<Entrada[]> entradas = new ArrayList<>();
+            synchronized (this) {
+                if(!modificado) return true;
+
+                epocaCopia = epoca;
+                usuarios.forEach((usuario, carpeta) -> {
+                    nombres.add(usuario);
+                    cabeceras.add(new long[]{carpeta.secuencia, carpeta.minimo});
+                    rutas.add(carpeta.archivos.keySet().toArray(new String[0]));
+                    entradas.add(carpeta.archivos.values().toArray(new Entrada[0]));
+                });
+                modificado = false;
+            }
+
+            Path temporal = indice.resolveSibling(indice.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(indice.toAbsolutePath().getParent());
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+                    out.writeInt(FORMATO);
+                    out.writeUTF(base.toString());
+                    out.writeLong(epocaCopia);
+                    out.writeInt(nombres.size());
+
+                    for (int u = 0; u < nombres.size(); u++) {
+                        out.writeUTF(nombres.get(u));
+                        out.writeLong(cabeceras.get(u)[0]);
+                        out.writeLong(cabeceras.get(u)[1]);
+                        out.writeInt(rutas.get(u).length);
+
+                        for (int i = 0; i < rutas.get(u).length; i++) {
+                            Entrada e = entradas.get(u)[i];
+                            out.writeUTF(rutas.get(u)[i]);
+                            out.writeLong(e.size);
+                            out.writeLong(e.modificado);
+                            out.writeLong(e.secuencia);
+                        }
+                    }
+                }
+
+                Files.move(temporal, indice, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (IOException e) {
+                // Los cambios copiados no se han guardado, asi que se deben volver a guardar
+                synchronized (this) {
+                    modificado = true;
+                }
+                e.printStackTrace();
+                return false;
+            }
+
+            synchronized (this) {
+                return !modificado;
+            }
+        }
+    }
+
+
+    /**
+     * Guarda el indice y crea la marca de cierre correcto, para que el siguiente arranque del servidor pueda usar el
+     * indice guardado en vez de recorrer las carpetas.
+     */
+    public void cerrar() {
+        synchronized (guardado) {
+            if(!guardar()) return;
+
+            try {
+                Files.write(marcaCierre, new byte[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Guarda el indice periodicamente desde un hilo en segundo plano, y lo cierra al terminar la maquina virtual.
+     * @param segundos periodo de guardado, en segundos.
+     */
+    public void programarGuardado(long segundos) {
+        ScheduledExecutorService guardado = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "guardado-indice-archivos");
+            t.setDaemon(true);
+            return t;
+        });
+        guardado.scheduleWithFixedDelay(this::guardar, segundos, segundos, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::cerrar));
+    }
+
+
+    /**
+     * Carga el indice desde disco.
+     * @return true si se ha cargado, false si no existe o pertenece a otra carpeta base.
+     * @throws IOException si el indice no se puede leer.
+     */
+    private synchronized boolean cargar() throws IOException {
+        if(!Files.exists(indice)) return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indice)))) {
+            if(in.readInt() != FORMATO || !in.readUTF().equals(base.toString())) return false;
+            epoca = in.readLong();
+
+            int numUsuarios = in.readInt();
+            for (int i = 0; i < numUsuarios; i++) {
+                String usuario = in.readUTF();
+                Carpeta carpeta = new Carpeta();
+                carpeta.secuencia = in.readLong();
+                carpeta.minimo = in.readLong();
+                int n = in.readInt();
+
+                for (int j = 0; j < n; j++) {
+                    String ruta = in.readUTF();
+                    long size = in.readLong();
+                    long modificado = in.readLong();
+                    Entrada e = new Entrada(size, modificado, in.readLong());
+
+                    carpeta.archivos.put(ruta, e);
+                    if(e.secuencia > 0) carpeta.diario.put(e.secuencia, ruta);
+                    if(e.size == CambiosArchivos.BORRADO) carpeta.borrados++;
+                }
+                usuarios.put(usuario, carpeta);
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Recorre la carpeta base entera, añadiendo todos sus archivos al indice. Los atributos de cada archivo se obtienen
+     * durante el propio recorrido, sin consultas adicionales al disco.
+     */
+    private synchronized void recorrer() {
+        if(!Files.isDirectory(base)) return;
+
+        try {
+            Files.walkFileTree(base, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // Los archivos parciales de escrituras que no se completaron no forman parte del indice
+                    if(attrs.isRegularFile() && base.relativize(file).getNameCount() >= 2 && !LectorArchivos.esParcial(file)) {
+                        poner(file, attrs.size(), attrs.lastModifiedTime().toMillis(), false);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Guarda la entrada de un archivo.
+     * @param ruta {@link Path ruta} absoluta del archivo.
+     * @param size tamaño del archivo, o {@link CambiosArchivos#BORRADO} si se ha eliminado.
+     * @param modificado fecha de modificacion del archivo.
+     * @param registrar true para registrar el cambio en el diario, false al construir el indice.
+     */
+    private void poner(Path ruta, long size, long modificado, boolean registrar) {
+        Path relativa = base.relativize(ruta);
+        Carpeta carpeta = usuarios.computeIfAbsent(relativa.getName(0).toString(), u -> new Carpeta());
+        String clave = relativa.subpath(1, relativa.getNameCount()).toString();
+
+        if(!registrar) {
+            carpeta.archivos.put(clave, new Entrada(size, modificado, 0));
+            return;
+        }
+
+        // Eliminar un archivo que no esta en el indice no es un cambio
+        Entrada anterior = carpeta.archivos.get(clave);
+        if(size == CambiosArchivos.BORRADO && (anterior == null || anterior.size == CambiosArchivos.BORRADO)) return;
+
+        // El cambio anterior del archivo deja de estar en el diario, ya que el nuevo lo sustituye
+        if(anterior != null) carpeta.diario.remove(anterior.secuencia);
+
+        long secuencia = ++carpeta.secuencia;
+        carpeta.archivos.put(clave, new Entrada(size, modificado, secuencia));
+        carpeta.diario.put(secuencia, clave);
+
+        if(anterior != null && anterior.size == CambiosArchivos.BORRADO) carpeta.borrados--;
+        if(size == CambiosArchivos.BORRADO && ++carpeta.borrados > MAX_BORRADOS) purgar(carpeta);
+    }
+
+
+    /**
+     * Purga los archivos eliminados mas antiguos de una carpeta, junto con su cambio en el diario, hasta quedar la mitad
+     * de {@link #MAX_BORRADOS}. Los cursores anteriores al ultimo archivo purgado dejan de ser validos, ya que no
+     * incluirian su eliminacion.
+     * @param carpeta {@link Carpeta} que se quiere purgar.
+     */
+    private void purgar(Carpeta carpeta) {
+        Iterator<Map.Entry<Long, String>> cambios = carpeta.diario.entrySet().iterator();
+        while (carpeta.borrados > MAX_BORRADOS / 2 && cambios.hasNext()) {
+            Map.Entry<Long, String> c = cambios.next();
+            if(carpeta.archivos.get(c.getValue()).size != CambiosArchivos.BORRADO) continue;
+
+            carpeta.archivos.remove(c.getValue());
+            cambios.remove();
+            carpeta.borrados--;
+            carpeta.minimo = c.getKey();
+        }
+    }
+
+}
@@ -1,21 +1,40 @@
 package com.syncapp.server;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.syncapp.interfaces.ArchivoNoAbiertoException;
 import com.syncapp.interfaces.SyncApp;
 import com.syncapp.model.BloqueBytes;
+import com.syncapp.model.CambiosArchivos;
 import com.syncapp.model.Archivo;
+import com.syncapp.model.FirmaBloque;
+import com.syncapp.model.InstruccionDelta;
+import com.syncapp.model.ListaArchivos;
+import com.syncapp.model.PaginaArchivos;
+import com.syncapp.model.TicketTransferencia;
 import com.syncapp.model.TokenUsuario;
+import com.syncapp.utility.AlgoritmoHash;
+import com.syncapp.utility.CacheHashes;
+import com.syncapp.utility.CompresionBloques;
+import com.syncapp.utility.Delta;
 import com.syncapp.utility.LectorArchivos;
+import com.syncapp.utility.ServicioHashes;
 import com.syncapp.utility.Utilidades;
+import com.syncapp.utility.VariablesGlobales;
 
 
 /**
@@ -120,6 +139,18 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
      * Ademas mantiene un control sobre los archivos abiertos por una sesion (abiertos en modo escritura).
      */
     UserHandler userHandler;
+
+    /**
+     * Cache de los hashes de los archivos de los usuarios, para no volver a leer los archivos que no han cambiado.
+     */
+    CacheHashes cacheHashes;
+
+    /**
+     * Canal de datos, por el que se transmiten los bytes de los archivos sin pasar por RMI. Es null hasta que se invoca
+     * {@link #iniciarCanalDatos(int)}, y mientras sea null los archivos unicamente se transmiten por RMI.
+     */
+    CanalDatos canalDatos;
+
     
 
 
@@ -146,10 +177,56 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
         // Inicializamos el Logger
         logger = Logger.getLogger("Logger");
 
+        // Inicializamos la cache de hashes, que se guarda junto a las carpetas de los usuarios
+        cacheHashes = new CacheHashes(usersContainers, usersContainers.resolveSibling("servidor_hashes.idx"));
+        cacheHashes.programarGuardado(60);
+
 
     }
 
 
+    /**
+     * Inicia el {@link CanalDatos canal de datos} del servidor en el puerto indicado, por el que los clientes pueden
+     * transmitir los bytes de los archivos sin pasar por RMI (ver
+     * {@link #abrirTransferencia(TokenUsuario, Archivo, String)}).
+     * @param puerto puerto en el que escucha el canal de datos.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public void iniciarCanalDatos(int puerto) throws IOException {
+        CanalDatos canal = new CanalDatos(puerto, fileHandler, logger);
+        canal.iniciar();
+        canalDatos = canal;
+    }
+
+
+    /**
+     * Inicia la revision periodica de las sesiones: las sesiones que llevan mas de {@code duracion} ms sin hacer
+     * ninguna peticion (por ejemplo, porque el cliente se ha caido a mitad de una carga) se cierran, y se cierran los
+     * archivos que hubieran dejado abiertos, de forma que sus lectores no se quedan abiertos y otras sesiones pueden
+     * volver a abrir esos archivos. Las sesiones se revisan cada tercio de la duracion.
+     * @param duracion tiempo maximo (ms) sin peticiones de una sesion.
+     */
+    public void iniciarCaducidadSesiones(long duracion) {
+        ScheduledExecutorService revision = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "caducidad-sesiones");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long periodo = Math.max(1, duracion / 3);
+        revision.scheduleWithFixedDelay(() -> {
+
+            // Si la tarea lanzase una excepcion, no se volveria a ejecutar
+            try {
+                cerrarSesionesCaducadas(duracion);
+            } catch (RuntimeException e) {
+                logger.severe("error al cerrar las sesiones caducadas: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, periodo, periodo, TimeUnit.MILLISECONDS);
+    }
+
+
 
 
 
@@ -225,20 +302,63 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
         // Comprobamos que el usuario tenga una sesion activa
         if(!userHandler.isSessionActive(usuario.session_id)) { return -1; }
 
-        // Obtenemos el path absoluto dentro del archivo, dentro del servidor
-        Path filepath = usersContainers.resolve(usuario.name).resolve(archivo.childFolder);
+        // Obtenemos el path absoluto dentro del archivo, dentro del servidor, sin salir de la carpeta del usuario
+        Path filepath = rutaUsuario(usuario, archivo);
+        if(filepath == null) return -1;
 
 
 
         // Loggeamos la apertura del archivo
         logger.info("abriendo archivo " + archivo + " modo " + op_mode);
 
-        // Devolvemos el fileId. FileHandler comprobara si el archivo se puede abrir o no, devolviendo -1 en caso engativo.
-        return fileHandler.openFile(filepath.toString(), op_mode);
+        // FileHandler comprobara si el archivo se puede abrir o no, devolviendo -1 en caso engativo.
+        int fileId = fileHandler.openFile(filepath.toString(), op_mode);
+        if(fileId < 0) return -1;
+
+        // Enlazamos el archivo con la sesion, para cerrarlo si la sesion se cierra sin cerrarlo. Si la sesion se ha
+        // cerrado mientras tanto, cerramos el archivo
+        if(!userHandler.abrirArchivo(usuario.session_id, fileId)) {
+            fileHandler.descartarArchivo(fileId);
+            return -1;
+        }
+
+        // Devolvemos el fileId
+        return fileId;
 
     }
 
 
+    /**
+     * Abre un archivo igual que {@link #abrirArchivo(TokenUsuario, Archivo, String)}, y emite un ticket del
+     * {@link CanalDatos canal de datos} para transmitir sus bytes.
+     * <br>
+     * {@link SyncApp#abrirTransferencia(TokenUsuario, Archivo, String)} para mas informacion.
+     *
+     * @param usuario {@link TokenUsuario Usuario} que quiere abrir el archivo.
+     * @param archivo {@link Archivo} que se quiere abrir.
+     * @param op_mode {@link String} que indica en que modo se quiere abrir el archivo -> "r" para leer, "rw" para escribir.
+     * @return {@link TicketTransferencia} del archivo, o null si no se ha podido abrir.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public TicketTransferencia abrirTransferencia(TokenUsuario usuario, Archivo archivo, String op_mode) throws RemoteException {
+        int fileId = abrirArchivo(usuario, archivo, op_mode);
+        if(fileId < 0) return null;
+
+        // En una lectura, si la sesion usa compresion, decidimos ya con una muestra del archivo si se comprime; la
+        // decision se mantiene para los bloques que lea la sesion
+        boolean escritura = op_mode.equals("rw");
+        boolean comprimir = !escritura && userHandler.comprimirArchivo(usuario.session_id, fileId, () ->
+                CompresionBloques.merecePena(Paths.get(fileHandler.getStringFilePath(fileId))));
+
+        // Si no hay canal de datos, o los bloques se comprimen, el ticket unicamente lleva el identificador, y el
+        // cliente usara RMI
+        if(canalDatos == null || comprimir) return new TicketTransferencia(fileId, 0, 0, escritura, comprimir);
+
+        return canalDatos.emitirTicket(fileId, escritura);
+    }
+
+
 
 
 
@@ -269,34 +389,108 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
     public void cerrarSesion(TokenUsuario usuario) throws RemoteException {
         if(usuario == null) return;
 
-        ArrayList<Integer> archivosACerrar = userHandler.listFilesForSession(usuario.session_id);
-        if(archivosACerrar != null) {
-            archivosACerrar.forEach(fileHandler::closeFile);
+        liberarSesion(usuario.session_id);
+
+        logger.info("usuario "+usuario+" ha cerrado sesion");
+    }
+
+
+    /**
+     * Cierra las sesiones cuya concesion ha caducado, y los archivos que hubieran dejado abiertos.
+     * @param duracion tiempo maximo (ms) sin peticiones de una sesion.
+     */
+    void cerrarSesionesCaducadas(long duracion) {
+        for (String sessionId : userHandler.sesionesCaducadas(duracion)) {
+            ArrayList<String> liberados = liberarSesion(sessionId);
+            logger.warning("sesion "+sessionId+" caducada tras "+duracion+"ms sin peticiones, cerrados "
+                    +liberados.size()+" archivos "+liberados);
         }
+    }
 
-        userHandler.cerrarSesion(usuario.session_id);
 
-        logger.info("usuario "+usuario+" ha cerrado sesion");
+    /**
+     * Elimina una sesion, y cierra los archivos que habia dejado abiertos: se cierran sus lectores, se liberan sus
+     * rutas, y se revocan sus tickets del canal de datos. Las escrituras que habia dejado a medias se descartan, ya que
+     * la sesion no ha confirmado que esten completas.
+     * @param sessionId {@link String identificador} de la sesion.
+     * @return {@link ArrayList} {@link String rutas} de los archivos cerrados.
+     */
+    private ArrayList<String> liberarSesion(String sessionId) {
+        ArrayList<String> liberados = new ArrayList<>();
+
+        ArrayList<Integer> archivosACerrar = userHandler.cerrarSesion(sessionId);
+        archivosACerrar.forEach(fileId -> {
+            liberados.add(fileHandler.getStringFilePath(fileId));
+            fileHandler.descartarArchivo(fileId);
+            if(canalDatos != null) canalDatos.revocar(fileId);
+        });
+
+        return liberados;
     }
 
 
     /**
      * Este metodo permite cerrar la lectura/escritura de un archivo, liberando asi el recurso para otros usuarios.
      * @param fileId identificador unico del archivo.
-     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     * @throws ArchivoNoAbiertoException si la sesion no tiene el archivo abierto, por ejemplo, porque ha caducado y el
+     * servidor lo ha descartado.
+     * @throws RemoteException si no se ha podido confirmar la escritura del archivo.
      */
     @Override
     public void cerrarArchivo(int fileId, TokenUsuario usuario) throws RemoteException {
-        if(fileId <0 ) return;
+        if(!cerrarArchivo(fileId, usuario, true))
+            throw new ArchivoNoAbiertoException("El archivo no esta abierto en esta sesion");
+    }
+
+
+    /**
+     * Este metodo permite cerrar un archivo sin guardar lo que se ha escrito en el, por ejemplo, cuando el cliente no ha
+     * podido completar la transferencia.
+     * @param fileId identificador unico del archivo.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public void cancelarArchivo(int fileId, TokenUsuario usuario) throws RemoteException {
+        cerrarArchivo(fileId, usuario, false);
+    }
+
+
+    /**
+     * Cierra un archivo de una sesion, confirmando o descartando su escritura.
+     * @param fileId identificador unico del archivo.
+     * @param usuario {@link TokenUsuario} de la sesion que abrio el archivo.
+     * @param confirmar true para guardar lo escrito, false para descartarlo.
+     * @return true si se ha cerrado el archivo, false si la sesion no lo tenia abierto.
+     * @throws RemoteException si no se ha podido confirmar la escritura del archivo.
+     */
+    private boolean cerrarArchivo(int fileId, TokenUsuario usuario, boolean confirmar) throws RemoteException {
+        if(fileId <0 || usuario == null || !userHandler.isSessionActive(usuario.session_id)) return false;
+
+        // Unicamente se cierra el archivo si lo habia abierto esta sesion: los identificadores son los mismos para todas
+        // las sesiones, y un cierre tardio (por ejemplo, de una sesion que ya ha caducado) cerraria el archivo de otra
+        if(!userHandler.cerrarArchivo(usuario.session_id, fileId)) {
+            logger.warning("la sesion de "+usuario+" intenta cerrar el archivo "+fileId+", que no tiene abierto");
+            return false;
+        }
+
         Archivo enCuestion = new Archivo( fileHandler.getFilePath(fileId).toString() );
 
 
         // Mostramos informacion
-        logger.info("cerrando archivo "+enCuestion);
+        logger.info((confirmar ? "cerrando" : "cancelando")+" archivo "+enCuestion);
 
-        userHandler.cerrarArchivo(fileId);
-        fileHandler.closeFile(fileId);
+        // Una vez cerrado, aunque no se haya podido confirmar, los tickets del archivo dejan de ser validos
+        try {
+            if(confirmar) fileHandler.closeFile(fileId);
+            else fileHandler.descartarArchivo(fileId);
+        } catch (IOException e) {
+            logger.warning("no se ha podido guardar el archivo "+enCuestion+": "+e.getMessage());
+            throw new RemoteException("no se ha podido guardar el archivo "+fileId, e);
+        } finally {
+            if(canalDatos != null) canalDatos.revocar(fileId);
+        }
 
+        return true;
     }
 
 
@@ -328,8 +522,9 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
      * Devuelve un {@link ArrayList} de {@link Archivo}, que representa la lista de archivos que un {@link TokenUsuario usuario}
      * contiene en su carpeta contenedora dentro del servidor.
      * <br>
-     * Esta lista de archivos no contiene metadatos sobre los archivos (hash, hora ultima modificacion), para ello se debe
-     * ejecutar {@link #obtenerMetadatos(TokenUsuario, ArrayList)}.
+     * Esta lista de archivos no contiene el hash de los archivos, para ello se debe ejecutar
+     * {@link #obtenerMetadatos(TokenUsuario, ArrayList)}. La lista se obtiene del {@link IndiceArchivos} del servidor,
+     * sin recorrer la carpeta del usuario.
      *
      * @param usuario {@link TokenUsuario Usuario} cuya lista se quiere obtener. Previamente debe haber iniciado sesion.
      * @return {@link ArrayList} de {@link Archivo} sin metadatos.
@@ -342,13 +537,13 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
         if(!userHandler.isSessionActive(usuario.session_id)) return null;
 
         // Obtenemos la carpeta contenedora del usuario
-        Path toWalk = Paths.get(usersContainers.toString() , usuario.name);
+        Path toWalk = carpetaUsuario(usuario);
 
         // Si no existe dicha carpeta devolvemos null (primera vez que inicia sesion)
-        if(!toWalk.toFile().exists()) return null;
+        if(toWalk == null || !toWalk.toFile().exists()) return null;
 
-        // Obtenemos la lista de archivos hay en la carpeta contenedora del usuario
-        ArrayList<Archivo> listaRet = Utilidades.listFiles( toWalk );
+        // Obtenemos la lista de archivos hay en la carpeta contenedora del usuario, desde el indice en memoria
+        ListaArchivos listaRet = new ListaArchivos(fileHandler.getIndice().listar(usuario.name));
 
         // Mostramos informacion
         logger.info("listando archivos para "+usuario+" total de elementos="+listaRet.size());
@@ -357,6 +552,70 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
     }
 
 
+    /**
+     * Devuelve una pagina de la lista de archivos de un {@link TokenUsuario usuario}, obtenida del
+     * {@link IndiceArchivos} del servidor.
+     *
+     * @param usuario {@link TokenUsuario Usuario} cuya lista se quiere obtener. Previamente debe haber iniciado sesion.
+     * @param cursor cursor de la pagina anterior, o null para pedir la primera pagina.
+     * @param tamanoPagina numero maximo de archivos de la pagina, como mucho {@link VariablesGlobales#ARCHIVOS_POR_PAGINA}.
+     * @return {@link PaginaArchivos} con los archivos siguientes al cursor.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public PaginaArchivos listaArchivos(TokenUsuario usuario, String cursor, int tamanoPagina) throws RemoteException {
+
+        // Comprobamos que el usuario tenga una sesion activa
+        if(!userHandler.isSessionActive(usuario.session_id)) return null;
+
+        // Si el usuario no tiene carpeta contenedora devolvemos null (primera vez que inicia sesion)
+        Path carpeta = carpetaUsuario(usuario);
+        if(carpeta == null || !carpeta.toFile().exists()) return null;
+
+        int max = Math.max(1, Math.min(tamanoPagina, VariablesGlobales.ARCHIVOS_POR_PAGINA));
+        PaginaArchivos pagina = fileHandler.getIndice().pagina(usuario.name, cursor, max);
+
+        logger.info("listando archivos para "+usuario+" pagina de "+pagina.size()+" elementos");
+        return pagina;
+    }
+
+
+    /**
+     * Devuelve el cursor del diario de cambios de la carpeta de un {@link TokenUsuario usuario}, obtenido del
+     * {@link IndiceArchivos} del servidor.
+     * @param usuario {@link TokenUsuario Usuario} cuyo cursor se quiere obtener. Previamente debe haber iniciado sesion.
+     * @return {@link String cursor} de cambios.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public String cursorCambios(TokenUsuario usuario) throws RemoteException {
+        if(usuario == null || !userHandler.isSessionActive(usuario.session_id)) return null;
+
+        return fileHandler.getIndice().cursorCambios(usuario.name);
+    }
+
+
+    /**
+     * Devuelve los cambios de la carpeta de un {@link TokenUsuario usuario} posteriores al cursor indicado, obtenidos del
+     * diario del {@link IndiceArchivos} del servidor.
+     * @param usuario {@link TokenUsuario Usuario} cuyos cambios se quieren obtener. Previamente debe haber iniciado sesion.
+     * @param cursor {@link String cursor} de cambios.
+     * @param max numero maximo de cambios, como mucho {@link VariablesGlobales#ARCHIVOS_POR_PAGINA}.
+     * @return {@link CambiosArchivos} posteriores al cursor.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public CambiosArchivos cambiosDesde(TokenUsuario usuario, String cursor, int max) throws RemoteException {
+        if(usuario == null || !userHandler.isSessionActive(usuario.session_id)) return null;
+
+        int limite = Math.max(1, Math.min(max, VariablesGlobales.ARCHIVOS_POR_PAGINA));
+        CambiosArchivos cambios = fileHandler.getIndice().cambios(usuario.name, cursor, limite);
+
+        logger.info("enviando "+cambios.size()+" cambios a "+usuario+(cambios.reiniciar ? ", cursor no valido" : ""));
+        return cambios;
+    }
+
+
     /**
      * Devuelve la lista de archivos indicada, pero cada archivo contiene los metadatos.
      * @deprecated - el sistema ha cambiado, pero se puede seguir usando.
@@ -373,23 +632,83 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
             return null;
         }
 
+        // Los metadatos incluyen el hash, asi que no se deben poder pedir de archivos de fuera de la carpeta del usuario
+        for (Archivo a : lista) {
+            if(rutaUsuario(usuario, a) == null) return null;
+        }
+
         logger.info("obteniendo informacion de archivos de "+usuario+" con "+lista.size()+" elementos");
 
-        return Utilidades.obtenerMultiplesMetadatos(lista, Paths.get(usersContainers.toString() , usuario.name));
+        return new ListaArchivos(Utilidades.obtenerMultiplesMetadatos(lista, carpetaUsuario(usuario), cacheHashes));
         
     }
 
 
     /**
      * Devuelve el hash de un archivo disponible en el servidor.
-     * @param acalcular {@link Archivo} al cual calcular el hash md5.
-     * @return {@link String hasmd5} del archivo especificado.
+     * @param acalcular {@link Archivo} al cual calcular el hash.
+     * @return {@link String hash} del archivo especificado, con el formato {@code "<id>:<hex>"}, o null si la sesion no
+     * esta activa o el archivo esta fuera de la carpeta del usuario.
      * @throws RemoteException si ocurre un problema durante la ejecucion el metodo.
      */
     @Override
     public String calcularHash(Archivo acalcular, TokenUsuario usuario) throws RemoteException {
-        acalcular.parentFolder = usersContainers.resolve(usuario.name).toString();
-        return Utilidades.checkSumhash(acalcular.toFile());
+        if(acalcular == null || usuario == null || !userHandler.isSessionActive(usuario.session_id)) return null;
+        if(rutaUsuario(usuario, acalcular) == null) return null;
+
+        acalcular.parentFolder = carpetaUsuario(usuario).toString();
+        return cacheHashes.obtenerHash(acalcular);
+    }
+
+
+
+    /**
+     * Devuelve el hash de varios archivos disponibles en el servidor. Los hashes se calculan (u obtienen de la
+     * {@link CacheHashes cache}) de forma paralela con el {@link ServicioHashes#compartido() servicio de hashes}, que
+     * comparten todas las sesiones.
+     * @param usuario {@link TokenUsuario Usuario} que pide los hashes.
+     * @param archivos {@link ArrayList} de {@link Archivo} de los que se quiere obtener el hash.
+     * @param algoritmo identificador del {@link AlgoritmoHash algoritmo} que se quiere usar.
+     * @return {@link ArrayList} con el hash de cada archivo, en el mismo orden, o null si la sesion no es valida o el
+     * algoritmo no se soporta.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public ArrayList<String> calcularHashes(TokenUsuario usuario, ArrayList<Archivo> archivos, String algoritmo) throws RemoteException {
+        if(usuario == null || archivos == null || !userHandler.isSessionActive(usuario.session_id)) return null;
+
+        AlgoritmoHash alg = AlgoritmoHash.deId(algoritmo);
+        if(alg == null) return null;
+
+        for (Archivo a : archivos) {
+            if(rutaUsuario(usuario, a) == null) return null;
+        }
+
+        String carpetaUsuario = carpetaUsuario(usuario).toString();
+        archivos.forEach(a -> a.parentFolder = carpetaUsuario);
+
+        ArrayList<String> hashes = ServicioHashes.compartido().calcularHashes(archivos, cacheHashes, alg);
+
+        logger.info("calculados "+hashes.size()+" hashes para "+usuario);
+        return hashes;
+    }
+
+
+    /**
+     * Devuelve los identificadores de los {@link AlgoritmoHash algoritmos de hash} que soporta el servidor, por orden
+     * de preferencia: primero el de deteccion de cambios por defecto, y despues el resto.
+     * @return {@link ArrayList} de identificadores de algoritmos.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public ArrayList<String> algoritmosHash() throws RemoteException {
+        ArrayList<String> algoritmos = new ArrayList<>();
+        algoritmos.add(AlgoritmoHash.DETECCION.id);
+
+        for (AlgoritmoHash a : AlgoritmoHash.values()) {
+            if(a != AlgoritmoHash.DETECCION) algoritmos.add(a.id);
+        }
+        return algoritmos;
     }
 
 
@@ -422,11 +741,9 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
      * Dado que pueden ocurrir errores en la transimision de un bloque, se debe indicar la posicion
      * (offset de bytes) a partir de la cual leer el bloque.
      * <br>
-     * Los bloques se leen a traves de un {@link com.syncapp.utility.LectorArchivos}, que nos permite
-     * realizar esta lectura con offset, etc.
-     * <br>
-     * Para cada peticion, se abre y se cierra un nuevo {@link LectorArchivos} nuevo, para leer el bloque
-     * de bytes.
+     * Los bloques se leen a traves del {@link com.syncapp.utility.LectorArchivos} que {@link FileHandler} abrio al
+     * abrir el archivo en modo lectura. Este lector es compartido por todas las sesiones que leen el archivo, y lee
+     * cada bloque por posicion, por lo que no se abre ni se recorre el archivo en cada peticion.
      *
      * @param fileId identificador unico del archivo.
      * @param posicion posicion a partir de la cual se lee el archivo:
@@ -436,38 +753,57 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
     @Override
     public BloqueBytes leerBloqueBytes(int fileId, long posicion) throws RemoteException {
 
+        // Obtenemos el lector que se creo al abrir el archivo en modo lectura
+        LectorArchivos archivoActual = fileHandler.getReader(fileId);
+        if(archivoActual == null) {
+            logger.severe("el archivo "+fileId+" no esta abierto para lectura");
+            throw new ArchivoNoAbiertoException("El archivo no esta abierto para lectura");
+        }
 
-        LectorArchivos archivoActual = null;
-        BloqueBytes bb = null;
-
+        BloqueBytes bb;
         try {
-            // Creamos un nuevo Lector para poder leer los bytes
-            archivoActual = new LectorArchivos(fileHandler.getFilePath(fileId), "r" , fileId);
+            // Obtenemos el bloque de bytes
+            bb = archivoActual.leerBloqueBytes(posicion);
+            logger.info("leyendo bloque "+bb+" del archivo "+fileId);
+
+            // Una vez enviado por RMI el bloque no se vuelve a usar, asi que su buffer vuelve al almacen
+            if(bb != null) bb.liberarAlEnviar = true;
 
         } catch (IOException e) {
-            logger.severe("error al leer el bloque "+" position del archivo "+fileId);
+            logger.severe("error al leer el bloque "+posicion+" position del archivo "+fileId);
             e.printStackTrace();
             throw new RemoteException("Error al leer un bloque de bytes");
         }
 
+        // Devolvemos el bloque leido
+        return bb;
+    }
 
-        try {
-            // Obtenemos el bloque de bytes
-            bb = archivoActual.leerBloqueBytes(posicion);
-            logger.info("leyendo bloque "+bb+" del archivo "+fileId);
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Permite leer un {@link BloqueBytes} igual que {@link #leerBloqueBytes(int, long)}, comprimido si la sesion ha
+     * activado la compresion.
+     * <br>
+     * La compresion es adaptativa: con el primer bloque que la sesion pide del archivo se decide si el archivo se
+     * comprime ({@link CompresionBloques#merecePena(byte[], int)}), y esa decision se mantiene para el resto de bloques
+     * del archivo mientras la sesion lo tenga abierto. Los archivos con extension de un formato comprimido nunca se comprimen.
+     *
+     * @param fileId identificador unico del archivo.
+     * @param posicion posicion a partir de la cual se lee el archivo.
+     * @param usuario {@link TokenUsuario} de la sesion que lee el bloque.
+     * @return {@link BloqueBytes} a transimitir.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public BloqueBytes leerBloqueBytes(int fileId, long posicion, TokenUsuario usuario) throws RemoteException {
+        BloqueBytes bb = leerBloqueBytes(fileId, posicion);
 
-        try {
-            // Intentamos cerrar ese Lector de archivos
-            archivoActual.cerrarArchivo();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if(bb != null && usuario != null) {
+            bb.comprimir = userHandler.comprimirArchivo(usuario.session_id, fileId, () ->
+                    !CompresionBloques.formatoComprimido(fileHandler.getStringFilePath(fileId))
+                            && CompresionBloques.merecePena(bb.data, bb.size));
         }
 
-        // Devolvemos el bloque leido
         return bb;
     }
 
@@ -478,7 +814,8 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
      * (offset de bytes) a partir de la cual escribir el bloque.
      * <br>
      * Los bloques se escriben a traves de un {@link com.syncapp.utility.LectorArchivos}, que nos permite
-     * realizar esta escritura con offset, etc.
+     * realizar esta escritura con offset, etc. Cada bloque se escribe en su {@link BloqueBytes#position}, por lo que los
+     * bloques pueden llegar desordenados o repetidos.
      *
      * @param fileId identificador unico del archivo.
      * @param bloq_bytes {@link BloqueBytes} a transimitir.
@@ -491,6 +828,12 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
 
         // Obtenemos el lector de archivos que se creo al abrir el archivo (debido a que es escritura)
         LectorArchivos actual = fileHandler.getWriter(fileId);
+        if(actual == null) {
+            bloq_bytes.liberar();
+            logger.severe("el archivo "+fileId+" no esta abierto para escritura");
+            throw new ArchivoNoAbiertoException("El archivo no esta abierto para escritura");
+        }
+
         try {
             // Escribimos el bloque de bytes en el archivo
             logger.info("escribiendo el bloque "+bloq_bytes);
@@ -500,94 +843,214 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
             logger.severe("error al escribir el bloque "+bloq_bytes);
             ioe.printStackTrace();
             throw new RemoteException("Error al escribir el bloque de bytes en servidor");
+        } finally {
+            // El bloque se deserializo sobre un buffer del almacen, lo devolvemos
+            bloq_bytes.liberar();
         }
 
     }
 
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-    // Metodos para el funcionamiento del servicio
 
     /**
-     * Permite al cliente saber cual es la hora actual (en {@link Long milisegundos}) del servidor, para poder sincronizarse
-     * y saber la fecha relativa de un archivo.
-     *
-     * @return {@link Long ms} de la hora actual del servidor.
+     * Devuelve las {@link FirmaBloque firmas} de los bloques de un archivo del servidor, calculadas con
+     * {@link Delta#calcularFirmas(Path)}.
+     * @param usuario {@link TokenUsuario Usuario} que pide las firmas. Previamente debe haber iniciado sesion.
+     * @param archivo {@link Archivo} del que se quieren obtener las firmas.
+     * @return {@link ArrayList} de {@link FirmaBloque}, o null si el archivo no existe en el servidor.
      * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
      */
     @Override
-    public long obtenerHora() throws RemoteException {
-        
-        // int rand = (int) (Math.random()*100);
-        // simularRetardo(rand);
+    public ArrayList<FirmaBloque> obtenerFirmas(TokenUsuario usuario, Archivo archivo) throws RemoteException {
+        if(usuario == null || archivo == null || !userHandler.isSessionActive(usuario.session_id)) return null;
 
-        long hora = System.currentTimeMillis();
+        Path filepath = rutaUsuario(usuario, archivo);
+        if(filepath == null || !Files.isRegularFile(filepath)) return null;
 
-        // simularRetardo(rand);
-        
-        return hora;
+        try {
+            ArrayList<FirmaBloque> firmas = Delta.calcularFirmas(filepath);
+            logger.info("calculadas "+firmas.size()+" firmas de "+archivo+" para "+usuario);
+            return firmas;
+
+        } catch (IOException e) {
+            logger.severe("error al calcular las firmas de "+archivo);
+            e.printStackTrace();
+            throw new RemoteException("Error al calcular las firmas del archivo");
+        }
     }
 
 
     /**
-     * Permite al usuario realizar un ping para saber si el servidor esta funcionando. Ademas, se le puede dar un uso especifico,
-     * que es para obtener el tiempo minimo de transimision entre el cliente y el servidor.
-     *
+     * Reconstruye un archivo del servidor a partir de su version actual y las instrucciones indicadas. La nueva version
+     * se escribe en un archivo temporal junto al original, y se mueve sobre el original unicamente si tiene el tamaño
+     * esperado. Mientras tanto, el archivo queda reservado en {@link FileHandler} para que ninguna otra sesion lo abra.
+     * @param usuario {@link TokenUsuario Usuario} que quiere modificar el archivo.
+     * @param archivo {@link Archivo} que se quiere modificar, con el tamaño de su nueva version.
+     * @param delta {@link ArrayList} de {@link InstruccionDelta} que describen la nueva version.
+     * @return true si se ha reconstruido el archivo, false en caso contrario.
      * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
      */
     @Override
-    public void ping() throws RemoteException {
-        try {
-            logger.info("ping de "+getClientHost());
-        } catch (ServerNotActiveException e) {
-            throw new RuntimeException(e);
+    public boolean aplicarDelta(TokenUsuario usuario, Archivo archivo, ArrayList<InstruccionDelta> delta) throws RemoteException {
+        if(usuario == null || archivo == null || delta == null || !userHandler.isSessionActive(usuario.session_id)) {
+            return false;
         }
-    }
 
+        Path filepath = rutaUsuario(usuario, archivo);
+        if(filepath == null || !Files.isRegularFile(filepath)) return false;
 
-    
-
-    
+        // Reservamos el archivo, si otra sesion lo tiene abierto no se puede modificar
+        String path = filepath.toString();
+        if(!fileHandler.reservarArchivo(path)) return false;
 
+        Path temporal = filepath.resolveSibling(filepath.getFileName() + ".syncapp-delta");
+        try {
+            long escritos = Delta.aplicarDelta(filepath, delta, temporal, archivo.sizeInBytes);
 
+            // Si la nueva version no tiene el tamaño esperado, descartamos el resultado
+            if(escritos != archivo.sizeInBytes) {
+                logger.warning("la version reconstruida de "+archivo+" tiene "+escritos+" bytes, se esperaban "+archivo.sizeInBytes);
+                Files.deleteIfExists(temporal);
+                return false;
+            }
 
+            Files.move(temporal, filepath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("archivo "+archivo+" actualizado por diferencias con "+delta.size()+" instrucciones");
+            fileHandler.getAlmacen().indexarArchivo(filepath);
+            fileHandler.getIndice().actualizar(filepath);
+            return true;
 
+        } catch (IOException e) {
+            logger.severe("error al aplicar las diferencias sobre "+archivo);
+            e.printStackTrace();
+            try {
+                Files.deleteIfExists(temporal);
+            } catch (IOException ignored) {}
+            return false;
 
+        } finally {
+            fileHandler.liberarArchivo(path);
+        }
+    }
 
 
+    /**
+     * Permite saber que fragmentos de contenido tiene ya el servidor, consultando su {@link AlmacenFragmentos}. Unicamente
+     * se tienen en cuenta los fragmentos del propio usuario.
+     * @param usuario {@link TokenUsuario Usuario} que pregunta. Previamente debe haber iniciado sesion.
+     * @param hashes {@link ArrayList} de hashes de fragmentos.
+     * @return array con una posicion por hash, a true si el servidor tiene el fragmento. Null si la sesion no es valida.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public boolean[] tieneFragmentos(TokenUsuario usuario, ArrayList<String> hashes) throws RemoteException {
+        if(usuario == null || hashes == null || !userHandler.isSessionActive(usuario.session_id)) return null;
+        if(carpetaUsuario(usuario) == null) return null;
 
+        return fileHandler.getAlmacen().contiene(usuario.name, hashes);
+    }
 
 
+    /**
+     * Guarda en el {@link AlmacenFragmentos} un fragmento de contenido enviado por el cliente. Los fragmentos que no
+     * forman parte de ningun archivo ocupan espacio en el servidor, asi que cada sesion puede subir como mucho
+     * {@link VariablesGlobales#MAX_BYTES_FRAGMENTOS_SESION} bytes sin componerlos.
+     * @param usuario {@link TokenUsuario Usuario} que envia el fragmento.
+     * @param hash {@link String hash} del fragmento.
+     * @param datos contenido del fragmento.
+     * @return true si el servidor tiene ya el fragmento, false si no se ha aceptado.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public boolean subirFragmento(TokenUsuario usuario, String hash, byte[] datos) throws RemoteException {
+        if(usuario == null || hash == null || datos == null || !userHandler.isSessionActive(usuario.session_id)) return false;
+        if(carpetaUsuario(usuario) == null) return false;
 
+        AlmacenFragmentos almacen = fileHandler.getAlmacen();
+        if(almacen.contiene(usuario.name, hash)) return true;
 
+        // Si se supera el limite, el cliente sube el archivo completo
+        if(!userHandler.reservarFragmento(usuario.session_id, datos.length)) {
+            logger.warning("la sesion de "+usuario.name+" ha superado el limite de fragmentos sin componer");
+            return false;
+        }
 
+        boolean guardado = false;
+        try {
+            guardado = almacen.guardarFragmento(usuario.name, hash, datos);
+            return guardado;
+        } catch (IOException e) {
+            logger.severe("error al guardar el fragmento "+hash);
+            e.printStackTrace();
+            throw new RemoteException("Error al guardar el fragmento");
+        } finally {
+            if(!guardado) userHandler.liberarFragmentos(usuario.session_id, datos.length);
+        }
+    }
 
 
+    /**
+     * Compone un archivo del servidor a partir de su manifiesto. Al igual que en
+     * {@link #aplicarDelta(TokenUsuario, Archivo, ArrayList)}, el archivo se escribe en un temporal junto al original
+     * mientras esta reservado en {@link FileHandler}, y se mueve sobre el original unicamente si tiene el tamaño esperado.
+     * Unicamente se usan fragmentos del propio usuario, y un manifiesto con mas fragmentos de los que ocupa el tamaño
+     * indicado se rechaza antes de escribir nada.
+     * @param usuario {@link TokenUsuario Usuario} que quiere crear el archivo.
+     * @param archivo {@link Archivo} que se quiere crear, con su tamaño en {@link Archivo#sizeInBytes}.
+     * @param manifiesto {@link ArrayList} con el hash de cada fragmento, en orden.
+     * @return true si se ha compuesto el archivo, false en caso contrario.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public boolean componerArchivo(TokenUsuario usuario, Archivo archivo, ArrayList<String> manifiesto) throws RemoteException {
+        if(usuario == null || archivo == null || manifiesto == null || !userHandler.isSessionActive(usuario.session_id)) {
+            return false;
+        }
 
+        // Comprobamos la ruta antes de crear ninguna carpeta
+        Path filepath = rutaUsuario(usuario, archivo);
+        if(filepath == null) return false;
 
+        // El manifiesto puede repetir fragmentos, asi que no puede describir mas bytes de los indicados
+        if(archivo.sizeInBytes < 0 || manifiesto.size() > AlmacenFragmentos.maxFragmentos(archivo.sizeInBytes)) {
+            logger.warning("manifiesto de "+manifiesto.size()+" fragmentos no valido para "+archivo);
+            return false;
+        }
 
+        String path = filepath.toString();
+        if(!fileHandler.reservarArchivo(path)) return false;
 
+        Path temporal = filepath.resolveSibling(filepath.getFileName() + ".syncapp-fragmentos");
+        try {
+            Files.createDirectories(filepath.getParent());
+            long escritos = fileHandler.getAlmacen().componer(usuario.name, manifiesto, temporal, archivo.sizeInBytes);
+
+            // Si falta algun fragmento, o el resultado no tiene el tamaño esperado, descartamos el resultado
+            if(escritos != archivo.sizeInBytes) {
+                logger.warning("no se ha podido componer "+archivo+" a partir de "+manifiesto.size()+" fragmentos");
+                Files.deleteIfExists(temporal);
+                return false;
+            }
+
+            Files.move(temporal, filepath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileHandler.registrarArchivo(path);
+            long liberados = fileHandler.getAlmacen().registrarComposicion(usuario.name, manifiesto, filepath);
+            userHandler.liberarFragmentos(usuario.session_id, liberados);
+            fileHandler.getIndice().actualizar(filepath);
+            logger.info("archivo "+archivo+" compuesto a partir de "+manifiesto.size()+" fragmentos");
+            return true;
 
+        } catch (IOException e) {
+            logger.severe("error al componer "+archivo);
+            e.printStackTrace();
+            try {
+                Files.deleteIfExists(temporal);
+            } catch (IOException ignored) {}
+            return false;
 
+        } finally {
+            fileHandler.liberarArchivo(path);
+        }
+    }
 
 
 
@@ -610,38 +1073,130 @@ public class SyncAppServer extends UnicastRemoteObject implements SyncApp{
 
 
 
+    // Metodos para el funcionamiento del servicio
 
+    /**
+     * Permite al cliente saber cual es la hora actual (en {@link Long milisegundos}) del servidor, para poder sincronizarse
+     * y saber la fecha relativa de un archivo.
+     *
+     * @return {@link Long ms} de la hora actual del servidor.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public long obtenerHora() throws RemoteException {
+        
+        // int rand = (int) (Math.random()*100);
+        // simularRetardo(rand);
 
+        long hora = System.currentTimeMillis();
 
-    
+        // simularRetardo(rand);
+        
+        return hora;
+    }
 
 
+    /**
+     * Permite al usuario realizar un ping para saber si el servidor esta funcionando. Ademas, se le puede dar un uso especifico,
+     * que es para obtener el tiempo minimo de transimision entre el cliente y el servidor.
+     *
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public void ping() throws RemoteException {
+        try {
+            logger.info("ping de "+getClientHost());
+        } catch (ServerNotActiveException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
 
+    /**
+     * Permite a una sesion renovar su concesion, para que no caduque mientras transmite archivos por el canal de datos.
+     * <br>
+     * {@link SyncApp#ping(TokenUsuario)} para mas informacion.
+     *
+     * @param usuario {@link TokenUsuario} de la sesion.
+     * @return true si la sesion sigue activa.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public boolean ping(TokenUsuario usuario) throws RemoteException {
+        return usuario != null && userHandler.isSessionActive(usuario.session_id);
+    }
 
 
-    
+    /**
+     * Permite a una sesion activar o desactivar la compresion de los bloques que descarga. La compresion unicamente se
+     * activa para sesiones activas.
+     * <br>
+     * {@link SyncApp#negociarCompresion(TokenUsuario, boolean)} para mas informacion.
+     *
+     * @param usuario {@link TokenUsuario} de la sesion.
+     * @param comprimir true para activar la compresion, false para desactivarla.
+     * @return true si la compresion queda activada para la sesion.
+     * @throws RemoteException si ocurre un problema durante la ejecucion del metodo.
+     */
+    @Override
+    public boolean negociarCompresion(TokenUsuario usuario, boolean comprimir) throws RemoteException {
+        if(usuario == null || !userHandler.isSessionActive(usuario.session_id)) return false;
 
+        userHandler.setCompresion(usuario.session_id, comprimir);
+        logger.info("usuario "+usuario+(comprimir ? " activa" : " desactiva")+" la compresion de bloques");
+        return comprimir;
+    }
 
 
 
 
 
-    
 
 
 
 
 
 
-   
 
+    // Metodos auxiliares
 
+    /**
+     * Devuelve la carpeta contenedora de un usuario. Se comprueba que el nombre del usuario sea una unica carpeta dentro
+     * de la carpeta de contenedores, de forma que un nombre como ".." no de acceso a otras carpetas del servidor.
+     * @param usuario {@link TokenUsuario} del usuario.
+     * @return {@link Path ruta} normalizada de la carpeta del usuario, o null si el nombre no es valido.
+     */
+    private Path carpetaUsuario(TokenUsuario usuario) {
+        Path contenedores = usersContainers.toAbsolutePath().normalize();
+        try {
+            Path carpeta = contenedores.resolve(usuario.name).normalize();
+            if(contenedores.equals(carpeta.getParent())) return carpeta;
+        } catch (InvalidPathException | NullPointerException ignored) {}
 
+        logger.warning("nombre de usuario no valido: "+usuario);
+        return null;
+    }
 
 
+    /**
+     * Devuelve la ruta de un archivo dentro de la carpeta contenedora de un usuario. Las rutas las envia el cliente, asi
+     * que se normalizan y se comprueba que sigan dentro de la carpeta del usuario: una ruta absoluta o con ".." podria
+     * leer o escribir cualquier archivo del servidor. Tampoco se admiten los archivos parciales de otras escrituras.
+     * @param usuario {@link TokenUsuario} del usuario.
+     * @param archivo {@link Archivo} con la ruta relativa a la carpeta del usuario.
+     * @return {@link Path ruta} normalizada del archivo, o null si se sale de la carpeta del usuario.
+     */
+    private Path rutaUsuario(TokenUsuario usuario, Archivo archivo) {
+        Path carpeta = carpetaUsuario(usuario);
+        if(carpeta == null) return null;
 
-    
+        try {
+            Path ruta = carpeta.resolve(archivo.childFolder).normalize();
+            if(ruta.startsWith(carpeta) && !ruta.equals(carpeta) && !LectorArchivos.esParcial(ruta)) return ruta;
+        } catch (InvalidPathException | NullPointerException ignored) {}
 
+        logger.warning("la sesion de "+usuario+" ha pedido una ruta fuera de su carpeta: "+archivo.childFolder);
+        return null;
+    }
 
 }
@@ -1,38 +1,89 @@
 package com.syncapp.server;
 
 import com.syncapp.model.TokenUsuario;
+import com.syncapp.utility.VariablesGlobales;
+
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 
 /**
  * Esta clase nos permite controlar los usuarios que han iniciado sesion, los archivos que han abierto, etc.
+ * <br>
+ * Los metodos se invocan de forma concurrente desde los hilos RMI. Cada sesion activa tiene una entrada en una tabla
+ * concurrente indexada por su identificador, por lo que comprobar una sesion (lo que se hace en casi todas las
+ * peticiones) no recorre ninguna lista. Ademas, cada sesion guarda los archivos que tiene abiertos, de forma que al
+ * cerrarla unicamente se recorren sus propios archivos.
+ * <br>
+ * Las sesiones tienen una concesion de tiempo: cada peticion de la sesion (cualquier metodo que reciba su
+ * {@link String sessionId}) la renueva, y las sesiones que llevan mas tiempo del indicado sin renovarla se pueden
+ * obtener con {@link #sesionesCaducadas(long)}, para cerrarlas aunque el cliente no haya cerrado sesion.
  */
 public class UserHandler {
 
 
     /**
-     * Almacena un {@link TokenUsuario} para un {@link String sessionId}.
+     * Estado de una sesion activa.
      */
-    HashMap< String, TokenUsuario> userFromSessionId;
+    private static final class Sesion {
+
+        /**
+         * {@link TokenUsuario} que ha iniciado la sesion.
+         */
+        final TokenUsuario usuario;
+
+        /**
+         * Archivos abiertos por la sesion: {@link Integer identificador de archivo}/numero de veces que la sesion lo
+         * tiene abierto. Una misma sesion puede abrir varias veces un archivo para lectura, y cada apertura se debe
+         * cerrar.
+         */
+        final ConcurrentHashMap< Integer, Integer> archivos = new ConcurrentHashMap<>();
+
+        /**
+         * Indica si la sesion ha activado la compresion de los bloques que descarga.
+         */
+        volatile boolean compresion;
+
+        /**
+         * Decision de compresion de cada archivo que descarga la sesion ({@link Integer identificador de
+         * archivo}/{@link Boolean comprimir}). Es propia de la sesion, ya que varias sesiones pueden leer el mismo
+         * archivo con el mismo identificador, y se olvida al cerrar el archivo o la sesion.
+         */
+        final ConcurrentHashMap< Integer, Boolean> compresionArchivos = new ConcurrentHashMap<>();
+
+        /**
+         * Bytes de fragmentos que ha subido la sesion y que todavia no forman parte de ningun archivo compuesto. Se
+         * consulta y modifica sincronizando sobre la sesion.
+         */
+        long bytesFragmentos;
+
+        /**
+         * Indica si la sesion ya se ha cerrado. Se consulta y modifica sincronizando sobre la sesion.
+         */
+        boolean cerrada;
+
+        /**
+         * Hora (ms) de la ultima peticion de la sesion.
+         */
+        volatile long ultimaPeticion = System.currentTimeMillis();
+
+        Sesion(TokenUsuario usuario) {
+            this.usuario = usuario;
+        }
+    }
 
-    /**
-     * Almacena un {@link String sessionId} para un {@link String nombre de usuario}.
-     */
-    HashMap< String, String> sessionIdFromUsername;
 
     /**
-     * Almacena todos los {@link String idSesiones} que se han usado, para no asignar dos mismos id a diferentes
-     * usuarios, ya que los id son aleatorios.
+     * Almacena la {@link Sesion} de cada {@link String sessionId} activo. Como los id son aleatorios, una sesion
+     * unicamente se añade si su id no esta en uso.
      */
-    ArrayList<String> memoriaDeSesiones;
+    private final ConcurrentHashMap< String, Sesion> sesiones;
 
     /**
-     * Almacena un {@link HashMap} de {@link String identificador de archivo}/{@link String nombre de usuario} que lo ha
-     * abierto. Esto es util cuando un usuario cierra sesion mientras tiene archivos abiertos en escritura, y poder
-     * liberar esos archivos para que otras sesiones puedan abrirlos.
+     * Almacena un {@link String sessionId} para un {@link String nombre de usuario}.
      */
-    HashMap< String, String > archivosActivosEnSesion; //fileid - usuario
+    private final ConcurrentHashMap< String, String> sessionIdFromUsername;
 
 
 
@@ -51,10 +102,8 @@ public class UserHandler {
      * Constructor de {@link UserHandler} inicia los registros de los usuarios.
      */
     public UserHandler(){
-        userFromSessionId = new HashMap<>();
-        sessionIdFromUsername = new HashMap<>();
-        memoriaDeSesiones = new ArrayList<>();
-        archivosActivosEnSesion = new HashMap<>();
+        sesiones = new ConcurrentHashMap<>();
+        sessionIdFromUsername = new ConcurrentHashMap<>();
 
     }
 
@@ -82,17 +131,16 @@ public class UserHandler {
      * @return {@link String identificador} unico de la sesion.
      */
     public String iniciarSesion(TokenUsuario usuario) {
+        Sesion sesion = new Sesion(usuario);
 
-        // Generamos un identificador hasta que comprobemos que ese identificador no esta en uso.
-        String id = "";
+        // Generamos un identificador hasta que consigamos uno que no este en uso, y lo registramos a la vez.
+        String id;
         do {
             id = ""+( (int) (Math.random()*10000) );
-        } while (memoriaDeSesiones.contains(id));
+        } while (sesiones.putIfAbsent(id, sesion) != null);
 
         // Añadimos el usuario y su identificador de sesion a los registros de usuarios
-        userFromSessionId.put(id, usuario);
         sessionIdFromUsername.put(usuario.name, id);
-        memoriaDeSesiones.add(id);
 
         // Devolvemos el identificador
         return id;
@@ -102,10 +150,64 @@ public class UserHandler {
     /**
      * Este metodo permite enlazar un archivo con una sesion.
      * @param sessionId {@link String identificador} de la sesion que quiere abrir el archivo.
-     * @param fileId {@link String identificador} del archivo que se quiere abrir.
+     * @param fileId {@link Integer identificador} del archivo que se quiere abrir.
+     * @return {@link Boolean} indicando si se ha enlazado el archivo (false si la sesion no esta activa).
+     */
+    public boolean abrirArchivo(String sessionId, int fileId) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion == null) return false;
+
+        synchronized (sesion) {
+            if(sesion.cerrada) return false;
+
+            sesion.archivos.merge(fileId, 1, Integer::sum);
+            return true;
+        }
+    }
+
+
+    /**
+     * Este metodo permite activar o desactivar la compresion de los bloques que descarga una sesion.
+     * @param sessionId {@link String identificador} de la sesion.
+     * @param comprimir true para activar la compresion.
      */
-    public void abrirArchivo(String sessionId, int fileId) {
-        archivosActivosEnSesion.put(""+fileId, sessionId);
+    public void setCompresion(String sessionId, boolean comprimir) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion != null) sesion.compresion = comprimir;
+    }
+
+    /**
+     * Este metodo reserva espacio para un fragmento que sube una sesion, de forma que cada sesion puede tener como mucho
+     * {@link VariablesGlobales#MAX_BYTES_FRAGMENTOS_SESION} bytes de fragmentos subidos que no forman parte de ningun
+     * archivo.
+     * @param sessionId {@link String identificador} de la sesion.
+     * @param bytes tamaño del fragmento.
+     * @return {@link Boolean} indicando si se ha reservado el espacio (true) o se supera el limite (false).
+     */
+    public boolean reservarFragmento(String sessionId, long bytes) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion == null) return false;
+
+        synchronized (sesion) {
+            if(sesion.bytesFragmentos + bytes > VariablesGlobales.MAX_BYTES_FRAGMENTOS_SESION) return false;
+            sesion.bytesFragmentos += bytes;
+            return true;
+        }
+    }
+
+    /**
+     * Este metodo libera el espacio reservado con {@link #reservarFragmento(String, long)}, cuando los fragmentos pasan a
+     * formar parte de un archivo o no se han llegado a guardar.
+     * @param sessionId {@link String identificador} de la sesion.
+     * @param bytes bytes que se liberan.
+     */
+    public void liberarFragmentos(String sessionId, long bytes) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion == null) return;
+
+        synchronized (sesion) {
+            sesion.bytesFragmentos = Math.max(0, sesion.bytesFragmentos - bytes);
+        }
     }
 
 
@@ -132,21 +234,39 @@ public class UserHandler {
     // Comprobadores
 
     /**
-     * Este metodo comprueba si un archivo esta abierto por otra sesion.
-     * @param fileId {@link String identificador} del archivo que quermos comprobar.
+     * Este metodo comprueba si un archivo esta abierto por alguna sesion. Recorre todas las sesiones activas.
+     * @param fileId {@link Integer identificador} del archivo que quermos comprobar.
      * @return {@link Boolean} indicando si el archivo esta abierto(true) o no.
      */
     public boolean isOpen(int fileId) {
-        return archivosActivosEnSesion.containsKey(""+fileId);
+        for (Sesion sesion : sesiones.values()) {
+            if(sesion.archivos.containsKey(fileId)) return true;
+        }
+        return false;
     }
 
     /**
-     * Este metodo nos permite comprobar si una sesion esta activa.
+     * Este metodo nos permite comprobar si una sesion esta activa. Si lo esta, se renueva su concesion.
      * @param sessionId {@link String identificador} de la sesion.
      * @return {@link Boolean} indicando si la sesion esta activa (true) o no.
      */
     public boolean isSessionActive(String sessionId) {
-        return memoriaDeSesiones.contains(sessionId);
+        return getSesion(sessionId) != null;
+    }
+
+    /**
+     * Este metodo nos permite comprobar si una sesion debe comprimir los bloques que descarga de un archivo. La decision
+     * se toma con el primer bloque del archivo, y se mantiene mientras la sesion lo tenga abierto.
+     * @param sessionId {@link String identificador} de la sesion.
+     * @param fileId {@link Integer identificador} del archivo.
+     * @param decision {@link Supplier} que decide si el archivo se comprime, invocado unicamente con el primer bloque.
+     * @return {@link Boolean} indicando si el bloque se comprime (false si la sesion no usa compresion).
+     */
+    public boolean comprimirArchivo(String sessionId, int fileId, Supplier<Boolean> decision) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion == null || !sesion.compresion) return false;
+
+        return sesion.compresionArchivos.computeIfAbsent(fileId, id -> decision.get());
     }
 
 
@@ -166,29 +286,49 @@ public class UserHandler {
     // Finalizadores
 
     /**
-     * Este metodo nos permite cerrar de forma segura una sesion, cerrando todos los archivos asociados a la sesion.
+     * Este metodo nos permite eliminar una sesion de los registros, y devuelve los archivos que tenia abiertos para que
+     * se cierren. Una vez eliminada, la sesion ya no puede abrir mas archivos ({@link #abrirArchivo(String, int)}
+     * devuelve false).
      * @param sessionId {@link String identificador} de la sesion.
+     * @return {@link ArrayList} {@link Integer identificador} de los archivos que tenia abiertos la sesion, como en
+     * {@link #listFilesForSession(String)}.
      */
-    public void cerrarSesion(String sessionId) {
-        // Para cada archivo, comprobamos si la sesion que ha abierto el archivo es la sesion que queremos cerrar
-        archivosActivosEnSesion.forEach( (a,b) -> {
-            if(b.equals(sessionId)) {
-                archivosActivosEnSesion.remove(a);
-            }
-        } );
+    public ArrayList<Integer> cerrarSesion(String sessionId) {
+        if(sessionId == null) return new ArrayList<>();
 
         // Removemos la sesion de todos los registros
-        sessionIdFromUsername.remove( userFromSessionId.get(sessionId).name );
-        userFromSessionId.remove(sessionId);
-        memoriaDeSesiones.remove(sessionId);
+        Sesion sesion = sesiones.remove(sessionId);
+        if(sesion == null) return new ArrayList<>();
+        sessionIdFromUsername.remove(sesion.usuario.name, sessionId);
+
+        // Marcamos la sesion como cerrada, para que ningun archivo se enlace despues de obtener la lista
+        synchronized (sesion) {
+            sesion.cerrada = true;
+            return listarArchivos(sesion);
+        }
     }
 
     /**
      * Este metodo nos permite cerrar un archivo que hubiera abierto una sesion.
-     * @param fileId {@link String identificador} del archivo.
+     * @param sessionId {@link String identificador} de la sesion que cierra el archivo.
+     * @param fileId {@link Integer identificador} del archivo.
+     * @return {@link Boolean} indicando si la sesion tenia abierto el archivo. Si no lo tenia (o la sesion no esta
+     * activa), el archivo no se debe cerrar, ya que el identificador puede pertenecer a un archivo abierto por otra sesion.
      */
-    public void cerrarArchivo(int fileId) {
-        archivosActivosEnSesion.remove(""+fileId);
+    public boolean cerrarArchivo(String sessionId, int fileId) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion == null) return false;
+
+        // Si la sesion lo habia abierto varias veces, unicamente descontamos esta apertura
+        boolean[] abierto = { false };
+        sesion.archivos.computeIfPresent(fileId, (id, n) -> {
+            abierto[0] = true;
+            return (n > 1) ? n - 1 : null;
+        });
+
+        // Al cerrar la ultima apertura del archivo, se olvida si se comprimia
+        if(abierto[0] && !sesion.archivos.containsKey(fileId)) sesion.compresionArchivos.remove(fileId);
+        return abierto[0];
     }
 
 
@@ -213,22 +353,66 @@ public class UserHandler {
     // Obtener recursos
 
     /**
-     * Este metodo nos permite obtener una lista de todos los archivos que estan abiertos por una sesion.
+     * Este metodo nos permite obtener una lista de todos los archivos que estan abiertos por una sesion. Si la sesion
+     * ha abierto un archivo varias veces, aparece una vez por cada apertura.
      * @param sessionId {@link String identificador} de la sesion.
-     * @return {@link ArrayList} {@link String identificador} de los archivos abiertos por la sesion.
+     * @return {@link ArrayList} {@link Integer identificador} de los archivos abiertos por la sesion.
      */
     public ArrayList<Integer> listFilesForSession(String sessionId) {
+        Sesion sesion = getSesion(sessionId);
+        if(sesion == null) return new ArrayList<>();
+
+        return listarArchivos(sesion);
+    }
+
+
+    /**
+     * Este metodo nos permite obtener la lista de archivos de una {@link Sesion}, repitiendo cada archivo tantas veces
+     * como la sesion lo tiene abierto.
+     * @param sesion {@link Sesion} cuyos archivos se quieren obtener.
+     * @return {@link ArrayList} {@link Integer identificador} de los archivos abiertos por la sesion.
+     */
+    private static ArrayList<Integer> listarArchivos(Sesion sesion) {
         ArrayList<Integer> listaArchivosAbierto = new ArrayList<>();
-        archivosActivosEnSesion.forEach( (a,b) -> {
-            if(b.equals(sessionId)) {
-                listaArchivosAbierto.add(  Integer.parseInt(a)  );
-            }
+        sesion.archivos.forEach( (fileId, veces) -> {
+            for (int i = 0; i < veces; i++) listaArchivosAbierto.add(fileId);
         } );
 
         return listaArchivosAbierto;
     }
 
 
+    /**
+     * Este metodo nos permite obtener los identificadores de las sesiones cuya concesion ha caducado, es decir, que
+     * llevan mas de un tiempo sin hacer ninguna peticion. Las sesiones no se cierran.
+     * @param duracion tiempo maximo (ms) sin peticiones.
+     * @return {@link ArrayList} {@link String identificador} de las sesiones caducadas.
+     */
+    public ArrayList<String> sesionesCaducadas(long duracion) {
+        long limite = System.currentTimeMillis() - duracion;
+
+        ArrayList<String> caducadas = new ArrayList<>();
+        sesiones.forEach( (sessionId, sesion) -> {
+            if(sesion.ultimaPeticion < limite) caducadas.add(sessionId);
+        } );
+
+        return caducadas;
+    }
+
+
+    /**
+     * Este metodo nos permite obtener la {@link Sesion} de un identificador. Como todas las peticiones de una sesion
+     * pasan por aqui, tambien renueva su concesion.
+     * @param sessionId {@link String identificador} de la sesion.
+     * @return {@link Sesion} activa, o null si no existe.
+     */
+    private Sesion getSesion(String sessionId) {
+        Sesion sesion = (sessionId == null) ? null : sesiones.get(sessionId);
+        if(sesion != null) sesion.ultimaPeticion = System.currentTimeMillis();
+        return sesion;
+    }
+
+
 
 
 
@@ -0,0 +1,244 @@
+package com.syncapp.utility;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+
+/**
+ * Enumeracion de los algoritmos de hash que se pueden usar en el sistema.
+ * <br>
+ * Hay dos usos distintos de los hashes:
+ * <ul>
+ *     <li>
+ *         <b>Deteccion de cambios</b>: saber si un archivo ha cambiado entre el cliente y el servidor. Basta con un hash
+ *         rapido, como {@link #XXH64}, que es el algoritmo por defecto ({@link #DETECCION}).
+ *     </li>
+ *     <li>
+ *         <b>Identificacion de contenido</b>: deduplicar fragmentos y verificar que un contenido es el esperado. Aqui se
+ *         necesita un hash criptografico, {@link #SHA256} ({@link #CONTENIDO}), ya que otro usuario podria fabricar una
+ *         colision a proposito.
+ *     </li>
+ * </ul>
+ * Los hashes se representan como texto con el formato {@code "<id>:<hex>"}, por ejemplo {@code "xxh64:44bc2cf5ad770999"},
+ * de forma que el algoritmo viaja junto al hash dentro de {@link com.syncapp.model.Archivo#hash}. Los hashes sin
+ * identificador se consideran {@link #MD5}, que era el unico formato de versiones anteriores.
+ */
+public enum AlgoritmoHash {
+
+    XXH64("xxh64"),
+    MD5("md5"),
+    SHA256("sha256");
+
+    /**
+     * Algoritmo por defecto para detectar cambios en los archivos.
+     */
+    public static final AlgoritmoHash DETECCION = XXH64;
+
+    /**
+     * Algoritmo por defecto para identificar contenido (deduplicacion y verificacion).
+     */
+    public static final AlgoritmoHash CONTENIDO = SHA256;
+
+    /**
+     * Tabla para convertir cada medio byte a su caracter hexadecimal.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+
+
+    /**
+     * Identificador del algoritmo, que precede al hash en su representacion en texto.
+     */
+    public final String id;
+
+    AlgoritmoHash(String id) {
+        this.id = id;
+    }
+
+
+
+
+    /**
+     * Calculo incremental de un hash. Se obtiene con {@link #nuevoCalculo()}, se le añaden los datos con
+     * {@link #actualizar(byte[], int, int)} y se obtiene el hash en texto con {@link #resultado()}.
+     */
+    public interface Calculo {
+
+        /**
+         * Añade bytes al calculo del hash.
+         * @param datos array de bytes.
+         * @param offset primer byte a añadir.
+         * @param longitud numero de bytes a añadir.
+         */
+        void actualizar(byte[] datos, int offset, int longitud);
+
+        /**
+         * Añade al calculo los bytes restantes de un {@link ByteBuffer}, sin copiarlos a un array intermedio. La
+         * posicion del buffer avanza hasta su limite.
+         * @param datos buffer con los bytes a añadir.
+         */
+        void actualizar(ByteBuffer datos);
+
+        /**
+         * Finaliza el calculo. El calculo no se puede seguir usando despues.
+         * @return hash en formato {@code "<id>:<hex>"}.
+         */
+        String resultado();
+    }
+
+
+    /**
+     * Crea un nuevo calculo incremental con este algoritmo.
+     * @return {@link Calculo} vacio.
+     */
+    public Calculo nuevoCalculo() {
+        if (this == XXH64) {
+            Xxh64 xxh = new Xxh64();
+            return new Calculo() {
+                public void actualizar(byte[] datos, int offset, int longitud) { xxh.actualizar(datos, offset, longitud); }
+                public void actualizar(ByteBuffer datos) { xxh.actualizar(datos); }
+                public String resultado() { return formatear(xxh.resultado()); }
+            };
+        }
+
+        MessageDigest md = nuevoDigest();
+        return new Calculo() {
+            public void actualizar(byte[] datos, int offset, int longitud) { md.update(datos, offset, longitud); }
+            public void actualizar(ByteBuffer datos) { md.update(datos); }
+            public String resultado() { return formatear(md.digest()); }
+        };
+    }
+
+
+    /**
+     * Calcula el hash de un array de bytes.
+     * @param datos array de bytes.
+     * @param offset primer byte.
+     * @param longitud numero de bytes.
+     * @return hash en formato {@code "<id>:<hex>"}.
+     */
+    public String hash(byte[] datos, int offset, int longitud) {
+        Calculo c = nuevoCalculo();
+        c.actualizar(datos, offset, longitud);
+        return c.resultado();
+    }
+
+
+
+
+    // Formato de los hashes
+
+    /**
+     * Da formato a un resumen, con el identificador del algoritmo y los bytes en hexadecimal. Se escribe directamente
+     * en un unico array de caracteres, sin crear cadenas intermedias por cada byte.
+     * @param resumen bytes del hash.
+     * @return hash en formato {@code "<id>:<hex>"}.
+     */
+    public String formatear(byte[] resumen) {
+        char[] texto = new char[id.length() + 1 + resumen.length * 2];
+        int p = prefijo(texto);
+
+        for (byte b : resumen) {
+            texto[p++] = HEX[(b >> 4) & 0xF];
+            texto[p++] = HEX[b & 0xF];
+        }
+        return new String(texto);
+    }
+
+    /**
+     * Analogo a {@link #formatear(byte[])} para un hash de 64 bits, escrito en big-endian.
+     * @param resumen valor del hash.
+     * @return hash en formato {@code "<id>:<hex>"}.
+     */
+    public String formatear(long resumen) {
+        char[] texto = new char[id.length() + 1 + 16];
+        int p = prefijo(texto);
+
+        for (int desp = 60; desp >= 0; desp -= 4) {
+            texto[p++] = HEX[(int) (resumen >>> desp) & 0xF];
+        }
+        return new String(texto);
+    }
+
+    /**
+     * Convierte bytes a hexadecimal, sin identificador de algoritmo.
+     * @param bytes bytes a convertir.
+     * @return {@link String} hexadecimal.
+     */
+    public static String hex(byte[] bytes) {
+        char[] texto = new char[bytes.length * 2];
+        int p = 0;
+        for (byte b : bytes) {
+            texto[p++] = HEX[(b >> 4) & 0xF];
+            texto[p++] = HEX[b & 0xF];
+        }
+        return new String(texto);
+    }
+
+
+
+
+    // Negociacion
+
+    /**
+     * Obtiene el algoritmo con el que se ha calculado un hash en texto.
+     * @param hash hash en formato {@code "<id>:<hex>"}, o hexadecimal sin identificador para md5.
+     * @return {@link AlgoritmoHash} del hash, o null si el identificador no se reconoce.
+     */
+    public static AlgoritmoHash deHash(String hash) {
+        if (hash == null) return null;
+
+        int separador = hash.indexOf(':');
+        return (separador < 0) ? MD5 : deId(hash.substring(0, separador));
+    }
+
+    /**
+     * Obtiene el algoritmo con el identificador indicado.
+     * @param id identificador del algoritmo.
+     * @return {@link AlgoritmoHash}, o null si el identificador no se reconoce.
+     */
+    public static AlgoritmoHash deId(String id) {
+        for (AlgoritmoHash a : values()) {
+            if (a.id.equals(id)) return a;
+        }
+        return null;
+    }
+
+    /**
+     * Elige el algoritmo de deteccion de cambios a usar con la otra parte: el primero de los que soporta la otra parte
+     * (en su orden de preferencia) que tambien se soporte aqui. Si no hay ninguno en comun, se usa {@link #MD5}, que
+     * soportan todas las versiones.
+     * @param soportados identificadores de los algoritmos que soporta la otra parte, por orden de preferencia.
+     * @return {@link AlgoritmoHash} acordado.
+     */
+    public static AlgoritmoHash negociar(List<String> soportados) {
+        if (soportados != null) {
+            for (String id : soportados) {
+                AlgoritmoHash a = deId(id);
+                if (a != null) return a;
+            }
+        }
+        return MD5;
+    }
+
+
+
+
+    private MessageDigest nuevoDigest() {
+        try {
+            return MessageDigest.getInstance(this == SHA256 ? "SHA-256" : "MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int prefijo(char[] texto) {
+        id.getChars(0, id.length(), texto, 0);
+        texto[id.length()] = ':';
+        return id.length() + 1;
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.syncapp.utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.syncapp.model.Archivo;
+
+
+/**
+ * Cache persistente de los hashes de los archivos de una carpeta.
+ * <br>
+ * Calcular el hash de un archivo ({@link Utilidades#checkSumhash(Archivo)}) obliga a leerlo entero, y durante una
+ * sincronizacion se calcula el hash de todos los archivos que existen tanto en el cliente como en el servidor. Sin
+ * embargo, si un archivo no ha cambiado, su hash tampoco. Esta clase guarda el hash de cada archivo junto a su tamaño y
+ * su fecha de ultima modificacion, y unicamente lo vuelve a calcular si alguno de los dos ha cambiado.
+ * <br>
+ * Las entradas se identifican por la ruta del archivo relativa a la carpeta base, y se guardan en un indice binario en
+ * disco, para que la cache se mantenga entre ejecuciones. El indice guarda la carpeta base, y si al cargarlo no coincide
+ * con la actual, se descarta.
+ */
+public class CacheHashes {
+
+    /**
+     * Entrada de la cache.
+     */
+    private static class Entrada {
+        final long size;
+        final long modificado;
+        final String hash;
+
+        Entrada(long size, long modificado, String hash) {
+            this.size = size;
+            this.modificado = modificado;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Identificador del formato del indice, que se escribe al principio del mismo.
+     */
+    private static final int FORMATO = 0x53414831; // "SAH1"
+
+    /**
+     * Margen en milisegundos durante el cual no se guarda el hash de un archivo recien modificado. Muchos sistemas de
+     * archivos guardan la fecha de modificacion con poca precision, asi que un archivo que se modifica dos veces en el
+     * mismo instante podria mantener su tamaño y fecha con un contenido distinto.
+     */
+    private static final long MARGEN_MODIFICACION = 2000;
+
+
+
+
+    /**
+     * Carpeta base, respecto a la cual se relativizan las rutas de los archivos.
+     */
+    private final Path base;
+
+    /**
+     * Archivo en el que se guarda el indice.
+     */
+    private final Path indice;
+
+    /**
+     * Se almacena la pareja {@link String ruta relativa}/{@link Entrada}.
+     */
+    private final HashMap<String, Entrada> entradas;
+
+    /**
+     * Indica si la cache ha cambiado desde que se guardo por ultima vez.
+     */
+    private boolean modificada;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea la cache para la carpeta indicada, cargando el indice si existe.
+     * @param base {@link Path carpeta} cuyos archivos se van a consultar.
+     * @param indice {@link Path archivo} en el que se guarda el indice. No deberia estar dentro de la carpeta base, para
+     *                               que no se sincronice.
+     */
+    public CacheHashes(Path base, Path indice) {
+        this.base = base.toAbsolutePath().normalize();
+        this.indice = indice;
+        this.entradas = new HashMap<>();
+
+        try {
+            cargar();
+        } catch (IOException e) {
+            // Un indice dañado unicamente implica volver a calcular los hashes
+            entradas.clear();
+            e.printStackTrace();
+        }
+    }
+
+
+
+
+    // Consultas
+
+    /**
+     * Devuelve el hash de un archivo, calculado con el algoritmo de deteccion de cambios por defecto
+     * ({@link AlgoritmoHash#DETECCION}).
+     * @param archivo {@link Archivo} del que se quiere obtener el hash.
+     * @return {@link String hash} del archivo, o null si no existe.
+     */
+    public String obtenerHash(Archivo archivo) {
+        return obtenerHash(archivo, AlgoritmoHash.DETECCION);
+    }
+
+
+    /**
+     * Devuelve el hash de un archivo. Si el archivo tiene el mismo tamaño y fecha de modificacion que cuando se calculo
+     * su hash por ultima vez, y se calculo con el mismo algoritmo, se devuelve el hash guardado; en otro caso se calcula
+     * y se guarda.
+     * @param archivo {@link Archivo} del que se quiere obtener el hash.
+     * @param algoritmo {@link AlgoritmoHash} con el que se quiere el hash.
+     * @return {@link String hash} del archivo, o null si no existe.
+     */
+    public String obtenerHash(Archivo archivo, AlgoritmoHash algoritmo) {
+        if(archivo == null) return null;
+
+        BasicFileAttributes atributos;
+        try {
+            atributos = Files.readAttributes(archivo.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+
+        return obtenerHash(archivo, algoritmo, atributos);
+    }
+
+
+    /**
+     * Analogo a {@link #obtenerHash(Archivo, AlgoritmoHash)}, pero con los atributos del archivo ya leidos, para no
+     * volver a consultar el disco.
+     * @param archivo {@link Archivo} del que se quiere obtener el hash.
+     * @param algoritmo {@link AlgoritmoHash} con el que se quiere el hash.
+     * @param atributos {@link BasicFileAttributes atributos} actuales del archivo.
+     * @return {@link String hash} del archivo, o null si no existe.
+     */
+    public String obtenerHash(Archivo archivo, AlgoritmoHash algoritmo, BasicFileAttributes atributos) {
+        if(archivo == null || atributos == null) return null;
+
+        Path ruta = archivo.toPath().toAbsolutePath().normalize();
+        String clave = base.relativize(ruta).toString();
+        long size = atributos.size();
+        long modificado = atributos.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            Entrada e = entradas.get(clave);
+            if(e != null && e.size == size && e.modificado == modificado && AlgoritmoHash.deHash(e.hash) == algoritmo) {
+                return e.hash;
+            }
+        }
+
+        // El calculo se hace fuera del bloque sincronizado, para poder calcular varios hashes a la vez
+        String hash = Utilidades.checkSumhash(archivo, algoritmo);
+        if(hash == null) return null;
+
+        synchronized (this) {
+            if(System.currentTimeMillis() - modificado > MARGEN_MODIFICACION) {
+                entradas.put(clave, new Entrada(size, modificado, hash));
+            } else {
+                entradas.remove(clave);
+            }
+            modificada = true;
+        }
+
+        return hash;
+    }
+
+
+    /**
+     * Elimina de la cache la entrada de un archivo, por ejemplo porque se ha borrado.
+     * @param archivo {@link Archivo} que se quiere eliminar.
+     */
+    public synchronized void eliminar(Archivo archivo) {
+        if(archivo == null) return;
+
+        String clave = base.relativize(archivo.toPath().toAbsolutePath().normalize()).toString();
+        if(entradas.remove(clave) != null) modificada = true;
+    }
+
+
+
+
+    // Persistencia
+
+    /**
+     * Guarda el indice en disco si la cache ha cambiado. El indice se escribe en un archivo temporal que luego se mueve
+     * sobre el anterior, para que nunca quede un indice a medio escribir.
+     * <br>
+     * Formato: {@code FORMATO, base, numEntradas} y, por cada entrada, {@code ruta, size, modificado, hash}.
+     */
+    public synchronized void guardar() {
+        if(!modificada) return;
+
+        Path temporal = indice.resolveSibling(indice.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(indice.toAbsolutePath().getParent());
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+                out.writeInt(FORMATO);
+                out.writeUTF(base.toString());
+                out.writeInt(entradas.size());
+
+                for (HashMap.Entry<String, Entrada> e : entradas.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().size);
+                    out.writeLong(e.getValue().modificado);
+                    out.writeUTF(e.getValue().hash);
+                }
+            }
+
+            Files.move(temporal, indice, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modificada = false;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Guarda el indice periodicamente desde un hilo en segundo plano, y al terminar la maquina virtual. Es util en el
+     * servidor, que no tiene un momento concreto en el que terminen las consultas.
+     * @param segundos periodo de guardado, en segundos.
+     */
+    public void programarGuardado(long segundos) {
+        ScheduledExecutorService guardado = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "guardado-cache-hashes");
+            t.setDaemon(true);
+            return t;
+        });
+        guardado.scheduleWithFixedDelay(this::guardar, segundos, segundos, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::guardar));
+    }
+
+
+    /**
+     * Carga el indice desde disco. Si no existe, o pertenece a otra carpeta base, la cache empieza vacia.
+     * @throws IOException si el indice no se puede leer.
+     */
+    private synchronized void cargar() throws IOException {
+        if(!Files.exists(indice)) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indice)))) {
+            if(in.readInt() != FORMATO || !in.readUTF().equals(base.toString())) return;
+
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String clave = in.readUTF();
+                long size = in.readLong();
+                long modificado = in.readLong();
+                entradas.put(clave, new Entrada(size, modificado, in.readUTF()));
+            }
+        }
+    }
+
+}
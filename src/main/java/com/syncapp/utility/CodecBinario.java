@@ -0,0 +1,319 @@
+package com.syncapp.utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Codificacion binaria compacta de los objetos que viajan por RMI.
+ * <br>
+ * La serializacion por defecto de Java escribe cada campo con su tamaño fijo (8 bytes por cada long), y cada cadena con
+ * su propia cabecera. Esta clase ofrece los metodos con los que las clases del modelo escriben sus campos a mano en
+ * {@code writeObject}/{@code readObject}:
+ * <ul>
+ *     <li>
+ *         Enteros de longitud variable (varint): 7 bits por byte, de forma que los numeros pequeños (tamaños,
+ *         identificadores, longitudes) ocupan uno o dos bytes. Los numeros con signo se codifican en zigzag.
+ *     </li>
+ *     <li>
+ *         Cadenas en UTF-8 precedidas por su longitud en varint.
+ *     </li>
+ *     <li>
+ *         Compresion de prefijos: en una lista de rutas, cada ruta suele compartir el principio con la anterior
+ *         (misma carpeta). Se escribe unicamente cuantos caracteres comparte con la ruta anterior de la lista, y el
+ *         resto de la ruta.
+ *     </li>
+ *     <li>
+ *         Hashes con formato {@code "<id>:<hex>"} como el algoritmo y sus bytes, la mitad que en hexadecimal.
+ *     </li>
+ * </ul>
+ * Para la compresion de prefijos, la lista que se serializa (por ejemplo, {@link com.syncapp.model.ListaArchivos})
+ * crea unos {@link Prefijos} al escribirse y otros al leerse, que recuerdan la ultima ruta de cada {@link Campo campo}.
+ * Como los elementos se leen en el mismo orden en el que se escriben, ambos lados tienen siempre la misma ruta anterior.
+ */
+public class CodecBinario {
+
+    /**
+     * Campos que se comprimen por prefijo. Cada campo tiene su propia ruta anterior en cada lista.
+     */
+    public enum Campo {
+        RUTA_ARCHIVO,
+        CARPETA_ARCHIVO,
+        RUTA_PAGINA
+    }
+
+    /**
+     * Ultimo valor de cada {@link Campo} escrito o leido en una lista. Cada lista crea los suyos al serializarse, de forma
+     * que no se comparte ningun estado entre flujos ni entre hilos.
+     */
+    public static final class Prefijos {
+        private final String[] anteriores = new String[Campo.values().length];
+    }
+
+    /**
+     * Numero maximo de bytes de una cadena leida. Las cadenas son rutas, nombres, sesiones y cursores; las rutas mas
+     * largas que admiten los sistemas de archivos (32767 caracteres en Windows) caben con holgura.
+     */
+    public static final int MAX_BYTES_TEXTO = 131072;
+
+    /**
+     * Numero maximo de bytes de un hash binario leido (los 64 de SHA-512).
+     */
+    public static final int MAX_BYTES_HASH = 64;
+
+    /**
+     * Valor de hash que indica que no hay hash.
+     */
+    private static final int HASH_NULO = 0;
+
+    /**
+     * Valor de hash que indica que el hash se escribe como texto.
+     */
+    private static final int HASH_TEXTO = 1;
+
+
+
+
+    // Enteros
+
+    /**
+     * Escribe un entero sin signo en formato varint.
+     * @param out flujo de salida.
+     * @param valor entero a escribir, interpretado sin signo.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    public static void escribirVarint(DataOutput out, long valor) throws IOException {
+        while ((valor & ~0x7FL) != 0) {
+            out.writeByte((int) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        out.writeByte((int) valor);
+    }
+
+    /**
+     * Lee un entero sin signo en formato varint.
+     * @param in flujo de entrada.
+     * @return entero leido.
+     * @throws IOException si ocurre un problema al leer, o el varint tiene mas de 10 bytes.
+     */
+    public static long leerVarint(DataInput in) throws IOException {
+        long valor = 0;
+        for (int desp = 0; desp < 64; desp += 7) {
+            int b = in.readUnsignedByte();
+            valor |= (long) (b & 0x7F) << desp;
+            if ((b & 0x80) == 0) return valor;
+        }
+        throw new IOException("varint demasiado largo");
+    }
+
+    /**
+     * Escribe un entero con signo en formato varint, codificado en zigzag (0, -1, 1, -2, ...), de forma que los
+     * numeros negativos pequeños tambien ocupan pocos bytes.
+     * @param out flujo de salida.
+     * @param valor entero a escribir.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    public static void escribirZigzag(DataOutput out, long valor) throws IOException {
+        escribirVarint(out, (valor << 1) ^ (valor >> 63));
+    }
+
+    /**
+     * Lee un entero con signo escrito con {@link #escribirZigzag(DataOutput, long)}.
+     * @param in flujo de entrada.
+     * @return entero leido.
+     * @throws IOException si ocurre un problema al leer.
+     */
+    public static long leerZigzag(DataInput in) throws IOException {
+        long v = leerVarint(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Lee una longitud o numero de elementos, comprobando que sea valido.
+     * @param in flujo de entrada.
+     * @return longitud leida.
+     * @throws IOException si ocurre un problema al leer, o la longitud no es valida.
+     */
+    public static int leerLongitud(DataInput in) throws IOException {
+        long n = leerVarint(in);
+        if (n < 0 || n > Integer.MAX_VALUE) throw new IOException("longitud no valida: " + n);
+        return (int) n;
+    }
+
+
+
+
+    // Cadenas
+
+    /**
+     * Escribe una cadena en UTF-8 precedida por su longitud. Admite null.
+     * @param out flujo de salida.
+     * @param texto cadena a escribir, o null.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    public static void escribirTexto(DataOutput out, String texto) throws IOException {
+        if (texto == null) {
+            escribirVarint(out, 0);
+            return;
+        }
+
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        escribirVarint(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    /**
+     * Lee una cadena escrita con {@link #escribirTexto(DataOutput, String)}. La longitud se comprueba antes de reservar
+     * memoria para la cadena.
+     * @param in flujo de entrada.
+     * @return cadena leida, o null.
+     * @throws IOException si ocurre un problema al leer, o la cadena supera {@link #MAX_BYTES_TEXTO}.
+     */
+    public static String leerTexto(DataInput in) throws IOException {
+        int n = leerLongitud(in);
+        if (n == 0) return null;
+        if (n - 1 > MAX_BYTES_TEXTO) throw new IOException("cadena demasiado larga: " + (n - 1) + " bytes");
+
+        byte[] bytes = new byte[n - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Escribe una cadena comprimida respecto a la anterior cadena del mismo campo escrita en la lista: el numero de
+     * caracteres iniciales que comparten, y el resto de la cadena. Admite null.
+     * @param out flujo de salida.
+     * @param prefijos {@link Prefijos} de la lista que se esta escribiendo.
+     * @param campo {@link Campo} al que pertenece la cadena.
+     * @param texto cadena a escribir, o null.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    public static void escribirConPrefijo(DataOutput out, Prefijos prefijos, Campo campo, String texto) throws IOException {
+        String[] ultimos = prefijos.anteriores;
+        String anterior = ultimos[campo.ordinal()];
+
+        int comun = 0;
+        if (texto != null && anterior != null) {
+            int max = Math.min(texto.length(), anterior.length());
+            while (comun < max && texto.charAt(comun) == anterior.charAt(comun)) comun++;
+
+            // No partimos un caracter que ocupa dos posiciones
+            if (comun > 0 && comun < texto.length() && Character.isHighSurrogate(texto.charAt(comun - 1))) comun--;
+        }
+
+        escribirVarint(out, comun);
+        escribirTexto(out, (texto == null) ? null : texto.substring(comun));
+        if (texto != null) ultimos[campo.ordinal()] = texto;
+    }
+
+    /**
+     * Lee una cadena escrita con {@link #escribirConPrefijo(DataOutput, Prefijos, Campo, String)}.
+     * @param in flujo de entrada.
+     * @param prefijos {@link Prefijos} de la lista que se esta leyendo.
+     * @param campo {@link Campo} al que pertenece la cadena.
+     * @return cadena leida, o null.
+     * @throws IOException si ocurre un problema al leer, o el prefijo no coincide con la cadena anterior.
+     */
+    public static String leerConPrefijo(DataInput in, Prefijos prefijos, Campo campo) throws IOException {
+        String[] ultimos = prefijos.anteriores;
+        String anterior = ultimos[campo.ordinal()];
+
+        int comun = leerLongitud(in);
+        String resto = leerTexto(in);
+        if (resto == null) return null;
+
+        if (comun > 0 && (anterior == null || comun > anterior.length())) {
+            throw new IOException("prefijo no valido: " + comun);
+        }
+
+        String texto = (comun == 0) ? resto : anterior.substring(0, comun).concat(resto);
+        ultimos[campo.ordinal()] = texto;
+        return texto;
+    }
+
+
+
+
+    // Hashes
+
+    /**
+     * Escribe un hash. Si tiene el formato {@code "<id>:<hex>"} de un {@link AlgoritmoHash} conocido, se escriben el
+     * algoritmo y los bytes del hash; en otro caso, se escribe como texto. Admite null.
+     * @param out flujo de salida.
+     * @param hash hash a escribir, o null.
+     * @throws IOException si ocurre un problema al escribir.
+     */
+    public static void escribirHash(DataOutput out, String hash) throws IOException {
+        if (hash == null) {
+            escribirVarint(out, HASH_NULO);
+            return;
+        }
+
+        int separador = hash.indexOf(':');
+        AlgoritmoHash algoritmo = (separador < 0) ? null : AlgoritmoHash.deId(hash.substring(0, separador));
+        byte[] bytes = (algoritmo == null) ? null : deHex(hash, separador + 1);
+
+        if (bytes == null || bytes.length > MAX_BYTES_HASH) {
+            escribirVarint(out, HASH_TEXTO);
+            escribirTexto(out, hash);
+            return;
+        }
+
+        escribirVarint(out, HASH_TEXTO + 1 + algoritmo.ordinal());
+        escribirVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Lee un hash escrito con {@link #escribirHash(DataOutput, String)}.
+     * @param in flujo de entrada.
+     * @return hash leido, o null.
+     * @throws IOException si ocurre un problema al leer, o el hash binario supera {@link #MAX_BYTES_HASH}.
+     */
+    public static String leerHash(DataInput in) throws IOException {
+        int tipo = leerLongitud(in);
+        if (tipo == HASH_NULO) return null;
+        if (tipo == HASH_TEXTO) return leerTexto(in);
+
+        AlgoritmoHash[] algoritmos = AlgoritmoHash.values();
+        if (tipo - HASH_TEXTO - 1 >= algoritmos.length) throw new IOException("algoritmo de hash desconocido: " + tipo);
+
+        int n = leerLongitud(in);
+        if (n > MAX_BYTES_HASH) throw new IOException("hash demasiado largo: " + n + " bytes");
+
+        byte[] bytes = new byte[n];
+        in.readFully(bytes);
+        return algoritmos[tipo - HASH_TEXTO - 1].formatear(bytes);
+    }
+
+    /**
+     * Convierte a bytes la parte hexadecimal de un hash, si esta en el formato que genera
+     * {@link AlgoritmoHash#formatear(byte[])} (minusculas y numero par de caracteres).
+     * @param hash hash en texto.
+     * @param inicio posicion del primer caracter hexadecimal.
+     * @return bytes del hash, o null si no tiene ese formato.
+     */
+    private static byte[] deHex(String hash, int inicio) {
+        int n = hash.length() - inicio;
+        if (n == 0 || n % 2 != 0) return null;
+
+        byte[] bytes = new byte[n / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int alto = valorHex(hash.charAt(inicio + 2 * i));
+            int bajo = valorHex(hash.charAt(inicio + 2 * i + 1));
+            if (alto < 0 || bajo < 0) return null;
+            bytes[i] = (byte) ((alto << 4) | bajo);
+        }
+        return bytes;
+    }
+
+    private static int valorHex(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+}
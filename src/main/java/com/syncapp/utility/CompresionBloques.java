@@ -0,0 +1,164 @@
+package com.syncapp.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compresion de los bytes de los {@link com.syncapp.model.BloqueBytes bloques} que se transmiten por RMI.
+ * <br>
+ * Los archivos de texto (codigo, CSV, logs...) ocupan entre 5 y 10 veces menos comprimidos, pero comprimir archivos que
+ * ya estan comprimidos (imagenes, video, zip...) unicamente gasta CPU. Por eso la compresion es adaptativa: antes de
+ * transmitir un archivo se comprime una {@link #BYTES_MUESTRA muestra} de su primer bloque, y el archivo unicamente se
+ * comprime si la muestra se reduce lo suficiente. Los archivos con extension de un formato comprimido ni siquiera se
+ * muestrean.
+ * <br>
+ * Se usa {@link Deflater} al nivel mas rapido ({@link Deflater#BEST_SPEED}), sin cabecera ni suma de comprobacion
+ * (el propio bloque ya indica su tamaño). Cada hilo reutiliza su propio {@link Deflater} e {@link Inflater}.
+ */
+public class CompresionBloques {
+
+    /**
+     * Numero de bytes de la muestra con la que se decide si se comprime un archivo.
+     */
+    public static final int BYTES_MUESTRA = 64000;
+
+    /**
+     * Proporcion (tamaño comprimido / tamaño original) a partir de la cual no merece la pena comprimir.
+     */
+    private static final double PROPORCION_MAXIMA = 0.9;
+
+    /**
+     * Extensiones de formatos que ya estan comprimidos.
+     */
+    private static final Set<String> EXTENSIONES_COMPRIMIDAS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "m4a",
+            "mp4", "mkv", "avi", "mov", "webm",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "epub");
+
+    private static final ThreadLocal<Deflater> compresores = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> descompresores = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Buffer de cada hilo para comprimir las muestras.
+     */
+    private static final ThreadLocal<byte[]> muestras = ThreadLocal.withInitial(() -> new byte[BYTES_MUESTRA]);
+
+
+
+
+    /**
+     * Constructor privado, ya que unicamente se usan los metodos estaticos.
+     */
+    private CompresionBloques() {}
+
+
+
+
+    // Compresion
+
+    /**
+     * Comprime los primeros bytes de un array, siempre que comprimidos no superen un maximo.
+     * @param datos bytes que se quieren comprimir.
+     * @param longitud numero de bytes de {@code datos} que se comprimen.
+     * @param destino array en el que se escriben los bytes comprimidos.
+     * @param maximo numero maximo de bytes comprimidos. No puede superar la longitud de {@code destino}.
+     * @return numero de bytes comprimidos, o -1 si superan el maximo.
+     */
+    public static int comprimir(byte[] datos, int longitud, byte[] destino, int maximo) {
+        Deflater deflater = compresores.get();
+        deflater.reset();
+        deflater.setInput(datos, 0, longitud);
+        deflater.finish();
+
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n >= maximo) return -1;
+            n += deflater.deflate(destino, n, maximo - n);
+        }
+        return n;
+    }
+
+    /**
+     * Descomprime unos bytes comprimidos con {@link #comprimir(byte[], int, byte[], int)}.
+     * @param comprimidos bytes comprimidos.
+     * @param longitud numero de bytes de {@code comprimidos}.
+     * @param destino array en el que se escriben los bytes originales.
+     * @param longitudOriginal numero de bytes originales.
+     * @throws IOException si los bytes comprimidos no son validos, o no ocupan la longitud original.
+     */
+    public static void descomprimir(byte[] comprimidos, int longitud, byte[] destino, int longitudOriginal) throws IOException {
+        Inflater inflater = descompresores.get();
+        inflater.reset();
+        inflater.setInput(comprimidos, 0, longitud);
+
+        try {
+            int n = 0;
+            while (n < longitudOriginal && !inflater.finished()) {
+                int k = inflater.inflate(destino, n, longitudOriginal - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += k;
+            }
+            if (n != longitudOriginal) throw new IOException("bloque comprimido incompleto: " + n + " de " + longitudOriginal);
+        } catch (DataFormatException e) {
+            throw new IOException("bloque comprimido no valido", e);
+        }
+    }
+
+
+
+
+    // Decision adaptativa
+
+    /**
+     * Indica si merece la pena comprimir unos bytes, comprimiendo una muestra de como mucho {@link #BYTES_MUESTRA}
+     * bytes.
+     * @param datos bytes que se quieren comprimir.
+     * @param longitud numero de bytes validos de {@code datos}.
+     * @return true si la muestra se reduce lo suficiente.
+     */
+    public static boolean merecePena(byte[] datos, int longitud) {
+        int muestra = Math.min(longitud, BYTES_MUESTRA);
+        if (muestra < 1) return false;
+
+        return comprimir(datos, muestra, muestras.get(), (int) (muestra * PROPORCION_MAXIMA)) >= 0;
+    }
+
+    /**
+     * Indica si merece la pena comprimir un archivo, por su extension y por una muestra de sus primeros bytes.
+     * @param archivo {@link Path ruta} del archivo.
+     * @return true si el archivo se debe comprimir.
+     */
+    public static boolean merecePena(Path archivo) {
+        if (formatoComprimido(archivo.toString())) return false;
+
+        byte[] muestra = new byte[BYTES_MUESTRA];
+        try (InputStream in = Files.newInputStream(archivo)) {
+            return merecePena(muestra, in.readNBytes(muestra, 0, muestra.length));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Indica si un archivo tiene la extension de un formato que ya esta comprimido.
+     * @param ruta ruta o nombre del archivo.
+     * @return true si el formato ya esta comprimido.
+     */
+    public static boolean formatoComprimido(String ruta) {
+        int punto = ruta.lastIndexOf('.');
+        if (punto < 0 || punto < ruta.lastIndexOf('/') || punto < ruta.lastIndexOf('\\')) return false;
+
+        return EXTENSIONES_COMPRIMIDAS.contains(ruta.substring(punto + 1).toLowerCase(Locale.ROOT));
+    }
+
+}
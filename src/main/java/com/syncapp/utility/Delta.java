@@ -0,0 +1,353 @@
+package com.syncapp.utility;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.syncapp.model.FirmaBloque;
+import com.syncapp.model.InstruccionDelta;
+
+
+/**
+ * Esta clase permite sincronizar unicamente las diferencias entre dos versiones de un archivo, siguiendo el algoritmo
+ * de rsync:
+ * <ol>
+ *     <li>
+ *         La maquina que tiene la version anterior divide el archivo en bloques de {@link VariablesGlobales#BYTES_BLOQUE_DELTA}
+ *         bytes, y calcula la {@link FirmaBloque firma} de cada bloque ({@link #calcularFirmas(Path)}).
+ *     </li>
+ *     <li>
+ *         La maquina que tiene la nueva version recorre su archivo byte a byte con una suma rodante, buscando bloques
+ *         con la misma firma. Para cada bloque encontrado genera una referencia, y el resto de bytes los envia como
+ *         literales ({@link #calcularDelta(Path, ArrayList, long)}).
+ *     </li>
+ *     <li>
+ *         La maquina que tiene la version anterior reconstruye la nueva version copiando los bloques referenciados y
+ *         escribiendo los literales ({@link #aplicarDelta(Path, ArrayList, Path, long)}).
+ *     </li>
+ * </ol>
+ * Asi, un cambio de pocos bytes en un archivo grande unicamente transmite los bloques afectados, en vez del archivo
+ * completo.
+ */
+public class Delta {
+
+    /**
+     * Tamaño de los bloques sobre los que se calculan las firmas.
+     */
+    private static final int TAM = VariablesGlobales.BYTES_BLOQUE_DELTA;
+
+
+
+
+    /**
+     * Constructor privado, ya que unicamente se usan los metodos estaticos.
+     */
+    private Delta() {}
+
+
+
+
+    // Firmas
+
+    /**
+     * Este metodo calcula las firmas de todos los bloques de un archivo.
+     * @param archivo {@link Path ruta} del archivo.
+     * @return {@link ArrayList} de {@link FirmaBloque}, una por bloque, en orden.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
+    public static ArrayList<FirmaBloque> calcularFirmas(Path archivo) throws IOException {
+        ArrayList<FirmaBloque> firmas = new ArrayList<>();
+        MessageDigest md5 = nuevoMd5();
+        byte[] bloque = new byte[TAM];
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(archivo), 1 << 20)) {
+            int indice = 0;
+            int leidos;
+
+            while ((leidos = in.readNBytes(bloque, 0, TAM)) > 0) {
+                md5.update(bloque, 0, leidos);
+                firmas.add(new FirmaBloque(indice++, leidos, sumaDebil(bloque, 0, leidos), md5.digest()));
+            }
+        }
+
+        return firmas;
+    }
+
+
+
+
+    // Calculo de diferencias
+
+    /**
+     * Este metodo calcula las instrucciones necesarias para reconstruir el archivo indicado a partir de la version cuyas
+     * firmas se indican.
+     * <br>
+     * Se recorre el archivo con una ventana del tamaño de un bloque. Si la suma debil de la ventana coincide con la de
+     * algun bloque, se comprueba la suma fuerte, y si tambien coincide se genera una referencia a ese bloque y la ventana
+     * salta un bloque completo. En caso contrario, la ventana avanza un byte, y el byte que sale pasa a ser literal.
+     * @param archivo {@link Path ruta} de la nueva version del archivo.
+     * @param firmas {@link ArrayList} de {@link FirmaBloque} de la version anterior.
+     * @param maxLiteral numero maximo de bytes literales. Si se supera, no merece la pena enviar las diferencias.
+     * @return {@link ArrayList} de {@link InstruccionDelta}, o null si se supera el maximo de bytes literales.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
+    public static ArrayList<InstruccionDelta> calcularDelta(Path archivo, ArrayList<FirmaBloque> firmas, long maxLiteral)
+            throws IOException {
+
+        // Indexamos los bloques completos por su suma debil. El ultimo bloque, si es corto, se guarda aparte
+        HashMap<Integer, ArrayList<FirmaBloque>> porSumaDebil = new HashMap<>();
+        FirmaBloque ultimoCorto = null;
+        for (FirmaBloque f : firmas) {
+            if(f.longitud == TAM) {
+                porSumaDebil.computeIfAbsent(f.debil, k -> new ArrayList<>()).add(f);
+            } else {
+                ultimoCorto = f;
+            }
+        }
+
+        ArrayList<InstruccionDelta> delta = new ArrayList<>();
+        ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        long totalLiteral = 0;
+        MessageDigest md5 = nuevoMd5();
+
+        // La ventana es un buffer circular, cuyo primer byte esta en "inicio"
+        byte[] ventana = new byte[TAM];
+        int inicio = 0;
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(archivo), 1 << 20)) {
+            int lleno = in.readNBytes(ventana, 0, TAM);
+            int suma = (lleno == TAM) ? sumaDebil(ventana, 0, TAM) : 0;
+            int a = suma & 0xffff;
+            int b = suma >>> 16;
+
+            while (lleno == TAM) {
+
+                // Buscamos un bloque con la misma suma debil y, si lo hay, comprobamos la suma fuerte
+                FirmaBloque coincide = buscar(porSumaDebil.get(a | (b << 16)), ventana, inicio, md5);
+
+                if(coincide != null) {
+                    vaciarLiteral(literal, delta);
+                    agregarReferencia(delta, coincide.indice);
+
+                    // Saltamos el bloque completo
+                    lleno = in.readNBytes(ventana, 0, TAM);
+                    inicio = 0;
+                    if(lleno == TAM) {
+                        suma = sumaDebil(ventana, 0, TAM);
+                        a = suma & 0xffff;
+                        b = suma >>> 16;
+                    }
+                    continue;
+                }
+
+                // No hay coincidencia: el primer byte de la ventana pasa a ser literal, y la ventana avanza un byte
+                int sale = ventana[inicio] & 0xff;
+                literal.write(sale);
+                if(++totalLiteral > maxLiteral) return null;
+
+                int entra = in.read();
+                if(entra < 0) {
+
+                    // Fin del archivo: colocamos el resto de la ventana al principio del buffer
+                    byte[] resto = new byte[TAM - 1];
+                    for (int i = 0; i < resto.length; i++) {
+                        resto[i] = ventana[(inicio + 1 + i) % TAM];
+                    }
+                    System.arraycopy(resto, 0, ventana, 0, resto.length);
+                    lleno = resto.length;
+                    inicio = 0;
+                    break;
+                }
+
+                ventana[inicio] = (byte) entra;
+                inicio = (inicio + 1) % TAM;
+                a = (a - sale + entra) & 0xffff;
+                b = (b - TAM * sale + a) & 0xffff;
+            }
+
+            // Los ultimos bytes (menos de un bloque) pueden coincidir con el ultimo bloque de la version anterior
+            if(lleno > 0) {
+                md5.update(ventana, 0, lleno);
+                byte[] fuerte = md5.digest();
+
+                if(ultimoCorto != null && ultimoCorto.longitud == lleno && Arrays.equals(ultimoCorto.fuerte, fuerte)) {
+                    vaciarLiteral(literal, delta);
+                    agregarReferencia(delta, ultimoCorto.indice);
+                } else {
+                    literal.write(ventana, 0, lleno);
+                    totalLiteral += lleno;
+                    if(totalLiteral > maxLiteral) return null;
+                }
+            }
+        }
+
+        vaciarLiteral(literal, delta);
+        return delta;
+    }
+
+
+
+
+    // Reconstruccion
+
+    /**
+     * Este metodo reconstruye la nueva version de un archivo a partir de su version anterior y las instrucciones
+     * indicadas. Los bloques referenciados se copian directamente entre canales, sin pasar por la memoria de Java.
+     * <br>
+     * Las instrucciones pueden repetir bloques, asi que pueden describir un archivo mucho mayor que la version anterior;
+     * por ello, se deja de escribir en cuanto se superaria el tamaño esperado de la nueva version.
+     * @param base {@link Path ruta} de la version anterior del archivo.
+     * @param delta {@link ArrayList} de {@link InstruccionDelta} que describen la nueva version.
+     * @param destino {@link Path ruta} en la que se escribe la nueva version. Si existe, se sobreescribe.
+     * @param size tamaño esperado de la nueva version.
+     * @return numero de bytes escritos en el destino.
+     * @throws IOException si ocurre un problema al leer o escribir, si alguna instruccion no es valida, o si las
+     * instrucciones describen mas bytes del tamaño esperado.
+     */
+    public static long aplicarDelta(Path base, ArrayList<InstruccionDelta> delta, Path destino, long size) throws IOException {
+        if(size < 0) throw new IOException("tamaño no valido: " + size);
+        long escritos = 0;
+
+        try (FileChannel origen = FileChannel.open(base, StandardOpenOption.READ);
+             FileChannel salida = FileChannel.open(destino, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (InstruccionDelta instruccion : delta) {
+
+                if(instruccion.esLiteral()) {
+                    if(escritos + instruccion.literal.length > size) throw excesoDeBytes(size);
+                    ByteBuffer bb = ByteBuffer.wrap(instruccion.literal);
+                    while (bb.hasRemaining()) {
+                        salida.write(bb);
+                    }
+                    escritos += instruccion.literal.length;
+                    continue;
+                }
+
+                // Copiamos los bloques referenciados desde la version anterior
+                long posicion = (long) instruccion.bloqueInicial * TAM;
+                long cuantos = Math.min((long) instruccion.numBloques * TAM, origen.size() - posicion);
+                if(instruccion.bloqueInicial < 0 || cuantos <= 0) {
+                    throw new IOException("referencia a un bloque no valido: " + instruccion.bloqueInicial);
+                }
+                if(escritos + cuantos > size) throw excesoDeBytes(size);
+
+                long copiados = 0;
+                while (copiados < cuantos) {
+                    long n = origen.transferTo(posicion + copiados, cuantos - copiados, salida);
+                    if(n <= 0) throw new IOException("no se ha podido copiar el bloque " + instruccion.bloqueInicial);
+                    copiados += n;
+                }
+                escritos += cuantos;
+            }
+        }
+
+        return escritos;
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    /**
+     * Crea la excepcion de unas instrucciones que describen mas bytes de los esperados.
+     * @param size tamaño esperado de la nueva version.
+     * @return {@link IOException} con el motivo.
+     */
+    private static IOException excesoDeBytes(long size) {
+        return new IOException("las instrucciones describen mas de " + size + " bytes");
+    }
+
+    /**
+     * Calcula la suma debil de un bloque, que se puede actualizar al desplazar el bloque un byte sin recorrerlo entero.
+     * Se compone de dos sumas de 16 bits: {@code a}, la suma de los bytes, y {@code b}, la suma de los bytes
+     * ponderados por su distancia al final del bloque.
+     * @param datos array de bytes.
+     * @param desde posicion del primer byte del bloque.
+     * @param longitud numero de bytes del bloque.
+     * @return suma debil, con {@code a} en los 16 bits bajos y {@code b} en los 16 bits altos.
+     */
+    static int sumaDebil(byte[] datos, int desde, int longitud) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < longitud; i++) {
+            int x = datos[desde + i] & 0xff;
+            a += x;
+            b += (longitud - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    /**
+     * Busca, entre los bloques candidatos, uno cuya suma fuerte coincida con la de la ventana.
+     * @param candidatos bloques con la misma suma debil que la ventana, o null si no hay ninguno.
+     * @param ventana buffer circular con los bytes de la ventana.
+     * @param inicio posicion del primer byte de la ventana.
+     * @param md5 {@link MessageDigest} que se usa para calcular la suma fuerte.
+     * @return {@link FirmaBloque} que coincide, o null si no coincide ninguno.
+     */
+    private static FirmaBloque buscar(ArrayList<FirmaBloque> candidatos, byte[] ventana, int inicio, MessageDigest md5) {
+        if(candidatos == null) return null;
+
+        md5.update(ventana, inicio, TAM - inicio);
+        md5.update(ventana, 0, inicio);
+        byte[] fuerte = md5.digest();
+
+        for (FirmaBloque f : candidatos) {
+            if(Arrays.equals(f.fuerte, fuerte)) return f;
+        }
+        return null;
+    }
+
+    /**
+     * Si hay bytes literales acumulados, los añade como una instruccion literal.
+     * @param literal bytes literales acumulados.
+     * @param delta lista de instrucciones.
+     */
+    private static void vaciarLiteral(ByteArrayOutputStream literal, ArrayList<InstruccionDelta> delta) {
+        if(literal.size() == 0) return;
+        delta.add(InstruccionDelta.literal(literal.toByteArray()));
+        literal.reset();
+    }
+
+    /**
+     * Añade una referencia a un bloque. Si el bloque es el siguiente al de la ultima referencia, se amplia esa
+     * referencia en vez de crear una nueva.
+     * @param delta lista de instrucciones.
+     * @param indice numero del bloque referenciado.
+     */
+    private static void agregarReferencia(ArrayList<InstruccionDelta> delta, int indice) {
+        if(!delta.isEmpty()) {
+            InstruccionDelta ultima = delta.get(delta.size() - 1);
+            if(!ultima.esLiteral() && ultima.bloqueInicial + ultima.numBloques == indice) {
+                ultima.numBloques++;
+                return;
+            }
+        }
+        delta.add(InstruccionDelta.referencia(indice, 1));
+    }
+
+    /**
+     * Crea un {@link MessageDigest} md5.
+     * @return {@link MessageDigest} md5.
+     */
+    private static MessageDigest nuevoMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package com.syncapp.utility;
 
-import java.io.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.syncapp.model.Archivo;
 import com.syncapp.model.BloqueBytes;
@@ -10,9 +18,87 @@ import com.syncapp.model.BloqueBytes;
 
 /**
  * Clase que permite leer y escribir archivos mediante {@link BloqueBytes bloques de bytes}.
+ * <br>
+ * Cada {@link LectorArchivos} mantiene abierto un {@link FileChannel} sobre su archivo, y los bloques se leen con
+ * lecturas posicionales ({@link FileChannel#read(ByteBuffer, long)}). Estas lecturas no modifican la posicion del canal,
+ * por lo que varios hilos pueden leer bloques del mismo {@link LectorArchivos} de forma simultanea, sin volver a abrir
+ * el archivo ni desplazarse por el.
+ * <br>
+ * Los lectores de escritura no escriben sobre el archivo, sino sobre un archivo parcial junto a el
+ * ({@link #rutaParcial(Path)}). El archivo parcial unicamente sustituye al archivo cuando se cierra el lector con
+ * {@link #cerrarArchivo()}, con un movimiento atomico, de forma que nunca se puede leer un archivo a medio escribir, y
+ * una escritura que no se completa ({@link #descartar()}) no modifica el archivo.
  */
 public class LectorArchivos {
 
+    /**
+     * Sufijo de los archivos parciales de los lectores de escritura.
+     */
+    public static final String SUFIJO_PARCIAL = ".syncapp-parcial";
+
+    /**
+     * Canal abierto sobre el archivo. Se mantiene abierto hasta que se invoca {@link #cerrarArchivo()}.
+     */
+    private final FileChannel canal;
+
+    /**
+     * Ruta del archivo sobre el que se ha abierto el lector.
+     */
+    private final Path ruta;
+
+    /**
+     * Ruta del archivo parcial sobre el que escribe un lector de escritura, o null si el lector es de lectura.
+     */
+    private final Path parcial;
+
+    /**
+     * Identificador del archivo, que se añade a cada {@link BloqueBytes} leido.
+     */
+    private int fileId;
+
+    /**
+     * Indica si el lector se ha abierto para escribir ("rw").
+     */
+    private final boolean escritura;
+
+    /**
+     * Posicion siguiente al ultimo byte escrito en el archivo. Al cerrar un lector de escritura, el archivo se recorta a
+     * esta longitud, de forma que si la nueva version del archivo es mas corta no queden bytes de la version anterior.
+     */
+    private final AtomicLong finEscrito = new AtomicLong(0);
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea un lector sobre el archivo indicado, abriendo su {@link FileChannel}.
+     * @param ruta {@link Path ruta} absoluta del archivo.
+     * @param modo {@link String modo} de apertura: "r" para leer, "rw" para escribir una nueva version del archivo (si
+     *             no existe, se crea al cerrar el lector). Si habia un archivo parcial de una escritura anterior que no se
+     *             completo, se vacia.
+     * @param fileId {@link Integer identificador} del archivo.
+     * @throws IOException si ocurre un problema al abrir el archivo.
+     */
+    public LectorArchivos(Path ruta, String modo, int fileId) throws IOException {
+        this.ruta = ruta;
+        this.fileId = fileId;
+        this.escritura = modo.equals("rw");
+
+        if(escritura) {
+            parcial = rutaParcial(ruta);
+            canal = FileChannel.open(parcial, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            parcial = null;
+            canal = FileChannel.open(ruta, StandardOpenOption.READ);
+        }
+    }
+
+
+
+
     // Transmision de datos
 
     /**
@@ -22,35 +108,72 @@ public class LectorArchivos {
      * <br>
      * Un dato importante, es que cuando se lee el ultimo bloque de bytes, se creara un {@link BloqueBytes} de tamaño distinto
      * al indicado en {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}, porque no se deben llenar archivos con bytes vacios,
-     * pues esto cambiara totalmente su hash. <br>
+     * pues esto cambiara totalmente su hash. Para ello no se copia el bloque, sino que {@link BloqueBytes#size} indica
+     * cuantos bytes del buffer son validos. <br>
+     * El buffer del bloque se obtiene de {@link PoolBloques}, por lo que cuando se termine de usar el bloque se debe
+     * invocar {@link BloqueBytes#liberar()}. <br>
      * Si el archivo no tiene mas bytes para leer, se devuelve null.
      * @param posicion {@link Long} indicando el primer byte que se quiere leer.
      * @return {@link BloqueBytes} del tamaño de bytes que se hayan podido leer. Si hay suficientes bytes, se leeran hasta
      * {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}, en caso contrario, se leeran todos los bytes que queden.
      * @throws IOException si ocurre un problema al leer el archivo.
      */
+    public BloqueBytes leerBloqueBytes(long posicion) throws IOException {
+        return leerBloque(canal, posicion, fileId);
+    }
+
+
+    /**
+     * Analogo a {@link #leerBloqueBytes(long)}, pero para un {@link Archivo} que no tiene un {@link LectorArchivos}
+     * abierto. Se abre un canal unicamente para leer el bloque, por lo que si se van a leer varios bloques del mismo
+     * archivo es preferible crear un {@link LectorArchivos}.
+     * @param posicion {@link Long} indicando el primer byte que se quiere leer.
+     * @param archivo {@link Archivo} del que se quiere leer.
+     * @return {@link BloqueBytes} leido, o null si no quedan bytes por leer.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
     public static BloqueBytes leerBloqueBytes(long posicion, Archivo archivo) throws IOException {
         if(posicion < 0 || archivo == null) return null;
 
+        try (FileChannel fc = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+            return leerBloque(fc, posicion, archivo.globalID);
+        }
+    }
 
-        BloqueBytes bb = new BloqueBytes();
-        bb.data = new byte[VariablesGlobales.MAX_BYTES_IN_BLOCK];
-
-        try (FileInputStream fis = new FileInputStream(archivo.toFile())) {
 
-            fis.skip(posicion);
+    /**
+     * Lee un bloque de un canal a partir de la posicion indicada, con lecturas posicionales hasta llenar el bloque o
+     * alcanzar el final del archivo.
+     * @param fc {@link FileChannel} del que se lee.
+     * @param posicion primer byte que se quiere leer.
+     * @param fileId identificador del archivo, que se añade al bloque.
+     * @return {@link BloqueBytes} leido, o null si no quedan bytes por leer.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
+    private static BloqueBytes leerBloque(FileChannel fc, long posicion, int fileId) throws IOException {
+        if(posicion < 0) return null;
 
-            int totalBytes = fis.read(bb.data);
+        BloqueBytes bb = new BloqueBytes();
+        bb.data = PoolBloques.obtener();
+        ByteBuffer destino = ByteBuffer.wrap(bb.data);
 
-            if(totalBytes < 1) return null;
+        // Una lectura puede devolver menos bytes de los pedidos, asi que leemos hasta llenar el bloque o llegar al final
+        while(destino.hasRemaining()) {
+            if(fc.read(destino, posicion + destino.position()) < 0) break;
+        }
 
-            bb.keepOnlyNBytes(totalBytes);
+        int totalBytes = destino.position();
 
-            bb.position = posicion + totalBytes;
-            bb.size = totalBytes;
-            bb.fileID = archivo.globalID;
+        // Si no hay bytes que leer, devolvemos el buffer al almacen
+        if(totalBytes < 1) {
+            bb.liberar();
+            return null;
         }
 
+        bb.position = posicion;
+        bb.size = totalBytes;
+        bb.fileID = fileId;
+
         return bb;
     }
 
@@ -59,37 +182,194 @@ public class LectorArchivos {
 
     /**
      * Con este metodo podemos escribir un {@link BloqueBytes} dentro de un archivo. El bloque debe contener en su interior
-     * la posicion en la que quiere escribir.
+     * la posicion en la que quiere escribir ({@link BloqueBytes#position}).
      * <br>
-     * Se escribiran hasta {@link BloqueBytes#size} bytes de datos.
-     * @param bb
-     * @throws IOException
+     * La escritura se realiza por posicion sobre el {@link FileChannel} del lector, por lo que los bloques pueden llegar
+     * en cualquier orden, o desde varios hilos a la vez, y escribir dos veces el mismo bloque (por ejemplo, al reintentar
+     * un envio) no altera el archivo.
+     * <br>
+     * Se escribiran hasta {@link BloqueBytes#size} bytes de datos. El bloque no se libera, ya que es quien lo ha
+     * obtenido quien debe invocar {@link BloqueBytes#liberar()}.
+     * @param bb {@link BloqueBytes} que se quiere escribir.
+     * @throws IOException si ocurre un problema al escribir el archivo.
      */
-    public void escribirBloqueBytes(BloqueBytes bb, Archivo archivo) throws IOException {
-        if(bb == null || archivo == null || bb.size < 1 || bb.position < 0) return;
+    public void escribirBloqueBytes(BloqueBytes bb) throws IOException {
+        if(bb == null || bb.size < 1 || bb.position < 0) return;
+
+        ByteBuffer origen = ByteBuffer.wrap(bb.data, 0, bb.size);
 
-        boolean beginOfFile = (bb.position == 0);
-        try (FileOutputStream fos = new FileOutputStream(archivo.toFile(), !beginOfFile)) {
-            // Negamos beingOfFile, ya que, este argumento sirve para indicar si se añaden bytes al archivo
-            // o si se crea uno desde 0 (append si true)
+        // Una escritura puede escribir menos bytes de los pedidos, asi que escribimos hasta vaciar el bloque
+        while(origen.hasRemaining()) {
+            canal.write(origen, bb.position + origen.position());
+        }
 
-            // Escribimos los datos
-            fos.write(bb.data);
+        // Guardamos hasta donde se ha escrito, para recortar el archivo al cerrarlo
+        finEscrito.accumulateAndGet(bb.position + bb.size, Math::max);
+    }
 
-            // Los volcamos en el archivo
-            fos.flush();
 
+
+
+    /**
+     * Envia por un canal los bytes del archivo a partir de una posicion, con
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}. Si el destino es un socket, el sistema operativo
+     * copia los bytes del archivo al socket sin pasar por la memoria de Java.
+     * <br>
+     * Igual que {@link #leerBloqueBytes(long)}, no modifica la posicion del canal, por lo que varios hilos pueden
+     * enviar a la vez distintas partes del archivo.
+     * @param posicion primer byte que se quiere enviar.
+     * @param longitud numero de bytes que se quieren enviar.
+     * @param destino {@link WritableByteChannel canal} al que se envian los bytes.
+     * @return numero de bytes enviados. Es menor que la longitud si se alcanza el final del archivo.
+     * @throws IOException si ocurre un problema al leer el archivo o al escribir en el destino.
+     */
+    public long transferirA(long posicion, long longitud, WritableByteChannel destino) throws IOException {
+        long enviados = 0;
+
+        // transferTo puede enviar menos bytes de los pedidos, asi que repetimos hasta enviarlos todos o llegar al final
+        while (enviados < longitud) {
+            long n = canal.transferTo(posicion + enviados, longitud - enviados, destino);
+            if (n <= 0) break;
+            enviados += n;
         }
 
-        System.out.println("escribiendo el bloque"+bb); //TESTS
+        return enviados;
     }
 
 
+    /**
+     * Escribe en el archivo, a partir de una posicion, los bytes que se leen de un canal, con
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}. Es el analogo a
+     * {@link #escribirBloqueBytes(BloqueBytes)} para bytes que no estan en un {@link BloqueBytes}, y al igual que este,
+     * las escrituras pueden llegar en cualquier orden y desde varios hilos.
+     * @param origen {@link ReadableByteChannel canal} del que se leen los bytes.
+     * @param posicion posicion en la que se escribe el primer byte.
+     * @param longitud numero de bytes que se leen del origen.
+     * @throws IOException si ocurre un problema al escribir el archivo, o el origen se cierra antes de enviar todos los
+     * bytes.
+     */
+    public void recibirDe(ReadableByteChannel origen, long posicion, long longitud) throws IOException {
+        long recibidos = 0;
+
+        while (recibidos < longitud) {
+            long actual = posicion + recibidos;
+            long n;
+
+            // transferFrom no escribe a partir de una posicion mayor que el tamaño del archivo, lo que ocurre cuando los
+            // bloques llegan desordenados. En ese caso, el primer tramo se copia por un buffer, lo que alarga el archivo
+            if (actual <= canal.size()) {
+                n = canal.transferFrom(origen, actual, longitud - recibidos);
+            } else {
+                ByteBuffer tramo = ByteBuffer.allocate((int) Math.min(longitud - recibidos, 64000));
+                n = origen.read(tramo);
+                tramo.flip();
+                while (tramo.hasRemaining()) {
+                    canal.write(tramo, actual + tramo.position());
+                }
+            }
+
+            if (n <= 0) throw new EOFException("faltan " + (longitud - recibidos) + " bytes por recibir");
+            recibidos += n;
+        }
+
+        // Guardamos hasta donde se ha escrito, para recortar el archivo al cerrarlo
+        finEscrito.accumulateAndGet(posicion + longitud, Math::max);
+    }
+
+
+    /**
+     * Devuelve el tamaño actual del archivo. En un lector de escritura, es el tamaño de lo escrito hasta ahora.
+     * @return tamaño del archivo en bytes.
+     * @throws IOException si ocurre un problema al consultar el archivo.
+     */
+    public long tamano() throws IOException {
+        return canal.size();
+    }
 
 
 
 
+    // Getters y setters
 
+    /**
+     * Permite obtener la ruta del archivo sobre el que se ha abierto el lector.
+     * @return {@link Path ruta} del archivo.
+     */
+    public Path getRuta() {
+        return ruta;
+    }
 
+    /**
+     * Devuelve la ruta del archivo parcial en el que se escribe una nueva version de un archivo. Es un archivo oculto
+     * en la misma carpeta, para que el movimiento sobre el archivo sea atomico.
+     * @param ruta {@link Path ruta} del archivo.
+     * @return {@link Path ruta} de su archivo parcial.
+     */
+    public static Path rutaParcial(Path ruta) {
+        return ruta.resolveSibling("." + ruta.getFileName() + SUFIJO_PARCIAL);
+    }
+
+    /**
+     * Indica si una ruta es el archivo parcial de un lector de escritura, que no se debe listar ni sincronizar.
+     * @param ruta {@link Path ruta} de un archivo.
+     * @return true si es un archivo parcial.
+     */
+    public static boolean esParcial(Path ruta) {
+        Path nombre = ruta.getFileName();
+        return nombre != null && nombre.toString().endsWith(SUFIJO_PARCIAL);
+    }
+
+    /**
+     * Establece el identificador del archivo, que se añadira a los bloques leidos.
+     * @param fileId {@link Integer identificador} del archivo.
+     */
+    public void setFileId(int fileId) {
+        this.fileId = fileId;
+    }
+
+
+
+
+    // Finalizadores
+
+    /**
+     * Cierra el {@link FileChannel} del lector, liberando el descriptor del archivo. Si el lector se abrio para escribir,
+     * se confirma la escritura: el archivo parcial se recorta hasta el ultimo byte escrito y se mueve sobre el archivo.
+     * Si no se puede confirmar, el archivo parcial se elimina y el archivo no se modifica.
+     * @throws IOException si ocurre un problema al cerrar el archivo.
+     */
+    public void cerrarArchivo() throws IOException {
+        if(!escritura) {
+            canal.close();
+            return;
+        }
+
+        boolean confirmado = false;
+        try {
+            try {
+                canal.truncate(finEscrito.get());
+            } finally {
+                canal.close();
+            }
+            Files.move(parcial, ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            confirmado = true;
+        } finally {
+            if(!confirmado) Files.deleteIfExists(parcial);
+        }
+    }
+
+    /**
+     * Cierra el {@link FileChannel} del lector sin confirmar la escritura: si el lector se abrio para escribir, se
+     * elimina el archivo parcial y el archivo se queda como estaba. En un lector de lectura equivale a
+     * {@link #cerrarArchivo()}.
+     * @throws IOException si ocurre un problema al cerrar o eliminar el archivo.
+     */
+    public void descartar() throws IOException {
+        try {
+            canal.close();
+        } finally {
+            if(escritura) Files.deleteIfExists(parcial);
+        }
+    }
 
 }
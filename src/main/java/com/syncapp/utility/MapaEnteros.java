@@ -0,0 +1,251 @@
+package com.syncapp.utility;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Objects;
+
+
+/**
+ * Mapa de claves {@code int} no negativas (identificadores de archivo) a objetos, con direccionamiento abierto.
+ * <br>
+ * Los registros del servidor se consultan por identificador de archivo una o varias veces por cada bloque. Con un
+ * {@link java.util.HashMap} cada consulta tiene que convertir el identificador en un objeto (y antes, en una cadena), y
+ * cada entrada es un objeto aparte. Aqui las claves se guardan en un {@code int[]} y los valores en un {@code Object[]}
+ * paralelo, y las colisiones se resuelven probando la siguiente posicion (sondeo lineal).
+ * <br>
+ * Las consultas ({@link #get(int)}, {@link #containsKey(int)}, {@link #forEach(Accion)}) no usan ningun cerrojo, por lo
+ * que muchos hilos pueden consultar el mapa a la vez. Las modificaciones se sincronizan sobre el propio mapa. Para que
+ * una consulta nunca vea una entrada a medias:
+ * <ul>
+ *     <li>
+ *         Al añadir una clave, se escribe primero el valor y despues la clave.
+ *     </li>
+ *     <li>
+ *         Al eliminar una clave, unicamente se borra su valor: la clave se queda en la tabla, de forma que ninguna
+ *         entrada cambia de posicion. Si la clave se vuelve a añadir (un archivo que se abre de nuevo), reutiliza esa
+ *         posicion.
+ *     </li>
+ *     <li>
+ *         Cuando la tabla se llena, se crea una tabla nueva con las entradas que siguen en uso, y se sustituye de una
+ *         vez. Las consultas que ya estaban en curso terminan sobre la tabla anterior.
+ *     </li>
+ * </ul>
+ * @param <V> tipo de los valores. No se admiten valores null.
+ */
+public class MapaEnteros<V> {
+
+    /**
+     * Accion que se aplica a cada entrada en {@link #forEach(Accion)}.
+     * @param <V> tipo de los valores.
+     */
+    @FunctionalInterface
+    public interface Accion<V> {
+        void aceptar(int clave, V valor);
+    }
+
+    private static final VarHandle CLAVES = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle VALORES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    /**
+     * Clave de las posiciones que nunca se han usado.
+     */
+    private static final int LIBRE = -1;
+
+    private static final int CAPACIDAD_MINIMA = 16;
+
+    /**
+     * Claves y valores del mapa. La capacidad es siempre potencia de 2.
+     */
+    private static final class Tabla {
+        final int[] claves;
+        final Object[] valores;
+        final int mascara;
+
+        Tabla(int capacidad) {
+            claves = new int[capacidad];
+            Arrays.fill(claves, LIBRE);
+            valores = new Object[capacidad];
+            mascara = capacidad - 1;
+        }
+    }
+
+    /**
+     * Tabla actual. Se sustituye entera al redimensionar.
+     */
+    private volatile Tabla tabla = new Tabla(CAPACIDAD_MINIMA);
+
+    /**
+     * Numero de posiciones con clave, tengan valor o no. Se mantiene por debajo de la mitad de la capacidad, para que
+     * siempre haya posiciones libres y los sondeos sean cortos.
+     */
+    private int ocupadas;
+
+    /**
+     * Numero de claves con valor.
+     */
+    private int tamano;
+
+
+
+
+    // Consultas
+
+    /**
+     * Devuelve el valor de una clave.
+     * @param clave clave buscada.
+     * @return valor de la clave, o null si no esta en el mapa.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int clave) {
+        if (clave < 0) return null;
+
+        Tabla t = tabla;
+        for (int i = posicion(clave, t.mascara); ; i = (i + 1) & t.mascara) {
+            int k = (int) CLAVES.getAcquire(t.claves, i);
+            if (k == clave) return (V) VALORES.getAcquire(t.valores, i);
+            if (k == LIBRE) return null;
+        }
+    }
+
+    /**
+     * Indica si una clave esta en el mapa.
+     * @param clave clave buscada.
+     * @return true si la clave tiene valor.
+     */
+    public boolean containsKey(int clave) {
+        return get(clave) != null;
+    }
+
+    /**
+     * Aplica una accion a cada entrada del mapa. Las entradas que se añaden o eliminan mientras se recorre el mapa
+     * pueden aparecer o no.
+     * @param accion {@link Accion} que se aplica a cada entrada.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Accion<? super V> accion) {
+        Tabla t = tabla;
+        for (int i = 0; i < t.claves.length; i++) {
+            int k = (int) CLAVES.getAcquire(t.claves, i);
+            if (k == LIBRE) continue;
+
+            V v = (V) VALORES.getAcquire(t.valores, i);
+            if (v != null) accion.aceptar(k, v);
+        }
+    }
+
+    /**
+     * Devuelve el numero de entradas del mapa.
+     * @return numero de claves con valor.
+     */
+    public synchronized int size() {
+        return tamano;
+    }
+
+
+
+
+    // Modificaciones
+
+    /**
+     * Asigna un valor a una clave.
+     * @param clave clave no negativa.
+     * @param valor valor de la clave, no null.
+     * @return valor anterior de la clave, o null si no estaba en el mapa.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int clave, V valor) {
+        if (clave < 0) throw new IllegalArgumentException("clave negativa: " + clave);
+        Objects.requireNonNull(valor);
+
+        Tabla t = tabla;
+        int i = buscar(t, clave);
+        if (t.claves[i] == clave) {
+            V anterior = (V) t.valores[i];
+            VALORES.setRelease(t.valores, i, valor);
+            if (anterior == null) tamano++;
+            return anterior;
+        }
+
+        if ((ocupadas + 1) * 2 > t.claves.length) {
+            t = redimensionar();
+            i = buscar(t, clave);
+        }
+
+        // El valor se escribe antes que la clave, para que una consulta que encuentra la clave vea tambien su valor
+        t.valores[i] = valor;
+        CLAVES.setRelease(t.claves, i, clave);
+        ocupadas++;
+        tamano++;
+        return null;
+    }
+
+    /**
+     * Elimina una clave del mapa.
+     * @param clave clave que se quiere eliminar.
+     * @return valor que tenia la clave, o null si no estaba en el mapa.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int clave) {
+        if (clave < 0) return null;
+
+        Tabla t = tabla;
+        int i = buscar(t, clave);
+        if (t.claves[i] != clave) return null;
+
+        V anterior = (V) t.valores[i];
+        if (anterior != null) {
+            VALORES.setRelease(t.valores, i, null);
+            tamano--;
+        }
+        return anterior;
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    /**
+     * Devuelve la posicion de una clave en la tabla, o la posicion libre en la que se añadiria. Se invoca unicamente
+     * dentro de las modificaciones.
+     */
+    private static int buscar(Tabla t, int clave) {
+        int i = posicion(clave, t.mascara);
+        while (t.claves[i] != clave && t.claves[i] != LIBRE) {
+            i = (i + 1) & t.mascara;
+        }
+        return i;
+    }
+
+    /**
+     * Crea una tabla nueva con las entradas que tienen valor, con capacidad para al menos el doble de entradas, y la
+     * publica.
+     */
+    private Tabla redimensionar() {
+        Tabla anterior = tabla;
+        Tabla nueva = new Tabla(Math.max(CAPACIDAD_MINIMA, Integer.highestOneBit(tamano + 1) * 4));
+
+        for (int i = 0; i < anterior.claves.length; i++) {
+            if (anterior.claves[i] == LIBRE || anterior.valores[i] == null) continue;
+
+            int j = buscar(nueva, anterior.claves[i]);
+            nueva.claves[j] = anterior.claves[i];
+            nueva.valores[j] = anterior.valores[i];
+        }
+
+        ocupadas = tamano;
+        tabla = nueva;
+        return nueva;
+    }
+
+    /**
+     * Posicion inicial de una clave. Los identificadores son consecutivos, asi que se dispersan (hash de Fibonacci) para
+     * que no ocupen posiciones contiguas.
+     */
+    private static int posicion(int clave, int mascara) {
+        int h = clave * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mascara;
+    }
+
+}
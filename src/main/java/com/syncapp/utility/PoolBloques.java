@@ -0,0 +1,87 @@
+package com.syncapp.utility;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.syncapp.model.BloqueBytes;
+
+
+/**
+ * Esta clase representa un almacen acotado de buffers reutilizables para los {@link BloqueBytes bloques de bytes}.
+ * <br>
+ * Cada bloque necesita un array de {@link VariablesGlobales#MAX_BYTES_IN_BLOCK} bytes (24MB por defecto). Si cada
+ * lectura/escritura de un bloque crease un array nuevo, el recolector de basura tendria que liberar varios cientos de
+ * MB por segundo cuando hay varias transmisiones simultaneas. En vez de eso, los caminos de lectura y escritura piden
+ * un buffer con {@link #obtener()} y lo devuelven con {@link #devolver(byte[])} cuando han terminado de usarlo.
+ * <br>
+ * El almacen esta acotado a {@link VariablesGlobales#MAX_BLOQUES_EN_POOL} buffers: si no hay ninguno libre se crea uno
+ * nuevo, y si al devolver un buffer el almacen ya esta lleno, el buffer se descarta para que lo libere el recolector.
+ */
+public class PoolBloques {
+
+    /**
+     * Cola de buffers libres. Es segura para varios hilos, ya que tanto el servidor (hilos RMI) como el cliente (hilos
+     * de transmision) piden y devuelven buffers de forma concurrente.
+     */
+    private static final ArrayBlockingQueue<byte[]> libres = new ArrayBlockingQueue<>(VariablesGlobales.MAX_BLOQUES_EN_POOL);
+
+    /**
+     * Por debajo de este numero de bytes, {@link #obtener(int)} crea un array del tamaño justo en vez de ocupar un buffer
+     * completo del almacen.
+     */
+    private static final int MIN_BYTES_ALMACEN = VariablesGlobales.MAX_BYTES_IN_BLOCK / 4;
+
+
+
+
+    /**
+     * Constructor privado, ya que unicamente se usan los metodos estaticos.
+     */
+    private PoolBloques() {}
+
+
+
+
+
+
+    /**
+     * Este metodo nos permite obtener un buffer de {@link VariablesGlobales#MAX_BYTES_IN_BLOCK} bytes. Si hay alguno
+     * libre en el almacen se reutiliza, en caso contrario se crea uno nuevo.
+     * @return array de bytes de tamaño {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}. Su contenido no esta inicializado.
+     */
+    public static byte[] obtener() {
+        byte[] buffer = libres.poll();
+        return (buffer != null) ? buffer : new byte[VariablesGlobales.MAX_BYTES_IN_BLOCK];
+    }
+
+
+    /**
+     * Este metodo nos permite obtener un array para un numero de bytes conocido. Si son bastantes menos que un bloque
+     * completo (por ejemplo, el ultimo bloque de un archivo, o un archivo pequeño), se crea un array del tamaño justo,
+     * ya que crearlo cuesta menos que ocupar y recorrer un buffer de {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}
+     * bytes; en otro caso se usa {@link #obtener()}.
+     * <br>
+     * El array se puede devolver igualmente con {@link #devolver(byte[])}, que ignora los que no son del almacen.
+     * @param bytes numero de bytes que se necesitan, como mucho {@link VariablesGlobales#MAX_BYTES_IN_BLOCK}.
+     * @return array de al menos {@code bytes} bytes. Su contenido no esta inicializado.
+     */
+    public static byte[] obtener(int bytes) {
+        return (bytes < MIN_BYTES_ALMACEN) ? new byte[bytes] : obtener();
+    }
+
+
+    /**
+     * Este metodo nos permite devolver un buffer al almacen, para que lo pueda reutilizar otro bloque. Unicamente se
+     * aceptan buffers del tamaño de un bloque completo; el resto (por ejemplo, buffers de un bloque ya recortado) se
+     * ignoran.
+     * <br>
+     * Una vez devuelto, el buffer no se debe seguir usando.
+     * @param buffer array de bytes que se quiere devolver.
+     */
+    public static void devolver(byte[] buffer) {
+        if(buffer == null || buffer.length != VariablesGlobales.MAX_BYTES_IN_BLOCK) return;
+
+        // Si el almacen esta lleno, offer() devuelve false y el buffer queda para el recolector de basura
+        libres.offer(buffer);
+    }
+
+}
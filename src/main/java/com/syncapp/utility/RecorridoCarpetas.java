@@ -0,0 +1,142 @@
+package com.syncapp.utility;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Recorrido paralelo de un arbol de carpetas.
+ * <br>
+ * Recorrer una carpeta con {@link Files#walk(Path, java.nio.file.FileVisitOption...)} es secuencial, y en discos
+ * lentos o carpetas montadas por red cada consulta al disco es una espera. Este recorrido lee cada carpeta en una tarea
+ * de un {@link ForkJoinPool}, y lanza una tarea nueva por cada subcarpeta, de forma que se leen varias carpetas a la
+ * vez. Ademas, los atributos de cada entrada ({@link BasicFileAttributes}) se obtienen una unica vez, y se devuelven
+ * junto a su ruta, para no tener que volver a consultarlos.
+ * <br>
+ * Igual que {@link Files#walk(Path, java.nio.file.FileVisitOption...)}, no se entra en los enlaces simbolicos a
+ * carpetas. Los enlaces simbolicos a archivos se devuelven con los atributos del archivo enlazado.
+ */
+public class RecorridoCarpetas {
+
+    /**
+     * Resultado de un recorrido.
+     */
+    public static class Resultado {
+
+        /**
+         * Carpetas encontradas, incluida la carpeta raiz.
+         */
+        public final ArrayList<Path> carpetas = new ArrayList<>();
+
+        /**
+         * Archivos regulares encontrados.
+         */
+        public final ArrayList<Path> archivos = new ArrayList<>();
+
+        /**
+         * Atributos de cada archivo, en la misma posicion que en {@link #archivos}.
+         */
+        public final ArrayList<BasicFileAttributes> atributos = new ArrayList<>();
+    }
+
+    /**
+     * Hilos compartidos por todos los recorridos, que se crean la primera vez que se necesitan.
+     */
+    private static ForkJoinPool hilos;
+
+
+
+
+    /**
+     * Recorre la carpeta indicada y todas sus subcarpetas. El metodo bloquea el hilo actual hasta que termina el
+     * recorrido. Las carpetas que no se pueden leer se omiten.
+     * @param raiz {@link Path carpeta} que se quiere recorrer.
+     * @return {@link Resultado} con las carpetas y archivos encontrados, en un orden cualquiera.
+     */
+    public static Resultado recorrer(Path raiz) {
+        Tarea tarea = new Tarea(raiz);
+        hilos().invoke(tarea);
+
+        // Juntamos los resultados de todas las tareas, una vez que han terminado
+        Resultado resultado = new Resultado();
+        ArrayList<Tarea> pendientes = new ArrayList<>();
+        pendientes.add(tarea);
+        while (!pendientes.isEmpty()) {
+            Tarea t = pendientes.remove(pendientes.size() - 1);
+            resultado.carpetas.add(t.carpeta);
+            resultado.archivos.addAll(t.archivos);
+            resultado.atributos.addAll(t.atributos);
+            pendientes.addAll(t.subcarpetas);
+        }
+
+        return resultado;
+    }
+
+
+    private static synchronized ForkJoinPool hilos() {
+        if (hilos == null) {
+            hilos = new ForkJoinPool(ServicioHashes.hilosRecomendados());
+        }
+        return hilos;
+    }
+
+
+
+
+    /**
+     * Tarea que lee una carpeta, y lanza una tarea por cada una de sus subcarpetas. Cada tarea guarda sus propios
+     * resultados, y se juntan al final, para no compartir listas entre hilos.
+     */
+    private static class Tarea extends RecursiveAction {
+
+        final Path carpeta;
+        final ArrayList<Path> archivos = new ArrayList<>();
+        final ArrayList<BasicFileAttributes> atributos = new ArrayList<>();
+        final ArrayList<Tarea> subcarpetas = new ArrayList<>();
+
+        Tarea(Path carpeta) {
+            this.carpeta = carpeta;
+        }
+
+        @Override
+        protected void compute() {
+            try (DirectoryStream<Path> entradas = Files.newDirectoryStream(carpeta)) {
+                for (Path entrada : entradas) {
+                    BasicFileAttributes a;
+                    try {
+                        a = Files.readAttributes(entrada, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+                        // Los enlaces se resuelven unicamente si apuntan a un archivo
+                        if (a.isSymbolicLink()) {
+                            a = Files.readAttributes(entrada, BasicFileAttributes.class);
+                            if (a.isDirectory()) continue;
+                        }
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    if (a.isDirectory()) {
+                        Tarea t = new Tarea(entrada);
+                        t.fork();
+                        subcarpetas.add(t);
+                    } else if (a.isRegularFile()) {
+                        archivos.add(entrada);
+                        atributos.add(a);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("no se ha podido leer la carpeta " + carpeta);
+            }
+
+            for (Tarea t : subcarpetas) t.join();
+        }
+    }
+
+}
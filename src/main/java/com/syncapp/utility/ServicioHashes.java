@@ -0,0 +1,159 @@
+package com.syncapp.utility;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.syncapp.model.Archivo;
+
+
+/**
+ * Servicio que calcula hashes (y, en general, cualquier tarea que lea archivos completos) de forma paralela.
+ * <br>
+ * Calcular el hash de un archivo consume CPU, pero tambien espera al disco. Por eso el servicio usa un numero fijo de
+ * hilos igual al mayor entre el numero de procesadores y {@link VariablesGlobales#PROFUNDIDAD_COLA_IO}: con pocos
+ * procesadores se mantienen suficientes lecturas pendientes para aprovechar un disco rapido, y con muchos procesadores
+ * se usan todos.
+ * <br>
+ * Las tareas de una misma peticion se lanzan de mayor a menor tamaño. Asi los archivos grandes empiezan primero, y los
+ * pequeños rellenan los hilos que van quedando libres, en vez de que un archivo grande empiece al final y deje al resto
+ * de hilos esperando a que termine.
+ * <br>
+ * Hay una unica instancia compartida por toda la maquina virtual ({@link #compartido()}), de forma que varias peticiones
+ * simultaneas (por ejemplo, varias sesiones en el servidor) se reparten los mismos hilos en vez de multiplicarlos.
+ */
+public class ServicioHashes {
+
+    /**
+     * Instancia compartida, que se crea la primera vez que se pide.
+     */
+    private static ServicioHashes compartido;
+
+    /**
+     * Hilos que ejecutan las tareas.
+     */
+    private final ExecutorService hilos;
+
+
+
+
+    // Constructor
+
+    /**
+     * Crea un servicio con el numero de hilos indicado.
+     * @param numHilos numero de hilos del servicio. Como minimo 1.
+     */
+    public ServicioHashes(int numHilos) {
+        this.hilos = Executors.newFixedThreadPool(Math.max(1, numHilos), r -> {
+            Thread t = new Thread(r, "servicio-hashes");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Devuelve la instancia compartida del servicio, con {@link #hilosRecomendados()} hilos.
+     * @return {@link ServicioHashes} compartido.
+     */
+    public static synchronized ServicioHashes compartido() {
+        if(compartido == null) {
+            compartido = new ServicioHashes(hilosRecomendados());
+        }
+        return compartido;
+    }
+
+    /**
+     * Numero de hilos recomendado para esta maquina.
+     * @return el mayor entre el numero de procesadores y {@link VariablesGlobales#PROFUNDIDAD_COLA_IO}.
+     */
+    public static int hilosRecomendados() {
+        return Math.max(Runtime.getRuntime().availableProcessors(), VariablesGlobales.PROFUNDIDAD_COLA_IO);
+    }
+
+
+
+
+    // Tareas
+
+    /**
+     * Ejecuta una tarea para cada elemento de la lista, de forma paralela, empezando por los elementos de mayor tamaño.
+     * El metodo bloquea el hilo actual hasta que terminen todas las tareas.
+     * @param elementos {@link List} de elementos a procesar.
+     * @param tamano funcion que devuelve el tamaño (en bytes) de un elemento, para decidir el orden.
+     * @param tarea funcion que procesa un elemento.
+     * @param <E> tipo de los elementos.
+     * @param <R> tipo del resultado de la tarea.
+     * @return {@link ArrayList} con el resultado de cada elemento, en el mismo orden que la lista de entrada. Si la
+     * tarea de un elemento lanza una excepcion, su resultado es null.
+     */
+    public <E, R> ArrayList<R> procesar(List<E> elementos, ToLongFunction<E> tamano, Function<E, R> tarea) {
+        int n = elementos.size();
+
+        // Ordenamos los indices de mayor a menor tamaño. El tamaño se calcula una unica vez por elemento
+        long[] tamanos = new long[n];
+        ArrayList<Integer> orden = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            tamanos[i] = tamano.applyAsLong(elementos.get(i));
+            orden.add(i);
+        }
+        orden.sort(Comparator.comparingLong((Integer i) -> tamanos[i]).reversed());
+
+        // Lanzamos las tareas en ese orden, pero guardamos cada una en su posicion original
+        ArrayList<Future<R>> futuros = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) futuros.add(null);
+        for (int i : orden) {
+            E elemento = elementos.get(i);
+            futuros.set(i, hilos.submit(() -> tarea.apply(elemento)));
+        }
+
+        // Recogemos los resultados
+        ArrayList<R> resultados = new ArrayList<>(n);
+        for (Future<R> f : futuros) {
+            try {
+                resultados.add(f.get());
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                resultados.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                resultados.add(null);
+            }
+        }
+
+        return resultados;
+    }
+
+
+    /**
+     * Calcula el hash de cada archivo de la lista de forma paralela, con el algoritmo de deteccion de cambios por
+     * defecto ({@link AlgoritmoHash#DETECCION}). Los archivos deben tener su carpeta de trabajo
+     * ({@link Archivo#parentFolder}) establecida.
+     * @param archivos {@link List} de {@link Archivo} de los que se quiere obtener el hash.
+     * @param cache {@link CacheHashes} de la que obtener los hashes. Si es null, se calculan siempre.
+     * @return {@link ArrayList} con el hash de cada archivo, en el mismo orden. Si no se puede calcular el hash de un
+     * archivo, su posicion es null.
+     */
+    public ArrayList<String> calcularHashes(List<Archivo> archivos, CacheHashes cache) {
+        return calcularHashes(archivos, cache, AlgoritmoHash.DETECCION);
+    }
+
+
+    /**
+     * Analogo a {@link #calcularHashes(List, CacheHashes)}, pero con el algoritmo indicado.
+     * @param archivos {@link List} de {@link Archivo} de los que se quiere obtener el hash.
+     * @param cache {@link CacheHashes} de la que obtener los hashes. Si es null, se calculan siempre.
+     * @param algoritmo {@link AlgoritmoHash} que se quiere usar.
+     * @return {@link ArrayList} con el hash de cada archivo, en el mismo orden.
+     */
+    public ArrayList<String> calcularHashes(List<Archivo> archivos, CacheHashes cache, AlgoritmoHash algoritmo) {
+        return procesar(archivos, a -> a.sizeInBytes,
+                a -> (cache != null) ? cache.obtenerHash(a, algoritmo) : Utilidades.checkSumhash(a, algoritmo));
+    }
+
+}
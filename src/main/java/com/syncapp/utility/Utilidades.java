@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -27,9 +29,9 @@ public class Utilidades {
 
     /**
      * Este metodo devuelve un {@link ArrayList}<{@link Archivo}> (lista de archivos, exclusivamente archivos)
-     * que existe bajo el directorio {@link Path de entrada}. Usa el metodo {@link Files#walk(Path, FileVisitOption...)} para
-     * iterar el directorio y subdirectorios dados, buscando los archivos que realmente son un archivo, y los añade
-     * a la lista.
+     * que existe bajo el directorio {@link Path de entrada}. Usa {@link RecorridoCarpetas} para iterar el directorio y
+     * subdirectorios dados en paralelo, buscando los archivos que realmente son un archivo, y los añade a la lista con
+     * el tamaño y la fecha de modificacion obtenidos durante el recorrido.
      *
      * <pre>
      * La lista de archivos viene relativizada al path que queremos lista.
@@ -74,30 +76,22 @@ public class Utilidades {
         // superior indicando "..", lo cual en un servidor puede acceder a directorios que los usuarios no deberian acceder.
         Path pathNorm = pathToList.normalize();
 
-        // Iteramos el directorio indicado
-        try {
-            Files.walk(pathNorm).forEach(c -> {
-
-                // Dado que unicamente queremos poner al archivo la ruta respecto al path de original, lo relativizamos
-                // Por ejemplo: pathNorm = /home/usuario/carpeta
-                //                     c = /home/usuario/carpeta/documentos/renta.pdf
-                //                     m = documentos/renta.pdf
-                Path m = pathNorm.relativize(c);
-
-                // Si el path c corresponde a un archivo, y su tamaño es mas de 0bytes, lo añadimos a la lista de archivos
-                long fileSize = c.toFile().length();
-//                System.out.println(fileSize);
-                if (c.toFile().isFile() && fileSize > 0){
-//                    System.out.println("tiene mas de 0bytes asi que añado");
-                    Archivo toAdd = new Archivo(m, pathNorm);
-                    toAdd.sizeInBytes = fileSize;
-                    lista.add(toAdd);
-                }
-                
-            });
-        } catch (IOException ioe) {
-            System.out.println("excepcion en utils al listar archivos");
-            ioe.printStackTrace();
+        // Recorremos el directorio indicado en paralelo. Cada archivo viene con sus atributos, asi que no hay que
+        // volver a consultar el disco para conocer su tamaño o fecha de modificacion
+        RecorridoCarpetas.Resultado recorrido = RecorridoCarpetas.recorrer(pathNorm);
+        lista.ensureCapacity(recorrido.archivos.size());
+
+        for (int i = 0; i < recorrido.archivos.size(); i++) {
+            BasicFileAttributes atributos = recorrido.atributos.get(i);
+
+            // Unicamente añadimos los archivos con mas de 0bytes, y que no sean archivos parciales de una escritura
+            if (atributos.size() == 0 || LectorArchivos.esParcial(recorrido.archivos.get(i))) continue;
+
+            // Dado que unicamente queremos poner al archivo la ruta respecto al path de original, lo relativizamos
+            // Por ejemplo: pathNorm = /home/usuario/carpeta
+            //                     c = /home/usuario/carpeta/documentos/renta.pdf
+            //                     m = documentos/renta.pdf
+            lista.add(new Archivo(recorrido.archivos.get(i), pathNorm, atributos));
         }
 
         return lista;
@@ -108,7 +102,7 @@ public class Utilidades {
 
     /**
      * Devuelve un {@link ArrayList}<{@link Path}> con los directiorios dentro del path de entrada. <br>
-     * Itera el path de entrada, hasta que no encuentra mas archivos/directorios.
+     * Itera el path de entrada en paralelo ({@link RecorridoCarpetas}), hasta que no encuentra mas archivos/directorios.
      * @param pathToList {@link Path} del que queremos conocer los subdirectorios.
      * @return {@link ArrayList}<{@link Path}> con los subdirectorios dentro del path de entrada.
      */
@@ -119,25 +113,13 @@ public class Utilidades {
             return null;
         }
 
-        // Creamos la lista donde añadiremos los directorios encontrados
-        ArrayList<Path> lista = new ArrayList<>();
-
-        // Iteramos el path de entrada, buscando los paths que sean directorios
-        try {
-            Files.walk(pathToList).forEach(c -> {
-
-                // Si el path actual es un directorio, lo añadimos a la lista
-                if (c.toFile().isDirectory()) {
-                    lista.add(c);
-                }
-
-            });
-        } catch (IOException ioe) {
-            System.out.println("excepcion en utils al listar carpetas");
-            ioe.printStackTrace();
+        // Si el path de entrada no es un directorio, no tiene subdirectorios
+        if (!Files.isDirectory(pathToList)) {
+            return new ArrayList<>();
         }
 
-        return lista;
+        // Recorremos el path de entrada en paralelo, quedandonos con los directorios
+        return RecorridoCarpetas.recorrer(pathToList).carpetas;
 
     }
 
@@ -165,34 +147,55 @@ public class Utilidades {
 
     /**
      * Este metodo nos permite obtener metadatos de archivos de la maquina que lo ejecuta. Estos metadatos se
-     * obtienen para cada uno de los archivos de la lista de entrada. Los metadatos que se obtienen son: hashmd5
+     * obtienen para cada uno de los archivos de la lista de entrada. Los metadatos que se obtienen son: hash
      * ({@link String}) y la ultima fecha/hora de modificacion ({@link Long})
      * <br>
      * Dado que los archivos contienen rutas relativas (a la carpeta de sincronizacion), es necesario que se indique
      * dicha carpeta para acceder poder acceder al archivo real.
+     * <br>
+     * Los metadatos de los distintos archivos se obtienen de forma paralela con el {@link ServicioHashes#compartido()
+     * servicio de hashes}.
      *
      * @param lista {@link ArrayList}<{@link Archivo}> lista de los que se quiere obtener metadatos.
      * @param containerFolder carpeta contenedora de esos archivos (directorio de la carpeta de sincronizacion)
      * @return {@link ArrayList}<{@link Archivo}> lista de los archivos pedidos, pero contienen los metadatos.
      */
     public static ArrayList<Archivo> obtenerMultiplesMetadatos(ArrayList<Archivo> lista, Path containerFolder) {
+        return obtenerMultiplesMetadatos(lista, containerFolder, null);
+    }
+
+
+    /**
+     * Analogo a {@link #obtenerMultiplesMetadatos(ArrayList, Path)}, pero los hashes se obtienen de una
+     * {@link CacheHashes}, de forma que unicamente se calculan los de los archivos que han cambiado.
+     * @param lista {@link ArrayList}<{@link Archivo}> lista de los que se quiere obtener metadatos.
+     * @param containerFolder carpeta contenedora de esos archivos (directorio de la carpeta de sincronizacion)
+     * @param cache {@link CacheHashes} de la que obtener los hashes. Si es null, se calculan siempre.
+     * @return {@link ArrayList}<{@link Archivo}> lista de los archivos pedidos, pero contienen los metadatos.
+     */
+    public static ArrayList<Archivo> obtenerMultiplesMetadatos(ArrayList<Archivo> lista, Path containerFolder, CacheHashes cache) {
 
         // Comprobamos que la lista contenga elementos
         if(lista == null || lista.size() == 0) {
             return null;
         }
 
-        // Creamos una lista temporal en la que añadiremos los archivos conforme vayamos leyendo
+        // Obtenemos los metadatos de todos los archivos de forma paralela, empezando por los mas grandes
+        ArrayList<Archivo> resultados = ServicioHashes.compartido().procesar(lista,
+                c -> c.sizeInBytes,
+                c -> {
+                    try {
+                        return obtenerMetadatos( c, containerFolder, cache);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return null;
+                    }
+                });
+
+        // Descartamos los archivos de los que no se han podido obtener los metadatos
         ArrayList<Archivo> listaFinal = new ArrayList<>();
-
-        // Para cada uno de los archivos de entrada, calculamos el hash y obtenemos la ultima fecha de modificacion.
-        lista.forEach(c -> {
-            try {
-
-                listaFinal.add( obtenerMetadatos( c, containerFolder) );
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        resultados.forEach(c -> {
+            if(c != null) listaFinal.add(c);
         });
 
         return listaFinal;
@@ -224,11 +227,8 @@ public class Utilidades {
     /**
      * Este metodo nos permite obtener los metadatos de un archivo en concreto.
      * <br>
-     * Se genera un checksum tipo md5, realizado mediante la clase {@link MessageDigest}.<br>
-     * Este MessageDigest consume todos los bytes que tiene un archivo (los vamos introduciendo por bloques) y
-     * tras consumir todos, genera un array de bytes representando el hash. Se necesita transformar ese array de bytes
-     * en un String, para ello usamos un {@link StringBuilder}, que convertira cada uno de los bytes archivo un caracter y
-     * construira la cadena de texto.
+     * Se genera un checksum con {@link #checkSumhash(Archivo)}, que consume todos los bytes que tiene un archivo (los
+     * vamos introduciendo por bloques) y tras consumir todos, genera el hash en formato texto.
      * <br>
      * Para la ultima fecha de modificacion, el sistema de archivos almacena automaticamente la ultima vez que se ha
      * modificado ese archivo, asi que se obtiene usando una clase, y se obtiene en forma de milisegundos. Estos
@@ -243,18 +243,30 @@ public class Utilidades {
      * @throws IOException si ocurre un problema al leer los metadatos del fichero.
      */
     public static Archivo obtenerMetadatos(Archivo archivo, Path workingFolder) throws IOException {
+        return obtenerMetadatos(archivo, workingFolder, null);
+    }
 
-        // Creamos un nuevo archivo, que sera donde incluiremos los metadatos
-        Archivo deVuelta = new Archivo(  archivo.toRelativePath(), workingFolder);
 
-        // Obtenemos el hash del fichero y se lo añadimos al fichero de vuelta
-        deVuelta.hash = checkSumhash( deVuelta );
+    /**
+     * Analogo a {@link #obtenerMetadatos(Archivo, Path)}, pero el hash se obtiene de una {@link CacheHashes}.
+     * @param archivo {@link Archivo} sobre el que se quiere consultar los metadatos.
+     * @param workingFolder carpeta de trabajo, ya que las rutas de los archivos son relativas a esa carpeta.
+     * @param cache {@link CacheHashes} de la que obtener el hash. Si es null, se calcula siempre.
+     * @return {@link Archivo} con los metadatos en su interior.
+     * @throws IOException si ocurre un problema al leer los metadatos del fichero.
+     */
+    public static Archivo obtenerMetadatos(Archivo archivo, Path workingFolder, CacheHashes cache) throws IOException {
 
-        // Obtenemos la hora de ultima modificacion
-        FileTime ft = Files.getLastModifiedTime( deVuelta.toPath() );
+        // Leemos los atributos del archivo una unica vez, y creamos con ellos un nuevo archivo, que sera donde
+        // incluiremos los metadatos (tamaño y hora de ultima modificacion)
+        Path ruta = workingFolder.resolve(archivo.childFolder);
+        BasicFileAttributes atributos = Files.readAttributes(ruta, BasicFileAttributes.class);
+        Archivo deVuelta = new Archivo(ruta, workingFolder, atributos);
 
-        // Le añadimos la hora al archivo de vuelta
-        deVuelta.timeMilisLastModified = ft.toMillis();
+        // Obtenemos el hash del fichero y se lo añadimos al fichero de vuelta
+        deVuelta.hash = (cache != null)
+                ? cache.obtenerHash( deVuelta, AlgoritmoHash.DETECCION, atributos )
+                : checkSumhash( deVuelta );
 
         return deVuelta;
     }
@@ -262,50 +274,96 @@ public class Utilidades {
 
 
     /**
-     * Este metodo nos permite crear un checksum a un File de entrada, usango el
-     * algoritmo md5.<br>
-     * Para ello, el {@link File archivo} de entrada se separa en bloques de 800KB (para mejorar la rapidez del algoritmo)
-     * y lo pasamos al obtejo {@link MessageDigest} para que lo consuma y vaya produciendo el hash. Una vez que se
-     * ha consumido el total de bytes del archivo, se invoca el metodo {@link MessageDigest#digest()} que nos devolvera
-     * un array de bytes representativo del hash. Este array de bytes lo tenemos que convertir a un String, dado que
-     * es como se representa un hashmd5. Para ello usamos un {@link StringBuilder}, al que le pasaremos el array de bytes,
-     * y le indicaremos una funcion que convierte esos bytes en texto.
-     * 
-     * @param archivo {@link Archivo} al que le realizaremos el md5sum.
-     * @return un String que contiene el resultado del algoritmo md5.
-     * @throws FileNotFoundException si existe el archivo indicado
-     * @throws IOException           cuando se produce un error al leer el archivo
+     * Este metodo nos permite crear un checksum a un archivo de entrada, usando el algoritmo de deteccion de cambios
+     * por defecto ({@link AlgoritmoHash#DETECCION}).
+     * @param archivo {@link Archivo} al que le realizaremos el checksum.
+     * @return un String que contiene el hash, con el formato {@code "<id>:<hex>"}, o null si el archivo no existe.
      */
     public static String checkSumhash(Archivo archivo) {
+        return checkSumhash(archivo, AlgoritmoHash.DETECCION);
+    }
+
+
+    /**
+     * Este metodo nos permite crear un checksum a un archivo de entrada, usando el algoritmo indicado.<br>
+     * Para ello, el archivo se mapea en memoria por ventanas de {@link VariablesGlobales#BYTES_VENTANA_MAPEO} bytes
+     * ({@link FileChannel#map(FileChannel.MapMode, long, long)}), y cada ventana se pasa directamente al
+     * {@link AlgoritmoHash.Calculo}, sin copiar los bytes a un array. Una vez que se ha consumido el total de bytes del
+     * archivo, se obtiene el hash en formato texto, precedido por el identificador del algoritmo.
+     * <br>
+     * Los archivos pequeños (menos de {@link VariablesGlobales#MIN_BYTES_MAPEO} bytes), y los que no se pueden mapear,
+     * se leen por el {@link FileChannel} con un unico buffer reutilizado.
+     * 
+     * @param archivo {@link Archivo} al que le realizaremos el checksum.
+     * @param algoritmo {@link AlgoritmoHash} que se quiere usar.
+     * @return un String que contiene el hash, con el formato {@code "<id>:<hex>"}, o null si el archivo no existe.
+     */
+    public static String checkSumhash(Archivo archivo, AlgoritmoHash algoritmo) {
 
         // Comprobamos errores antes de intentar realizar ninguna operacion
-        if (archivo == null || archivo.toFile().exists()){
+        if (archivo == null || !archivo.toFile().exists()){
             return  null;
         }
 
+        try (FileChannel fc = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+            AlgoritmoHash.Calculo calculo = algoritmo.nuevoCalculo();
+            long size = fc.size();
 
-        // Usamos un StringBuilder para formatear el resultado del md5
-        StringBuilder sb = new StringBuilder();
+            // Si el archivo es grande, intentamos mapearlo. Si no se puede, empezamos de cero leyendolo por el canal
+            if (size < VariablesGlobales.MIN_BYTES_MAPEO || !hashMapeado(fc, size, calculo)) {
+                calculo = algoritmo.nuevoCalculo();
+                hashPorCanal(fc, calculo);
+            }
 
-        // Algoritmo md5
-        try {
-            long posicion = 0;
+            // Devolvemos el hash del archivo
+            return calculo.resultado();
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            BloqueBytes data;
 
-            while (   (data = LectorArchivos.leerBloqueBytes(posicion, archivo))  != null   ){
-                md5.update(data.data);
+    /**
+     * Añade al calculo todo el contenido de un canal, mapeandolo en memoria por ventanas.
+     * @param fc {@link FileChannel} del archivo.
+     * @param size tamaño del archivo.
+     * @param calculo {@link AlgoritmoHash.Calculo} al que se añaden los bytes.
+     * @return true si se ha podido mapear todo el archivo, false si hay que leerlo de otra forma.
+     */
+    private static boolean hashMapeado(FileChannel fc, long size, AlgoritmoHash.Calculo calculo) {
+        try {
+            for (long posicion = 0; posicion < size; posicion += VariablesGlobales.BYTES_VENTANA_MAPEO) {
+                long longitud = Math.min(VariablesGlobales.BYTES_VENTANA_MAPEO, size - posicion);
+                calculo.actualizar(fc.map(FileChannel.MapMode.READ_ONLY, posicion, longitud));
             }
+            return true;
 
-            // Finalizamos el resultado del algoritmo, y lo almacenamos en un array
-            byte[] result = md5.digest();
+        } catch (IOException | UnsupportedOperationException e) {
+            // Algunos archivos (por ejemplo, de sistemas de archivos especiales) no se pueden mapear
+            return false;
+        }
+    }
 
-            // Construimos el String del hash
-            for (int i = 0; i < result.length; i++) {
-                sb.append(Integer.toString((result[i] & 0xff) + 0x100, 16).substring(1));
-            }
 
+    /**
+     * Añade al calculo todo el contenido de un canal, leyendolo secuencialmente con un unico buffer.
+     * @param fc {@link FileChannel} del archivo.
+     * @param calculo {@link AlgoritmoHash.Calculo} al que se añaden los bytes.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
+    private static void hashPorCanal(FileChannel fc, AlgoritmoHash.Calculo calculo) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(VariablesGlobales.BYTES_FRAGMENTO);
+        long posicion = 0;
+        int leidos;
+
+        while ((leidos = fc.read(buffer, posicion)) >= 0) {
+            posicion += leidos;
+            buffer.flip();
+            calculo.actualizar(buffer);
+            buffer.clear();
+        }
+    }
 
 
 
@@ -313,14 +371,82 @@ public class Utilidades {
 
 
 
-        } catch (NoSuchAlgorithmException | IOException e) {
-            throw new RuntimeException(e);
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+    // Metodos para trabajar con fragmentos de contenido
+
+    /**
+     * Este metodo nos permite obtener el manifiesto de un archivo, esto es, la lista de hashes de los fragmentos de
+     * {@link VariablesGlobales#BYTES_FRAGMENTO} bytes en los que se divide (el ultimo fragmento puede ser mas corto).
+     * <br>
+     * Dos archivos con el mismo contenido tienen el mismo manifiesto, y dos versiones de un archivo comparten los hashes
+     * de los fragmentos que no han cambiado, por lo que el manifiesto permite saber que fragmentos ya tiene el servidor.
+     * @param archivo {@link Path ruta} absoluta del archivo.
+     * @return {@link ArrayList} con el hash de cada fragmento, en orden. Un archivo vacio tiene un manifiesto vacio.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
+    public static ArrayList<String> calcularManifiesto(Path archivo) throws IOException {
+        ArrayList<String> manifiesto = new ArrayList<>();
+        byte[] fragmento = new byte[VariablesGlobales.BYTES_FRAGMENTO];
+
+        try (FileChannel fc = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            long posicion = 0;
+            int leidos;
+
+            while ((leidos = leerFragmento(fc, posicion, fragmento)) > 0) {
+                manifiesto.add(hashFragmento(fragmento, 0, leidos));
+                posicion += leidos;
+            }
+        }
+
+        return manifiesto;
+    }
+
+
+    /**
+     * Lee un fragmento de un canal a partir de la posicion indicada, hasta llenar el buffer o alcanzar el final del archivo.
+     * @param fc {@link FileChannel} del que se lee.
+     * @param posicion primer byte que se quiere leer.
+     * @param fragmento buffer en el que se escriben los bytes leidos.
+     * @return numero de bytes leidos, 0 si no quedan bytes por leer.
+     * @throws IOException si ocurre un problema al leer el archivo.
+     */
+    public static int leerFragmento(FileChannel fc, long posicion, byte[] fragmento) throws IOException {
+        ByteBuffer destino = ByteBuffer.wrap(fragmento);
+
+        while (destino.hasRemaining()) {
+            if (fc.read(destino, posicion + destino.position()) < 0) break;
         }
 
-        // Devolvemos el hash md5 del archivo
-        return sb.toString();
+        return destino.position();
+    }
 
 
+    /**
+     * Calcula el hash de un fragmento de contenido. Como el hash identifica el contenido (para deduplicarlo), se usa el
+     * algoritmo {@link AlgoritmoHash#CONTENIDO}.
+     * @param datos array de bytes que contiene el fragmento.
+     * @param offset primer byte del fragmento dentro del array.
+     * @param longitud numero de bytes del fragmento.
+     * @return {@link String} que representa el hash del fragmento, con el formato {@code "<id>:<hex>"}.
+     */
+    public static String hashFragmento(byte[] datos, int offset, int longitud) {
+        return AlgoritmoHash.CONTENIDO.hash(datos, offset, longitud);
     }
 
 
@@ -364,15 +490,8 @@ public class Utilidades {
 
             MessageDigest md5 = MessageDigest.getInstance("MD5");
             md5.update(bytes);
-            byte[] result = md5.digest();
-
-            StringBuilder sb = new StringBuilder();
-
-            for (int i = 0; i < result.length; i++) {
-                sb.append(Integer.toString((result[i] & 0xff) + 0x100, 16).substring(1));
-            }
 
-            return  sb.toString();
+            return AlgoritmoHash.hex(md5.digest());
 
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
@@ -7,10 +7,32 @@ package com.syncapp.utility;
 public class VariablesGlobales {
     public static final int UPLOAD = 1100 ;
     public static final int DOWNLOAD = 2200 ;
+    public static final int DELTA_UPLOAD = 3300 ;
+    public static final int FRAGMENTOS_UPLOAD = 4400 ;
     public static final int FAIL = 001100 ;
     public static final int SUCESS = 11100011 ;
     public static final int MORE_INFO = 0011010001;
     public static final int MAX_BYTES_IN_BLOCK = 24000000; //Por defecto 24MB = 24 000 000B
+    public static final int HILOS_POR_ARCHIVO = 4; //Tramos de un mismo archivo que se transmiten en paralelo
+    public static final int BLOQUES_EN_VUELO = 4; //Bloques leidos y no confirmados por transmision, 4 x 24MB = 96MB
+    public static final int REINTENTOS_BLOQUE = 5; //Intentos de leer/escribir un bloque antes de abortar la transmision
+    public static final long ESPERA_REINTENTO = 250; //Espera (ms) antes del primer reintento, se duplica en cada intento
+    public static final int BYTES_BLOQUE_DELTA = 64000; //Bloques de 64KB para calcular diferencias entre versiones
+    public static final int MIN_BYTES_DELTA = 1000000; //Por debajo de 1MB se sube el archivo completo
+    public static final int BYTES_FRAGMENTO = 1000000; //Fragmentos de 1MB del almacen de contenido del servidor
+    public static final long MAX_BYTES_FRAGMENTOS_SESION = 2000000000; //Fragmentos subidos sin componer por sesion, 2GB
+    public static final int HASHES_POR_PAGINA = 1000; //Archivos por cada llamada de calculo de hashes
+    public static final int ARCHIVOS_POR_PAGINA = 10000; //Maximo de archivos por cada pagina de la lista remota
+    public static final int MIN_BYTES_MAPEO = 1000000; //Por debajo de 1MB se calcula el hash sin mapear el archivo
+    public static final int BYTES_VENTANA_MAPEO = 64000000; //Ventanas de 64MB al mapear un archivo en memoria
+    public static final int PROFUNDIDAD_COLA_IO = 16; //Lecturas simultaneas minimas al calcular hashes
+    public static final int MAX_BLOQUES_EN_POOL = 8; //Buffers de bloque que se reutilizan, 8 x 24MB = 192MB como maximo
+    public static final int PUERTO_DATOS = 1100; //Puerto por defecto del canal de datos del servidor
+    public static final int MAX_CONEXIONES_DATOS = 64; //Conexiones que atiende el canal de datos a la vez
+    public static final int ESPERA_CABECERA_DATOS = 30000; //Una conexion de datos sin peticiones durante 30s se cierra
+    public static final boolean COMPRESION = true; //Los clientes piden comprimir los bloques por defecto
+    public static final long DURACION_SESION = 90000; //Una sesion sin peticiones durante 90s caduca y se cierran sus archivos
+    public static final long LATIDO_SESION = 30000; //Cada 30s el cliente renueva su sesion con un ping
 
     // ANSII escape colors
     public static final String COLOR_BLACK = "\033[90m";
@@ -32,6 +54,12 @@ public class VariablesGlobales {
             case DOWNLOAD -> {
                 res = "op_download";
             }
+            case DELTA_UPLOAD -> {
+                res = "op_delta_upload";
+            }
+            case FRAGMENTOS_UPLOAD -> {
+                res = "op_fragmentos_upload";
+            }
             case MORE_INFO -> {
                 res = "op_more_info";
             }
@@ -0,0 +1,197 @@
+package com.syncapp.utility;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Implementacion incremental del hash no criptografico xxHash64 (semilla 0).
+ * <br>
+ * Procesa los datos en franjas de 32 bytes con cuatro acumuladores independientes, por lo que es varias veces mas rapido
+ * que md5 y su velocidad suele estar limitada por el disco. No es resistente a colisiones provocadas, asi que unicamente
+ * se usa para detectar cambios en los archivos, nunca para identificar contenido.
+ */
+class Xxh64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * Permite leer enteros little-endian directamente de un array de bytes, sin copiarlos.
+     */
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+
+
+
+    /**
+     * Acumuladores de las franjas de 32 bytes.
+     */
+    private long v1 = PRIME1 + PRIME2, v2 = PRIME2, v3 = 0, v4 = -PRIME1;
+
+    /**
+     * Bytes que no completan una franja, a la espera de mas datos.
+     */
+    private final byte[] pendiente = new byte[32];
+    private int numPendiente;
+
+    /**
+     * Numero total de bytes procesados.
+     */
+    private long total;
+
+
+
+
+    /**
+     * Añade bytes al calculo del hash.
+     * @param datos array de bytes.
+     * @param offset primer byte a añadir.
+     * @param longitud numero de bytes a añadir.
+     */
+    void actualizar(byte[] datos, int offset, int longitud) {
+        total += longitud;
+        int fin = offset + longitud;
+
+        // Completamos la franja pendiente, si la hay
+        if (numPendiente > 0) {
+            int copiar = Math.min(32 - numPendiente, longitud);
+            System.arraycopy(datos, offset, pendiente, numPendiente, copiar);
+            numPendiente += copiar;
+            offset += copiar;
+
+            if (numPendiente < 32) return;
+            franja(pendiente, 0);
+            numPendiente = 0;
+        }
+
+        // Procesamos las franjas completas directamente sobre el array de entrada
+        while (fin - offset >= 32) {
+            franja(datos, offset);
+            offset += 32;
+        }
+
+        // Guardamos el resto para la siguiente llamada
+        numPendiente = fin - offset;
+        System.arraycopy(datos, offset, pendiente, 0, numPendiente);
+    }
+
+
+    /**
+     * Añade los bytes restantes de un {@link ByteBuffer} al calculo del hash, leyendolos directamente del buffer (por
+     * ejemplo, de un archivo mapeado en memoria) sin copiarlos a un array. La posicion del buffer avanza hasta su limite.
+     * @param datos buffer con los bytes a añadir.
+     */
+    void actualizar(ByteBuffer datos) {
+        // Si el buffer tiene un array accesible, usamos el camino de arrays
+        if (datos.hasArray()) {
+            actualizar(datos.array(), datos.arrayOffset() + datos.position(), datos.remaining());
+            datos.position(datos.limit());
+            return;
+        }
+
+        ByteBuffer b = datos.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int p = b.position();
+        int fin = b.limit();
+        total += fin - p;
+
+        // Completamos la franja pendiente, si la hay
+        if (numPendiente > 0) {
+            int copiar = Math.min(32 - numPendiente, fin - p);
+            b.get(p, pendiente, numPendiente, copiar);
+            numPendiente += copiar;
+            p += copiar;
+
+            if (numPendiente < 32) {
+                datos.position(fin);
+                return;
+            }
+            franja(pendiente, 0);
+            numPendiente = 0;
+        }
+
+        // Procesamos las franjas completas leyendo directamente del buffer
+        while (fin - p >= 32) {
+            v1 = ronda(v1, b.getLong(p));
+            v2 = ronda(v2, b.getLong(p + 8));
+            v3 = ronda(v3, b.getLong(p + 16));
+            v4 = ronda(v4, b.getLong(p + 24));
+            p += 32;
+        }
+
+        // Guardamos el resto para la siguiente llamada
+        numPendiente = fin - p;
+        b.get(p, pendiente, 0, numPendiente);
+        datos.position(fin);
+    }
+
+
+    /**
+     * Finaliza el calculo y devuelve el hash.
+     * @return valor del hash.
+     */
+    long resultado() {
+        long h;
+        if (total >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mezclar(h, v1);
+            h = mezclar(h, v2);
+            h = mezclar(h, v3);
+            h = mezclar(h, v4);
+        } else {
+            h = PRIME5;
+        }
+        h += total;
+
+        int i = 0;
+        for (; i + 8 <= numPendiente; i += 8) {
+            h ^= ronda(0, (long) LONG_LE.get(pendiente, i));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (i + 4 <= numPendiente) {
+            h ^= ((int) INT_LE.get(pendiente, i) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        for (; i < numPendiente; i++) {
+            h ^= (pendiente[i] & 0xFFL) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        // Avalancha final
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+
+
+
+    private void franja(byte[] b, int p) {
+        v1 = ronda(v1, (long) LONG_LE.get(b, p));
+        v2 = ronda(v2, (long) LONG_LE.get(b, p + 8));
+        v3 = ronda(v3, (long) LONG_LE.get(b, p + 16));
+        v4 = ronda(v4, (long) LONG_LE.get(b, p + 24));
+    }
+
+    private static long ronda(long acc, long entrada) {
+        acc += entrada * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mezclar(long acc, long v) {
+        acc ^= ronda(0, v);
+        return acc * PRIME1 + PRIME4;
+    }
+
+}
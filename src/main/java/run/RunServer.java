@@ -1,10 +1,12 @@
 package run;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 
 import com.syncapp.server.SyncAppServer;
+import com.syncapp.utility.VariablesGlobales;
 
 
 /**
@@ -26,6 +28,11 @@ public class RunServer {
      *         <li>
      *             <b>port puerto</b> -> para indicar el puerto del registro RMI. Valor por defecto es <i>1099</i>.
      *         </li>
+     *         <li>
+     *             <b>dataport puerto</b> -> para indicar el puerto del canal de datos, por el que se transmiten los bytes
+     *             de los archivos. Valor por defecto es <i>1100</i>. Con <i>0</i> no se inicia el canal de datos, y los
+     *             archivos se transmiten por RMI.
+     *         </li>
      *     </ul>
      * </p>
      *
@@ -38,6 +45,7 @@ public class RunServer {
 
         String ip = null;
         String puerto = null;
+        String puertoDatos = null;
 
 
         // Comprobamos los argumentos introducidos
@@ -53,6 +61,10 @@ public class RunServer {
                         puerto = args[i + 1];
                         i += 2;
                     }
+                    case "dataport" -> {
+                        puertoDatos = args[i + 1];
+                        i += 2;
+                    }
                 }
             }
 
@@ -71,10 +83,29 @@ public class RunServer {
             puerto = "1099";
         }
 
+        if(puertoDatos == null || puertoDatos.length() <1 ) {
+            puertoDatos = ""+ VariablesGlobales.PUERTO_DATOS;
+        }
+
 
         SyncAppServer sap = new SyncAppServer();
         System.out.println(ip+":"+puerto);
         Naming.rebind("rmi://"+ip+":"+puerto+"/SyncApp", sap);
+
+        // El canal de datos es opcional: si no se puede iniciar, los archivos se transmiten por RMI
+        if(!puertoDatos.equals("0")) {
+            try {
+                sap.iniciarCanalDatos(Integer.parseInt(puertoDatos));
+                System.out.println("canal de datos en el puerto "+puertoDatos);
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("no se ha podido iniciar el canal de datos en el puerto "+puertoDatos+", usando unicamente RMI");
+                e.printStackTrace();
+            }
+        }
+
+        // Las sesiones que dejan de hacer peticiones se cierran, junto con los archivos que tuvieran abiertos
+        sap.iniciarCaducidadSesiones(VariablesGlobales.DURACION_SESION);
+
         System.out.println("ready to operate");
 
 
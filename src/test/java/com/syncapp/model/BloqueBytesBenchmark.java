@@ -0,0 +1,165 @@
+package com.syncapp.model;
+
+import com.syncapp.utility.PoolBloques;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Microbenchmark de la serializacion de {@link BloqueBytes}, que es el camino por el que pasa cada bloque enviado por
+ * RMI: escritura de la cabecera, compresion opcional y copia de los bytes validos, y su lectura sobre un buffer de
+ * {@link PoolBloques}. Como referencia, se mide tambien la serializacion por defecto de una copia de la disposicion de
+ * campos anterior ({@link BloquePorDefecto}), en la que el bloque se recortaba a sus bytes validos antes de enviarlo.
+ * <br>
+ * Se ejecuta desde {@link #main(String[])}, con las clases de prueba compiladas ({@code mvn test-compile}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BloqueBytesBenchmark {
+
+    /**
+     * Numero de bytes validos del bloque.
+     */
+    @Param({"65536", "4000000"})
+    public int tamano;
+
+    /**
+     * Contenido del bloque: bytes aleatorios, que no se pueden comprimir, o texto repetitivo.
+     */
+    @Param({"aleatorio", "texto"})
+    public String contenido;
+
+    @Param({"false", "true"})
+    public boolean comprimir;
+
+    private BloqueBytes bloque;
+    private BloquePorDefecto bloquePorDefecto;
+    private byte[] serializado, serializadoPorDefecto;
+    private ByteArrayOutputStream salida;
+
+    @Setup
+    public void preparar() throws IOException {
+        bloque = new BloqueBytes();
+        bloque.data = PoolBloques.obtener();
+        bloque.size = tamano;
+        bloque.position = 1L << 32;
+        bloque.fileID = 7;
+        bloque.comprimir = comprimir;
+
+        if (contenido.equals("aleatorio")) {
+            byte[] aleatorio = new byte[tamano];
+            new Random(1).nextBytes(aleatorio);
+            System.arraycopy(aleatorio, 0, bloque.data, 0, tamano);
+        } else {
+            byte[] linea = "2026/10/17-11:40:55 INFO enviando bloque [file=7,pos=4294967296]\n".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < tamano; i++) bloque.data[i] = linea[i % linea.length];
+        }
+
+        bloquePorDefecto = new BloquePorDefecto(bloque);
+
+        salida = new ByteArrayOutputStream(tamano + 1024);
+        serializado = serializar(bloque);
+        serializadoPorDefecto = serializar(bloquePorDefecto);
+    }
+
+
+
+
+    // Benchmarks
+
+    @Benchmark
+    public byte[] escribir() throws IOException {
+        return serializar(bloque);
+    }
+
+    @Benchmark
+    public byte[] escribirPorDefecto() throws IOException {
+        return serializar(bloquePorDefecto);
+    }
+
+    @Benchmark
+    public long leer() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializado))) {
+            BloqueBytes leido = (BloqueBytes) in.readObject();
+            long posicion = leido.position + leido.size;
+            leido.liberar();
+            return posicion;
+        }
+    }
+
+    @Benchmark
+    public long leerPorDefecto() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializadoPorDefecto))) {
+            BloquePorDefecto leido = (BloquePorDefecto) in.readObject();
+            return leido.position + leido.size;
+        }
+    }
+
+
+
+
+    // Disposicion anterior
+
+    /**
+     * Copia de los campos de {@link BloqueBytes} tal como se serializaban antes, con la serializacion por defecto y el
+     * array recortado a los bytes validos.
+     */
+    static class BloquePorDefecto implements Serializable {
+        byte[] data;
+        int size;
+        long position;
+        int fileID;
+
+        BloquePorDefecto(BloqueBytes bb) {
+            data = Arrays.copyOf(bb.data, bb.size);
+            size = bb.size;
+            position = bb.position;
+            fileID = bb.fileID;
+        }
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private byte[] serializar(Object o) throws IOException {
+        salida.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(salida)) {
+            out.writeObject(o);
+        }
+        return salida.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BloqueBytesBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
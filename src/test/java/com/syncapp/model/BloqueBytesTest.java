@@ -0,0 +1,99 @@
+package com.syncapp.model;
+
+import com.syncapp.utility.VariablesGlobales;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Pruebas de la serializacion de {@link BloqueBytes}.
+ */
+public class BloqueBytesTest {
+
+    @Test
+    public void seSerializanUnicamenteLosBytesValidos() throws Exception {
+        for (boolean comprimir : new boolean[]{false, true}) {
+            BloqueBytes bb = bloque(new byte[1000], 100, comprimir);
+            Arrays.fill(bb.data, 0, 100, (byte) 'a');
+
+            BloqueBytes leido = leer(escribir(bb));
+            assertEquals(100, leido.size);
+            assertEquals(bb.position, leido.position);
+            assertEquals(bb.fileID, leido.fileID);
+            assertArrayEquals(Arrays.copyOf(bb.data, 100), Arrays.copyOf(leido.data, 100));
+            leido.liberar();
+        }
+    }
+
+    @Test
+    public void unBloquePequenoNoOcupaUnBufferCompleto() throws Exception {
+        for (boolean comprimir : new boolean[]{false, true}) {
+            BloqueBytes leido = leer(escribir(bloque(new byte[1000], 1000, comprimir)));
+            assertEquals(1000, leido.data.length);
+            leido.liberar();
+        }
+
+        int size = VariablesGlobales.MAX_BYTES_IN_BLOCK;
+        BloqueBytes leido = leer(escribir(bloque(new byte[size], size, false)));
+        assertEquals(VariablesGlobales.MAX_BYTES_IN_BLOCK, leido.data.length);
+        leido.liberar();
+    }
+
+    @Test
+    public void unBloqueVacioNoSeComprime() throws Exception {
+        BloqueBytes leido = leer(escribir(bloque(new byte[0], 0, true)));
+        assertEquals(0, leido.size);
+        leido.liberar();
+    }
+
+    @Test
+    public void seRechazaUnBloqueMayorQueElMaximo() throws Exception {
+        int size = VariablesGlobales.MAX_BYTES_IN_BLOCK + 1;
+        byte[] serializado = escribir(bloque(new byte[size], size, false));
+
+        try {
+            leer(serializado);
+            fail("el bloque deberia haberse rechazado");
+        } catch (IOException esperado) {
+            assertTrue(esperado.getMessage().contains("tamaño de bloque no valido"));
+        }
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private static BloqueBytes bloque(byte[] data, int size, boolean comprimir) {
+        BloqueBytes bb = new BloqueBytes();
+        bb.data = data;
+        bb.size = size;
+        bb.position = 1L << 32;
+        bb.fileID = 3;
+        bb.comprimir = comprimir;
+        return bb;
+    }
+
+    private static byte[] escribir(BloqueBytes bb) throws IOException {
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(salida)) {
+            out.writeObject(bb);
+        }
+        return salida.toByteArray();
+    }
+
+    private static BloqueBytes leer(byte[] serializado) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializado))) {
+            return (BloqueBytes) in.readObject();
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.syncapp.model;
+
+import com.syncapp.utility.CodecBinario;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Pruebas de la serializacion de {@link ListaArchivos}.
+ */
+public class ListaArchivosTest {
+
+    @Test
+    public void seConservanLosCamposDeCadaArchivo() throws Exception {
+        ListaArchivos lista = new ListaArchivos();
+        lista.add(archivo("docs/a.txt", "md5:0123456789abcdef0123456789abcdef", 10));
+        lista.add(null);
+        lista.add(archivo("docs/b.txt", "texto sin formato", -1));
+        lista.add(archivo("fotos/c.jpg", null, 1L << 40));
+
+        ArrayList<Archivo> leida = leer(escribir(lista));
+        assertTrue(leida instanceof ListaArchivos);
+        assertEquals(lista.size(), leida.size());
+        assertNull(leida.get(1));
+        for (int i : new int[]{0, 2, 3}) {
+            Archivo esperado = lista.get(i), a = leida.get(i);
+            assertEquals(esperado.childFolder, a.childFolder);
+            assertEquals(esperado.parentFolder, a.parentFolder);
+            assertEquals(esperado.hash, a.hash);
+            assertEquals(esperado.sizeInBytes, a.sizeInBytes);
+            assertEquals(esperado.timeMilisLastModified, a.timeMilisLastModified);
+            assertEquals(esperado.globalID, a.globalID);
+        }
+    }
+
+    @Test
+    public void lasListasDeUnMismoFlujoNoCompartenPrefijos() throws Exception {
+        ListaArchivos primera = new ListaArchivos();
+        primera.add(archivo("carpeta/uno.txt", null, 1));
+        ListaArchivos segunda = new ListaArchivos();
+        segunda.add(archivo("carpeta/dos.txt", null, 2));
+
+        // Cada lista comprime unicamente respecto a sus propios archivos, asi que se pueden leer por separado
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(salida)) {
+            out.writeObject(primera);
+            out.writeObject(segunda.get(0));
+            out.writeObject(segunda);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(salida.toByteArray()))) {
+            assertEquals("carpeta/uno.txt", ((ListaArchivos) in.readObject()).get(0).childFolder);
+            assertEquals("carpeta/dos.txt", ((Archivo) in.readObject()).childFolder);
+            assertEquals("carpeta/dos.txt", ((ListaArchivos) in.readObject()).get(0).childFolder);
+        }
+    }
+
+    @Test
+    public void seRechazaUnaCadenaMayorQueElMaximo() throws Exception {
+        ListaArchivos lista = new ListaArchivos();
+        lista.add(archivo("a".repeat(CodecBinario.MAX_BYTES_TEXTO + 1), null, 1));
+        byte[] serializado = escribir(lista);
+
+        try {
+            leer(serializado);
+            fail("la ruta deberia haberse rechazado");
+        } catch (IOException esperado) {
+            assertTrue(esperado.getMessage().contains("cadena demasiado larga"));
+        }
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private static Archivo archivo(String ruta, String hash, long size) {
+        Archivo a = new Archivo(ruta);
+        a.parentFolder = "/home/usuario/sync";
+        a.hash = hash;
+        a.sizeInBytes = size;
+        a.timeMilisLastModified = 1792281945517L;
+        a.globalID = 5;
+        return a;
+    }
+
+    private static byte[] escribir(Object o) throws IOException {
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(salida)) {
+            out.writeObject(o);
+        }
+        return salida.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Archivo> leer(byte[] serializado) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializado))) {
+            return (ArrayList<Archivo>) in.readObject();
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.syncapp.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Microbenchmark de la serializacion con {@link com.syncapp.utility.CodecBinario} de los objetos que mas viajan por
+ * RMI: las listas de {@link Archivo} y el {@link TokenUsuario} de cada invocacion.
+ * <br>
+ * Cada caso se mide con el codec ({@link ListaArchivos}, que comprime las rutas respecto al archivo anterior, y un
+ * {@link ArrayList} de {@link Archivo}, en el que cada archivo se escribe por separado) y sin el, con la serializacion
+ * por defecto de una copia de la disposicion de campos anterior al codec ({@link ArchivoPorDefecto} y
+ * {@link TokenPorDefecto}). Ademas del tiempo, {@link #main(String[])} muestra el tamaño serializado de cada caso.
+ * <br>
+ * Se ejecuta desde {@link #main(String[])}, con las clases de prueba compiladas ({@code mvn test-compile}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializacionArchivosBenchmark {
+
+    /**
+     * Numero de archivos de cada lista.
+     */
+    @Param({"100", "10000"})
+    public int archivos;
+
+    private ListaArchivos lista;
+    private ArrayList<Archivo> arrayList;
+    private ArrayList<ArchivoPorDefecto> listaPorDefecto;
+    private TokenUsuario token;
+    private TokenPorDefecto tokenPorDefecto;
+
+    private byte[] listaSerializada, arrayListSerializado, listaPorDefectoSerializada;
+    private byte[] tokenSerializado, tokenPorDefectoSerializado;
+
+    private ByteArrayOutputStream salida;
+
+    @Setup
+    public void preparar() throws IOException {
+        lista = new ListaArchivos();
+        listaPorDefecto = new ArrayList<>(archivos);
+        for (int i = 0; i < archivos; i++) {
+            Archivo a = new Archivo("proyectos/syncapp/src/main/java/com/syncapp/carpeta" + (i / 50) + "/Clase" + i + ".java");
+            a.parentFolder = "/home/usuario/sync_app/cloud_containers/usuario";
+            a.hash = String.format("xxh64:%016x", i * 0x9E3779B97F4A7C15L);
+            a.timeMilisLastModified = 1792281945517L + i * 1000L;
+            a.sizeInBytes = 1000 + i * 37L;
+            a.globalID = i;
+            lista.add(a);
+            listaPorDefecto.add(new ArchivoPorDefecto(a));
+        }
+        arrayList = new ArrayList<>(lista);
+
+        token = new TokenUsuario("usuario");
+        token.session_id = "3f9c2a7e-51b0-4d8e-9a61-0c2f7b4e8d13";
+        tokenPorDefecto = new TokenPorDefecto(token);
+
+        salida = new ByteArrayOutputStream();
+        listaSerializada = serializar(lista);
+        arrayListSerializado = serializar(arrayList);
+        listaPorDefectoSerializada = serializar(listaPorDefecto);
+        tokenSerializado = serializar(token);
+        tokenPorDefectoSerializado = serializar(tokenPorDefecto);
+    }
+
+
+
+
+    // Listas de archivos
+
+    @Benchmark
+    public byte[] escribirListaArchivos() throws IOException {
+        return serializar(lista);
+    }
+
+    @Benchmark
+    public byte[] escribirArrayListArchivos() throws IOException {
+        return serializar(arrayList);
+    }
+
+    @Benchmark
+    public byte[] escribirListaPorDefecto() throws IOException {
+        return serializar(listaPorDefecto);
+    }
+
+    @Benchmark
+    public Object leerListaArchivos() throws IOException, ClassNotFoundException {
+        return deserializar(listaSerializada);
+    }
+
+    @Benchmark
+    public Object leerArrayListArchivos() throws IOException, ClassNotFoundException {
+        return deserializar(arrayListSerializado);
+    }
+
+    @Benchmark
+    public Object leerListaPorDefecto() throws IOException, ClassNotFoundException {
+        return deserializar(listaPorDefectoSerializada);
+    }
+
+
+
+
+    // Token de usuario
+
+    @Benchmark
+    public byte[] escribirToken() throws IOException {
+        return serializar(token);
+    }
+
+    @Benchmark
+    public byte[] escribirTokenPorDefecto() throws IOException {
+        return serializar(tokenPorDefecto);
+    }
+
+    @Benchmark
+    public Object leerToken() throws IOException, ClassNotFoundException {
+        return deserializar(tokenSerializado);
+    }
+
+    @Benchmark
+    public Object leerTokenPorDefecto() throws IOException, ClassNotFoundException {
+        return deserializar(tokenPorDefectoSerializado);
+    }
+
+
+
+
+    // Disposicion anterior al codec
+
+    /**
+     * Copia de los campos de {@link Archivo} tal como se serializaban antes del codec, con la serializacion por defecto.
+     */
+    static class ArchivoPorDefecto implements Serializable {
+        final String childFolder;
+        String parentFolder;
+        String hash;
+        long timeMilisLastModified;
+        long sizeInBytes;
+        String remoteID;
+        int globalID;
+
+        ArchivoPorDefecto(Archivo a) {
+            childFolder = a.childFolder;
+            parentFolder = a.parentFolder;
+            hash = a.hash;
+            timeMilisLastModified = a.timeMilisLastModified;
+            sizeInBytes = a.sizeInBytes;
+            remoteID = a.remoteID;
+            globalID = a.globalID;
+        }
+    }
+
+    /**
+     * Copia de los campos de {@link TokenUsuario} tal como se serializaban antes del codec.
+     */
+    static class TokenPorDefecto implements Serializable {
+        final String name;
+        String session_id;
+
+        TokenPorDefecto(TokenUsuario t) {
+            name = t.name;
+            session_id = t.session_id;
+        }
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private byte[] serializar(Object o) throws IOException {
+        salida.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(salida)) {
+            out.writeObject(o);
+        }
+        return salida.toByteArray();
+    }
+
+    private static Object deserializar(byte[] serializado) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializado))) {
+            return in.readObject();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        for (int archivos : new int[]{100, 10000}) {
+            SerializacionArchivosBenchmark b = new SerializacionArchivosBenchmark();
+            b.archivos = archivos;
+            b.preparar();
+            System.out.println(archivos + " archivos: ListaArchivos " + b.listaSerializada.length
+                    + " B, ArrayList<Archivo> " + b.arrayListSerializado.length
+                    + " B, por defecto " + b.listaPorDefectoSerializada.length + " B");
+        }
+        SerializacionArchivosBenchmark b = new SerializacionArchivosBenchmark();
+        b.archivos = 1;
+        b.preparar();
+        System.out.println("TokenUsuario " + b.tokenSerializado.length + " B, por defecto "
+                + b.tokenPorDefectoSerializado.length + " B");
+
+        new Runner(new OptionsBuilder().include(SerializacionArchivosBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
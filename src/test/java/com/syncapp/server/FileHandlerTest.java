@@ -0,0 +1,238 @@
+package com.syncapp.server;
+
+import com.syncapp.model.BloqueBytes;
+import com.syncapp.utility.LectorArchivos;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Pruebas de {@link FileHandler} con varias sesiones abriendo, leyendo, escribiendo y cerrando archivos a la vez.
+ */
+public class FileHandlerTest {
+
+    private static final int HILOS = 8;
+    private static final int RONDAS = 50;
+    private static final int BLOQUE = 4096;
+
+    @Rule
+    public TemporaryFolder carpeta = new TemporaryFolder();
+
+    private Path usuario;
+    private FileHandler fileHandler;
+
+    @Before
+    public void iniciar() throws IOException {
+        Path base = carpeta.newFolder("server").toPath();
+        usuario = Files.createDirectories(base.resolve("usuario"));
+        fileHandler = new FileHandler(base);
+    }
+
+
+
+
+    // Pruebas
+
+    /**
+     * Cada hilo escribe y relee su propio archivo varias veces, mientras el resto de hilos hace lo mismo con los suyos.
+     * Al final, cada archivo tiene el contenido de la ultima escritura y ninguno queda abierto.
+     */
+    @Test
+    public void escriturasYLecturasConcurrentes() throws Exception {
+        ExecutorService hilos = Executors.newFixedThreadPool(HILOS);
+        CountDownLatch salida = new CountDownLatch(1);
+
+        List<Future<Void>> tareas = new ArrayList<>();
+        for (int h = 0; h < HILOS; h++) {
+            final int hilo = h;
+            tareas.add(hilos.submit((Callable<Void>) () -> {
+                salida.await();
+                String ruta = usuario.resolve("archivo" + hilo + ".bin").toString();
+
+                for (int ronda = 0; ronda < RONDAS; ronda++) {
+                    byte[] contenido = contenido(hilo, ronda);
+                    escribir(ruta, contenido);
+                    assertArrayEquals(contenido, leer(ruta, contenido.length));
+                }
+                return null;
+            }));
+        }
+
+        salida.countDown();
+        for (Future<Void> tarea : tareas) tarea.get(60, TimeUnit.SECONDS);
+        hilos.shutdown();
+
+        for (int h = 0; h < HILOS; h++) {
+            String ruta = usuario.resolve("archivo" + h + ".bin").toString();
+            assertArrayEquals(contenido(h, RONDAS - 1), Files.readAllBytes(usuario.resolve("archivo" + h + ".bin")));
+            assertFalse(fileHandler.isFileOpened(ruta));
+            assertFalse(fileHandler.isFileBeingRead(ruta));
+        }
+    }
+
+
+    /**
+     * Todos los hilos intentan escribir el mismo archivo a la vez. Nunca hay dos escritores del archivo al mismo tiempo,
+     * y varias sesiones pueden leerlo a la vez compartiendo el lector.
+     */
+    @Test
+    public void unUnicoEscritorPorArchivo() throws Exception {
+        String ruta = usuario.resolve("compartido.bin").toString();
+        ExecutorService hilos = Executors.newFixedThreadPool(HILOS);
+        CountDownLatch salida = new CountDownLatch(1);
+        AtomicInteger escritores = new AtomicInteger();
+        AtomicInteger escrituras = new AtomicInteger();
+
+        List<Future<Void>> tareas = new ArrayList<>();
+        for (int h = 0; h < HILOS; h++) {
+            final int hilo = h;
+            tareas.add(hilos.submit((Callable<Void>) () -> {
+                salida.await();
+
+                for (int ronda = 0; ronda < RONDAS; ronda++) {
+                    int fileId = fileHandler.openFile(ruta, "rw");
+                    if (fileId < 0) {
+
+                        // Si no se puede escribir, porque lo escribe o lo lee otra sesion, lo intentamos leer
+                        int lectura = fileHandler.openFile(ruta, "r");
+                        if (lectura >= 0) fileHandler.closeFile(lectura);
+                        continue;
+                    }
+
+                    assertEquals(1, escritores.incrementAndGet());
+                    escribirBloques(fileHandler.getWriter(fileId), contenido(hilo, ronda));
+                    escritores.decrementAndGet();
+                    fileHandler.closeFile(fileId);
+                    escrituras.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        salida.countDown();
+        for (Future<Void> tarea : tareas) tarea.get(60, TimeUnit.SECONDS);
+        hilos.shutdown();
+
+        assertTrue(escrituras.get() > 0);
+        assertFalse(fileHandler.isFileOpened(ruta));
+        assertFalse(fileHandler.isFileBeingRead(ruta));
+    }
+
+
+    /**
+     * Si el escritor de un archivo no se puede cerrar, el archivo se debe quedar libre para otras sesiones.
+     */
+    @Test
+    public void cierreFallidoLiberaLaRuta() throws Exception {
+        String ruta = usuario.resolve("fallido.bin").toString();
+
+        int fileId = fileHandler.openFile(ruta, "rw");
+        assertTrue(fileId >= 0);
+
+        // Cerramos el escritor por debajo, de forma que FileHandler no lo pueda cerrar
+        fileHandler.getWriter(fileId).cerrarArchivo();
+        try {
+            fileHandler.closeFile(fileId);
+            fail("el cierre deberia haber fallado");
+        } catch (IOException esperado) {
+            // El escritor ya estaba cerrado
+        }
+
+        assertFalse(fileHandler.isFileOpened(ruta));
+        int otraVez = fileHandler.openFile(ruta, "rw");
+        assertTrue(otraVez >= 0);
+        fileHandler.closeFile(otraVez);
+    }
+
+
+
+
+    /**
+     * Una escritura descartada no modifica el archivo, y lo deja libre para otras sesiones.
+     */
+    @Test
+    public void descartarNoModificaElArchivo() throws Exception {
+        String ruta = usuario.resolve("descartado.bin").toString();
+        escribir(ruta, contenido(0, 0));
+
+        int fileId = fileHandler.openFile(ruta, "rw");
+        assertTrue(fileId >= 0);
+        escribirBloques(fileHandler.getWriter(fileId), contenido(1, 1));
+        fileHandler.descartarArchivo(fileId);
+
+        assertArrayEquals(contenido(0, 0), Files.readAllBytes(usuario.resolve("descartado.bin")));
+        assertFalse(fileHandler.isFileOpened(ruta));
+        assertFalse(Files.exists(LectorArchivos.rutaParcial(usuario.resolve("descartado.bin"))));
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private static byte[] contenido(int hilo, int ronda) {
+        byte[] contenido = new byte[BLOQUE * (1 + (hilo + ronda) % 4) + ronda];
+        Arrays.fill(contenido, (byte) (hilo * 31 + ronda));
+        return contenido;
+    }
+
+    private void escribir(String ruta, byte[] contenido) throws IOException {
+        int fileId = fileHandler.openFile(ruta, "rw");
+        assertTrue(fileId >= 0);
+        escribirBloques(fileHandler.getWriter(fileId), contenido);
+        fileHandler.closeFile(fileId);
+    }
+
+    private static void escribirBloques(LectorArchivos escritor, byte[] contenido) throws IOException {
+
+        // Los bloques se escriben del ultimo al primero, como si llegaran desordenados
+        for (int inicio = (contenido.length - 1) / BLOQUE * BLOQUE; inicio >= 0; inicio -= BLOQUE) {
+            BloqueBytes bb = new BloqueBytes();
+            bb.size = Math.min(BLOQUE, contenido.length - inicio);
+            bb.data = Arrays.copyOfRange(contenido, inicio, inicio + bb.size);
+            bb.position = inicio;
+            escritor.escribirBloqueBytes(bb);
+        }
+    }
+
+    private byte[] leer(String ruta, int longitud) throws IOException {
+        int fileId = fileHandler.openFile(ruta, "r");
+        assertTrue(fileId >= 0);
+
+        byte[] leido = new byte[longitud];
+        try {
+            int inicio = 0;
+            while (inicio < longitud) {
+                BloqueBytes bb = fileHandler.getReader(fileId).leerBloqueBytes(inicio);
+                assertNotNull(bb);
+                assertTrue(inicio + bb.size <= longitud);
+                System.arraycopy(bb.data, 0, leido, inicio, bb.size);
+                inicio += bb.size;
+                bb.liberar();
+            }
+            assertNull(fileHandler.getReader(fileId).leerBloqueBytes(inicio));
+        } finally {
+            fileHandler.closeFile(fileId);
+        }
+        return leido;
+    }
+
+}
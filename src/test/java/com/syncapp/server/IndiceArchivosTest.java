@@ -0,0 +1,138 @@
+package com.syncapp.server;
+
+import com.syncapp.model.CambiosArchivos;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Pruebas del diario de cambios de {@link IndiceArchivos} y de su persistencia entre arranques del servidor.
+ */
+public class IndiceArchivosTest {
+
+    @Rule
+    public TemporaryFolder carpeta = new TemporaryFolder();
+
+    private Path base;
+    private Path archivoIndice;
+
+    @Before
+    public void iniciar() throws IOException {
+        base = carpeta.newFolder("server").toPath();
+        archivoIndice = carpeta.getRoot().toPath().resolve("indice.idx");
+        Files.createDirectories(base.resolve("usuario"));
+    }
+
+
+
+
+    // Pruebas
+
+    /**
+     * Tras un cierre correcto, el indice guardado se carga y los cursores de los clientes siguen siendo validos.
+     */
+    @Test
+    public void elCierreCorrectoConservaLosCursores() throws IOException {
+        IndiceArchivos indice = new IndiceArchivos(base, archivoIndice);
+        crear(indice, "a.txt");
+        String cursor = indice.cursorCambios("usuario");
+        indice.cerrar();
+
+        IndiceArchivos otro = new IndiceArchivos(base, archivoIndice);
+        assertEquals(cursor, otro.cursorCambios("usuario"));
+        assertFalse(otro.cambios("usuario", cursor, 10).reiniciar);
+    }
+
+
+    /**
+     * Si el servidor termina sin cerrar el indice, el siguiente arranque lo reconstruye desde el disco con una epoca
+     * nueva, incluyendo los archivos escritos despues del ultimo guardado.
+     */
+    @Test
+    public void unCierreInesperadoReconstruyeElIndice() throws IOException {
+        IndiceArchivos indice = new IndiceArchivos(base, archivoIndice);
+        crear(indice, "a.txt");
+        indice.guardar();
+        String cursor = indice.cursorCambios("usuario");
+
+        // Este cambio no llega a guardarse
+        crear(indice, "b.txt");
+
+        IndiceArchivos otro = new IndiceArchivos(base, archivoIndice);
+        CambiosArchivos cambios = otro.cambios("usuario", cursor, 10);
+        assertTrue(cambios.reiniciar);
+        assertEquals(2, otro.listar("usuario").size());
+    }
+
+
+    /**
+     * La marca de cierre correcto solo vale para un arranque.
+     */
+    @Test
+    public void laMarcaDeCierreSoloValeUnaVez() throws IOException {
+        IndiceArchivos indice = new IndiceArchivos(base, archivoIndice);
+        crear(indice, "a.txt");
+        indice.cerrar();
+
+        String cursor = new IndiceArchivos(base, archivoIndice).cursorCambios("usuario");
+        assertTrue(new IndiceArchivos(base, archivoIndice).cambios("usuario", cursor, 10).reiniciar);
+    }
+
+
+    /**
+     * Al superar el maximo de archivos eliminados, se purgan los mas antiguos del indice y del diario, y los cursores
+     * anteriores a ellos dejan de ser validos. Los cursores posteriores, incluso tras volver a arrancar, siguen siendo
+     * validos.
+     */
+    @Test
+    public void losBorradosAntiguosSePurgan() throws IOException {
+        IndiceArchivos indice = new IndiceArchivos(base, archivoIndice);
+        crear(indice, "vivo.txt");
+        String inicial = indice.cursorCambios("usuario");
+
+        for (int i = 0; i <= IndiceArchivos.MAX_BORRADOS; i++) {
+            crear(indice, "borrado" + i + ".txt");
+            borrar(indice, "borrado" + i + ".txt");
+        }
+        String reciente = indice.cursorCambios("usuario");
+        borrar(indice, "vivo.txt");
+
+        assertTrue(indice.cambios("usuario", inicial, 10).reiniciar);
+        CambiosArchivos cambios = indice.cambios("usuario", reciente, 10);
+        assertFalse(cambios.reiniciar);
+        assertArrayEquals(new String[]{"vivo.txt"}, cambios.rutas);
+        assertEquals(CambiosArchivos.BORRADO, cambios.tamanos[0]);
+
+        indice.cerrar();
+        IndiceArchivos otro = new IndiceArchivos(base, archivoIndice);
+        assertTrue(otro.cambios("usuario", inicial, 10).reiniciar);
+        assertFalse(otro.cambios("usuario", reciente, 10).reiniciar);
+        assertTrue(otro.listar("usuario").isEmpty());
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private void crear(IndiceArchivos indice, String nombre) throws IOException {
+        Path ruta = base.resolve("usuario").resolve(nombre);
+        Files.write(ruta, nombre.getBytes());
+        indice.actualizar(ruta);
+    }
+
+    private void borrar(IndiceArchivos indice, String nombre) throws IOException {
+        Path ruta = base.resolve("usuario").resolve(nombre);
+        Files.delete(ruta);
+        indice.actualizar(ruta);
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.syncapp.utility;
+
+import com.syncapp.model.BloqueBytes;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Pruebas de la escritura de {@link LectorArchivos} a traves de su archivo parcial.
+ */
+public class LectorArchivosTest {
+
+    @Rule
+    public TemporaryFolder carpeta = new TemporaryFolder();
+
+    @Test
+    public void laEscrituraSoloSeVeAlCerrar() throws IOException {
+        Path ruta = carpeta.getRoot().toPath().resolve("archivo.txt");
+        Files.write(ruta, "version anterior, mas larga".getBytes());
+
+        LectorArchivos escritor = new LectorArchivos(ruta, "rw", 1);
+        escritor.escribirBloqueBytes(bloque("nueva", 0));
+
+        // Mientras no se cierra, el archivo sigue teniendo la version anterior
+        assertEquals("version anterior, mas larga", new String(Files.readAllBytes(ruta)));
+        assertTrue(Files.exists(LectorArchivos.rutaParcial(ruta)));
+
+        escritor.cerrarArchivo();
+        assertEquals("nueva", new String(Files.readAllBytes(ruta)));
+        assertFalse(Files.exists(LectorArchivos.rutaParcial(ruta)));
+    }
+
+    @Test
+    public void descartarNoModificaElArchivo() throws IOException {
+        Path ruta = carpeta.getRoot().toPath().resolve("archivo.txt");
+        Files.write(ruta, "original".getBytes());
+
+        LectorArchivos escritor = new LectorArchivos(ruta, "rw", 1);
+        escritor.escribirBloqueBytes(bloque("a medias", 0));
+        escritor.descartar();
+
+        assertEquals("original", new String(Files.readAllBytes(ruta)));
+        assertFalse(Files.exists(LectorArchivos.rutaParcial(ruta)));
+    }
+
+    @Test
+    public void unArchivoNuevoNoExisteHastaCerrarlo() throws IOException {
+        Path ruta = carpeta.getRoot().toPath().resolve("nuevo.txt");
+
+        LectorArchivos escritor = new LectorArchivos(ruta, "rw", 1);
+        escritor.escribirBloqueBytes(bloque("contenido", 0));
+        assertFalse(Files.exists(ruta));
+        assertTrue(LectorArchivos.esParcial(LectorArchivos.rutaParcial(ruta)));
+
+        escritor.cerrarArchivo();
+        assertEquals("contenido", new String(Files.readAllBytes(ruta)));
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    private static BloqueBytes bloque(String texto, long posicion) {
+        BloqueBytes bb = new BloqueBytes();
+        bb.data = texto.getBytes();
+        bb.size = bb.data.length;
+        bb.position = posicion;
+        return bb;
+    }
+
+}
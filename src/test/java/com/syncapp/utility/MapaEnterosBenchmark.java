@@ -0,0 +1,119 @@
+package com.syncapp.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Microbenchmark de {@link MapaEnteros} frente a {@link HashMap} y {@link ConcurrentHashMap} con claves {@link Integer},
+ * con el uso que hacen los registros de {@link com.syncapp.server.FileHandler}: muchas consultas por identificador de
+ * archivo (una o varias por bloque), y archivos que se abren y cierran con identificadores siempre nuevos.
+ * <br>
+ * Se ejecuta desde {@link #main(String[])}, con las clases de prueba compiladas ({@code mvn test-compile}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapaEnterosBenchmark {
+
+    /**
+     * Numero de archivos abiertos.
+     */
+    @Param({"16", "1024", "65536"})
+    public int abiertos;
+
+    private MapaEnteros<Object> mapa;
+    private HashMap<Integer, Object> hashMap;
+    private ConcurrentHashMap<Integer, Object> concurrentHashMap;
+
+    /**
+     * Siguiente identificador de archivo que se abre en los benchmarks de apertura y cierre, y siguiente identificador
+     * consultado en los de consulta.
+     */
+    private int siguiente, consultado;
+
+    @Setup
+    public void preparar() {
+        mapa = new MapaEnteros<>();
+        hashMap = new HashMap<>();
+        concurrentHashMap = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < abiertos; i++) {
+            Object valor = new Object();
+            mapa.put(i, valor);
+            hashMap.put(i, valor);
+            concurrentHashMap.put(i, valor);
+        }
+        siguiente = abiertos;
+    }
+
+
+
+
+    // Consultas
+
+    @Benchmark
+    public Object consultarMapaEnteros() {
+        return mapa.get(consultado++ & (abiertos - 1));
+    }
+
+    @Benchmark
+    public Object consultarHashMap() {
+        return hashMap.get(consultado++ & (abiertos - 1));
+    }
+
+    @Benchmark
+    public Object consultarConcurrentHashMap() {
+        return concurrentHashMap.get(consultado++ & (abiertos - 1));
+    }
+
+
+
+
+    // Apertura y cierre
+
+    @Benchmark
+    public Object abrirYCerrarMapaEnteros() {
+        int id = siguiente++;
+        mapa.put(id, this);
+        return mapa.remove(id - abiertos);
+    }
+
+    @Benchmark
+    public Object abrirYCerrarHashMap() {
+        int id = siguiente++;
+        hashMap.put(id, this);
+        return hashMap.remove(id - abiertos);
+    }
+
+    @Benchmark
+    public Object abrirYCerrarConcurrentHashMap() {
+        int id = siguiente++;
+        concurrentHashMap.put(id, this);
+        return concurrentHashMap.remove(id - abiertos);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MapaEnterosBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
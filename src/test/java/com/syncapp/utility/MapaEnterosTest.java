@@ -0,0 +1,183 @@
+package com.syncapp.utility;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Pruebas de {@link MapaEnteros}: redimensionado, claves eliminadas, claves limite y consultas concurrentes.
+ */
+public class MapaEnterosTest {
+
+    @Test
+    public void laClaveCeroYLaMaximaSonValidas() {
+        MapaEnteros<String> mapa = new MapaEnteros<>();
+        assertNull(mapa.put(0, "cero"));
+        assertNull(mapa.put(Integer.MAX_VALUE, "maxima"));
+
+        assertEquals("cero", mapa.get(0));
+        assertEquals("maxima", mapa.get(Integer.MAX_VALUE));
+        assertEquals(2, mapa.size());
+
+        assertEquals("cero", mapa.remove(0));
+        assertNull(mapa.get(0));
+        assertEquals("maxima", mapa.get(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void lasClavesNegativasNoSeAdmiten() {
+        MapaEnteros<String> mapa = new MapaEnteros<>();
+        mapa.put(1, "uno");
+
+        // -1 es la marca de posicion libre, no puede ser una clave
+        for (int clave : new int[]{-1, -2, Integer.MIN_VALUE}) {
+            try {
+                mapa.put(clave, "negativa");
+                fail("la clave " + clave + " deberia haberse rechazado");
+            } catch (IllegalArgumentException esperado) {
+                // Las claves son identificadores de archivo, nunca negativos
+            }
+            assertNull(mapa.get(clave));
+            assertFalse(mapa.containsKey(clave));
+            assertNull(mapa.remove(clave));
+        }
+        assertEquals(1, mapa.size());
+    }
+
+    @Test
+    public void lasColisionesNoSeRompenAlEliminar() {
+        MapaEnteros<Integer> mapa = new MapaEnteros<>();
+
+        // Claves con la misma posicion inicial en la tabla minima, que forman una cadena de sondeo
+        List<Integer> claves = colisiones(16, 4);
+        for (int clave : claves) mapa.put(clave, clave);
+
+        // Eliminar una clave del principio de la cadena no debe ocultar a las siguientes
+        mapa.remove(claves.get(0));
+        mapa.remove(claves.get(2));
+        assertNull(mapa.get(claves.get(0)));
+        assertEquals(claves.get(1), mapa.get(claves.get(1)));
+        assertNull(mapa.get(claves.get(2)));
+        assertEquals(claves.get(3), mapa.get(claves.get(3)));
+
+        // Una clave eliminada que se vuelve a añadir reutiliza su posicion
+        mapa.put(claves.get(0), -1);
+        assertEquals(Integer.valueOf(-1), mapa.get(claves.get(0)));
+        assertEquals(3, mapa.size());
+    }
+
+    @Test
+    public void alRedimensionarSeConservanLasEntradas() {
+        MapaEnteros<Integer> mapa = new MapaEnteros<>();
+        for (int i = 0; i < 100000; i++) mapa.put(i, i);
+        for (int i = 0; i < 100000; i += 2) mapa.remove(i);
+
+        assertEquals(50000, mapa.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals((i % 2 == 0) ? null : Integer.valueOf(i), mapa.get(i));
+        }
+    }
+
+    @Test
+    public void lasClavesEliminadasSeDescartanAlRedimensionar() {
+        MapaEnteros<Integer> mapa = new MapaEnteros<>();
+
+        // Como los identificadores de archivo, cada clave se usa una vez: las posiciones de las claves eliminadas se
+        // deben recuperar al redimensionar, o la tabla creceria sin limite
+        for (int i = 0; i < 1000000; i++) {
+            mapa.put(i, i);
+            if (i >= 8) mapa.remove(i - 8);
+        }
+
+        assertEquals(8, mapa.size());
+        int[] visitadas = {0};
+        mapa.forEach((clave, valor) -> {
+            assertEquals(clave, valor.intValue());
+            assertTrue(clave >= 1000000 - 8);
+            visitadas[0]++;
+        });
+        assertEquals(8, visitadas[0]);
+    }
+
+    @Test
+    public void seComportaComoUnHashMap() {
+        MapaEnteros<Integer> mapa = new MapaEnteros<>();
+        HashMap<Integer, Integer> modelo = new HashMap<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 200000; i++) {
+            int clave = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(modelo.remove(clave), mapa.remove(clave));
+            } else {
+                assertEquals(modelo.put(clave, i), mapa.put(clave, i));
+            }
+            assertEquals(modelo.size(), mapa.size());
+        }
+        for (int clave = 0; clave < 2000; clave++) assertEquals(modelo.get(clave), mapa.get(clave));
+    }
+
+    @Test
+    public void lasConsultasConcurrentesVenEntradasCompletas() throws Exception {
+        MapaEnteros<Integer> mapa = new MapaEnteros<>();
+        ExecutorService hilos = Executors.newFixedThreadPool(4);
+        CountDownLatch salida = new CountDownLatch(1);
+        AtomicBoolean terminado = new AtomicBoolean();
+
+        List<Future<Void>> lectores = new ArrayList<>();
+        for (int h = 0; h < 3; h++) {
+            lectores.add(hilos.submit((Callable<Void>) () -> {
+                salida.await();
+                Random random = new Random();
+                while (!terminado.get()) {
+                    int clave = random.nextInt(50000);
+                    Integer valor = mapa.get(clave);
+                    if (valor != null) assertEquals(clave, valor.intValue());
+                }
+                return null;
+            }));
+        }
+
+        salida.countDown();
+        for (int i = 0; i < 50000; i++) {
+            mapa.put(i, i);
+            if (i % 3 == 0) mapa.remove(i / 2);
+        }
+        terminado.set(true);
+
+        for (Future<Void> lector : lectores) lector.get(60, TimeUnit.SECONDS);
+        hilos.shutdown();
+    }
+
+
+
+
+    // Metodos auxiliares
+
+    /**
+     * Busca claves con la misma posicion inicial en una tabla de la capacidad indicada, con la misma dispersion que
+     * {@link MapaEnteros}.
+     */
+    private static List<Integer> colisiones(int capacidad, int n) {
+        List<Integer> claves = new ArrayList<>();
+        for (int clave = 0; claves.size() < n; clave++) {
+            int h = clave * 0x9E3779B9;
+            if (((h ^ (h >>> 16)) & (capacidad - 1)) == 0) claves.add(clave);
+        }
+        return claves;
+    }
+
+}